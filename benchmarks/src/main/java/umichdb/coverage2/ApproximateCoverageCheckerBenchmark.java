@@ -0,0 +1,82 @@
+package umichdb.coverage2;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import smile.data.DataFrame;
+
+/**
+ * The approximate MithraCoverageChecker: construction (labelling the
+ * samples and training the decision tree) and queries. The number of
+ * samples, and so the size of the tree, follows from epsilon and phi.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ApproximateCoverageCheckerBenchmark {
+	@Param({"10000"})
+	int n;
+	@Param({"2", "5"})
+	int d;
+	@Param({"10"})
+	int k;
+	@Param({"0.05"})
+	double rho;
+	@Param({"0.01", "0.05"})
+	double epsilon;
+	@Param({"0.01", "0.1"})
+	double phi;
+
+	DataFrame data;
+	MithraCoverageChecker checker;
+	double[] queries;
+
+	@Setup
+	public void setup() {
+		data = BenchmarkData.dataset(n, d, 0);
+		checker = new MithraCoverageChecker(data, k, rho, epsilon, phi);
+		queries = BenchmarkData.queries(BenchmarkData.NUM_QUERIES, d, 1);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 10)
+	public MithraCoverageChecker build() {
+		return new MithraCoverageChecker(data, k, rho, epsilon, phi);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.NUM_QUERIES)
+	public void query(Blackhole blackhole) {
+		double[] point = new double[d];
+		for (int i = 0; i < BenchmarkData.NUM_QUERIES; i++) {
+			System.arraycopy(queries, i * d, point, 0, d);
+			blackhole.consume(checker.ifCovered(point));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.NUM_QUERIES)
+	public BitSet queryBatch() {
+		return checker.ifCovered(queries, d);
+	}
+}
@@ -0,0 +1,74 @@
+package umichdb.coverage2;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import smile.data.DataFrame;
+
+/**
+ * Construction of BasicCoverageChecker (rescaling and the spatial index)
+ * and its queries, one point at a time and as a batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class BasicCoverageCheckerBenchmark {
+	@Param({"10000", "100000"})
+	int n;
+	@Param({"2", "5"})
+	int d;
+	@Param({"10"})
+	int k;
+	@Param({"0.05"})
+	double rho;
+
+	DataFrame data;
+	BasicCoverageChecker checker;
+	double[] queries;
+
+	@Setup
+	public void setup() {
+		data = BenchmarkData.dataset(n, d, 0);
+		checker = new BasicCoverageChecker(data, k, rho);
+		queries = BenchmarkData.queries(BenchmarkData.NUM_QUERIES, d, 1);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public BasicCoverageChecker build() {
+		return new BasicCoverageChecker(data, k, rho);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.NUM_QUERIES)
+	public void query(Blackhole blackhole) {
+		double[] point = new double[d];
+		for (int i = 0; i < BenchmarkData.NUM_QUERIES; i++) {
+			System.arraycopy(queries, i * d, point, 0, d);
+			blackhole.consume(checker.ifCovered(point));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.NUM_QUERIES)
+	public BitSet queryBatch() {
+		return checker.ifCovered(queries, d);
+	}
+}
@@ -0,0 +1,39 @@
+package umichdb.coverage2;
+
+import java.util.Random;
+
+import smile.data.DataFrame;
+
+/**
+ * Seeded inputs of the benchmarks, so that every fork and every run measures
+ * the same data. Queries are generated once in the setup of a benchmark and
+ * never inside the measured methods.
+ */
+class BenchmarkData {
+	// queries per invocation of the query benchmarks
+	static final int NUM_QUERIES = 10000;
+
+	/**
+	 * n uniform random rows in [0, 1)^d, like Utils.genRandDataset
+	 */
+	static DataFrame dataset(int n, int d, long seed) {
+		Random random = new Random(seed);
+		double[][] rows = new double[n][d];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < d; j++)
+				rows[i][j] = random.nextDouble();
+		}
+		return DataFrame.of(rows);
+	}
+
+	/**
+	 * num uniform random points in [0, 1)^d packed row-major
+	 */
+	static double[] queries(int num, int d, long seed) {
+		Random random = new Random(seed);
+		double[] points = new double[num * d];
+		for (int i = 0; i < points.length; i++)
+			points[i] = random.nextDouble();
+		return points;
+	}
+}
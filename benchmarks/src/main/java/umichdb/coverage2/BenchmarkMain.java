@@ -0,0 +1,44 @@
+package umichdb.coverage2;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the command line options of JMH (see -h), but
+ * writes the results as JSON to jmh-result.json unless -rf or -rff say
+ * otherwise.
+ * 
+ * Usage: java -jar target/benchmarks.jar [JMH options] [benchmark regexps]
+ */
+public class BenchmarkMain {
+	static final String RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args)
+			throws CommandLineOptionException, RunnerException, IOException {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		if (cmd.shouldHelp()) {
+			cmd.showHelp();
+			return;
+		}
+		if (cmd.shouldList() || cmd.shouldListWithParams()
+				|| cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+			// The listings of JMH itself
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+		if (!cmd.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.JSON);
+		if (!cmd.getResult().hasValue())
+			options.result(RESULT_FILE);
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,77 @@
+package umichdb.coverage2;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import smile.data.DataFrame;
+
+/**
+ * The exact MithraCoverageChecker on 2-d data: construction (rescaling,
+ * noise, the order-k Voronoi diagram and its locator) and queries. The
+ * construction takes seconds, so it is timed as single shots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class ExactCoverageCheckerBenchmark {
+	@Param({"1000", "10000"})
+	int n;
+	@Param({"5", "10"})
+	int k;
+	@Param({"0.05"})
+	double rho;
+
+	DataFrame data;
+	MithraCoverageChecker checker;
+	double[] queries;
+
+	@Setup
+	public void setup() {
+		data = BenchmarkData.dataset(n, 2, 0);
+		checker = new MithraCoverageChecker(data, k, rho);
+		queries = BenchmarkData.queries(BenchmarkData.NUM_QUERIES, 2, 1);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 5)
+	public MithraCoverageChecker build() {
+		return new MithraCoverageChecker(data, k, rho);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.NUM_QUERIES)
+	public void query(Blackhole blackhole) {
+		double[] point = new double[2];
+		for (int i = 0; i < BenchmarkData.NUM_QUERIES; i++) {
+			point[0] = queries[2 * i];
+			point[1] = queries[2 * i + 1];
+			blackhole.consume(checker.ifCovered(point));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.NUM_QUERIES)
+	public BitSet queryBatch() {
+		return checker.ifCovered(queries, 2);
+	}
+}
@@ -0,0 +1,82 @@
+package umichdb.coverage2;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import smile.data.DataFrame;
+import smile.feature.Scaler;
+
+/**
+ * The transforms the checkers apply to their input: fitting a Scaler and a
+ * Noiser, rescaling and adding noise to a whole dataset, and rescaling
+ * single query points as ifCovered(point, true) does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class TransformBenchmark {
+	@Param({"10000", "100000"})
+	int n;
+	@Param({"2", "5"})
+	int d;
+
+	DataFrame data;
+	Scaler scaler;
+	Noiser noiser;
+	double[] queries;
+
+	@Setup
+	public void setup() {
+		data = BenchmarkData.dataset(n, d, 0);
+		scaler = Scaler.fit(data);
+		noiser = Noiser.fit(data);
+		queries = BenchmarkData.queries(BenchmarkData.NUM_QUERIES, d, 1);
+	}
+
+	@Benchmark
+	public Scaler scalerFit() {
+		return Scaler.fit(data);
+	}
+
+	@Benchmark
+	public DataFrame scalerTransform() {
+		return scaler.transform(data);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.NUM_QUERIES)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void scalerTransformPoint(Blackhole blackhole) {
+		double[] point = new double[d];
+		for (int i = 0; i < BenchmarkData.NUM_QUERIES; i++) {
+			System.arraycopy(queries, i * d, point, 0, d);
+			blackhole.consume(scaler.transform(point));
+		}
+	}
+
+	@Benchmark
+	public Noiser noiserFit() {
+		return Noiser.fit(data);
+	}
+
+	@Benchmark
+	public DataFrame noiserTransform() {
+		return noiser.transform(data);
+	}
+}
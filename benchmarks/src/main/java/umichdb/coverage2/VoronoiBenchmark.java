@@ -0,0 +1,79 @@
+package umichdb.coverage2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The order-k Voronoi diagram on its own: the construction from n sites
+ * (edges, polygons and the slab locator) and point location, both through
+ * the slab locator alone and through the diagram.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class VoronoiBenchmark {
+	@Param({"1000", "10000"})
+	int n;
+	@Param({"5", "10"})
+	int k;
+
+	List<Point2D> sites;
+	VoronoiKOrder diagram;
+	double[] queries;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		sites = new ArrayList<Point2D>();
+		for (int i = 0; i < n; i++)
+			sites.add(new Point2D(random.nextDouble(), random.nextDouble()));
+		// the same construction as repeated by the build benchmark
+		diagram = new VoronoiKOrder(sites, k, false, new Random(0));
+		queries = BenchmarkData.queries(BenchmarkData.NUM_QUERIES, 2, 1);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 1)
+	@Measurement(iterations = 5)
+	public VoronoiKOrder build() {
+		return new VoronoiKOrder(sites, k, false, new Random(0));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.NUM_QUERIES)
+	public void lookup(Blackhole blackhole) {
+		PointLocator locator = diagram.locater;
+		for (int i = 0; i < BenchmarkData.NUM_QUERIES; i++)
+			blackhole.consume(
+					locator.lookup(queries[2 * i], queries[2 * i + 1]));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BenchmarkData.NUM_QUERIES)
+	public void locateSites(Blackhole blackhole) {
+		for (int i = 0; i < BenchmarkData.NUM_QUERIES; i++)
+			blackhole.consume(
+					diagram.locateSites(queries[2 * i], queries[2 * i + 1]));
+	}
+}
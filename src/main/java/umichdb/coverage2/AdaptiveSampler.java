@@ -0,0 +1,340 @@
+package umichdb.coverage2;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.math3.distribution.BinomialDistribution;
+
+import smile.classification.DecisionTree;
+import smile.data.DataFrame;
+import umichdb.coverage2.CoverageMetrics.Stage;
+
+/**
+ * Draws and labels the samples the decision tree of the approximate checker
+ * is trained on, in rounds. The first round is uniform; each later round
+ * keeps uniform candidates with a chance that is 1 near a boundary of the
+ * current tree, the impurity of the training labels in the leaf of the
+ * candidate elsewhere, and at least EXPLORE everywhere, so that labels are
+ * spent where the tree is unsure while no region goes unsampled.
+ *
+ * The (epsilon, phi) guarantee does not rest on the number of samples but on
+ * validation samples that no tree is trained on, uniform and drawn from a
+ * random stream of their own. The tree of each round is tested on the first
+ * n, 2n, 4n, ... of them (VALIDATION_STEPS sizes), n being the fewest on
+ * which a tree without errors passes. They are labelled only as needed: the
+ * next ones while the tree errs rarely enough to pass on them, and while
+ * they fit in the uniform sample count. A test accepts the tree if its
+ * errors are few enough that a tree misclassifying a share epsilon of the
+ * space would make so few with probability at most
+ * phi / (R * VALIDATION_STEPS), R being the most rounds the uniform sample
+ * count allows; summed over all tests, a tree with error above epsilon is
+ * accepted with probability at most phi. Every round has the same size, so
+ * the trees depend only on the training stream and the tests are
+ * independent of them. However little a tree errs, certifying it takes n,
+ * about ln(R * VALIDATION_STEPS / phi) / epsilon validation samples, so it
+ * pays where the tree can be far more accurate than epsilon.
+ *
+ * If no tree is accepted within the uniform sample count, the sampler warns
+ * and trains the tree on every sample labelled so far, the adaptive rounds
+ * and the validation samples included, with uniform ones added up to the
+ * uniform sample count. The sampler thus never labels more samples than the
+ * uniform sampler. That tree has no certificate, and as its samples are not
+ * all uniform, neither does it have the guarantee of the uniform sampler.
+ */
+final class AdaptiveSampler {
+	// share of the uniform sample count drawn in the first round
+	static final double INITIAL_SHARE = 0.2;
+	// share of the uniform sample count drawn in each later round
+	static final double ROUND_SHARE = 0.1;
+	// sizes of the validation set a tree is tested on, each twice the one
+	// before
+	static final int VALIDATION_STEPS = 3;
+	// least chance to keep a candidate
+	static final double EXPLORE = 0.1;
+
+	final SpatialIndex index;
+	final int d;
+	final int k;
+	final double rho;
+	final double epsilon;
+	final double phi;
+	final Random random;
+
+	// the training samples, row-major, and their labels
+	double[] samples = new double[0];
+	boolean[] labels = new boolean[0];
+	int numSamples;
+	// the validation samples drawn so far, row-major, and their labels
+	double[] validation = new double[0];
+	boolean[] validationLabels = new boolean[0];
+	int numValidation;
+	// samples labelled for training and validation
+	int numLabelled;
+	int rounds;
+	// whether the tree passed validation
+	boolean certified;
+	// null while the samples have one label
+	DecisionTree tree;
+	FlatDecisionTree flatTree;
+
+	/**
+	 * @param index
+	 *            = index over the rescaled rows, to label samples
+	 * @param d
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param epsilon
+	 *            = error bound
+	 * @param phi
+	 *            = (1-phi) is the probability of the error bound
+	 * @param random
+	 */
+	AdaptiveSampler(SpatialIndex index, int d, int k, double rho,
+			double epsilon, double phi, Random random) {
+		this.index = index;
+		this.d = d;
+		this.k = k;
+		this.rho = rho;
+		this.epsilon = epsilon;
+		this.phi = phi;
+		this.random = random;
+	}
+
+	/**
+	 * Sample, label and train until a tree passes validation or the uniform
+	 * sample count is labelled
+	 */
+	void run() {
+		int budget = MithraCoverageChecker.getNumSamples(epsilon, phi);
+		int numInitial = (int) Math.ceil(INITIAL_SHARE * budget);
+		int roundSize = (int) Math.ceil(ROUND_SHARE * budget);
+		int maxRounds = 1 + Math.max(0, (budget - numInitial) / roundSize);
+		double alpha = phi / (maxRounds * VALIDATION_STEPS);
+		int[] sizes = validationSizes(epsilon, alpha);
+		Random validationRandom = new Random(random.nextLong());
+
+		add(uniform(numInitial, random));
+		for (rounds = 1;; rounds++) {
+			if (oneLabel()) {
+				// Nothing to train on: sample uniformly, as the uniform
+				// sampler would
+				trainAll(budget);
+				return;
+			}
+			train();
+			if (flatTree == null) {
+				// Without leaves to aim at, fill up with uniform samples
+				trainAll(budget);
+				return;
+			}
+			if (validate(sizes, alpha, budget, validationRandom)) {
+				certified = true;
+				return;
+			}
+			if (numLabelled + roundSize > budget) {
+				System.err.println(String.format(
+						"[WARNING] No decision tree passed validation within %d labels, so none has its error bounded by epsilon = %s with probability 1 - phi = %s; training on all %d labelled samples and %d uniform ones instead",
+						budget, epsilon, 1 - phi, numLabelled,
+						budget - numLabelled));
+				trainAll(budget);
+				return;
+			}
+			add(adaptive(roundSize));
+		}
+	}
+
+	/**
+	 * VALIDATION_STEPS sizes of the validation set: the fewest samples on
+	 * which a tree without errors passes, then each twice the one before
+	 */
+	static int[] validationSizes(double epsilon, double alpha) {
+		int[] sizes = new int[VALIDATION_STEPS];
+		sizes[0] = (int) Math.ceil(Math.log(alpha) / Math.log(1 - epsilon));
+		while (allowedErrors(sizes[0], epsilon, alpha) < 0)
+			sizes[0]++;
+		for (int i = 1; i < sizes.length; i++)
+			sizes[i] = 2 * sizes[i - 1];
+		return sizes;
+	}
+
+	/**
+	 * Test the tree on the first sizes[i] validation samples for i = 0, 1,
+	 * ..., labelling more while it makes no more errors than a tree that
+	 * passes on them would, and while they fit in the budget
+	 *
+	 * @return whether a test accepted the tree
+	 */
+	private boolean validate(int[] sizes, double alpha, int budget,
+			Random validationRandom) {
+		int errors = 0, tested = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			if (sizes[i] > numValidation) {
+				// as many errors per sample on more samples must pass
+				int more = sizes[i] - numValidation;
+				if (numLabelled + more > budget || i > 0
+						&& errors * (double) sizes[i] / tested > allowedErrors(
+								sizes[i], epsilon, alpha))
+					return false;
+				double[] points = uniform(more, validationRandom);
+				boolean[] added = label(points);
+				validation = Arrays.copyOf(validation, sizes[i] * d);
+				validationLabels = Arrays.copyOf(validationLabels, sizes[i]);
+				System.arraycopy(points, 0, validation, numValidation * d,
+						points.length);
+				System.arraycopy(added, 0, validationLabels, numValidation,
+						more);
+				numValidation = sizes[i];
+			}
+			for (; tested < sizes[i]; tested++) {
+				boolean covered = flatTree.predict(validation, tested * d) != 0;
+				if (covered != validationLabels[tested])
+					errors++;
+			}
+			if (errors <= allowedErrors(sizes[i], epsilon, alpha))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The most errors on n samples that a classifier with error epsilon makes
+	 * with probability at most alpha
+	 *
+	 * @return the count, -1 if even none is more likely
+	 */
+	static int allowedErrors(int n, double epsilon, double alpha) {
+		BinomialDistribution errors = new BinomialDistribution(null, n,
+				epsilon);
+		int c = -1;
+		while (c < n && errors.cumulativeProbability(c + 1) <= alpha)
+			c++;
+		return c;
+	}
+
+	/**
+	 * Train on every labelled sample, the validation samples included, and
+	 * uniform ones up to the uniform sample count
+	 */
+	private void trainAll(int budget) {
+		addLabelled(validation, validationLabels);
+		if (numLabelled < budget)
+			add(uniform(budget - numLabelled, random));
+		if (oneLabel()) {
+			tree = null;
+			flatTree = null;
+		} else {
+			train();
+		}
+	}
+
+	private boolean oneLabel() {
+		for (int i = 1; i < numSamples; i++) {
+			if (labels[i] != labels[0])
+				return false;
+		}
+		return true;
+	}
+
+	private double[] uniform(int n, Random random) {
+		long start = CoverageMetrics.start();
+		double[] points = new double[n * d];
+		for (int i = 0; i < points.length; i++)
+			points[i] = random.nextDouble();
+		CoverageMetrics.stop(Stage.SAMPLING, start);
+		return points;
+	}
+
+	// n uniform candidates, each kept with the chance the class comment
+	// describes
+	private double[] adaptive(int n) {
+		long start = CoverageMetrics.start();
+		// covered training samples and all training samples per leaf
+		int[] covered = new int[flatTree.size()];
+		int[] total = new int[flatTree.size()];
+		for (int i = 0; i < numSamples; i++) {
+			int leaf = flatTree.leaf(samples, i * d);
+			total[leaf]++;
+			if (labels[i])
+				covered[leaf]++;
+		}
+		// half the spacing of the training samples if they were uniform
+		double delta = 0.5 * Math.pow(numSamples, -1.0 / d);
+
+		double[] points = new double[n * d];
+		double[] candidate = new double[d];
+		for (int i = 0; i < n;) {
+			for (int j = 0; j < d; j++)
+				candidate[j] = random.nextDouble();
+			int leaf = flatTree.leaf(candidate, 0);
+			double share = total[leaf] == 0
+					? 0.5
+					: (double) covered[leaf] / total[leaf];
+			double keep = Math.max(EXPLORE, 2 * Math.min(share, 1 - share));
+			if (keep < 1 && nearBoundary(candidate, flatTree.label[leaf],
+					delta))
+				keep = 1;
+			if (random.nextDouble() < keep) {
+				System.arraycopy(candidate, 0, points, i * d, d);
+				i++;
+			}
+		}
+		CoverageMetrics.stop(Stage.SAMPLING, start);
+		return points;
+	}
+
+	// whether moving the point by delta along an axis changes its label
+	private boolean nearBoundary(double[] point, int label, double delta) {
+		for (int j = 0; j < d; j++) {
+			double value = point[j];
+			for (double moved : new double[]{value - delta, value + delta}) {
+				if (moved < 0 || moved >= 1)
+					continue;
+				point[j] = moved;
+				boolean differs = flatTree.predict(point, 0) != label;
+				point[j] = value;
+				if (differs)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean[] label(double[] points) {
+		numLabelled += points.length / d;
+		return MithraCoverageChecker.label(index, points, d, k, rho);
+	}
+
+	private void add(double[] points) {
+		addLabelled(points, label(points));
+	}
+
+	private void addLabelled(double[] points, boolean[] added) {
+		int n = points.length / d;
+		samples = Arrays.copyOf(samples, (numSamples + n) * d);
+		labels = Arrays.copyOf(labels, numSamples + n);
+		System.arraycopy(points, 0, samples, numSamples * d, points.length);
+		System.arraycopy(added, 0, labels, numSamples, n);
+		numSamples += n;
+	}
+
+	private void train() {
+		long start = CoverageMetrics.start();
+		DataFrame data = toDataFrame();
+		tree = MithraCoverageChecker.fitTree(data, labels);
+		flatTree = FlatDecisionTree.compile(tree, data.schema());
+		CoverageMetrics.stop(Stage.TREE_TRAINING, start);
+	}
+
+	/**
+	 * @return the training samples, with the columns of
+	 *         Utils.genRandDataset
+	 */
+	DataFrame toDataFrame() {
+		double[][] rows = new double[numSamples][];
+		for (int i = 0; i < numSamples; i++)
+			rows[i] = Arrays.copyOfRange(samples, i * d, i * d + d);
+		return DataFrame.of(rows);
+	}
+}
@@ -0,0 +1,234 @@
+package umichdb.coverage2;
+
+/**
+ * A static ball tree for rho-range counting in higher dimensions, where the
+ * boxes of a k-d tree stop pruning. Every node is bounded by a ball (centroid
+ * and radius). Nodes are split at the median of the projection onto the line
+ * through two far apart points, which keeps the tree balanced.
+ *
+ * Like {@link KdTree} the points are stored in tree order in one flat array
+ * and the tree is read-only after construction.
+ */
+public class BallTree implements SpatialIndex {
+	static final int LEAF_SIZE = 16;
+	static final double TOLERANCE = 1e-12;
+
+	final int n;
+	final int d;
+	final DistanceKernel kernel;
+
+	// Points in tree order (row-major) and their row in the input
+	final double[] coords;
+	final int[] index;
+
+	// Node i covers points [nodeStart[i], nodeEnd[i]) in tree order
+	int numNodes;
+	int[] nodeStart;
+	int[] nodeEnd;
+	int[] nodeLeft;
+	int[] nodeRight;
+	double[] nodeCenter;
+	double[] nodeRadius;
+
+	/**
+	 * Build a ball tree
+	 *
+	 * @param data
+	 *            = n*d coordinates in row-major order (not modified)
+	 * @param d
+	 *            = dimensionality
+	 */
+	public BallTree(double[] data, int d) {
+		this(data, d, false);
+	}
+
+	/**
+	 * Build a ball tree over the rows of a dataset in any layout. The rows are
+	 * copied once, into the array the tree keeps.
+	 *
+	 * @param dataset
+	 */
+	public BallTree(CoverageDataset dataset) {
+		this(KdTree.copyRows(dataset), dataset.dimension(), true);
+	}
+
+	// With owned set, data is a copy that becomes the points in tree order
+	private BallTree(double[] data, int d, boolean owned) {
+		if (d <= 0 || data.length % d != 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid data of %d values for %d-d points", data.length,
+					d));
+		}
+		this.d = d;
+		this.n = data.length / d;
+		this.kernel = DistanceKernel.of(d);
+
+		index = new int[n];
+		for (int i = 0; i < n; i++)
+			index[i] = i;
+
+		int maxNodes = Math.max(1, 4 * (n / LEAF_SIZE + 1));
+		nodeStart = new int[maxNodes];
+		nodeEnd = new int[maxNodes];
+		nodeLeft = new int[maxNodes];
+		nodeRight = new int[maxNodes];
+		nodeCenter = new double[maxNodes * d];
+		nodeRadius = new double[maxNodes];
+
+		if (n > 0)
+			build(data, new double[n], 0, n);
+
+		coords = owned
+				? KdTree.toTreeOrder(data, index, d)
+				: new double[n * d];
+		if (!owned) {
+			for (int i = 0; i < n; i++)
+				System.arraycopy(data, index[i] * d, coords, i * d, d);
+		}
+	}
+
+	/**
+	 * Build the subtree for points [start, end) of index. key is scratch
+	 * space for the projections. Returns the node id.
+	 */
+	private int build(double[] data, double[] key, int start, int end) {
+		int node = numNodes++;
+		nodeStart[node] = start;
+		nodeEnd[node] = end;
+		nodeLeft[node] = -1;
+		nodeRight[node] = -1;
+
+		// Centroid and radius
+		int centerOffset = node * d;
+		for (int i = start; i < end; i++) {
+			int rOffset = index[i] * d;
+			for (int dim = 0; dim < d; dim++)
+				nodeCenter[centerOffset + dim] += data[rOffset + dim];
+		}
+		for (int dim = 0; dim < d; dim++)
+			nodeCenter[centerOffset + dim] /= (end - start);
+
+		double maxDist2 = 0;
+		int farthest = index[start];
+		for (int i = start; i < end; i++) {
+			double dist2 = kernel.dist2(data, index[i] * d, nodeCenter,
+					centerOffset);
+			if (dist2 > maxDist2) {
+				maxDist2 = dist2;
+				farthest = index[i];
+			}
+		}
+		nodeRadius[node] = Math.sqrt(maxDist2);
+
+		if (end - start <= LEAF_SIZE || maxDist2 == 0)
+			return node;
+
+		// Pivots: a is the point farthest from the centroid, b the point
+		// farthest from a
+		int a = farthest, b = farthest;
+		maxDist2 = 0;
+		for (int i = start; i < end; i++) {
+			double dist2 = kernel.dist2(data, index[i] * d, data, a * d);
+			if (dist2 > maxDist2) {
+				maxDist2 = dist2;
+				b = index[i];
+			}
+		}
+
+		for (int i = start; i < end; i++) {
+			int p = index[i];
+			double proj = 0;
+			for (int dim = 0; dim < d; dim++)
+				proj += (data[p * d + dim] - data[a * d + dim])
+						* (data[b * d + dim] - data[a * d + dim]);
+			key[p] = proj;
+		}
+
+		int mid = (start + end) >>> 1;
+		select(key, start, end - 1, mid);
+
+		int left = build(data, key, start, mid);
+		int right = build(data, key, mid, end);
+		nodeLeft[node] = left;
+		nodeRight[node] = right;
+		return node;
+	}
+
+	/**
+	 * Quickselect on key[index[lo..hi]], see {@link KdTree}
+	 */
+	private void select(double[] key, int lo, int hi, int kth) {
+		while (hi > lo) {
+			double pivot = key[index[(lo + hi) >>> 1]];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (key[index[i]] < pivot)
+					i++;
+				while (key[index[j]] > pivot)
+					j--;
+				if (i <= j) {
+					int t = index[i];
+					index[i] = index[j];
+					index[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (kth <= j)
+				hi = j;
+			else if (kth >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	@Override
+	public int countWithinSquared(double[] point, int offset, double rho2,
+			int limit) {
+		if (n == 0 || limit <= 0)
+			return 0;
+		// the tolerance of the pruning covers the rounding of the root
+		return count(0, point, offset, Math.sqrt(rho2), rho2, limit, 0);
+	}
+
+	private int count(int node, double[] q, int offset, double rho,
+			double rho2, int limit, int count) {
+		double centerDist = Math
+				.sqrt(kernel.dist2(q, offset, nodeCenter, node * d));
+		double radius = nodeRadius[node];
+		// The triangle inequality is evaluated in floating point, so leave a
+		// little room to never prune or accept a point on the wrong side
+		double tolerance = TOLERANCE * (1 + centerDist + radius + rho);
+		if (centerDist - radius > rho + tolerance)
+			return count;
+		int start = nodeStart[node], end = nodeEnd[node];
+		if (centerDist + radius + tolerance <= rho)
+			return Math.min(limit, count + end - start);
+
+		if (nodeLeft[node] < 0) {
+			for (int i = start; i < end; i++) {
+				if (kernel.within(coords, i * d, q, offset, rho2)
+						&& ++count >= limit)
+					return count;
+			}
+			return count;
+		}
+
+		count = count(nodeLeft[node], q, offset, rho, rho2, limit, count);
+		if (count < limit)
+			count = count(nodeRight[node], q, offset, rho, rho2, limit,
+					count);
+		return count;
+	}
+
+	@Override
+	public int size() {
+		return n;
+	}
+
+	@Override
+	public int dimension() {
+		return d;
+	}
+}
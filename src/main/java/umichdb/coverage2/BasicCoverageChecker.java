@@ -1,26 +1,155 @@
 package umichdb.coverage2;
 
 import java.util.Arrays;
+import java.util.BitSet;
 
 import smile.data.DataFrame;
-import smile.data.Tuple;
 import smile.data.vector.BaseVector;
 import smile.feature.Scaler;
+import umichdb.coverage2.CoverageMetrics.Counter;
+import umichdb.coverage2.CoverageMetrics.Stage;
 
 public class BasicCoverageChecker implements CoverageChecker {
-	DataFrame dataset;
+	CoverageDataset dataset;
 	int k;
 	double rho;
 	Scaler scaler;
+	SpatialIndex index;
 
+	/**
+	 * Index used to find the neighbors of a query point
+	 */
+	public enum IndexType {
+		LINEAR, KDTREE, BALLTREE,
+	}
 
+	// Above this dimensionality the bounding boxes of a k-d tree stop pruning
+	static final int KDTREE_MAX_DIM = 10;
+
+	/**
+	 * Check coverage exactly through a spatial index (k-d tree for low
+	 * dimensions, ball tree otherwise)
+	 * 
+	 * @param rawDataset
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 */
 	public BasicCoverageChecker(DataFrame rawDataset, int k, double rho) {
+		this(rawDataset, k, rho, defaultIndexType(rawDataset.ncols()));
+	}
+
+	/**
+	 * Check coverage exactly through the given index. IndexType.LINEAR scans
+	 * the whole dataset for every query and is meant for validation.
+	 * 
+	 * @param rawDataset
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param indexType
+	 */
+	public BasicCoverageChecker(DataFrame rawDataset, int k, double rho,
+			IndexType indexType) {
 		// Rescaling
-		scaler = Scaler.fit(rawDataset);
-		this.dataset = scaler.transform(rawDataset);
+		this(rawDataset, Utils.fitScaler(rawDataset), k, rho, indexType);
+	}
+
+	private BasicCoverageChecker(DataFrame rawDataset, Scaler scaler, int k,
+			double rho, IndexType indexType) {
+		this(CoverageDataset.of(Utils.rescale(scaler, rawDataset)), scaler, k,
+				rho, indexType);
+	}
+
+	/**
+	 * Check coverage of a dataset that is already rescaled, e.g. one mapped
+	 * from a ColumnarDatasetFile
+	 * 
+	 * @param dataset
+	 *            = rows rescaled by scaler
+	 * @param scaler
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param indexType
+	 */
+	public BasicCoverageChecker(CoverageDataset dataset, Scaler scaler, int k,
+			double rho, IndexType indexType) {
+		this.scaler = scaler;
+		this.dataset = dataset;
 
 		this.k = k;
 		this.rho = rho;
+
+		// Build the index once over the rows of the dataset
+		this.index = createIndex(dataset, indexType);
+	}
+
+	/**
+	 * The index for d-dimensional data: k-d tree for low dimensions, ball
+	 * tree otherwise
+	 */
+	static IndexType defaultIndexType(int d) {
+		return d <= KDTREE_MAX_DIM ? IndexType.KDTREE : IndexType.BALLTREE;
+	}
+
+	/**
+	 * Build an index of the given type over the rows of a dataset. The trees
+	 * copy the rows once into their own order, whatever the layout and store
+	 * of the dataset; a linear scan reads a row-major store on the heap in
+	 * place and copies any other.
+	 * 
+	 * @param dataset
+	 * @param indexType
+	 * @return
+	 */
+	static SpatialIndex createIndex(CoverageDataset dataset,
+			IndexType indexType) {
+		long start = CoverageMetrics.start();
+		SpatialIndex index;
+		switch (indexType) {
+			case KDTREE :
+				index = new KdTree(dataset);
+				break;
+			case BALLTREE :
+				index = new BallTree(dataset);
+				break;
+			default :
+				index = new LinearScanIndex(dataset.rows(),
+						dataset.dimension());
+		}
+		CoverageMetrics.stop(Stage.INDEX_BUILD, start);
+		return index;
+	}
+
+	/**
+	 * Build an index of the given type
+	 * 
+	 * @param rows
+	 *            = n*d coordinates in row-major order
+	 * @param d
+	 * @param indexType
+	 * @return
+	 */
+	static SpatialIndex createIndex(double[] rows, int d,
+			IndexType indexType) {
+		long start = CoverageMetrics.start();
+		SpatialIndex index;
+		switch (indexType) {
+			case KDTREE :
+				index = new KdTree(rows, d);
+				break;
+			case BALLTREE :
+				index = new BallTree(rows, d);
+				break;
+			default :
+				index = new LinearScanIndex(rows, d);
+		}
+		CoverageMetrics.stop(Stage.INDEX_BUILD, start);
+		return index;
 	}
 
 	/**
@@ -28,16 +157,35 @@ public class BasicCoverageChecker implements CoverageChecker {
 	 */
 	@Override
 	public boolean ifCovered(double[] point) {
-		int closeNeighborsCount = 0;
-		for (int i = 0; i < dataset.size(); i++) {
-			Tuple p = dataset.get(i);
-			if (Utils.getEuclideanDistance(p.toArray() , point) <= rho) {
-				if (++closeNeighborsCount >= k)
-					return true;
-			}
+		long start = CoverageMetrics.start();
+		boolean covered = index.countWithin(point, 0, rho, k) >= k;
+		CoverageMetrics.stop(Stage.QUERY, start);
+		CoverageMetrics.count(Counter.QUERIES, 1);
+		return covered;
+	}
+
+	/**
+	 * Check a batch of points
+	 */
+	@Override
+	public BitSet ifCoveredBatch(double[] points, int d) {
+		if (d != index.dimension() || points.length % d != 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid batch of %d values for %d-d points, expected %d-d",
+					points.length, d, index.dimension()));
+		}
+
+		long start = CoverageMetrics.start();
+		int numPoints = points.length / d;
+		BitSet covered = new BitSet(numPoints);
+		for (int i = 0; i < numPoints; i++) {
+			if (index.countWithin(points, i * d, rho, k) >= k)
+				covered.set(i);
 		}
+		CoverageMetrics.stop(Stage.QUERY_BATCH, start);
+		CoverageMetrics.count(Counter.QUERIES, numPoints);
 
-		return false;
+		return covered;
 	}
 
 }
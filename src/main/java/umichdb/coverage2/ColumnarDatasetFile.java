@@ -0,0 +1,539 @@
+package umichdb.coverage2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import smile.data.measure.DiscreteMeasure;
+import smile.data.type.StructField;
+import smile.data.type.StructType;
+import smile.feature.Scaler;
+import smile.math.MathEx;
+
+/**
+ * A dataset converted once from CSV into a binary columnar file that later
+ * runs map instead of parsing. The values are stored already rescaled to
+ * [0, 1] by the min/max Scaler the checkers would fit, so a mapped file is
+ * ready to check and the scaler is kept for rescaling queries.
+ *
+ * The CSV file is streamed once: only the selected attributes are parsed,
+ * their min and max are tracked on the way, and the raw values are spilled to
+ * one temporary file per attribute. The scaled columns are then written from
+ * the spill files, which are read sequentially. Nominal attributes are stored
+ * as the index of their level and, as in Scaler, are not rescaled.
+ *
+ * All numbers are little-endian and every array starts at a multiple of 8
+ * bytes. Version 1 layout:
+ *
+ * <pre>
+ * header    long magic, int version, int d, int numRows, int objectsLength
+ * objects   Java serialization of {schema of the selected attributes,
+ *           scaler}
+ * columns   d * numRows doubles, the rescaled values column by column
+ * </pre>
+ *
+ * Columns of up to 1 GB in all are mapped at once. Larger ones are mapped
+ * in chunks of 1 GB, which the dataset reads as one store, so the size of the
+ * file is limited only by numRows, an int. Checkers that copy the
+ * rows into arrays (the tree and grid indexes) still need at most
+ * CoverageDataset.MAX_ARRAY_LENGTH values.
+ */
+public final class ColumnarDatasetFile {
+	static final long MAGIC = 0x4D49544852414343L;
+	static final int VERSION = 1;
+
+	private static final int SPILL_BUFFER_SIZE = 1 << 16;
+	// 1 GB of doubles per mapping of a large file
+	static final long CHUNK_BYTES = 1L << 30;
+
+	final StructType schema;
+	final Scaler scaler;
+	final CoverageDataset dataset;
+
+	private ColumnarDatasetFile(StructType schema, Scaler scaler,
+			CoverageDataset dataset) {
+		this.schema = schema;
+		this.scaler = scaler;
+		this.dataset = dataset;
+	}
+
+	/**
+	 * Schema of the selected attributes in the CSV file
+	 */
+	public StructType schema() {
+		return schema;
+	}
+
+	/**
+	 * The scaler that maps raw values to the stored ones
+	 */
+	public Scaler scaler() {
+		return scaler;
+	}
+
+	/**
+	 * The rescaled rows, in columnar layout and backed by the mapping
+	 */
+	public CoverageDataset dataset() {
+		return dataset;
+	}
+
+	/**
+	 * Convert a CSV data file to a columnar file
+	 *
+	 * @param dataFileName
+	 *            = CSV without header, as read by Utils.loadDataSetFromCSV
+	 * @param schemaFileName
+	 * @param selectedAttrs
+	 *            = the attributes to keep, in this order
+	 * @param out
+	 * @throws IOException
+	 *             if a file cannot be read or written, an attribute is not
+	 *             in the schema, or a value cannot be parsed
+	 */
+	public static void fromCsv(String dataFileName, String schemaFileName,
+			String[] selectedAttrs, File out) throws IOException {
+		StructType csvSchema = Utils.loadSchema(schemaFileName);
+		int d = selectedAttrs.length;
+		if (d == 0)
+			throw new IOException("No attributes selected");
+
+		// Column of the CSV file -> selected attribute, -1 if skipped
+		int[] slotOf = new int[csvSchema.length()];
+		Arrays.fill(slotOf, -1);
+		StructField[] fields = new StructField[d];
+		for (int a = 0; a < d; a++) {
+			int column = fieldIndex(csvSchema, selectedAttrs[a]);
+			if (column < 0) {
+				throw new IOException(String.format(
+						"Attribute %s is not in %s", selectedAttrs[a],
+						schemaFileName));
+			}
+			if (slotOf[column] >= 0) {
+				throw new IOException(String.format(
+						"Attribute %s is selected twice", selectedAttrs[a]));
+			}
+			slotOf[column] = a;
+			fields[a] = csvSchema.field(column);
+		}
+		StructType schema = new StructType(fields);
+
+		double[] lo = new double[d];
+		double[] hi = new double[d];
+		Arrays.fill(lo, Double.POSITIVE_INFINITY);
+		Arrays.fill(hi, Double.NEGATIVE_INFINITY);
+
+		File dir = out.getAbsoluteFile().getParentFile();
+		List<File> spillFiles = new ArrayList<File>();
+		try {
+			List<Spill> spills = new ArrayList<Spill>();
+			for (int a = 0; a < d; a++) {
+				File spillFile = File.createTempFile("column", ".spill", dir);
+				spillFiles.add(spillFile);
+				spills.add(new Spill(spillFile));
+			}
+
+			int numRows = 0;
+			try (InputStreamReader reader = new InputStreamReader(
+					new FileInputStream(dataFileName),
+					StandardCharsets.UTF_8)) {
+				CsvScanner scanner = new CsvScanner(reader);
+				StringBuilder text = new StringBuilder();
+				double[] values = new double[d];
+				int record = 0;
+				while (true) {
+					record++;
+					int column = 0;
+					int found = 0;
+					int end;
+					do {
+						int slot = column < slotOf.length
+								? slotOf[column]
+								: -1;
+						text.setLength(0);
+						end = scanner.readField(slot >= 0 ? text : null);
+						if (column == 0 && end != CsvScanner.FIELD
+								&& scanner.blank)
+							break;
+						if (slot >= 0) {
+							values[slot] = parse(fields[slot], text,
+									dataFileName, record);
+							found++;
+						}
+						column++;
+					} while (end == CsvScanner.FIELD);
+
+					// Blank lines are skipped, like commons-csv does
+					if (column == 0) {
+						if (end == CsvScanner.EOF)
+							break;
+						record--;
+						continue;
+					}
+					if (found != d) {
+						throw new IOException(String.format(
+								"%s: record %d has %d fields, expected %d",
+								dataFileName, record, column,
+								slotOf.length));
+					}
+
+					for (int a = 0; a < d; a++) {
+						lo[a] = Math.min(lo[a], values[a]);
+						hi[a] = Math.max(hi[a], values[a]);
+						spills.get(a).put(values[a]);
+					}
+					if (numRows == Integer.MAX_VALUE) {
+						throw new IOException(String.format(
+								"%s has more than %d rows", dataFileName,
+								numRows));
+					}
+					numRows++;
+					if (end == CsvScanner.EOF)
+						break;
+				}
+			} finally {
+				for (Spill spill : spills)
+					spill.close();
+			}
+			if (numRows == 0)
+				throw new IOException(dataFileName + " has no rows");
+
+			write(out, schema, lo, hi, numRows, spillFiles);
+		} finally {
+			for (File spillFile : spillFiles)
+				spillFile.delete();
+		}
+	}
+
+	/**
+	 * Write the header and the scaled columns
+	 */
+	private static void write(File out, StructType schema, double[] lo,
+			double[] hi, int numRows, List<File> spillFiles)
+			throws IOException {
+		int d = lo.length;
+		// Scaler.fit leaves the bounds of nominal attributes at 0, and the
+		// constructor turns hi into the span
+		boolean[] numeric = new boolean[d];
+		for (int a = 0; a < d; a++) {
+			numeric[a] = schema.field(a).isNumeric();
+			if (!numeric[a])
+				lo[a] = hi[a] = 0;
+		}
+		Scaler scaler = new Scaler(schema, lo.clone(), hi.clone());
+		double[] span = new double[d];
+		for (int a = 0; a < d; a++) {
+			span[a] = hi[a] - lo[a];
+			if (MathEx.isZero(span[a]))
+				span[a] = 1.0;
+		}
+
+		ByteArrayOutputStream objects = new ByteArrayOutputStream();
+		try (ObjectOutputStream objectOut = new ObjectOutputStream(objects)) {
+			objectOut.writeObject(schema);
+			objectOut.writeObject(scaler);
+		}
+
+		try (FileChannel channel = FileChannel.open(out.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			CoverageIndexFile.Writer writer = new CoverageIndexFile.Writer(
+					channel);
+			writer.putLong(MAGIC);
+			writer.putInt(VERSION);
+			writer.putInt(d);
+			writer.putInt(numRows);
+			writer.putInt(objects.size());
+			writer.putBytes(objects.toByteArray());
+			writer.align();
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(SPILL_BUFFER_SIZE)
+					.order(ByteOrder.nativeOrder());
+			for (int a = 0; a < d; a++) {
+				try (FileChannel spill = FileChannel.open(
+						spillFiles.get(a).toPath(), StandardOpenOption.READ)) {
+					buffer.clear();
+					while (spill.read(buffer) >= 0) {
+						buffer.flip();
+						while (buffer.remaining() >= 8) {
+							double y = buffer.getDouble();
+							if (numeric[a])
+								y = scale(y, lo[a], span[a]);
+							writer.putDouble(y);
+						}
+						buffer.compact();
+					}
+				}
+			}
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Map a file written by fromCsv
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file cannot be read or is not a columnar dataset of
+	 *             this version
+	 */
+	public static ColumnarDatasetFile open(File file) throws IOException {
+		return open(file, CHUNK_BYTES);
+	}
+
+	/**
+	 * Map a file, with the columns in chunks of chunkBytes if they take more
+	 *
+	 * @param file
+	 * @param chunkBytes
+	 *            = a power of two, at least 8 and at most 1 GB
+	 * @return
+	 * @throws IOException
+	 */
+	static ColumnarDatasetFile open(File file, long chunkBytes)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			long size = channel.size();
+			// The header and objects come first and are small
+			MappedByteBuffer mapped = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(size, Integer.MAX_VALUE));
+			CoverageIndexFile.Reader in = new CoverageIndexFile.Reader(mapped);
+
+			if (in.getLong() != MAGIC)
+				throw new IOException(String.format(
+						"%s is not a columnar dataset", file));
+			int version = in.getInt();
+			if (version != VERSION) {
+				throw new IOException(String.format(
+						"Unsupported columnar dataset version %d in %s, expected %d",
+						version, file, VERSION));
+			}
+			int d = in.getInt();
+			int numRows = in.getInt();
+			int objectsLength = in.getInt();
+
+			StructType schema;
+			Scaler scaler;
+			try (ObjectInputStream objects = new ObjectInputStream(
+					new ByteArrayInputStream(in.getBytes(objectsLength)))) {
+				schema = (StructType) objects.readObject();
+				scaler = (Scaler) objects.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+			in.align();
+
+			long start = in.position;
+			long bytes = 8L * numRows * d;
+			if (d <= 0 || numRows < 0 || start + bytes > size) {
+				throw new IOException(String.format(
+						"Columnar dataset %s of %d %d-d rows is truncated: %d bytes",
+						file, numRows, d, size));
+			}
+			CoverageDataset dataset;
+			if (bytes <= chunkBytes) {
+				dataset = CoverageDataset.wrap(in.getDoubles(numRows * d),
+						numRows, d, CoverageDataset.Layout.COLUMNAR, schema);
+			} else {
+				DoubleBuffer[] chunks = new DoubleBuffer[(int) ((bytes
+						+ chunkBytes - 1) / chunkBytes)];
+				for (int c = 0; c < chunks.length; c++) {
+					long offset = c * chunkBytes;
+					chunks[c] = channel
+							.map(FileChannel.MapMode.READ_ONLY,
+									start + offset,
+									Math.min(chunkBytes, bytes - offset))
+							.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+				}
+				dataset = CoverageDataset.wrap(chunks, numRows, d,
+						CoverageDataset.Layout.COLUMNAR, schema);
+			}
+			return new ColumnarDatasetFile(schema, scaler, dataset);
+		} catch (RuntimeException e) {
+			// Buffer underflows and the like from a truncated file
+			throw new IOException(
+					String.format("Corrupt columnar dataset %s", file), e);
+		}
+	}
+
+	/**
+	 * Same arithmetic as Scaler.transform
+	 */
+	private static double scale(double x, double lo, double span) {
+		double y = (x - lo) / span;
+		if (y < 0.0)
+			y = 0.0;
+		if (y > 1.0)
+			y = 1.0;
+		return y;
+	}
+
+	private static int fieldIndex(StructType schema, String name) {
+		for (int i = 0; i < schema.length(); i++) {
+			if (schema.fieldName(i).equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse a value of a selected attribute; nominal values become the index
+	 * of their level, as in the data frames read by smile
+	 */
+	private static double parse(StructField field, CharSequence text,
+			String dataFileName, int record) throws IOException {
+		String value = text.toString().trim();
+		if (field.measure instanceof DiscreteMeasure) {
+			Number level = ((DiscreteMeasure) field.measure).valueOf(value);
+			if (level != null)
+				return level.doubleValue();
+		} else {
+			try {
+				return Double.parseDouble(value);
+			} catch (NumberFormatException e) {
+				// Reported below
+			}
+		}
+		throw new IOException(String.format(
+				"%s: record %d has invalid value '%s' for attribute %s",
+				dataFileName, record, value, field.name));
+	}
+
+	/**
+	 * Raw values of one attribute, appended to a temporary file in native
+	 * byte order
+	 */
+	private static class Spill {
+		final FileChannel channel;
+		final ByteBuffer buffer;
+
+		Spill(File file) throws IOException {
+			this.channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.WRITE);
+			this.buffer = ByteBuffer.allocateDirect(SPILL_BUFFER_SIZE)
+					.order(ByteOrder.nativeOrder());
+		}
+
+		void put(double v) throws IOException {
+			if (buffer.remaining() < 8)
+				flush();
+			buffer.putDouble(v);
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+
+		void close() throws IOException {
+			flush();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Splits CSV text (RFC 4180: comma separated, double quotes, "" inside
+	 * quotes) into fields without creating objects for skipped fields
+	 */
+	private static class CsvScanner {
+		static final int FIELD = 0;
+		static final int RECORD = 1;
+		static final int EOF = 2;
+
+		final Reader in;
+		final char[] buffer = new char[SPILL_BUFFER_SIZE];
+		int position;
+		int length;
+		// Whether the last field read was empty and unquoted
+		boolean blank;
+
+		CsvScanner(Reader in) {
+			this.in = in;
+		}
+
+		private int read() throws IOException {
+			if (position == length) {
+				length = in.read(buffer, 0, buffer.length);
+				position = 0;
+				if (length <= 0) {
+					length = 0;
+					return -1;
+				}
+			}
+			return buffer[position++];
+		}
+
+		private int peek() throws IOException {
+			int c = read();
+			if (c >= 0)
+				position--;
+			return c;
+		}
+
+		/**
+		 * Read one field, appending its text to text unless it is null
+		 *
+		 * @return FIELD, RECORD or EOF, whichever ended the field
+		 */
+		int readField(StringBuilder text) throws IOException {
+			blank = true;
+			boolean quoted = false;
+			while (true) {
+				int c = read();
+				if (c < 0)
+					return EOF;
+				if (quoted) {
+					if (c == '"') {
+						if (peek() != '"') {
+							quoted = false;
+							continue;
+						}
+						read();
+					}
+					if (text != null)
+						text.append((char) c);
+					continue;
+				}
+				switch (c) {
+					case ',' :
+						return FIELD;
+					case '\r' :
+						if (peek() == '\n')
+							read();
+						return RECORD;
+					case '\n' :
+						return RECORD;
+					case '"' :
+						quoted = true;
+						blank = false;
+						break;
+					default :
+						blank = false;
+						if (text != null)
+							text.append((char) c);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package umichdb.coverage2;
+
+import org.locationtech.jts.geom.Geometry;
+
+/**
+ * What a batch of MithraCoverageChecker.addRows or removeRows changed: the ids
+ * of the rows, how many Voronoi cells were replaced, and the parts of the
+ * rescaled unit square that flipped between covered and uncovered at the
+ * checker's vicinity value.
+ */
+public final class CoverageChange {
+	final int[] addedRows;
+	final int[] removedRows;
+	final int removedCells;
+	final int addedCells;
+	final Geometry newlyCovered;
+	final Geometry newlyUncovered;
+
+	CoverageChange(int[] addedRows, int[] removedRows, int removedCells,
+			int addedCells, Geometry newlyCovered, Geometry newlyUncovered) {
+		this.addedRows = addedRows;
+		this.removedRows = removedRows;
+		this.removedCells = removedCells;
+		this.addedCells = addedCells;
+		this.newlyCovered = newlyCovered;
+		this.newlyUncovered = newlyUncovered;
+	}
+
+	/**
+	 * Ids of the added rows, in the order they were given
+	 */
+	public int[] getAddedRows() {
+		return addedRows.clone();
+	}
+
+	/**
+	 * Ids of the removed rows
+	 */
+	public int[] getRemovedRows() {
+		return removedRows.clone();
+	}
+
+	/**
+	 * Number of cells of the old diagram that were replaced
+	 */
+	public int getRemovedCells() {
+		return removedCells;
+	}
+
+	/**
+	 * Number of cells of the new diagram that replaced them
+	 */
+	public int getAddedCells() {
+		return addedCells;
+	}
+
+	/**
+	 * The region that was uncovered before the batch and is covered now
+	 */
+	public Geometry getNewlyCovered() {
+		return newlyCovered;
+	}
+
+	/**
+	 * The region that was covered before the batch and is uncovered now
+	 */
+	public Geometry getNewlyUncovered() {
+		return newlyUncovered;
+	}
+
+	/**
+	 * @return true if no point of the unit square changed its coverage
+	 */
+	public boolean isEmpty() {
+		return newlyCovered.isEmpty() && newlyUncovered.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"+%d rows, -%d rows, %d cells replaced by %d, newly covered area %.6f, newly uncovered area %.6f",
+				addedRows.length, removedRows.length, removedCells, addedCells,
+				newlyCovered.getArea(), newlyUncovered.getArea());
+	}
+}
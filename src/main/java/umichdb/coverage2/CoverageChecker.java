@@ -1,5 +1,19 @@
 package umichdb.coverage2;
 
+import java.util.BitSet;
+
 public interface CoverageChecker {
 	public boolean ifCovered(double[] point);
+
+	/**
+	 * Check a batch of points. The points are packed row-major in a flat
+	 * array, d values per point.
+	 *
+	 * @param points
+	 *            = n*d coordinates, point i starts at offset i*d
+	 * @param d
+	 *            = dimensionality of each point
+	 * @return a bitset where bit i is set iff point i is covered
+	 */
+	public BitSet ifCoveredBatch(double[] points, int d);
 }
@@ -0,0 +1,359 @@
+package umichdb.coverage2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+import smile.data.DataFrame;
+import smile.data.type.StructType;
+
+/**
+ * The rescaled rows a coverage checker works on, stored as primitive doubles.
+ * Element (row, dim) lives at row * rowStride + dim * colStride of one flat
+ * store, so the same class holds row-major data (rowStride = d, colStride = 1)
+ * and per-dimension columns (rowStride = 1, colStride = n). The store is a
+ * double[] on the heap or a DoubleBuffer off the heap, e.g. a direct buffer or
+ * a view of a memory-mapped file. A store of more values than one buffer can
+ * map is split into chunks of a power of two values each: element i lives
+ * at i & chunkMask of chunk i >>> chunkShift.
+ *
+ * Unlike DataFrame.get(i), reading a row does not create any objects. The
+ * dataset is read-only once built.
+ */
+public final class CoverageDataset {
+	/**
+	 * Order of the values in the store
+	 */
+	public enum Layout {
+		ROW_MAJOR, COLUMNAR,
+	}
+
+	final int n;
+	final int d;
+	final Layout layout;
+	final StructType schema;
+	final int rowStride;
+	final int colStride;
+
+	// Exactly one of them is set
+	final double[] array;
+	final DoubleBuffer buffer;
+	final DoubleBuffer[] chunks;
+	final int chunkShift;
+	final int chunkMask;
+
+	private CoverageDataset(int n, int d, Layout layout, StructType schema,
+			double[] array, DoubleBuffer buffer, DoubleBuffer[] chunks) {
+		if (d <= 0 || n < 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid dataset of %d %d-d rows", n, d));
+		}
+		if (schema.length() != d) {
+			throw new IllegalArgumentException(String.format(
+					"Schema has %d fields, expected %d", schema.length(), d));
+		}
+		int chunkSize = chunks != null ? chunks[0].remaining() : 0;
+		long length;
+		if (array != null) {
+			length = array.length;
+		} else if (buffer != null) {
+			length = buffer.remaining();
+		} else {
+			if (Integer.bitCount(chunkSize) != 1) {
+				throw new IllegalArgumentException(String.format(
+						"Chunks of %d values, expected a power of two",
+						chunkSize));
+			}
+			length = 0;
+			for (int c = 0; c < chunks.length; c++) {
+				int size = chunks[c].remaining();
+				if (c < chunks.length - 1 ? size != chunkSize
+						: size > chunkSize) {
+					throw new IllegalArgumentException(String.format(
+							"Chunk %d has %d values, expected %d", c, size,
+							chunkSize));
+				}
+				length += size;
+			}
+		}
+		if (length != (long) n * d) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid store of %d values for %d %d-d rows", length, n,
+					d));
+		}
+		this.n = n;
+		this.d = d;
+		this.layout = layout;
+		this.schema = schema;
+		this.rowStride = layout == Layout.ROW_MAJOR ? d : 1;
+		this.colStride = layout == Layout.ROW_MAJOR ? 1 : n;
+		this.array = array;
+		this.buffer = buffer != null ? buffer.slice() : null;
+		if (chunks != null) {
+			this.chunks = new DoubleBuffer[chunks.length];
+			for (int c = 0; c < chunks.length; c++)
+				this.chunks[c] = chunks[c].slice();
+		} else {
+			this.chunks = null;
+		}
+		this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+		this.chunkMask = chunkSize - 1;
+	}
+
+	/**
+	 * Length of an array of all values of n d-dimensional rows
+	 *
+	 * @param n
+	 * @param d
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if there are too many values for one array
+	 */
+	static int arrayLength(int n, int d) {
+		long length = (long) n * d;
+		if (length > MAX_ARRAY_LENGTH) {
+			throw new IllegalArgumentException(String.format(
+					"%d %d-d rows are too many values for one array: %d",
+					n, d, length));
+		}
+		return (int) length;
+	}
+
+	// some JVMs reserve a few words of the largest arrays
+	static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Copy a data frame into a row-major dataset on the heap
+	 *
+	 * @param df
+	 *            = numeric columns only
+	 * @return
+	 */
+	public static CoverageDataset of(DataFrame df) {
+		return of(df, Layout.ROW_MAJOR, false);
+	}
+
+	/**
+	 * Copy a data frame into a dataset. The values are read column by column,
+	 * without creating a Tuple per row.
+	 *
+	 * @param df
+	 *            = numeric columns only
+	 * @param layout
+	 * @param offHeap
+	 *            = store the values in a direct buffer
+	 * @return
+	 */
+	public static CoverageDataset of(DataFrame df, Layout layout,
+			boolean offHeap) {
+		int n = df.size();
+		int d = df.ncols();
+		int rowStride = layout == Layout.ROW_MAJOR ? d : 1;
+		int colStride = layout == Layout.ROW_MAJOR ? 1 : n;
+
+		double[] values = new double[arrayLength(n, d)];
+		double[] column = new double[n];
+		for (int dim = 0; dim < d; dim++) {
+			df.column(dim).toDoubleArray(column);
+			if (layout == Layout.COLUMNAR) {
+				System.arraycopy(column, 0, values, dim * colStride, n);
+			} else {
+				for (int i = 0; i < n; i++)
+					values[i * rowStride + dim] = column[i];
+			}
+		}
+
+		if (!offHeap)
+			return new CoverageDataset(n, d, layout, df.schema(), values,
+					null, null);
+		DoubleBuffer direct = ByteBuffer.allocateDirect(values.length * 8)
+				.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		direct.put(values).flip();
+		return new CoverageDataset(n, d, layout, df.schema(), null, direct,
+				null);
+	}
+
+	/**
+	 * Use an array as the store without copying it. The array must not be
+	 * modified afterwards.
+	 *
+	 * @param values
+	 *            = n*d values in the given layout
+	 * @param n
+	 * @param d
+	 * @param layout
+	 * @param schema
+	 *            = names of the d columns
+	 * @return
+	 */
+	public static CoverageDataset wrap(double[] values, int n, int d,
+			Layout layout, StructType schema) {
+		return new CoverageDataset(n, d, layout, schema, values, null, null);
+	}
+
+	/**
+	 * Use the remaining values of a buffer as the store without copying them,
+	 * e.g. a section of a memory-mapped file
+	 *
+	 * @param values
+	 *            = n*d values in the given layout
+	 * @param n
+	 * @param d
+	 * @param layout
+	 * @param schema
+	 *            = names of the d columns
+	 * @return
+	 */
+	public static CoverageDataset wrap(DoubleBuffer values, int n, int d,
+			Layout layout, StructType schema) {
+		return new CoverageDataset(n, d, layout, schema, null, values, null);
+	}
+
+	/**
+	 * Use the remaining values of several buffers as one store without
+	 * copying them, e.g. the chunks of a memory-mapped file larger than one
+	 * mapping
+	 *
+	 * @param chunks
+	 *            = n*d values in the given layout; every chunk but the last
+	 *            has the same power of two values, and the last at most as
+	 *            many
+	 * @param n
+	 * @param d
+	 * @param layout
+	 * @param schema
+	 *            = names of the d columns
+	 * @return
+	 */
+	public static CoverageDataset wrap(DoubleBuffer[] chunks, int n, int d,
+			Layout layout, StructType schema) {
+		if (chunks.length == 0)
+			throw new IllegalArgumentException("No chunks");
+		return new CoverageDataset(n, d, layout, schema, null, null, chunks);
+	}
+
+	public int size() {
+		return n;
+	}
+
+	public int dimension() {
+		return d;
+	}
+
+	public Layout layout() {
+		return layout;
+	}
+
+	public StructType schema() {
+		return schema;
+	}
+
+	public boolean isOffHeap() {
+		return array == null;
+	}
+
+	/**
+	 * Value of a row in one dimension
+	 */
+	public double get(int row, int dim) {
+		return value((long) row * rowStride + (long) dim * colStride);
+	}
+
+	// element i of the store
+	double value(long i) {
+		if (array != null)
+			return array[(int) i];
+		if (buffer != null)
+			return buffer.get((int) i);
+		return chunks[(int) (i >>> chunkShift)].get((int) i & chunkMask);
+	}
+
+	/**
+	 * Copy a row into dst[offset..offset+d)
+	 */
+	public void copyRow(int row, double[] dst, int offset) {
+		int start = row * rowStride;
+		if (array != null && colStride == 1) {
+			System.arraycopy(array, start, dst, offset, d);
+			return;
+		}
+		for (int dim = 0; dim < d; dim++)
+			dst[offset + dim] = get(row, dim);
+	}
+
+	/**
+	 * All rows in row-major order. For a row-major dataset on the heap this is
+	 * the store itself, which must not be modified; otherwise it is a copy.
+	 *
+	 * @return n*d values
+	 * @throws IllegalArgumentException
+	 *             if there are too many values for one array
+	 */
+	public double[] rows() {
+		if (array != null && layout == Layout.ROW_MAJOR)
+			return array;
+		double[] rows = new double[arrayLength(n, d)];
+		for (int i = 0; i < n; i++)
+			copyRow(i, rows, i * d);
+		return rows;
+	}
+
+	/**
+	 * A view of one row. The view reads the store directly and can be moved to
+	 * another row, so a scan needs a single view.
+	 */
+	public Row row(int row) {
+		return new Row(this).moveTo(row);
+	}
+
+	/**
+	 * Copy the rows into a data frame, for smile and the UI
+	 */
+	public DataFrame toDataFrame() {
+		double[][] rows = new double[n][d];
+		for (int i = 0; i < n; i++)
+			copyRow(i, rows[i], 0);
+		String[] names = new String[d];
+		for (int dim = 0; dim < d; dim++)
+			names[dim] = schema.fieldName(dim);
+		return DataFrame.of(rows, names);
+	}
+
+	/**
+	 * A movable view of a row of a CoverageDataset
+	 */
+	public static final class Row {
+		final CoverageDataset data;
+		int row;
+		long start;
+
+		Row(CoverageDataset data) {
+			this.data = data;
+		}
+
+		/**
+		 * Point the view to another row
+		 */
+		public Row moveTo(int row) {
+			if (row < 0 || row >= data.n) {
+				throw new IndexOutOfBoundsException(String.format(
+						"Row %d of a dataset of %d rows", row, data.n));
+			}
+			this.row = row;
+			this.start = (long) row * data.rowStride;
+			return this;
+		}
+
+		public int index() {
+			return row;
+		}
+
+		public int dimension() {
+			return data.d;
+		}
+
+		public double get(int dim) {
+			return data.value(start + (long) dim * data.colStride);
+		}
+	}
+}
@@ -0,0 +1,879 @@
+package umichdb.coverage2;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import smile.classification.DecisionTree;
+import smile.data.type.DataType;
+import smile.data.type.DataTypes;
+import smile.data.type.StructField;
+import smile.data.type.StructType;
+import smile.feature.Scaler;
+
+/**
+ * Binary file format of a built MithraCoverageChecker. The file is written
+ * once and read back with FileChannel.map, so that loading does not rebuild
+ * anything and processes on one host share the pages of the file.
+ *
+ * All numbers are little-endian and every array starts at a multiple of 8
+ * bytes. Version 3 stores the scaler, the schemas and the models as arrays
+ * instead of Java serialization, so that a file does not depend on the
+ * serialized form of smile's classes and loading creates no objects the file
+ * names. Versions 1 and 2, whose objects section is Java serialization, are
+ * still read, with only the classes of smile, this package, java.lang and
+ * java.util allowed. Version 2 added the HAS_MODEL flag, version 3 the
+ * HAS_SCALER and CERTIFIED flags. A file with a flag its version does not
+ * know is rejected rather than read without what the flag stands for. Layout
+ * of version 3:
+ *
+ * <pre>
+ * header    long magic, int version, int flags, int k, int d, double rho,
+ *           int numRows, int modelType (0 without HAS_MODEL)
+ * schemas   the dataset schema, the tree schema and, if flags has
+ *           HAS_SCALER, the scaler schema, each as int numFields (-1 for
+ *           none) and per field its name and DataType.name as int length
+ *           and UTF-8 bytes
+ * scaler    (if flags has HAS_SCALER) int numColumns,
+ *           double lo[numColumns], hi[numColumns]
+ * dataset   numRows * d doubles, the rescaled rows
+ * tree      (if flags has HAS_TREE) a flat tree:
+ *           int numNodes, feature[numNodes], left[numNodes],
+ *               right[numNodes], label[numNodes]
+ *           double threshold[numNodes]
+ * model     (if flags has HAS_MODEL) the CoverageModel chosen under a
+ *           ModelBudget, by modelType:
+ *           MODEL_FOREST int numTrees, then each tree as above
+ *           MODEL_STUMPS int numStumps, positiveCovered, feature[numStumps]
+ *                        double b, threshold[numStumps], left[numStumps],
+ *                            right[numStumps]
+ *           MODEL_KNN    int numSamples, k, byte labels[numSamples]
+ *                        double samples[numSamples * d]
+ * voronoi   (if flags has HAS_VORONOI)
+ *           int k, numIds, numCells, numKeys, numVertices, numSegments,
+ *               numSlabs, numNodes
+ *           byte live[numIds]
+ *           double siteX[numIds], siteY[numIds]
+ *           int keyStart[numCells + 1], keys[numKeys],
+ *               vertexStart[numCells + 1]
+ *           double vertexX[numVertices], vertexY[numVertices],
+ *               minFarthest2[numCells], maxFarthest2[numCells]
+ *           double segX1, segY1, segX2, segY2 [numSegments]
+ *           int segAbove, segBelow [numSegments]
+ *           double slabX[numSlabs]
+ *           int slabRoot[numSlabs], nodeSeg, nodeLeft, nodeRight [numNodes]
+ * </pre>
+ *
+ * Versions 1 and 2 have int objectsLength in place of modelType and, instead
+ * of the schemas, scaler, tree and model sections, an objects section of that
+ * length: the Java serialization of {scaler, dataset schema, tree schema,
+ * decision tree} and, if flags has HAS_MODEL, the CoverageModel.
+ *
+ * The dataset and the point locator of a loaded checker read their arrays
+ * directly from the mapping; sites, cells and models are copied into the
+ * usual objects. A checker loaded from version 3 has the flat tree but not
+ * smile's DecisionTree, and its schemas lack the measures of their fields.
+ */
+class CoverageIndexFile {
+	static final long MAGIC = 0x4D49544852414349L; // "MITHRACI"
+	static final int VERSION = 3;
+	// the oldest version load reads
+	static final int MIN_VERSION = 1;
+	// the last version whose objects are Java serialization
+	static final int SERIALIZED_VERSION = 2;
+
+	static final int HAS_VORONOI = 1;
+	static final int HAS_TREE = 2;
+	// since version 2
+	static final int HAS_MODEL = 4;
+	// since version 3
+	static final int HAS_SCALER = 8;
+	// the tree passed the validation of adaptive sampling, since version 3
+	static final int CERTIFIED = 16;
+
+	static final int MODEL_FOREST = 1;
+	static final int MODEL_STUMPS = 2;
+	static final int MODEL_KNN = 3;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	// smile keeps the range of a Scaler to itself
+	private static final Field SCALER_LO = FlatDecisionTree
+			.field(Scaler.class, "lo");
+	private static final Field SCALER_HI = FlatDecisionTree
+			.field(Scaler.class, "hi");
+	private static final Field SCALER_SCHEMA = FlatDecisionTree
+			.field(Scaler.class, "schema");
+
+	// the classes a version 1 or 2 objects section may name
+	private static final String[] SERIALIZED_PACKAGES = {"smile.",
+			"umichdb.coverage2.", "java.lang.", "java.util."};
+
+	/**
+	 * @param version
+	 * @return the flags a file of the version may have
+	 */
+	static int knownFlags(int version) {
+		if (version == 1)
+			return HAS_VORONOI | HAS_TREE;
+		if (version == 2)
+			return HAS_VORONOI | HAS_TREE | HAS_MODEL;
+		return HAS_VORONOI | HAS_TREE | HAS_MODEL | HAS_SCALER | CERTIFIED;
+	}
+
+	/**
+	 * Write a checker to a file. The file is written under a temporary name in
+	 * the same directory, forced to disk and then renamed over the target, so
+	 * that a process that has the old file mapped keeps reading the old pages
+	 * and a crash never leaves a truncated index behind.
+	 *
+	 * @param checker
+	 * @param file
+	 * @throws IOException
+	 *             also if the checker has a decision tree that could not be
+	 *             flattened or a model of a class the format does not know
+	 */
+	static void save(MithraCoverageChecker checker, File file)
+			throws IOException {
+		if (checker.coverageDecisionTree != null && checker.flatTree == null) {
+			throw new IOException(
+					"Cannot save a decision tree whose nodes cannot be read");
+		}
+		int modelType = modelType(checker.coverageModel);
+		double[][] range = checker.scaler == null
+				? null
+				: scalerRange(checker.scaler);
+
+		Path target = file.toPath().toAbsolutePath();
+		Path temp = Files.createTempFile(target.getParent(),
+				target.getFileName() + ".", ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp,
+					StandardOpenOption.WRITE)) {
+				write(checker, new Writer(channel), modelType, range);
+				channel.force(true);
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static int modelType(CoverageModel model) throws IOException {
+		if (model == null)
+			return 0;
+		if (model instanceof CoverageModels.ForestModel)
+			return MODEL_FOREST;
+		if (model instanceof CoverageModels.StumpModel)
+			return MODEL_STUMPS;
+		if (model instanceof CoverageModels.KnnModel)
+			return MODEL_KNN;
+		throw new IOException(String.format("Cannot save a model of %s",
+				model.getClass().getName()));
+	}
+
+	// {lo, hi} of a scaler
+	private static double[][] scalerRange(Scaler scaler) throws IOException {
+		if (SCALER_LO == null || SCALER_HI == null || SCALER_SCHEMA == null)
+			throw new IOException("Cannot read the range of smile's Scaler");
+		try {
+			return new double[][]{(double[]) SCALER_LO.get(scaler),
+					(double[]) SCALER_HI.get(scaler)};
+		} catch (IllegalAccessException e) {
+			throw new IOException("Cannot read the range of smile's Scaler",
+					e);
+		}
+	}
+
+	private static void write(MithraCoverageChecker checker, Writer out,
+			int modelType, double[][] range) throws IOException {
+		VoronoiKOrder diagram = checker.coverageVoronoiDiagram;
+		CoverageDataset dataset = checker.dataset;
+		int numRows = dataset.size();
+
+		int flags = (diagram != null ? HAS_VORONOI : 0)
+				| (checker.flatTree != null ? HAS_TREE : 0)
+				| (modelType != 0 ? HAS_MODEL : 0)
+				| (range != null ? HAS_SCALER : 0)
+				| (checker.certified ? CERTIFIED : 0);
+		out.putLong(MAGIC);
+		out.putInt(VERSION);
+		out.putInt(flags);
+		out.putInt(checker.k);
+		out.putInt(checker.d);
+		out.putDouble(checker.rho);
+		out.putInt(numRows);
+		out.putInt(modelType);
+
+		writeSchema(out, dataset.schema());
+		writeSchema(out, checker.srcDataSchema);
+		if (range != null) {
+			try {
+				writeSchema(out,
+						(StructType) SCALER_SCHEMA.get(checker.scaler));
+			} catch (IllegalAccessException e) {
+				throw new IOException(
+						"Cannot read the schema of smile's Scaler", e);
+			}
+		}
+		out.align();
+		if (range != null) {
+			out.putInt(range[0].length);
+			out.align();
+			out.putDoubles(range[0]);
+			out.putDoubles(range[1]);
+		}
+
+		for (int i = 0; i < numRows; i++) {
+			for (int j = 0; j < checker.d; j++)
+				out.putDouble(dataset.get(i, j));
+		}
+
+		if (checker.flatTree != null)
+			writeTree(out, checker.flatTree);
+		if (modelType != 0)
+			writeModel(out, modelType, checker.coverageModel);
+		if (diagram != null)
+			writeVoronoi(out, diagram);
+		out.flush();
+	}
+
+	private static void writeSchema(Writer out, StructType schema)
+			throws IOException {
+		if (schema == null) {
+			out.putInt(-1);
+			return;
+		}
+		out.putInt(schema.length());
+		for (StructField field : schema.fields()) {
+			out.putString(field.name);
+			out.putString(field.type.name());
+		}
+	}
+
+	private static void writeTree(Writer out, FlatDecisionTree tree)
+			throws IOException {
+		int n = tree.size();
+		out.putInt(n);
+		out.putInts(Arrays.copyOf(tree.feature, n));
+		out.putInts(Arrays.copyOf(tree.left, n));
+		out.putInts(Arrays.copyOf(tree.right, n));
+		out.putInts(Arrays.copyOf(tree.label, n));
+		out.align();
+		out.putDoubles(Arrays.copyOf(tree.threshold, n));
+	}
+
+	private static void writeModel(Writer out, int modelType,
+			CoverageModel model) throws IOException {
+		if (modelType == MODEL_FOREST) {
+			FlatDecisionTree[] trees = ((CoverageModels.ForestModel) model)
+					.trees;
+			out.putInt(trees.length);
+			out.align();
+			for (FlatDecisionTree tree : trees)
+				writeTree(out, tree);
+		} else if (modelType == MODEL_STUMPS) {
+			CoverageModels.StumpModel stumps = (CoverageModels.StumpModel)
+					model;
+			out.putInt(stumps.feature.length);
+			out.putInt(stumps.positiveCovered ? 1 : 0);
+			out.putInts(stumps.feature);
+			out.align();
+			out.putDouble(stumps.b);
+			out.putDoubles(stumps.threshold);
+			out.putDoubles(stumps.left);
+			out.putDoubles(stumps.right);
+		} else {
+			CoverageModels.KnnModel knn = (CoverageModels.KnnModel) model;
+			out.putInt(knn.labels.length);
+			out.putInt(knn.k);
+			for (boolean label : knn.labels)
+				out.putByte(label ? (byte) 1 : 0);
+			out.align();
+			out.putDoubles(knn.samples);
+		}
+	}
+
+	private static void writeVoronoi(Writer out, VoronoiKOrder diagram)
+			throws IOException {
+		// Fold the cells changed by addRows and removeRows into one locator
+		diagram.compactLocator();
+		SiteTable sites = diagram.siteTable;
+		ArrayList<VoronoiPolygon> cells = diagram.polygonList;
+		PointLocator locator = diagram.locater;
+
+		int numKeys = 0, numVertices = 0;
+		for (VoronoiPolygon cell : cells) {
+			numKeys += cell.regionKey.size();
+			numVertices += cell.npoints;
+		}
+
+		out.putInt(diagram.k);
+		out.putInt(sites.numIds);
+		out.putInt(cells.size());
+		out.putInt(numKeys);
+		out.putInt(numVertices);
+		out.putInt(locator.numSegments);
+		out.putInt(locator.slabX.limit());
+		out.putInt(locator.numNodes);
+
+		for (int p = 0; p < sites.numIds; p++)
+			out.putByte(sites.isLive(p) ? (byte) 1 : 0);
+		out.align();
+		for (int p = 0; p < sites.numIds; p++)
+			out.putDouble(sites.x[p]);
+		for (int p = 0; p < sites.numIds; p++)
+			out.putDouble(sites.y[p]);
+
+		// Cells in CSR layout
+		int start = 0;
+		out.putInt(start);
+		for (VoronoiPolygon cell : cells) {
+			start += cell.regionKey.size();
+			out.putInt(start);
+		}
+		for (VoronoiPolygon cell : cells) {
+			for (int i = 0; i < cell.regionKey.size(); i++)
+				out.putInt(cell.regionKey.get(i));
+		}
+		start = 0;
+		out.putInt(start);
+		for (VoronoiPolygon cell : cells) {
+			start += cell.npoints;
+			out.putInt(start);
+		}
+		out.align();
+		for (VoronoiPolygon cell : cells) {
+			for (int i = 0; i < cell.npoints; i++)
+				out.putDouble(cell.xpoints[i]);
+		}
+		for (VoronoiPolygon cell : cells) {
+			for (int i = 0; i < cell.npoints; i++)
+				out.putDouble(cell.ypoints[i]);
+		}
+		for (VoronoiPolygon cell : cells)
+			out.putDouble(cell.minFarthest2);
+		for (VoronoiPolygon cell : cells)
+			out.putDouble(cell.maxFarthest2);
+
+		out.putDoubles(locator.segX1);
+		out.putDoubles(locator.segY1);
+		out.putDoubles(locator.segX2);
+		out.putDoubles(locator.segY2);
+		out.putInts(locator.segAbove);
+		out.putInts(locator.segBelow);
+		out.align();
+		out.putDoubles(locator.slabX);
+		out.putInts(locator.slabRoot);
+		out.putInts(locator.nodeSeg);
+		out.putInts(locator.nodeLeft);
+		out.putInts(locator.nodeRight);
+		out.align();
+	}
+
+	/**
+	 * Map a file written by save and restore the checker
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file cannot be read, is not a coverage index of
+	 *             versions MIN_VERSION to VERSION or has unknown flags
+	 */
+	static MithraCoverageChecker load(File file) throws IOException {
+		MappedByteBuffer mapped;
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(String.format(
+						"Coverage index %s is too large to map: %d bytes",
+						file, channel.size()));
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		}
+		Reader in = new Reader(mapped);
+
+		try {
+			if (in.getLong() != MAGIC)
+				throw new IOException(
+						String.format("%s is not a coverage index", file));
+			int version = in.getInt();
+			if (version < MIN_VERSION || version > VERSION) {
+				throw new IOException(String.format(
+						"Unsupported coverage index version %d in %s, expected %d to %d",
+						version, file, MIN_VERSION, VERSION));
+			}
+
+			MithraCoverageChecker checker = new MithraCoverageChecker();
+			int flags = in.getInt();
+			int unknown = flags & ~knownFlags(version);
+			if (unknown != 0) {
+				throw new IOException(String.format(
+						"Unknown flags 0x%x in version %d coverage index %s",
+						unknown, version, file));
+			}
+			checker.k = in.getInt();
+			checker.d = in.getInt();
+			checker.rho = in.getDouble();
+			checker.certified = (flags & CERTIFIED) != 0;
+			int numRows = in.getInt();
+
+			if (version <= SERIALIZED_VERSION) {
+				readObjects(in, flags, numRows, checker, file);
+			} else {
+				int modelType = in.getInt();
+				StructType datasetSchema = readSchema(in);
+				checker.srcDataSchema = readSchema(in);
+				StructType scalerSchema = (flags & HAS_SCALER) != 0
+						? readSchema(in)
+						: null;
+				in.align();
+				if (scalerSchema != null) {
+					int numColumns = in.getInt();
+					in.align();
+					checker.scaler = new Scaler(scalerSchema,
+							in.getDoubleArray(numColumns),
+							in.getDoubleArray(numColumns));
+				}
+				checker.dataset = CoverageDataset.wrap(
+						in.getDoubles(numRows * checker.d), numRows,
+						checker.d, CoverageDataset.Layout.ROW_MAJOR,
+						datasetSchema);
+				if ((flags & HAS_TREE) != 0)
+					checker.flatTree = readTree(in, checker.d);
+				if ((flags & HAS_MODEL) != 0) {
+					checker.coverageModel = readModel(in, modelType,
+							checker.d, file);
+				}
+			}
+
+			if ((flags & HAS_VORONOI) != 0)
+				checker.coverageVoronoiDiagram = readVoronoi(in);
+			return checker;
+		} catch (RuntimeException e) {
+			// Buffer underflows, invalid trees and the like from a truncated
+			// or corrupt file
+			throw new IOException(
+					String.format("Corrupt coverage index %s", file), e);
+		}
+	}
+
+	private static StructType readSchema(Reader in) throws IOException {
+		int numFields = in.getInt();
+		if (numFields < 0)
+			return null;
+		StructField[] fields = new StructField[numFields];
+		for (int i = 0; i < numFields; i++) {
+			String name = in.getString();
+			String type = in.getString();
+			try {
+				fields[i] = new StructField(name, DataType.of(type));
+			} catch (ClassNotFoundException e) {
+				throw new IOException(
+						String.format("Unknown type %s of column %s", type,
+								name),
+						e);
+			}
+		}
+		return new StructType(fields);
+	}
+
+	private static FlatDecisionTree readTree(Reader in, int d) {
+		int n = in.getInt();
+		int[] feature = in.getIntArray(n);
+		int[] left = in.getIntArray(n);
+		int[] right = in.getIntArray(n);
+		int[] label = in.getIntArray(n);
+		in.align();
+		double[] threshold = in.getDoubleArray(n);
+		return FlatDecisionTree.of(feature, threshold, left, right, label, d);
+	}
+
+	private static CoverageModel readModel(Reader in, int modelType, int d,
+			File file) throws IOException {
+		if (modelType == MODEL_FOREST) {
+			FlatDecisionTree[] trees = new FlatDecisionTree[in.getInt()];
+			in.align();
+			for (int i = 0; i < trees.length; i++)
+				trees[i] = readTree(in, d);
+			return new CoverageModels.ForestModel(trees, d);
+		}
+		if (modelType == MODEL_STUMPS) {
+			int numStumps = in.getInt();
+			boolean positiveCovered = in.getInt() != 0;
+			int[] feature = in.getIntArray(numStumps);
+			in.align();
+			CoverageModels.StumpModel stumps = new CoverageModels.StumpModel(
+					numStumps, in.getDouble(), positiveCovered, d);
+			for (int i = 0; i < numStumps; i++) {
+				if (feature[i] < 0 || feature[i] >= d) {
+					throw new IOException(String.format(
+							"Invalid feature %d of stump %d in %s",
+							feature[i], i, file));
+				}
+			}
+			System.arraycopy(feature, 0, stumps.feature, 0, numStumps);
+			in.getDoubles(numStumps).get(stumps.threshold);
+			in.getDoubles(numStumps).get(stumps.left);
+			in.getDoubles(numStumps).get(stumps.right);
+			return stumps;
+		}
+		if (modelType == MODEL_KNN) {
+			int numSamples = in.getInt();
+			int k = in.getInt();
+			byte[] bytes = in.getBytes(numSamples);
+			in.align();
+			boolean[] labels = new boolean[numSamples];
+			for (int i = 0; i < numSamples; i++)
+				labels[i] = bytes[i] != 0;
+			return new CoverageModels.KnnModel(
+					in.getDoubleArray(numSamples * d), labels, d, k);
+		}
+		throw new IOException(
+				String.format("Unknown model type %d in %s", modelType, file));
+	}
+
+	// the objects section of version 1 and 2 files and the dataset after it
+	private static void readObjects(Reader in, int flags, int numRows,
+			MithraCoverageChecker checker, File file) throws IOException {
+		int objectsLength = in.getInt();
+		StructType datasetSchema;
+		try (ObjectInputStream objects = new SerializedObjects(
+				new ByteArrayInputStream(in.getBytes(objectsLength)))) {
+			checker.scaler = (Scaler) objects.readObject();
+			datasetSchema = (StructType) objects.readObject();
+			checker.srcDataSchema = (StructType) objects.readObject();
+			checker.coverageDecisionTree = (DecisionTree) objects.readObject();
+			if ((flags & HAS_MODEL) != 0)
+				checker.coverageModel = (CoverageModel) objects.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException(
+					String.format("Invalid objects in coverage index %s", file),
+					e);
+		}
+		in.align();
+
+		checker.dataset = CoverageDataset.wrap(
+				in.getDoubles(numRows * checker.d), numRows, checker.d,
+				CoverageDataset.Layout.ROW_MAJOR, datasetSchema);
+		if ((flags & HAS_TREE) != 0) {
+			if (checker.coverageDecisionTree == null)
+				throw new IOException("Decision tree missing in " + file);
+			bindFormula(checker);
+			checker.flatTree = FlatDecisionTree.compile(
+					checker.coverageDecisionTree, checker.srcDataSchema);
+		}
+	}
+
+	/**
+	 * The binding of a formula to the training columns is not serialized.
+	 * Unbound, the tree would bind its formula to the schema of the first
+	 * tuple it predicts, which lacks the label column, so it is bound here.
+	 */
+	private static void bindFormula(MithraCoverageChecker checker) {
+		StructField[] fields = checker.srcDataSchema.fields();
+		StructField[] labeled = Arrays.copyOf(fields, fields.length + 1);
+		labeled[fields.length] = new StructField(
+				MithraCoverageChecker.LABEL_NAME, DataTypes.BooleanType);
+		checker.coverageDecisionTree.formula().bind(new StructType(labeled));
+	}
+
+	/**
+	 * Java deserialization that resolves only the classes a version 1 or 2
+	 * file was written with, so that a crafted file cannot make load
+	 * instantiate anything else on the class path
+	 */
+	private static final class SerializedObjects extends ObjectInputStream {
+		SerializedObjects(ByteArrayInputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc)
+				throws IOException, ClassNotFoundException {
+			String name = desc.getName();
+			// [[D, [Lsmile.base.cart.Node; and the like
+			String element = name.replaceFirst("^\\[+", "");
+			boolean allowed = element.length() == 1 && name.startsWith("[");
+			if (element.startsWith("L") && element.endsWith(";"))
+				element = element.substring(1, element.length() - 1);
+			for (String prefix : SERIALIZED_PACKAGES)
+				allowed |= element.startsWith(prefix);
+			if (!allowed) {
+				throw new InvalidClassException(name,
+						"Class not allowed in a coverage index");
+			}
+			return super.resolveClass(desc);
+		}
+
+		@Override
+		protected Class<?> resolveProxyClass(String[] interfaces)
+				throws IOException {
+			throw new InvalidClassException(String.join(", ", interfaces),
+					"Proxy not allowed in a coverage index");
+		}
+	}
+
+	private static VoronoiKOrder readVoronoi(Reader in) {
+		int k = in.getInt();
+		int numIds = in.getInt();
+		int numCells = in.getInt();
+		int numKeys = in.getInt();
+		int numVertices = in.getInt();
+		int numSegments = in.getInt();
+		int numSlabs = in.getInt();
+		int numNodes = in.getInt();
+
+		byte[] live = in.getBytes(numIds);
+		in.align();
+		DoubleBuffer siteX = in.getDoubles(numIds);
+		DoubleBuffer siteY = in.getDoubles(numIds);
+		SiteTable sites = new SiteTable();
+		for (int p = 0; p < numIds; p++) {
+			if (live[p] != 0)
+				sites.add(new Point2D(siteX.get(p), siteY.get(p)));
+			else
+				sites.addRemoved();
+		}
+
+		IntBuffer keyStart = in.getInts(numCells + 1);
+		IntBuffer keys = in.getInts(numKeys);
+		IntBuffer vertexStart = in.getInts(numCells + 1);
+		in.align();
+		DoubleBuffer vertexX = in.getDoubles(numVertices);
+		DoubleBuffer vertexY = in.getDoubles(numVertices);
+		DoubleBuffer minFarthest2 = in.getDoubles(numCells);
+		DoubleBuffer maxFarthest2 = in.getDoubles(numCells);
+
+		ArrayList<VoronoiPolygon> cells = new ArrayList<VoronoiPolygon>(
+				numCells);
+		int[] key = new int[k];
+		double[] xs = new double[16], ys = new double[16];
+		for (int c = 0; c < numCells; c++) {
+			int numKey = keyStart.get(c + 1) - keyStart.get(c);
+			if (key.length < numKey)
+				key = new int[numKey];
+			for (int i = 0; i < numKey; i++)
+				key[i] = keys.get(keyStart.get(c) + i);
+
+			int first = vertexStart.get(c);
+			int n = vertexStart.get(c + 1) - first;
+			if (xs.length < n) {
+				xs = new double[2 * n];
+				ys = new double[2 * n];
+			}
+			for (int i = 0; i < n; i++) {
+				xs[i] = vertexX.get(first + i);
+				ys[i] = vertexY.get(first + i);
+			}
+			VoronoiPolygon cell = new VoronoiPolygon(SiteSet.of(key, numKey),
+					xs, ys, n);
+			cell.minFarthest2 = minFarthest2.get(c);
+			cell.maxFarthest2 = maxFarthest2.get(c);
+			cells.add(cell);
+		}
+
+		DoubleBuffer segX1 = in.getDoubles(numSegments);
+		DoubleBuffer segY1 = in.getDoubles(numSegments);
+		DoubleBuffer segX2 = in.getDoubles(numSegments);
+		DoubleBuffer segY2 = in.getDoubles(numSegments);
+		IntBuffer segAbove = in.getInts(numSegments);
+		IntBuffer segBelow = in.getInts(numSegments);
+		in.align();
+		DoubleBuffer slabX = in.getDoubles(numSlabs);
+		IntBuffer slabRoot = in.getInts(numSlabs);
+		IntBuffer nodeSeg = in.getInts(numNodes);
+		IntBuffer nodeLeft = in.getInts(numNodes);
+		IntBuffer nodeRight = in.getInts(numNodes);
+		in.align();
+		PointLocator locator = new PointLocator(segX1, segY1, segX2, segY2,
+				segAbove, segBelow, slabX, slabRoot, nodeSeg, nodeLeft,
+				nodeRight);
+
+		return new VoronoiKOrder(sites, k, cells, locator);
+	}
+
+	/**
+	 * Buffered little-endian output to a channel that keeps track of the
+	 * position for alignment
+	 */
+	static class Writer {
+		final FileChannel channel;
+		final ByteBuffer buffer;
+		long position;
+
+		Writer(FileChannel channel) {
+			this.channel = channel;
+			this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes)
+				flush();
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+
+		void putByte(byte v) throws IOException {
+			ensure(1);
+			buffer.put(v);
+			position += 1;
+		}
+
+		void putInt(int v) throws IOException {
+			ensure(4);
+			buffer.putInt(v);
+			position += 4;
+		}
+
+		void putLong(long v) throws IOException {
+			ensure(8);
+			buffer.putLong(v);
+			position += 8;
+		}
+
+		void putDouble(double v) throws IOException {
+			ensure(8);
+			buffer.putDouble(v);
+			position += 8;
+		}
+
+		void putBytes(byte[] v) throws IOException {
+			for (byte b : v)
+				putByte(b);
+		}
+
+		void putInts(int[] v) throws IOException {
+			for (int x : v)
+				putInt(x);
+		}
+
+		void putDoubles(double[] v) throws IOException {
+			for (double x : v)
+				putDouble(x);
+		}
+
+		// length and UTF-8 bytes
+		void putString(String v) throws IOException {
+			byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+			putInt(bytes.length);
+			putBytes(bytes);
+		}
+
+		void putInts(IntBuffer v) throws IOException {
+			for (int i = 0; i < v.limit(); i++)
+				putInt(v.get(i));
+		}
+
+		void putDoubles(DoubleBuffer v) throws IOException {
+			for (int i = 0; i < v.limit(); i++)
+				putDouble(v.get(i));
+		}
+
+		// Pad with zeros to a multiple of 8 bytes
+		void align() throws IOException {
+			while (position % 8 != 0)
+				putByte((byte) 0);
+		}
+	}
+
+	/**
+	 * Sequential reads from the mapped file; arrays are returned as views of
+	 * the mapping
+	 */
+	static class Reader {
+		final ByteBuffer mapped;
+		int position;
+
+		Reader(ByteBuffer mapped) {
+			this.mapped = mapped.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		int getInt() {
+			int v = mapped.getInt(position);
+			position += 4;
+			return v;
+		}
+
+		long getLong() {
+			long v = mapped.getLong(position);
+			position += 8;
+			return v;
+		}
+
+		double getDouble() {
+			double v = mapped.getDouble(position);
+			position += 8;
+			return v;
+		}
+
+		byte[] getBytes(int length) {
+			byte[] v = new byte[length];
+			ByteBuffer view = mapped.duplicate();
+			view.position(position);
+			view.get(v);
+			position += length;
+			return v;
+		}
+
+		private ByteBuffer slice(int bytes) {
+			ByteBuffer view = mapped.duplicate();
+			view.position(position);
+			view.limit(position + bytes);
+			position += bytes;
+			return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		IntBuffer getInts(int count) {
+			return slice(4 * count).asIntBuffer();
+		}
+
+		DoubleBuffer getDoubles(int count) {
+			return slice(8 * count).asDoubleBuffer();
+		}
+
+		int[] getIntArray(int count) {
+			int[] v = new int[count];
+			getInts(count).get(v);
+			return v;
+		}
+
+		double[] getDoubleArray(int count) {
+			double[] v = new double[count];
+			getDoubles(count).get(v);
+			return v;
+		}
+
+		String getString() {
+			return new String(getBytes(getInt()), StandardCharsets.UTF_8);
+		}
+
+		void align() {
+			position = (position + 7) & ~7;
+		}
+	}
+}
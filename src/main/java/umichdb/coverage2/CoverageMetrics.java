@@ -0,0 +1,412 @@
+package umichdb.coverage2;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Timers and counters for the stages of the coverage pipeline: rescaling,
+ * building the Voronoi diagram and its point locator, sampling, labelling and
+ * training the decision tree, queries, updates, save and load. Every stage
+ * keeps a latency histogram from which percentiles are estimated, and
+ * listeners see every stage and count as it is recorded, e.g. to forward
+ * them to a tracing or metrics library.
+ *
+ * Metrics are off by default. Then every hook reads one volatile field and
+ * returns, so the pipeline runs as if it were not instrumented. They are
+ * global to the JVM: stages that run on several threads at once (e.g. the
+ * tiles of a parallel build, or concurrent queries) are all recorded, and
+ * stages may nest (a build records VORONOI_BUILD, FIND_POLYGONS and
+ * LOCATOR_BUILD).
+ *
+ * Usage:
+ *
+ * <pre>
+ * CoverageMetrics.setEnabled(true);
+ * CoverageMetrics.registerMBean(); // optional, for jconsole and JMX agents
+ * ... build and query checkers ...
+ * CoverageMetrics.timer(Stage.QUERY).getPercentileNanos(0.99);
+ * </pre>
+ */
+public final class CoverageMetrics {
+	/**
+	 * Stages of the pipeline that are timed
+	 */
+	public enum Stage {
+		// Fitting the scaler and rescaling the rows
+		SCALER_FIT, SCALE,
+		// Making the rows of the exact checker distinct
+		NOISE,
+		// Constructing the edges of the Voronoi diagram, collecting its cells
+		// and building the point locator over them
+		VORONOI_BUILD, FIND_POLYGONS, LOCATOR_BUILD,
+		// Building a spatial index over the rows
+		INDEX_BUILD,
+		// The approximate checker: drawing, labelling and learning samples,
+		// and choosing a model under a budget
+		SAMPLING, LABELLING, TREE_TRAINING, MODEL_SELECTION,
+		// A single query, and a batch of queries
+		QUERY, QUERY_BATCH,
+		// addRows and removeRows of the exact checker, and push and expire
+		// of the streaming checker
+		UPDATE,
+		// CoverageIndexFile
+		SAVE, LOAD,
+	}
+
+	/**
+	 * Events that are counted
+	 */
+	public enum Counter {
+		// Points queried, one per point of a batch
+		QUERIES,
+		// Queries the point locator could not answer, e.g. on a cell that
+		// was replaced by an update, so the nearest sites were searched
+		LOCATE_FALLBACKS,
+		// Voronoi constructions that hit their iteration limit and started
+		// over; one that fails twice leaves an empty diagram
+		CONSTRUCTION_RESTARTS, CONSTRUCTION_FAILURES,
+		// Rows added and removed by updates, pushed and expired by a stream
+		ROWS_ADDED, ROWS_REMOVED,
+	}
+
+	/**
+	 * Receives every recorded stage and count on the thread that recorded
+	 * it. Listeners are called inside the pipeline, e.g. once per query, so
+	 * they must be cheap and must not throw.
+	 */
+	public interface Listener {
+		void stageCompleted(Stage stage, long nanos);
+
+		void counted(Counter counter, long delta);
+	}
+
+	/**
+	 * The durations recorded for a stage. The histogram has 4 buckets per
+	 * power of two, so percentiles are within 25% of the true value. Every
+	 * bucket and the maximum are striped across threads, as the count is,
+	 * so that concurrent queries do not contend on them; they are summed
+	 * when read.
+	 */
+	public static final class Timer {
+		static final int SUB_BUCKETS = 4;
+		static final int NUM_BUCKETS = 64 * SUB_BUCKETS;
+
+		final LongAdder count = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+		final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+
+		Timer() {
+			for (int i = 0; i < NUM_BUCKETS; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			count.increment();
+			totalNanos.add(nanos);
+			buckets[bucket(nanos)].increment();
+			maxNanos.accumulate(nanos);
+		}
+
+		// Values below 4 get a bucket each; above, the bucket is given by the
+		// position of the highest bit and the two bits below it
+		static int bucket(long nanos) {
+			if (nanos < SUB_BUCKETS)
+				return (int) nanos;
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+			int sub = (int) (nanos >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+			return SUB_BUCKETS * (exponent - 1) + sub;
+		}
+
+		// the largest value of a bucket
+		static long bucketMax(int bucket) {
+			if (bucket < SUB_BUCKETS)
+				return bucket;
+			int exponent = bucket / SUB_BUCKETS + 1;
+			long sub = bucket % SUB_BUCKETS;
+			long next = (SUB_BUCKETS + sub + 1) << (exponent - 2);
+			return next < 0 ? Long.MAX_VALUE : next - 1;
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.sum();
+		}
+
+		public long getMaxNanos() {
+			return maxNanos.get();
+		}
+
+		public double getMeanNanos() {
+			long n = getCount();
+			return n == 0 ? 0 : getTotalNanos() / (double) n;
+		}
+
+		/**
+		 * Estimate a percentile from the histogram
+		 *
+		 * @param p
+		 *            = in [0, 1], e.g. 0.99
+		 * @return the largest value of the bucket that holds the percentile,
+		 *         at most the maximum; 0 if nothing was recorded
+		 */
+		public long getPercentileNanos(double p) {
+			if (p < 0 || p > 1) {
+				throw new IllegalArgumentException(String.format(
+						"Invalid percentile %f, expected 0 <= p <= 1", p));
+			}
+			long[] counts = new long[NUM_BUCKETS];
+			long n = 0;
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				counts[i] = buckets[i].sum();
+				n += counts[i];
+			}
+			if (n == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(p * n));
+			long seen = 0;
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(bucketMax(i), getMaxNanos());
+			}
+			return getMaxNanos();
+		}
+
+		void reset() {
+			count.reset();
+			totalNanos.reset();
+			maxNanos.reset();
+			for (LongAdder bucket : buckets)
+				bucket.reset();
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"count=%d, mean=%.3f ms, p50=%.3f ms, p99=%.3f ms, max=%.3f ms",
+					getCount(), getMeanNanos() / 1e6,
+					getPercentileNanos(0.5) / 1e6,
+					getPercentileNanos(0.99) / 1e6, getMaxNanos() / 1e6);
+		}
+	}
+
+	static final String MBEAN_NAME = "umichdb.coverage2:type=CoverageMetrics";
+
+	// What start returns while metrics are off; System.nanoTime may return
+	// any other value, including 0 and negative ones
+	static final long OFF = Long.MIN_VALUE;
+
+	private static volatile boolean enabled;
+	private static final Map<Stage, Timer> timers = new EnumMap<Stage, Timer>(
+			Stage.class);
+	private static final Map<Counter, LongAdder> counters = new EnumMap<Counter, LongAdder>(
+			Counter.class);
+	private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	static {
+		for (Stage stage : Stage.values())
+			timers.put(stage, new Timer());
+		for (Counter counter : Counter.values())
+			counters.put(counter, new LongAdder());
+	}
+
+	private CoverageMetrics() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Turn recording on or off. What was recorded is kept, see reset.
+	 *
+	 * @param enabled
+	 */
+	public static void setEnabled(boolean enabled) {
+		CoverageMetrics.enabled = enabled;
+	}
+
+	public static void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	public static Timer timer(Stage stage) {
+		return timers.get(stage);
+	}
+
+	public static long getCount(Counter counter) {
+		return counters.get(counter).sum();
+	}
+
+	/**
+	 * Forget all recorded stages and counts
+	 */
+	public static void reset() {
+		for (Timer timer : timers.values())
+			timer.reset();
+		for (LongAdder counter : counters.values())
+			counter.reset();
+	}
+
+	/**
+	 * Start timing a stage
+	 *
+	 * @return the start time for stop, OFF if metrics are off
+	 */
+	static long start() {
+		return enabled ? System.nanoTime() : OFF;
+	}
+
+	/**
+	 * Record a stage started by start. Nothing is recorded if metrics were
+	 * off when it started.
+	 *
+	 * @param stage
+	 * @param start
+	 *            = the value start returned
+	 */
+	static void stop(Stage stage, long start) {
+		if (start == OFF)
+			return;
+		long nanos = System.nanoTime() - start;
+		timers.get(stage).record(nanos);
+		for (Listener listener : listeners)
+			listener.stageCompleted(stage, nanos);
+	}
+
+	static void count(Counter counter, long delta) {
+		if (!enabled)
+			return;
+		counters.get(counter).add(delta);
+		for (Listener listener : listeners)
+			listener.counted(counter, delta);
+	}
+
+	/**
+	 * Register the metrics with the platform MBean server, unless they are
+	 * registered already
+	 *
+	 * @return the name they are registered under
+	 * @throws JMException
+	 */
+	public static synchronized ObjectName registerMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(MBEAN_NAME);
+		if (!server.isRegistered(name))
+			server.registerMBean(new MXBean(), name);
+		return name;
+	}
+
+	public static synchronized void unregisterMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(MBEAN_NAME);
+		if (server.isRegistered(name))
+			server.unregisterMBean(name);
+	}
+
+	/**
+	 * One line per stage that ran and per counter that is not 0
+	 */
+	public static String report() {
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<Stage, Timer> timer : timers.entrySet()) {
+			if (timer.getValue().getCount() > 0)
+				report.append(String.format("%s: %s%n", timer.getKey(),
+						timer.getValue()));
+		}
+		for (Map.Entry<Counter, LongAdder> counter : counters.entrySet()) {
+			if (counter.getValue().sum() > 0)
+				report.append(String.format("%s: %d%n", counter.getKey(),
+						counter.getValue().sum()));
+		}
+		return report.toString();
+	}
+
+	private static class MXBean implements CoverageMetricsMXBean {
+		@Override
+		public boolean isEnabled() {
+			return CoverageMetrics.isEnabled();
+		}
+
+		@Override
+		public void setEnabled(boolean enabled) {
+			CoverageMetrics.setEnabled(enabled);
+		}
+
+		@Override
+		public Map<String, Long> getCounters() {
+			Map<String, Long> values = new LinkedHashMap<String, Long>();
+			for (Map.Entry<Counter, LongAdder> counter : counters.entrySet())
+				values.put(counter.getKey().name(), counter.getValue().sum());
+			return values;
+		}
+
+		@Override
+		public Map<String, Long> getStageCounts() {
+			Map<String, Long> values = new LinkedHashMap<String, Long>();
+			for (Map.Entry<Stage, Timer> timer : timers.entrySet())
+				values.put(timer.getKey().name(), timer.getValue().getCount());
+			return values;
+		}
+
+		@Override
+		public Map<String, Double> getStageTotalMillis() {
+			return millis(timer -> timer.getTotalNanos());
+		}
+
+		@Override
+		public Map<String, Double> getStageMeanMillis() {
+			return millis(timer -> timer.getMeanNanos());
+		}
+
+		@Override
+		public Map<String, Double> getStageP50Millis() {
+			return millis(timer -> timer.getPercentileNanos(0.5));
+		}
+
+		@Override
+		public Map<String, Double> getStageP99Millis() {
+			return millis(timer -> timer.getPercentileNanos(0.99));
+		}
+
+		@Override
+		public Map<String, Double> getStageMaxMillis() {
+			return millis(timer -> timer.getMaxNanos());
+		}
+
+		@Override
+		public void reset() {
+			CoverageMetrics.reset();
+		}
+
+		private static Map<String, Double> millis(
+				ToDoubleFunction<Timer> nanos) {
+			Map<String, Double> values = new LinkedHashMap<String, Double>();
+			for (Map.Entry<Stage, Timer> timer : timers.entrySet())
+				values.put(timer.getKey().name(),
+						nanos.applyAsDouble(timer.getValue()) / 1e6);
+			return values;
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package umichdb.coverage2;
+
+import java.util.Map;
+
+/**
+ * The management interface of CoverageMetrics, registered by
+ * CoverageMetrics.registerMBean as umichdb.coverage2:type=CoverageMetrics.
+ * Maps are keyed by the names of the stages and counters.
+ */
+public interface CoverageMetricsMXBean {
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	Map<String, Long> getCounters();
+
+	/**
+	 * @return the number of times each stage ran
+	 */
+	Map<String, Long> getStageCounts();
+
+	Map<String, Double> getStageTotalMillis();
+
+	Map<String, Double> getStageMeanMillis();
+
+	Map<String, Double> getStageP50Millis();
+
+	Map<String, Double> getStageP99Millis();
+
+	Map<String, Double> getStageMaxMillis();
+
+	void reset();
+}
@@ -0,0 +1,73 @@
+package umichdb.coverage2;
+
+import java.io.Serializable;
+import java.util.BitSet;
+
+/**
+ * A classifier of the rescaled space [0, 1]^d into covered and uncovered
+ * points, learned by the approximate checker from labelled samples. Models
+ * are only read after training, so queries may run in parallel.
+ */
+public interface CoverageModel extends Serializable {
+	/**
+	 * Learns a model from labelled samples: a single decision tree, a random
+	 * forest, boosted stumps, nearest neighbors or any other classifier
+	 */
+	interface Trainer {
+		/**
+		 * @return a short name for reports
+		 */
+		String name();
+
+		/**
+		 * Learn a model
+		 *
+		 * @param samples
+		 *            = n*d coordinates in row-major order
+		 * @param labels
+		 *            = true for covered samples
+		 * @param d
+		 * @return
+		 * @throws IllegalArgumentException
+		 *             if the model cannot be learned from these samples
+		 */
+		CoverageModel fit(double[] samples, boolean[] labels, int d);
+	}
+
+	/**
+	 * @return the dimensionality of the points
+	 */
+	int dimension();
+
+	/**
+	 * Predict point number offset / d of a row-major array
+	 *
+	 * @param points
+	 * @param offset
+	 *            = index of the first value of the point
+	 * @return whether the point is predicted covered
+	 */
+	boolean isCovered(double[] points, int offset);
+
+	/**
+	 * Predict the points of a row-major array
+	 *
+	 * @param points
+	 *            = numPoints * d values
+	 * @param numPoints
+	 * @param covered
+	 *            = gets bit i set for point i predicted covered
+	 */
+	default void isCovered(double[] points, int numPoints, BitSet covered) {
+		int d = dimension();
+		for (int i = 0; i < numPoints; i++) {
+			if (isCovered(points, i * d))
+				covered.set(i);
+		}
+	}
+
+	/**
+	 * @return an estimate of the bytes the model takes in memory
+	 */
+	long sizeInBytes();
+}
@@ -0,0 +1,732 @@
+package umichdb.coverage2;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import smile.base.cart.InternalNode;
+import smile.base.cart.Node;
+import smile.base.cart.OrdinalNode;
+import smile.base.cart.RegressionNode;
+import smile.base.cart.SplitRule;
+import smile.classification.DecisionTree;
+import smile.classification.GradientTreeBoost;
+import smile.classification.RandomForest;
+import smile.data.DataFrame;
+import smile.data.Tuple;
+import smile.data.formula.Formula;
+import smile.data.type.StructType;
+import smile.data.vector.BooleanVector;
+import smile.regression.RegressionTree;
+import smile.util.IntSet;
+import umichdb.coverage2.CoverageMetrics.Stage;
+
+/**
+ * The models the approximate checker can learn, and the choice among them
+ * under a ModelBudget. The tree, forest and stump models are trained by
+ * smile and flattened into arrays like FlatDecisionTree, so that queries read
+ * points in place; the nearest neighbor model keeps the samples in a KdTree.
+ */
+public final class CoverageModels {
+	// share of the samples held out to measure the candidates
+	static final double HOLDOUT_SHARE = 0.2;
+	// least time to measure the queries of a candidate
+	static final long MEASURE_NANOS = 20_000_000L;
+
+	// smile keeps the intercept, shrinkage and class labels of a boosted
+	// model to itself
+	private static final Field BOOST_B = FlatDecisionTree
+			.field(GradientTreeBoost.class, "b");
+	private static final Field BOOST_SHRINKAGE = FlatDecisionTree
+			.field(GradientTreeBoost.class, "shrinkage");
+	private static final Field BOOST_LABELS = FlatDecisionTree
+			.field(GradientTreeBoost.class, "labels");
+
+	private CoverageModels() {
+	}
+
+	/**
+	 * A single decision tree, trained as the approximate checker always has
+	 * (Gini, at most 1000 nodes)
+	 *
+	 * @return
+	 */
+	public static CoverageModel.Trainer tree() {
+		return new CoverageModel.Trainer() {
+			@Override
+			public String name() {
+				return "tree";
+			}
+
+			@Override
+			public CoverageModel fit(double[] samples, boolean[] labels,
+					int d) {
+				DataFrame data = toDataFrame(samples, d);
+				return new TreeModel(
+						MithraCoverageChecker.fitTree(data, labels),
+						data.schema());
+			}
+		};
+	}
+
+	/**
+	 * A random forest of shallow trees, which vote by majority
+	 *
+	 * @param numTrees
+	 * @param maxDepth
+	 *            = most splits from the root of a tree to a leaf
+	 * @return
+	 */
+	public static CoverageModel.Trainer forest(int numTrees, int maxDepth) {
+		if (numTrees <= 0 || maxDepth <= 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid forest of %d trees of depth %d", numTrees,
+					maxDepth));
+		}
+		return new CoverageModel.Trainer() {
+			@Override
+			public String name() {
+				return String.format("forest(%d, depth %d)", numTrees,
+						maxDepth);
+			}
+
+			@Override
+			public CoverageModel fit(double[] samples, boolean[] labels,
+					int d) {
+				DataFrame data = toDataFrame(samples, d);
+				RandomForest forest = RandomForest.fit(
+						Formula.lhs(MithraCoverageChecker.LABEL_NAME),
+						label(data, labels), numTrees,
+						Math.max(1, (int) Math.sqrt(d)), SplitRule.GINI,
+						maxDepth, 1000, 1, 1.0);
+				DecisionTree[] trees = forest.trees();
+				FlatDecisionTree[] flat = new FlatDecisionTree[trees.length];
+				for (int i = 0; i < trees.length; i++) {
+					flat[i] = FlatDecisionTree.compile(trees[i],
+							data.schema());
+					if (flat[i] == null) {
+						throw new IllegalArgumentException(
+								"Cannot flatten the trees of the forest");
+					}
+				}
+				return new ForestModel(flat, d);
+			}
+		};
+	}
+
+	/**
+	 * Gradient boosted stumps (trees of one split), summed with shrinkage
+	 *
+	 * @param numStumps
+	 * @param shrinkage
+	 *            = learning rate, in (0, 1]
+	 * @return
+	 */
+	public static CoverageModel.Trainer boostedStumps(int numStumps,
+			double shrinkage) {
+		if (numStumps <= 0 || !(shrinkage > 0 && shrinkage <= 1)) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid boosting of %d stumps with shrinkage %s",
+					numStumps, shrinkage));
+		}
+		return new CoverageModel.Trainer() {
+			@Override
+			public String name() {
+				return String.format("stumps(%d)", numStumps);
+			}
+
+			@Override
+			public CoverageModel fit(double[] samples, boolean[] labels,
+					int d) {
+				DataFrame data = toDataFrame(samples, d);
+				// At most 2 nodes: one split and its two leaves
+				GradientTreeBoost boost = GradientTreeBoost.fit(
+						Formula.lhs(MithraCoverageChecker.LABEL_NAME),
+						label(data, labels), numStumps, 2, 2, 5, shrinkage,
+						1.0);
+				return StumpModel.of(boost, data.schema());
+			}
+		};
+	}
+
+	/**
+	 * The majority label of the nearest samples
+	 *
+	 * @param k
+	 *            = number of neighbors, odd to avoid ties
+	 * @return
+	 */
+	public static CoverageModel.Trainer nearestNeighbors(int k) {
+		if (k <= 0) {
+			throw new IllegalArgumentException(
+					String.format("Invalid number of neighbors %d", k));
+		}
+		return new CoverageModel.Trainer() {
+			@Override
+			public String name() {
+				return String.format("knn(%d)", k);
+			}
+
+			@Override
+			public CoverageModel fit(double[] samples, boolean[] labels,
+					int d) {
+				return new KnnModel(samples.clone(), labels.clone(), d, k);
+			}
+		};
+	}
+
+	/**
+	 * @return a decision tree, a forest of 15 trees of depth 10, 200 boosted
+	 *         stumps and 5 nearest neighbors
+	 */
+	static List<CoverageModel.Trainer> defaultTrainers() {
+		return Arrays.asList(tree(), forest(15, 10), boostedStumps(200, 0.1),
+				nearestNeighbors(5));
+	}
+
+	private static DataFrame toDataFrame(double[] samples, int d) {
+		double[][] rows = new double[samples.length / d][];
+		for (int i = 0; i < rows.length; i++)
+			rows[i] = Arrays.copyOfRange(samples, i * d, i * d + d);
+		return DataFrame.of(rows);
+	}
+
+	private static DataFrame label(DataFrame data, boolean[] labels) {
+		return data.merge(
+				BooleanVector.of(MithraCoverageChecker.LABEL_NAME, labels));
+	}
+
+	/**
+	 * How a candidate did on the held-out samples
+	 */
+	public static final class Candidate {
+		final String name;
+		// NaN if the candidate failed to train
+		final double accuracy;
+		final long bytes;
+		final double queryNanos;
+		final double trainingMillis;
+		final boolean withinBudget;
+		// why the candidate failed, null if it did not
+		final String error;
+
+		Candidate(String name, double accuracy, long bytes, double queryNanos,
+				double trainingMillis, boolean withinBudget, String error) {
+			this.name = name;
+			this.accuracy = accuracy;
+			this.bytes = bytes;
+			this.queryNanos = queryNanos;
+			this.trainingMillis = trainingMillis;
+			this.withinBudget = withinBudget;
+			this.error = error;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the share of held-out samples labelled right
+		 */
+		public double getAccuracy() {
+			return accuracy;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		public double getQueryNanos() {
+			return queryNanos;
+		}
+
+		public double getTrainingMillis() {
+			return trainingMillis;
+		}
+
+		public boolean isWithinBudget() {
+			return withinBudget;
+		}
+
+		@Override
+		public String toString() {
+			if (error != null)
+				return String.format("%s: failed (%s)", name, error);
+			return String.format(
+					"%s: accuracy %.4f, %d bytes, %.0f ns per query, %.0f ms of training%s",
+					name, accuracy, bytes, queryNanos, trainingMillis,
+					withinBudget ? "" : ", over budget");
+		}
+	}
+
+	/**
+	 * The model chosen under a budget, with the measures of all candidates
+	 */
+	public static final class Selection {
+		final CoverageModel model;
+		final Candidate chosen;
+		final List<Candidate> candidates;
+		final ModelBudget budget;
+		final int numTraining;
+		final int numHoldout;
+		// samples the model was trained on at last, numTraining if it could
+		// not be trained on all of them
+		final int numModelSamples;
+
+		Selection(CoverageModel model, Candidate chosen,
+				List<Candidate> candidates, ModelBudget budget,
+				int numTraining, int numHoldout, int numModelSamples) {
+			this.model = model;
+			this.chosen = chosen;
+			this.candidates = Collections.unmodifiableList(candidates);
+			this.budget = budget;
+			this.numTraining = numTraining;
+			this.numHoldout = numHoldout;
+			this.numModelSamples = numModelSamples;
+		}
+
+		public CoverageModel getModel() {
+			return model;
+		}
+
+		public Candidate getChosen() {
+			return chosen;
+		}
+
+		public List<Candidate> getCandidates() {
+			return candidates;
+		}
+
+		/**
+		 * @return the accuracy of the chosen candidate on the held-out
+		 *         samples, an estimate for the model trained on all of them
+		 */
+		public double getAccuracy() {
+			return chosen.accuracy;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder(String.format(
+					"Chose %s for a budget of %s, measured on %d held out after training on %d, then trained on %d%n",
+					chosen.name, budget, numHoldout, numTraining,
+					numModelSamples));
+			for (Candidate candidate : candidates)
+				report.append(String.format("  %s%n", candidate));
+			return report.toString();
+		}
+	}
+
+	/**
+	 * Train every candidate of the budget on a random part of the samples,
+	 * measure accuracy and query time on the rest, and choose the most
+	 * accurate one within the budget. If none is, the one that exceeds it
+	 * least is chosen with a warning: the one whose largest ratio of bytes,
+	 * query time and training time to their limits is the smallest. The
+	 * chosen trainer is then trained again on all samples; if that fails or
+	 * the model no longer fits the byte limit, the model measured is kept.
+	 *
+	 * @param samples
+	 *            = n*d coordinates in row-major order
+	 * @param labels
+	 *            = true for covered samples
+	 * @param d
+	 * @param budget
+	 * @param random
+	 *            = splits the samples
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if no candidate can be trained
+	 */
+	static Selection select(double[] samples, boolean[] labels, int d,
+			ModelBudget budget, Random random) {
+		long start = CoverageMetrics.start();
+		int n = labels.length;
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = order[i];
+			order[i] = order[j];
+			order[j] = t;
+		}
+		int numHoldout = Math.max(1,
+				Math.min(n - 1, (int) Math.round(HOLDOUT_SHARE * n)));
+		int numTraining = n - numHoldout;
+		double[] trainSamples = new double[numTraining * d];
+		boolean[] trainLabels = new boolean[numTraining];
+		double[] holdout = new double[numHoldout * d];
+		boolean[] holdoutLabels = new boolean[numHoldout];
+		for (int i = 0; i < n; i++) {
+			if (i < numTraining) {
+				System.arraycopy(samples, order[i] * d, trainSamples, i * d,
+						d);
+				trainLabels[i] = labels[order[i]];
+			} else {
+				System.arraycopy(samples, order[i] * d, holdout,
+						(i - numTraining) * d, d);
+				holdoutLabels[i - numTraining] = labels[order[i]];
+			}
+		}
+
+		List<Candidate> candidates = new ArrayList<>();
+		CoverageModel bestWithin = null, leastOver = null;
+		Candidate bestWithinCandidate = null, leastOverCandidate = null;
+		CoverageModel.Trainer bestWithinTrainer = null,
+				leastOverTrainer = null;
+		double leastExcess = Double.POSITIVE_INFINITY;
+		for (CoverageModel.Trainer trainer : budget.candidates) {
+			long begin = System.nanoTime();
+			CoverageModel model;
+			try {
+				model = trainer.fit(trainSamples, trainLabels, d);
+			} catch (IllegalArgumentException e) {
+				System.err.println(String.format(
+						"[WARNING] Cannot train candidate model %s: %s",
+						trainer.name(), e.getMessage()));
+				candidates.add(new Candidate(trainer.name(), Double.NaN, 0,
+						Double.NaN, Double.NaN, false, e.getMessage()));
+				continue;
+			}
+			double trainingMillis = (System.nanoTime() - begin) / 1e6;
+
+			BitSet covered = new BitSet(numHoldout);
+			model.isCovered(holdout, numHoldout, covered);
+			int right = 0;
+			for (int i = 0; i < numHoldout; i++) {
+				if (covered.get(i) == holdoutLabels[i])
+					right++;
+			}
+			double accuracy = (double) right / numHoldout;
+			double queryNanos = measure(model, holdout, numHoldout);
+			long bytes = model.sizeInBytes();
+			boolean within = bytes <= budget.maxBytes
+					&& queryNanos <= budget.maxQueryNanos
+					&& trainingMillis <= budget.maxTrainingMillis;
+			Candidate candidate = new Candidate(trainer.name(), accuracy,
+					bytes, queryNanos, trainingMillis, within, null);
+			candidates.add(candidate);
+
+			if (within && (bestWithinCandidate == null
+					|| accuracy > bestWithinCandidate.accuracy)) {
+				bestWithin = model;
+				bestWithinCandidate = candidate;
+				bestWithinTrainer = trainer;
+			}
+			double excess = Math.max(
+					Math.max((double) bytes / budget.maxBytes,
+							queryNanos / budget.maxQueryNanos),
+					trainingMillis / budget.maxTrainingMillis);
+			if (leastOverCandidate == null || excess < leastExcess
+					|| (excess == leastExcess
+							&& accuracy > leastOverCandidate.accuracy)) {
+				leastOver = model;
+				leastOverCandidate = candidate;
+				leastOverTrainer = trainer;
+				leastExcess = excess;
+			}
+		}
+		if (leastOver == null)
+			throw new IllegalArgumentException("No candidate model trained");
+		if (bestWithin == null) {
+			System.err.println(String.format(
+					"[WARNING] No candidate model fits the budget of %s, using %s, which exceeds it least",
+					budget, leastOverCandidate.name));
+			bestWithin = leastOver;
+			bestWithinCandidate = leastOverCandidate;
+			bestWithinTrainer = leastOverTrainer;
+		}
+
+		// The holdout only measured the candidates, the model learns from it
+		CoverageModel model = bestWithin;
+		int numModelSamples = numTraining;
+		try {
+			CoverageModel refit = bestWithinTrainer.fit(samples, labels, d);
+			if (refit.sizeInBytes() <= Math.max(budget.maxBytes,
+					bestWithinCandidate.bytes)) {
+				model = refit;
+				numModelSamples = n;
+			} else {
+				System.err.println(String.format(
+						"[WARNING] %s trained on all %d samples takes %d bytes, keeping the one trained on %d",
+						bestWithinCandidate.name, n, refit.sizeInBytes(),
+						numTraining));
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(String.format(
+					"[WARNING] Cannot train %s on all %d samples, keeping the one trained on %d: %s",
+					bestWithinCandidate.name, n, numTraining,
+					e.getMessage()));
+		}
+		Selection selection = new Selection(model, bestWithinCandidate,
+				candidates, budget, numTraining, numHoldout,
+				numModelSamples);
+		CoverageMetrics.stop(Stage.MODEL_SELECTION, start);
+		return selection;
+	}
+
+	// nanoseconds per point of batch queries, after one pass of warm-up
+	private static double measure(CoverageModel model, double[] points,
+			int numPoints) {
+		BitSet covered = new BitSet(numPoints);
+		model.isCovered(points, numPoints, covered);
+		long queries = 0;
+		long begin = System.nanoTime(), elapsed;
+		do {
+			model.isCovered(points, numPoints, covered);
+			queries += numPoints;
+			elapsed = System.nanoTime() - begin;
+		} while (elapsed < MEASURE_NANOS);
+		return (double) elapsed / queries;
+	}
+
+	/**
+	 * A single decision tree
+	 */
+	static final class TreeModel implements CoverageModel {
+		private static final long serialVersionUID = 1L;
+
+		final DecisionTree tree;
+		// null if the tree cannot be flattened
+		final FlatDecisionTree flatTree;
+		final StructType schema;
+
+		TreeModel(DecisionTree tree, StructType schema) {
+			this.tree = tree;
+			this.flatTree = FlatDecisionTree.compile(tree, schema);
+			this.schema = schema;
+		}
+
+		@Override
+		public int dimension() {
+			return schema.length();
+		}
+
+		@Override
+		public boolean isCovered(double[] points, int offset) {
+			if (flatTree != null)
+				return flatTree.predict(points, offset) != 0;
+			double[] point = Arrays.copyOfRange(points, offset,
+					offset + schema.length());
+			return tree.predict(Tuple.of(point, schema)) != 0;
+		}
+
+		@Override
+		public void isCovered(double[] points, int numPoints,
+				BitSet covered) {
+			if (flatTree != null)
+				flatTree.predict(points, numPoints, covered);
+			else
+				CoverageModel.super.isCovered(points, numPoints, covered);
+		}
+
+		@Override
+		public long sizeInBytes() {
+			// smile's nodes are objects of a few fields each
+			return flatTree != null
+					? flatTree.sizeInBytes()
+					: 64L * (2 * tree.root().leafs() - 1);
+		}
+	}
+
+	/**
+	 * Flattened trees that vote by majority
+	 */
+	static final class ForestModel implements CoverageModel {
+		private static final long serialVersionUID = 1L;
+
+		final FlatDecisionTree[] trees;
+		final int d;
+
+		ForestModel(FlatDecisionTree[] trees, int d) {
+			this.trees = trees;
+			this.d = d;
+		}
+
+		@Override
+		public int dimension() {
+			return d;
+		}
+
+		@Override
+		public boolean isCovered(double[] points, int offset) {
+			int votes = 0;
+			for (FlatDecisionTree tree : trees) {
+				if (tree.predict(points, offset) != 0)
+					votes++;
+			}
+			return 2 * votes > trees.length;
+		}
+
+		@Override
+		public long sizeInBytes() {
+			long bytes = 0;
+			for (FlatDecisionTree tree : trees)
+				bytes += tree.sizeInBytes();
+			return bytes;
+		}
+	}
+
+	/**
+	 * Boosted stumps: the sum of b and, for each stump, left[i] if the value
+	 * of feature[i] is at most threshold[i] and right[i] otherwise (NaN
+	 * included), with the shrinkage folded in. Positive sums are covered if
+	 * positiveCovered, and negative ones otherwise, as smile maps them.
+	 */
+	static final class StumpModel implements CoverageModel {
+		private static final long serialVersionUID = 1L;
+
+		final int[] feature;
+		final double[] threshold;
+		final double[] left;
+		final double[] right;
+		final double b;
+		final boolean positiveCovered;
+		final int d;
+
+		StumpModel(int numStumps, double b, boolean positiveCovered,
+				int d) {
+			this.feature = new int[numStumps];
+			this.threshold = new double[numStumps];
+			this.left = new double[numStumps];
+			this.right = new double[numStumps];
+			this.b = b;
+			this.positiveCovered = positiveCovered;
+			this.d = d;
+		}
+
+		static StumpModel of(GradientTreeBoost boost, StructType schema) {
+			if (FlatDecisionTree.SPLIT_VALUE == null || BOOST_B == null
+					|| BOOST_SHRINKAGE == null || BOOST_LABELS == null) {
+				throw new IllegalArgumentException(
+						"Cannot read the stumps of smile's boosted trees");
+			}
+			try {
+				RegressionTree[] trees = boost.trees();
+				double shrinkage = BOOST_SHRINKAGE.getDouble(boost);
+				IntSet labels = (IntSet) BOOST_LABELS.get(boost);
+				boolean positiveCovered = labels == null
+						|| labels.valueOf(1) != 0;
+				StumpModel model = new StumpModel(trees.length,
+						BOOST_B.getDouble(boost), positiveCovered,
+						schema.length());
+				for (int i = 0; i < trees.length; i++) {
+					Node root = trees[i].root();
+					if (root instanceof RegressionNode) {
+						// No split: the same output everywhere
+						double output = ((RegressionNode) root).output();
+						model.threshold[i] = Double.POSITIVE_INFINITY;
+						model.left[i] = shrinkage * output;
+						model.right[i] = shrinkage * output;
+						continue;
+					}
+					if (!(root instanceof OrdinalNode)) {
+						throw new IllegalArgumentException(String.format(
+								"%s is not an ordinal split",
+								root.getClass().getName()));
+					}
+					InternalNode split = (InternalNode) root;
+					if (!(split.trueChild() instanceof RegressionNode)
+							|| !(split.falseChild() instanceof RegressionNode))
+						throw new IllegalArgumentException(
+								"A boosted tree is not a stump");
+					model.feature[i] = schema.fieldIndex(trees[i].schema()
+							.field(split.feature()).name);
+					model.threshold[i] = FlatDecisionTree.SPLIT_VALUE
+							.getDouble(split);
+					model.left[i] = shrinkage
+							* ((RegressionNode) split.trueChild()).output();
+					model.right[i] = shrinkage
+							* ((RegressionNode) split.falseChild()).output();
+				}
+				return model;
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException(e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public int dimension() {
+			return d;
+		}
+
+		@Override
+		public boolean isCovered(double[] points, int offset) {
+			double y = b;
+			for (int i = 0; i < feature.length; i++) {
+				y += points[offset + feature[i]] <= threshold[i]
+						? left[i]
+						: right[i];
+			}
+			return (y > 0) == positiveCovered;
+		}
+
+		@Override
+		public long sizeInBytes() {
+			return (long) feature.length * (4 + 8 + 8 + 8);
+		}
+	}
+
+	/**
+	 * The majority label of the k nearest samples
+	 */
+	static final class KnnModel implements CoverageModel {
+		private static final long serialVersionUID = 1L;
+
+		final double[] samples;
+		final boolean[] labels;
+		final int d;
+		final int k;
+		// rebuilt after deserialization
+		transient KdTree index;
+
+		KnnModel(double[] samples, boolean[] labels, int d, int k) {
+			if (labels.length == 0)
+				throw new IllegalArgumentException("No samples");
+			this.samples = samples;
+			this.labels = labels;
+			this.d = d;
+			this.k = k;
+			this.index = new KdTree(samples, d);
+		}
+
+		private void readObject(ObjectInputStream in)
+				throws IOException, ClassNotFoundException {
+			in.defaultReadObject();
+			index = new KdTree(samples, d);
+		}
+
+		@Override
+		public int dimension() {
+			return d;
+		}
+
+		@Override
+		public boolean isCovered(double[] points, int offset) {
+			int[] rows = new int[k];
+			int found = index.nearest(points, offset, k, rows);
+			int votes = 0;
+			for (int i = 0; i < found; i++) {
+				if (labels[rows[i]])
+					votes++;
+			}
+			return 2 * votes > found;
+		}
+
+		@Override
+		public long sizeInBytes() {
+			// the samples, their labels, and the points, order and node
+			// arrays of the KdTree
+			long n = labels.length;
+			return 8 * n * d + n + 8 * n * d + 4 * n
+					+ (long) index.nodeStart.length * (5 * 4 + 8 + 2 * 8 * d);
+		}
+	}
+}
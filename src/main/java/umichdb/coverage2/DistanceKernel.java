@@ -0,0 +1,237 @@
+package umichdb.coverage2;
+
+/**
+ * Squared Euclidean distances between points stored in flat row-major
+ * arrays, for the inner loops of the coverage checkers. Nothing is allocated
+ * and no square roots are taken: a point is within rho if its squared
+ * distance is at most squaredRadius(rho). Kernels for d = 2, 3 and 4 are
+ * unrolled; the general kernel stops as soon as the partial sum exceeds the
+ * squared radius.
+ *
+ * The squared differences are summed in dimension order and the kernels
+ * compare sqrt(sum) with rho exactly (see squaredRadius). smile's
+ * EuclideanDistance sums the same way but returns sqrt(d * sum / m) over the
+ * m components where neither point is NaN, which can differ from sqrt(sum) in
+ * the last bit when d is not a power of two; euclideanSquaredRadius gives
+ * its answer for points without NaN, while here a NaN makes the point farther
+ * than any rho. SampleLabelTest compares the two at distances of exactly rho.
+ *
+ * Kernels hold no state but d, so of returns shared instances.
+ */
+public abstract class DistanceKernel {
+	// the shared general kernels for d up to this
+	static final int CACHED_DIMENSIONS = 64;
+
+	private static final DistanceKernel[] KERNELS;
+	static {
+		KERNELS = new DistanceKernel[CACHED_DIMENSIONS + 1];
+		for (int d = 1; d <= CACHED_DIMENSIONS; d++)
+			KERNELS[d] = new General(d);
+		KERNELS[2] = new D2();
+		KERNELS[3] = new D3();
+		KERNELS[4] = new D4();
+	}
+
+	final int d;
+
+	DistanceKernel(int d) {
+		this.d = d;
+	}
+
+	/**
+	 * The kernel for d-dimensional points, shared up to CACHED_DIMENSIONS
+	 *
+	 * @param d
+	 * @return
+	 */
+	public static DistanceKernel of(int d) {
+		if (d <= 0) {
+			throw new IllegalArgumentException(
+					String.format("Invalid dimensionality: %d", d));
+		}
+		return d <= CACHED_DIMENSIONS ? KERNELS[d] : new General(d);
+	}
+
+	/**
+	 * The largest squared distance s with Math.sqrt(s) <= rho. Comparing a
+	 * squared distance against it gives exactly the same answer as comparing
+	 * the distance against rho, which rho * rho does not in the last bit.
+	 * An infinite rho gives an infinite radius, and a NaN or negative one a
+	 * radius nothing is within.
+	 *
+	 * @param rho
+	 * @return
+	 */
+	public static double squaredRadius(double rho) {
+		if (!(rho >= 0) || Double.isInfinite(rho))
+			return rho < 0 ? -1 : rho * rho;
+		double rho2 = rho * rho;
+		while (rho2 > 0 && Math.sqrt(rho2) > rho)
+			rho2 = Math.nextDown(rho2);
+		while (Math.sqrt(Math.nextUp(rho2)) <= rho)
+			rho2 = Math.nextUp(rho2);
+		return rho2;
+	}
+
+	/**
+	 * The largest squared distance s with Math.sqrt(d * s / d) <= rho, so
+	 * that comparing a squared distance against it gives exactly the answer
+	 * of comparing smile's EuclideanDistance of two d-dimensional points
+	 * without NaN components against rho. d * s / d is rounded twice and
+	 * need not be s, but it grows with s, so there is such a largest s.
+	 * Special values of rho are treated as by squaredRadius.
+	 *
+	 * @param rho
+	 * @param d
+	 * @return
+	 */
+	public static double euclideanSquaredRadius(double rho, int d) {
+		if (!(rho >= 0) || Double.isInfinite(rho))
+			return squaredRadius(rho);
+		// d * s overflows beyond this, and smile's distance with it
+		double rho2 = Math.min(rho * rho, Double.MAX_VALUE / d);
+		while (rho2 > 0 && Math.sqrt(d * rho2 / d) > rho)
+			rho2 = Math.nextDown(rho2);
+		while (Math.sqrt(d * Math.nextUp(rho2) / d) <= rho
+				&& Math.nextUp(rho2) < Double.POSITIVE_INFINITY)
+			rho2 = Math.nextUp(rho2);
+		return rho2;
+	}
+
+	/**
+	 * Squared distance between a[aOffset..aOffset+d) and b[bOffset..bOffset+d)
+	 */
+	public abstract double dist2(double[] a, int aOffset, double[] b,
+			int bOffset);
+
+	/**
+	 * Check if the squared distance between two points is at most rho2
+	 *
+	 * @param a
+	 * @param aOffset
+	 * @param b
+	 * @param bOffset
+	 * @param rho2
+	 *            = squared radius, see squaredRadius
+	 * @return
+	 */
+	public abstract boolean within(double[] a, int aOffset, double[] b,
+			int bOffset, double rho2);
+
+	public int dimension() {
+		return d;
+	}
+
+	static final class D2 extends DistanceKernel {
+		D2() {
+			super(2);
+		}
+
+		@Override
+		public double dist2(double[] a, int aOffset, double[] b,
+				int bOffset) {
+			double d0 = a[aOffset] - b[bOffset];
+			double d1 = a[aOffset + 1] - b[bOffset + 1];
+			return d0 * d0 + d1 * d1;
+		}
+
+		@Override
+		public boolean within(double[] a, int aOffset, double[] b,
+				int bOffset, double rho2) {
+			return dist2(a, aOffset, b, bOffset) <= rho2;
+		}
+	}
+
+	static final class D3 extends DistanceKernel {
+		D3() {
+			super(3);
+		}
+
+		@Override
+		public double dist2(double[] a, int aOffset, double[] b,
+				int bOffset) {
+			double d0 = a[aOffset] - b[bOffset];
+			double d1 = a[aOffset + 1] - b[bOffset + 1];
+			double d2 = a[aOffset + 2] - b[bOffset + 2];
+			return d0 * d0 + d1 * d1 + d2 * d2;
+		}
+
+		@Override
+		public boolean within(double[] a, int aOffset, double[] b,
+				int bOffset, double rho2) {
+			return dist2(a, aOffset, b, bOffset) <= rho2;
+		}
+	}
+
+	static final class D4 extends DistanceKernel {
+		D4() {
+			super(4);
+		}
+
+		@Override
+		public double dist2(double[] a, int aOffset, double[] b,
+				int bOffset) {
+			double d0 = a[aOffset] - b[bOffset];
+			double d1 = a[aOffset + 1] - b[bOffset + 1];
+			double d2 = a[aOffset + 2] - b[bOffset + 2];
+			double d3 = a[aOffset + 3] - b[bOffset + 3];
+			return d0 * d0 + d1 * d1 + d2 * d2 + d3 * d3;
+		}
+
+		@Override
+		public boolean within(double[] a, int aOffset, double[] b,
+				int bOffset, double rho2) {
+			double d0 = a[aOffset] - b[bOffset];
+			double d1 = a[aOffset + 1] - b[bOffset + 1];
+			double sum = d0 * d0 + d1 * d1;
+			if (sum > rho2)
+				return false;
+			double d2 = a[aOffset + 2] - b[bOffset + 2];
+			double d3 = a[aOffset + 3] - b[bOffset + 3];
+			return sum + d2 * d2 + d3 * d3 <= rho2;
+		}
+	}
+
+	static final class General extends DistanceKernel {
+		General(int d) {
+			super(d);
+		}
+
+		@Override
+		public double dist2(double[] a, int aOffset, double[] b,
+				int bOffset) {
+			double sum = 0;
+			for (int dim = 0; dim < d; dim++) {
+				double diff = a[aOffset + dim] - b[bOffset + dim];
+				sum += diff * diff;
+			}
+			return sum;
+		}
+
+		@Override
+		public boolean within(double[] a, int aOffset, double[] b,
+				int bOffset, double rho2) {
+			// The partial sums only grow, so stopping early cannot change the
+			// answer; check every 4 dimensions to keep the loop tight
+			double sum = 0;
+			int dim = 0;
+			for (; dim + 4 <= d; dim += 4) {
+				double d0 = a[aOffset + dim] - b[bOffset + dim];
+				double d1 = a[aOffset + dim + 1] - b[bOffset + dim + 1];
+				double d2 = a[aOffset + dim + 2] - b[bOffset + dim + 2];
+				double d3 = a[aOffset + dim + 3] - b[bOffset + dim + 3];
+				sum += d0 * d0;
+				sum += d1 * d1;
+				sum += d2 * d2;
+				sum += d3 * d3;
+				if (sum > rho2)
+					return false;
+			}
+			for (; dim < d; dim++) {
+				double diff = a[aOffset + dim] - b[bOffset + dim];
+				sum += diff * diff;
+			}
+			return sum <= rho2;
+		}
+	}
+}
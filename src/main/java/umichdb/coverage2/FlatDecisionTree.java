@@ -0,0 +1,320 @@
+package umichdb.coverage2;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.util.BitSet;
+
+import smile.base.cart.DecisionNode;
+import smile.base.cart.InternalNode;
+import smile.base.cart.Node;
+import smile.base.cart.OrdinalNode;
+import smile.classification.DecisionTree;
+import smile.data.type.StructType;
+import smile.util.IntSet;
+
+/**
+ * A trained decision tree flattened into parallel arrays, for the queries of
+ * the approximate checker. smile's DecisionTree.predict needs a Tuple per
+ * point and walks node objects through virtual calls; here points are read
+ * straight from a row-major array and nothing is allocated.
+ *
+ * Nodes are stored in preorder. At an internal node i a point goes to
+ * left[i] if its value of feature[i] is at most threshold[i] and to right[i]
+ * otherwise, NaN included, exactly as in smile's OrdinalNode. A leaf has both
+ * children pointing to itself; label[i] is its prediction.
+ *
+ * If the tree splits on at most two features, as it does for 2-d data, a
+ * jump table over a regular grid of [0, 1) in those features holds for each
+ * grid cell the deepest node whose region contains the whole cell. Most cells
+ * lie inside a leaf, so most points are predicted by one lookup; the others
+ * walk on from the node of their cell. The grid has a power of two cells per
+ * feature, so the cell of a value and the bounds of a cell are exact.
+ */
+final class FlatDecisionTree implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	final int[] feature;
+	final double[] threshold;
+	final int[] left;
+	final int[] right;
+	final int[] label;
+	// dimensionality of the points
+	final int d;
+	// the most steps from the root to a leaf
+	int depth;
+
+	// JUMP_BITS bits of cell index, split among the features of the table
+	static final int JUMP_BITS = 16;
+	// the node each grid cell starts from, null without a table; the cell
+	// of (a, b) is (int) (a * cellsA) << bitsB | (int) (b * cellsB)
+	int[] jump;
+	int jumpA, jumpB = -1;
+	int bitsB;
+	int cellsA, cellsB = 1;
+
+	// smile keeps the split value of an OrdinalNode and the class labels of a
+	// DecisionTree to itself
+	static final Field SPLIT_VALUE = field(OrdinalNode.class, "value");
+	private static final Field LABELS = field(DecisionTree.class, "labels");
+
+	private int numNodes;
+
+	private FlatDecisionTree(int capacity, int d) {
+		this.feature = new int[capacity];
+		this.threshold = new double[capacity];
+		this.left = new int[capacity];
+		this.right = new int[capacity];
+		this.label = new int[capacity];
+		this.d = d;
+	}
+
+	private FlatDecisionTree(int[] feature, double[] threshold, int[] left,
+			int[] right, int[] label, int d) {
+		this.feature = feature;
+		this.threshold = threshold;
+		this.left = left;
+		this.right = right;
+		this.label = label;
+		this.d = d;
+		this.numNodes = feature.length;
+	}
+
+	/**
+	 * Rebuild a flat tree from its node arrays, as CoverageIndexFile stores
+	 * them
+	 *
+	 * @param feature
+	 * @param threshold
+	 * @param left
+	 * @param right
+	 * @param label
+	 * @param d
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the arrays are not a tree in preorder
+	 */
+	static FlatDecisionTree of(int[] feature, double[] threshold, int[] left,
+			int[] right, int[] label, int d) {
+		int n = feature.length;
+		if (n == 0 || threshold.length != n || left.length != n
+				|| right.length != n || label.length != n) {
+			throw new IllegalArgumentException(
+					"Node arrays of a flat tree differ in length");
+		}
+		// Children follow their parent, so the depths fill in backwards
+		int[] depths = new int[n];
+		for (int i = n - 1; i >= 0; i--) {
+			if (left[i] == i && right[i] == i)
+				continue;
+			if (left[i] <= i || left[i] >= n || right[i] <= i
+					|| right[i] >= n || feature[i] < 0 || feature[i] >= d) {
+				throw new IllegalArgumentException(
+						String.format("Invalid node %d of a flat tree", i));
+			}
+			depths[i] = 1 + Math.max(depths[left[i]], depths[right[i]]);
+		}
+		FlatDecisionTree flat = new FlatDecisionTree(feature, threshold, left,
+				right, label, d);
+		flat.depth = depths[0];
+		flat.buildJumpTable();
+		return flat;
+	}
+
+	// a private field made accessible, null if this version of smile lacks it
+	static Field field(Class<?> type, String name) {
+		try {
+			Field field = type.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Flatten a tree trained on points with the given schema
+	 *
+	 * @param tree
+	 * @param schema
+	 *            = the columns of the points, in order; the tree may use any
+	 *            of them
+	 * @return the flat tree, null if the tree has splits other than ordinal
+	 *         ones or this version of smile hides its nodes differently
+	 */
+	static FlatDecisionTree compile(DecisionTree tree, StructType schema) {
+		if (SPLIT_VALUE == null || LABELS == null) {
+			System.err.println(
+					"[WARNING] Cannot read the nodes of smile's decision tree, queries use DecisionTree.predict");
+			return null;
+		}
+		Node root = tree.root();
+		FlatDecisionTree flat = new FlatDecisionTree(2 * root.leafs() - 1,
+				schema.length());
+		try {
+			IntSet labels = (IntSet) LABELS.get(tree);
+			flat.depth = flat.add(root, tree.schema(), schema, labels);
+			flat.buildJumpTable();
+			return flat;
+		} catch (IllegalAccessException | IllegalArgumentException e) {
+			System.err.println(String.format(
+					"[WARNING] Cannot flatten the decision tree (%s), queries use DecisionTree.predict",
+					e.getMessage()));
+			return null;
+		}
+	}
+
+	// add a subtree in preorder and return its depth
+	private int add(Node node, StructType treeSchema, StructType schema,
+			IntSet labels) throws IllegalAccessException {
+		int i = numNodes++;
+		if (node instanceof DecisionNode) {
+			int output = ((DecisionNode) node).output();
+			left[i] = i;
+			right[i] = i;
+			label[i] = labels == null ? output : labels.valueOf(output);
+			return 0;
+		}
+		if (!(node instanceof OrdinalNode)) {
+			throw new IllegalArgumentException(String.format(
+					"%s is not an ordinal split", node.getClass().getName()));
+		}
+		OrdinalNode split = (OrdinalNode) node;
+		String name = treeSchema.field(split.feature()).name;
+		feature[i] = schema.fieldIndex(name);
+		threshold[i] = SPLIT_VALUE.getDouble(split);
+		label[i] = -1;
+		left[i] = numNodes;
+		int leftDepth = add(((InternalNode) node).trueChild(), treeSchema,
+				schema, labels);
+		right[i] = numNodes;
+		int rightDepth = add(((InternalNode) node).falseChild(), treeSchema,
+				schema, labels);
+		return 1 + Math.max(leftDepth, rightDepth);
+	}
+
+	int size() {
+		return numNodes;
+	}
+
+	/**
+	 * @return the bytes of the node arrays and the jump table
+	 */
+	long sizeInBytes() {
+		return (long) feature.length * (4 + 8 + 4 + 4 + 4)
+				+ (jump == null ? 0 : 4L * jump.length);
+	}
+
+	// a table over the features the tree splits on, if there are at most two
+	private void buildJumpTable() {
+		int a = -1, b = -1;
+		for (int i = 0; i < numNodes; i++) {
+			if (left[i] == i || feature[i] == a || feature[i] == b)
+				continue;
+			if (a < 0)
+				a = feature[i];
+			else if (b < 0)
+				b = feature[i];
+			else
+				return;
+		}
+		if (a < 0)
+			return;
+		jumpA = a;
+		jumpB = b;
+		bitsB = b < 0 ? 0 : JUMP_BITS / 2;
+		cellsA = 1 << (JUMP_BITS - bitsB);
+		cellsB = 1 << bitsB;
+		jump = new int[cellsA * cellsB];
+		fill(0, 0, cellsA, 0, cellsB);
+	}
+
+	// set the start node of cells [a0, a1) x [b0, b1), which lie in the
+	// region of the node
+	private void fill(int node, int a0, int a1, int b0, int b1) {
+		if (left[node] == node) {
+			fillCells(node, a0, a1, b0, b1);
+			return;
+		}
+		boolean onA = feature[node] == jumpA;
+		int lo = onA ? a0 : b0, hi = onA ? a1 : b1;
+		// Cell c spans [c / cells, (c + 1) / cells): the cells below m lie at
+		// or below the threshold, those above it above, and m straddles it
+		double m = Math
+				.floor(threshold[node] * (onA ? cellsA : cellsB));
+		int leftEnd = (int) Math.max(lo, Math.min(hi, m));
+		int rightStart = (int) Math.max(lo, Math.min(hi, m + 1));
+		if (onA) {
+			fill(left[node], a0, leftEnd, b0, b1);
+			fillCells(node, leftEnd, rightStart, b0, b1);
+			fill(right[node], rightStart, a1, b0, b1);
+		} else {
+			fill(left[node], a0, a1, b0, leftEnd);
+			fillCells(node, a0, a1, leftEnd, rightStart);
+			fill(right[node], a0, a1, rightStart, b1);
+		}
+	}
+
+	private void fillCells(int node, int a0, int a1, int b0, int b1) {
+		for (int a = a0; a < a1; a++) {
+			for (int b = b0; b < b1; b++)
+				jump[a << bitsB | b] = node;
+		}
+	}
+
+	/**
+	 * Predict the label of point number offset / d of a row-major array, the
+	 * same as DecisionTree.predict
+	 *
+	 * @param points
+	 * @param offset
+	 *            = index of the first value of the point
+	 * @return
+	 */
+	int predict(double[] points, int offset) {
+		return label[leaf(points, offset)];
+	}
+
+	/**
+	 * Find the leaf of point number offset / d of a row-major array
+	 *
+	 * @param points
+	 * @param offset
+	 *            = index of the first value of the point
+	 * @return
+	 */
+	int leaf(double[] points, int offset) {
+		int node = 0;
+		if (jump != null) {
+			double a = points[offset + jumpA];
+			double b = jumpB < 0 ? 0 : points[offset + jumpB];
+			// NaN fails these as well
+			if (a >= 0 && a < 1 && b >= 0 && b < 1)
+				node = jump[(int) (a * cellsA) << bitsB | (int) (b * cellsB)];
+		}
+		while (true) {
+			int next = points[offset + feature[node]] <= threshold[node]
+					? left[node]
+					: right[node];
+			if (next == node)
+				return node;
+			node = next;
+		}
+	}
+
+	/**
+	 * Predict the points of a row-major array and set the bits of those not
+	 * labelled 0
+	 *
+	 * @param points
+	 *            = numPoints * d values
+	 * @param numPoints
+	 * @param nonZero
+	 *            = gets bit i set for point i labelled other than 0
+	 */
+	void predict(double[] points, int numPoints, BitSet nonZero) {
+		for (int i = 0; i < numPoints; i++) {
+			if (predict(points, i * d) != 0)
+				nonZero.set(i);
+		}
+	}
+}
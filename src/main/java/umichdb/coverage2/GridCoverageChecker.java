@@ -0,0 +1,304 @@
+package umichdb.coverage2;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import smile.data.DataFrame;
+import smile.feature.Scaler;
+import umichdb.coverage2.CoverageMetrics.Counter;
+import umichdb.coverage2.CoverageMetrics.Stage;
+
+/**
+ * Exact coverage checker for a fixed rho based on a uniform hash grid with
+ * cells of side rho. All points within rho of a query lie in the 3^d cells
+ * around the query's cell, so a query costs O(3^d) cell lookups plus the
+ * points in those cells. The build is a single O(n*d) counting sort, far
+ * cheaper than the order-k Voronoi diagram, which makes this checker the
+ * natural choice for d <= 4 when the dataset is rebuilt often.
+ *
+ * The grid is stored CSR-style in primitive arrays: the points of cell c are
+ * rows cellStart[c] .. cellStart[c+1]-1 of the flat array points. Cells are
+ * found through an open-addressing hash table over their integer coordinates.
+ */
+public class GridCoverageChecker implements CoverageChecker {
+	CoverageDataset dataset;
+	Scaler scaler;
+
+	int d;
+	int k;
+	double rho;
+	DistanceKernel kernel;
+
+	// Cells in CSR layout
+	int numCells;
+	int[] cellCoords; // numCells * d integer cell coordinates
+	int[] cellStart; // numCells + 1 offsets into points (in rows)
+	double[] points; // n * d coordinates grouped by cell
+
+	// Open-addressing hash table: slot -> cell id, -1 if empty
+	int[] table;
+	int tableMask;
+
+	// Offsets of the 3^d neighbouring cells, the query's own cell first
+	int[] neighborOffsets;
+
+	// The query cell and neighbouring cell of single queries, per thread so
+	// that a shared checker allocates nothing per query
+	private final ThreadLocal<int[][]> scratch = ThreadLocal
+			.withInitial(() -> new int[2][d]);
+
+	static final int MAX_RECOMMENDED_DIM = 4;
+	static final double CELL_PADDING = 1e-9;
+
+	/**
+	 * Find exact coverage with a rho-sized grid
+	 *
+	 * @param rawDataset
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 */
+	public GridCoverageChecker(DataFrame rawDataset, int k, double rho) {
+		// Rescaling
+		this(rawDataset, Utils.fitScaler(rawDataset), k, rho);
+	}
+
+	private GridCoverageChecker(DataFrame rawDataset, Scaler scaler, int k,
+			double rho) {
+		this(CoverageDataset.of(Utils.rescale(scaler, rawDataset)), scaler, k,
+				rho);
+	}
+
+	/**
+	 * Find exact coverage of a dataset that is already rescaled, e.g. one
+	 * mapped from a ColumnarDatasetFile
+	 *
+	 * @param dataset
+	 *            = rows rescaled by scaler
+	 * @param scaler
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 */
+	public GridCoverageChecker(CoverageDataset dataset, Scaler scaler, int k,
+			double rho) {
+		if (rho <= 0) {
+			throw new IllegalArgumentException("rho must be positive: " + rho);
+		}
+
+		this.scaler = scaler;
+		this.dataset = dataset;
+
+		this.k = k;
+		this.rho = rho;
+		this.d = dataset.dimension();
+
+		if (this.d > MAX_RECOMMENDED_DIM) {
+			System.err.println(String.format(
+					"[WARNING] A query visits 3^%d cells. Better try another coverage checker",
+					this.d));
+		}
+
+		long start = CoverageMetrics.start();
+		buildGrid();
+		CoverageMetrics.stop(Stage.INDEX_BUILD, start);
+		neighborOffsets = createNeighborOffsets(d);
+		kernel = DistanceKernel.of(d);
+	}
+
+	/**
+	 * Assign every point to its cell and lay the cells out in CSR form
+	 */
+	private void buildGrid() {
+		int n = dataset.size();
+
+		int tableSize = Integer.highestOneBit(Math.max(4, n) * 2 - 1) << 1;
+		table = new int[tableSize];
+		Arrays.fill(table, -1);
+		tableMask = tableSize - 1;
+
+		CoverageDataset.Row row = n > 0 ? dataset.row(0) : null;
+		int[] pointCell = new int[n];
+		int[] cell = new int[d];
+		cellCoords = new int[Math.max(1, n) * d];
+		int[] cellCount = new int[Math.max(1, n)];
+
+		// Pass 1: find the cell of every point and count points per cell
+		for (int i = 0; i < n; i++) {
+			row.moveTo(i);
+			for (int dim = 0; dim < d; dim++)
+				cell[dim] = cellOf(row.get(dim));
+			int c = findCell(cell);
+			if (c < 0)
+				c = addCell(cell);
+			pointCell[i] = c;
+			cellCount[c]++;
+		}
+
+		// Prefix sums
+		cellStart = new int[numCells + 1];
+		for (int c = 0; c < numCells; c++)
+			cellStart[c + 1] = cellStart[c] + cellCount[c];
+		cellCoords = Arrays.copyOf(cellCoords, numCells * d);
+
+		// Pass 2: scatter the points to their cells
+		points = new double[CoverageDataset.arrayLength(n, d)];
+		int[] next = Arrays.copyOf(cellStart, numCells);
+		for (int i = 0; i < n; i++)
+			dataset.copyRow(i, points, next[pointCell[i]]++ * d);
+	}
+
+	private int cellOf(double v) {
+		return (int) Math.floor(v / rho);
+	}
+
+	private int hash(int[] cell) {
+		int h = 0;
+		for (int dim = 0; dim < d; dim++)
+			h = h * 0x9E3779B1 + cell[dim];
+		return (h ^ (h >>> 16)) & tableMask;
+	}
+
+	private boolean sameCell(int c, int[] cell) {
+		for (int dim = 0; dim < d; dim++) {
+			if (cellCoords[c * d + dim] != cell[dim])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Look up the id of a cell, -1 if the cell holds no points
+	 */
+	private int findCell(int[] cell) {
+		for (int slot = hash(cell);; slot = (slot + 1) & tableMask) {
+			int c = table[slot];
+			if (c < 0 || sameCell(c, cell))
+				return c;
+		}
+	}
+
+	private int addCell(int[] cell) {
+		int slot = hash(cell);
+		while (table[slot] >= 0)
+			slot = (slot + 1) & tableMask;
+		int c = numCells++;
+		table[slot] = c;
+		System.arraycopy(cell, 0, cellCoords, c * d, d);
+		return c;
+	}
+
+	/**
+	 * All offsets in {-1,0,1}^d, starting with the all-zero offset
+	 */
+	private static int[] createNeighborOffsets(int d) {
+		int num = 1;
+		for (int dim = 0; dim < d; dim++)
+			num *= 3;
+		int[] offsets = new int[num * d];
+		for (int i = 0; i < num; i++) {
+			// Digit order 0, 1, -1 puts the query's own cell first
+			int code = i;
+			for (int dim = 0; dim < d; dim++) {
+				int digit = code % 3;
+				offsets[i * d + dim] = digit == 2 ? -1 : digit;
+				code /= 3;
+			}
+		}
+		return offsets;
+	}
+
+	/**
+	 * Check if a point is covered
+	 */
+	@Override
+	public boolean ifCovered(double[] point) {
+		long start = CoverageMetrics.start();
+		int[][] cells = scratch.get();
+		boolean covered = countWithin(point, 0, cells[0], cells[1]) >= k;
+		CoverageMetrics.stop(Stage.QUERY, start);
+		CoverageMetrics.count(Counter.QUERIES, 1);
+		return covered;
+	}
+
+	/**
+	 * Check a batch of points
+	 */
+	@Override
+	public BitSet ifCoveredBatch(double[] points, int d) {
+		if (d != this.d || points.length % d != 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid batch of %d values for %d-d points, expected %d-d",
+					points.length, d, this.d));
+		}
+
+		long start = CoverageMetrics.start();
+		int numPoints = points.length / d;
+		int[] queryCell = new int[d];
+		int[] cell = new int[d];
+		BitSet covered = new BitSet(numPoints);
+		for (int i = 0; i < numPoints; i++) {
+			if (countWithin(points, i * d, queryCell, cell) >= k)
+				covered.set(i);
+		}
+		CoverageMetrics.stop(Stage.QUERY_BATCH, start);
+		CoverageMetrics.count(Counter.QUERIES, numPoints);
+		return covered;
+	}
+
+	/**
+	 * Count the points within rho of the query, stopping at k. queryCell and
+	 * cell are scratch arrays of length d.
+	 */
+	private int countWithin(double[] q, int offset, int[] queryCell,
+			int[] cell) {
+		double rho2 = DistanceKernel.squaredRadius(rho);
+		// Cells are padded a little since floor(v / rho) may round a point
+		// into the neighbouring cell
+		double pad = CELL_PADDING * rho;
+		for (int dim = 0; dim < d; dim++)
+			queryCell[dim] = cellOf(q[offset + dim]);
+
+		int count = 0;
+		int numNeighbors = neighborOffsets.length / d;
+		for (int nb = 0; nb < numNeighbors; nb++) {
+			// Distance range between the query and the neighbouring cell
+			double minDist2 = 0, maxDist2 = 0;
+			for (int dim = 0; dim < d; dim++) {
+				cell[dim] = queryCell[dim] + neighborOffsets[nb * d + dim];
+				double v = q[offset + dim];
+				double lo = cell[dim] * rho - pad, hi = lo + rho + 2 * pad;
+				if (v < lo)
+					minDist2 += (lo - v) * (lo - v);
+				else if (v > hi)
+					minDist2 += (v - hi) * (v - hi);
+				double far = Math.max(v - lo, hi - v);
+				maxDist2 += far * far;
+			}
+			if (minDist2 > rho2)
+				continue;
+
+			int c = findCell(cell);
+			if (c < 0)
+				continue;
+
+			int start = cellStart[c], end = cellStart[c + 1];
+			if (maxDist2 <= rho2) {
+				// The whole cell is inside the query ball
+				count += end - start;
+				if (count >= k)
+					return count;
+				continue;
+			}
+
+			for (int row = start; row < end; row++) {
+				if (kernel.within(points, row * d, q, offset, rho2)
+						&& ++count >= k)
+					return count;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,353 @@
+package umichdb.coverage2;
+
+/**
+ * A static k-d tree for rho-range counting and nearest neighbors in low
+ * dimensions. The tree is built once by median splits on the dimension of
+ * largest spread. Every node keeps its bounding box, so a query can skip
+ * nodes that are too far away and count nodes that lie completely inside the
+ * query ball without looking at their points.
+ *
+ * The points are stored in tree order in one flat array; all node data are
+ * primitive arrays. The tree is read-only after construction.
+ */
+public class KdTree implements SpatialIndex {
+	static final int LEAF_SIZE = 16;
+
+	final int n;
+	final int d;
+	final DistanceKernel kernel;
+
+	// Points in tree order (row-major) and their row in the input
+	final double[] coords;
+	final int[] index;
+
+	// Node i covers points [nodeStart[i], nodeEnd[i]) in tree order
+	int numNodes;
+	int[] nodeStart;
+	int[] nodeEnd;
+	int[] nodeLeft;
+	int[] nodeRight;
+	int[] nodeDim;
+	double[] nodeSplit;
+	double[] nodeLo;
+	double[] nodeHi;
+
+	/**
+	 * Build a k-d tree
+	 *
+	 * @param data
+	 *            = n*d coordinates in row-major order (not modified)
+	 * @param d
+	 *            = dimensionality
+	 */
+	public KdTree(double[] data, int d) {
+		this(data, d, false);
+	}
+
+	/**
+	 * Build a k-d tree over the rows of a dataset in any layout. The rows are
+	 * copied once, into the array the tree keeps.
+	 *
+	 * @param dataset
+	 */
+	public KdTree(CoverageDataset dataset) {
+		this(copyRows(dataset), dataset.dimension(), true);
+	}
+
+	// With owned set, data is a copy that becomes the points in tree order
+	private KdTree(double[] data, int d, boolean owned) {
+		if (d <= 0 || data.length % d != 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid data of %d values for %d-d points", data.length,
+					d));
+		}
+		this.d = d;
+		this.n = data.length / d;
+		this.kernel = DistanceKernel.of(d);
+
+		index = new int[n];
+		for (int i = 0; i < n; i++)
+			index[i] = i;
+
+		int maxNodes = Math.max(1, 4 * (n / LEAF_SIZE + 1));
+		nodeStart = new int[maxNodes];
+		nodeEnd = new int[maxNodes];
+		nodeLeft = new int[maxNodes];
+		nodeRight = new int[maxNodes];
+		nodeDim = new int[maxNodes];
+		nodeSplit = new double[maxNodes];
+		nodeLo = new double[maxNodes * d];
+		nodeHi = new double[maxNodes * d];
+
+		if (n > 0)
+			build(data, 0, n);
+
+		// Store the points in tree order so that leaves are contiguous
+		coords = owned ? toTreeOrder(data, index, d) : new double[n * d];
+		if (!owned) {
+			for (int i = 0; i < n; i++)
+				System.arraycopy(data, index[i] * d, coords, i * d, d);
+		}
+	}
+
+	// all rows of a dataset in row-major order, in a new array
+	static double[] copyRows(CoverageDataset dataset) {
+		int d = dataset.dimension();
+		double[] rows = new double[CoverageDataset.arrayLength(dataset.size(),
+				d)];
+		for (int i = 0; i < dataset.size(); i++)
+			dataset.copyRow(i, rows, i * d);
+		return rows;
+	}
+
+	/**
+	 * Move row index[i] of data to row i, in place: every cycle of the
+	 * permutation is rotated through one spare row
+	 *
+	 * @param data
+	 *            = n*d coordinates in row-major order
+	 * @param index
+	 *            = a permutation of the n rows
+	 * @param d
+	 * @return data
+	 */
+	static double[] toTreeOrder(double[] data, int[] index, int d) {
+		int n = index.length;
+		boolean[] done = new boolean[n];
+		double[] spare = new double[d];
+		for (int i = 0; i < n; i++) {
+			if (done[i] || index[i] == i)
+				continue;
+			System.arraycopy(data, i * d, spare, 0, d);
+			int to = i;
+			while (index[to] != i) {
+				System.arraycopy(data, index[to] * d, data, to * d, d);
+				done[to] = true;
+				to = index[to];
+			}
+			System.arraycopy(spare, 0, data, to * d, d);
+			done[to] = true;
+		}
+		return data;
+	}
+
+	/**
+	 * Build the subtree for points [start, end) of index. Returns the node id.
+	 */
+	private int build(double[] data, int start, int end) {
+		int node = numNodes++;
+		nodeStart[node] = start;
+		nodeEnd[node] = end;
+		nodeLeft[node] = -1;
+		nodeRight[node] = -1;
+
+		// Bounding box
+		int boxOffset = node * d;
+		for (int dim = 0; dim < d; dim++) {
+			nodeLo[boxOffset + dim] = Double.POSITIVE_INFINITY;
+			nodeHi[boxOffset + dim] = Double.NEGATIVE_INFINITY;
+		}
+		for (int i = start; i < end; i++) {
+			int rOffset = index[i] * d;
+			for (int dim = 0; dim < d; dim++) {
+				double v = data[rOffset + dim];
+				if (v < nodeLo[boxOffset + dim])
+					nodeLo[boxOffset + dim] = v;
+				if (v > nodeHi[boxOffset + dim])
+					nodeHi[boxOffset + dim] = v;
+			}
+		}
+
+		if (end - start <= LEAF_SIZE)
+			return node;
+
+		// Split on the dimension of largest spread
+		int splitDim = 0;
+		double maxSpread = -1;
+		for (int dim = 0; dim < d; dim++) {
+			double spread = nodeHi[boxOffset + dim] - nodeLo[boxOffset + dim];
+			if (spread > maxSpread) {
+				maxSpread = spread;
+				splitDim = dim;
+			}
+		}
+		if (maxSpread <= 0)
+			return node; // all points are identical
+
+		int mid = (start + end) >>> 1;
+		select(data, start, end - 1, mid, splitDim);
+
+		nodeDim[node] = splitDim;
+		nodeSplit[node] = data[index[mid] * d + splitDim];
+		int left = build(data, start, mid);
+		int right = build(data, mid, end);
+		nodeLeft[node] = left;
+		nodeRight[node] = right;
+		return node;
+	}
+
+	/**
+	 * Quickselect: reorder index[lo..hi] so that index[kth] holds the point
+	 * with the kth smallest coordinate in dimension dim, smaller ones before it
+	 * and larger ones after it.
+	 */
+	private void select(double[] data, int lo, int hi, int kth, int dim) {
+		while (hi > lo) {
+			double pivot = data[index[(lo + hi) >>> 1] * d + dim];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (data[index[i] * d + dim] < pivot)
+					i++;
+				while (data[index[j] * d + dim] > pivot)
+					j--;
+				if (i <= j) {
+					int t = index[i];
+					index[i] = index[j];
+					index[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (kth <= j)
+				hi = j;
+			else if (kth >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	@Override
+	public int countWithinSquared(double[] point, int offset, double rho2,
+			int limit) {
+		if (n == 0 || limit <= 0)
+			return 0;
+		return count(0, point, offset, rho2, limit, 0);
+	}
+
+	private int count(int node, double[] q, int offset, double rho2,
+			int limit, int count) {
+		// Compare the query ball with the bounding box of the node
+		int boxOffset = node * d;
+		double minDist2 = 0, maxDist2 = 0;
+		for (int dim = 0; dim < d; dim++) {
+			double v = q[offset + dim];
+			double lo = nodeLo[boxOffset + dim];
+			double hi = nodeHi[boxOffset + dim];
+			if (v < lo)
+				minDist2 += (lo - v) * (lo - v);
+			else if (v > hi)
+				minDist2 += (v - hi) * (v - hi);
+			double far = Math.max(v - lo, hi - v);
+			maxDist2 += far * far;
+		}
+		if (minDist2 > rho2)
+			return count;
+		int start = nodeStart[node], end = nodeEnd[node];
+		if (maxDist2 <= rho2)
+			return Math.min(limit, count + end - start);
+
+		if (nodeLeft[node] < 0) {
+			for (int i = start; i < end; i++) {
+				if (kernel.within(coords, i * d, q, offset, rho2)
+						&& ++count >= limit)
+					return count;
+			}
+			return count;
+		}
+
+		// Visit the side containing the query first
+		int first = nodeLeft[node], second = nodeRight[node];
+		if (q[offset + nodeDim[node]] > nodeSplit[node]) {
+			first = nodeRight[node];
+			second = nodeLeft[node];
+		}
+		count = count(first, q, offset, rho2, limit, count);
+		if (count < limit)
+			count = count(second, q, offset, rho2, limit, count);
+		return count;
+	}
+
+	/**
+	 * Find the points nearest to a query point
+	 *
+	 * @param point
+	 * @param offset
+	 *            = index of the first coordinate of the query in point
+	 * @param count
+	 *            = number of neighbors wanted
+	 * @param rows
+	 *            = gets the input rows of the neighbors, nearest first
+	 * @return the number of neighbors found, min(count, size())
+	 */
+	public int nearest(double[] point, int offset, int count, int[] rows) {
+		if (n == 0 || count <= 0)
+			return 0;
+		count = Math.min(count, n);
+		// the best so far, in tree order, ascending by distance
+		int[] found = new int[count];
+		double[] dist2 = new double[count];
+		int numFound = nearest(0, point, offset, count, found, dist2, 0);
+		for (int i = 0; i < numFound; i++)
+			rows[i] = index[found[i]];
+		return numFound;
+	}
+
+	private int nearest(int node, double[] q, int offset, int count,
+			int[] found, double[] dist2, int numFound) {
+		int boxOffset = node * d;
+		double minDist2 = 0;
+		for (int dim = 0; dim < d; dim++) {
+			double v = q[offset + dim];
+			double lo = nodeLo[boxOffset + dim];
+			double hi = nodeHi[boxOffset + dim];
+			if (v < lo)
+				minDist2 += (lo - v) * (lo - v);
+			else if (v > hi)
+				minDist2 += (v - hi) * (v - hi);
+		}
+		if (numFound == count && minDist2 >= dist2[count - 1])
+			return numFound;
+
+		if (nodeLeft[node] < 0) {
+			for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+				double e2 = 0;
+				for (int dim = 0; dim < d; dim++) {
+					double diff = coords[i * d + dim] - q[offset + dim];
+					e2 += diff * diff;
+				}
+				if (numFound == count && e2 >= dist2[count - 1])
+					continue;
+				// Insert in order, dropping the farthest if full
+				int j = numFound < count ? numFound++ : count - 1;
+				while (j > 0 && dist2[j - 1] > e2) {
+					dist2[j] = dist2[j - 1];
+					found[j] = found[j - 1];
+					j--;
+				}
+				dist2[j] = e2;
+				found[j] = i;
+			}
+			return numFound;
+		}
+
+		// Visit the side containing the query first
+		int first = nodeLeft[node], second = nodeRight[node];
+		if (q[offset + nodeDim[node]] > nodeSplit[node]) {
+			first = nodeRight[node];
+			second = nodeLeft[node];
+		}
+		numFound = nearest(first, q, offset, count, found, dist2, numFound);
+		return nearest(second, q, offset, count, found, dist2, numFound);
+	}
+
+	@Override
+	public int size() {
+		return n;
+	}
+
+	@Override
+	public int dimension() {
+		return d;
+	}
+}
@@ -0,0 +1,52 @@
+package umichdb.coverage2;
+
+/**
+ * The trivial spatial index: every query scans all points. O(n*d) per query,
+ * no build cost. Kept as the reference implementation to validate the tree
+ * based indexes against.
+ */
+public class LinearScanIndex implements SpatialIndex {
+	final double[] data;
+	final int n;
+	final int d;
+	final DistanceKernel kernel;
+
+	/**
+	 * @param data
+	 *            = n*d coordinates in row-major order (not copied)
+	 * @param d
+	 *            = dimensionality
+	 */
+	public LinearScanIndex(double[] data, int d) {
+		if (d <= 0 || data.length % d != 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid data of %d values for %d-d points", data.length,
+					d));
+		}
+		this.data = data;
+		this.d = d;
+		this.n = data.length / d;
+		this.kernel = DistanceKernel.of(d);
+	}
+
+	@Override
+	public int countWithinSquared(double[] point, int offset, double rho2,
+			int limit) {
+		int count = 0;
+		for (int i = 0; i < n && count < limit; i++) {
+			if (kernel.within(data, i * d, point, offset, rho2))
+				count++;
+		}
+		return count;
+	}
+
+	@Override
+	public int size() {
+		return n;
+	}
+
+	@Override
+	public int dimension() {
+		return d;
+	}
+}
@@ -0,0 +1,683 @@
+package umichdb.coverage2;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.math3.special.Erf;
+
+import smile.data.DataFrame;
+import smile.feature.Scaler;
+import umichdb.coverage2.CoverageMetrics.Counter;
+import umichdb.coverage2.CoverageMetrics.Stage;
+
+/**
+ * Coverage checker for high dimensions based on locality-sensitive hashing
+ * with p-stable (Gaussian) projections for Euclidean distance. Each of L hash
+ * tables maps a point v to the m integers floor((a . v + b) / w), with a drawn
+ * from N(0, I) and b from [0, w). A query looks up its bucket in every table
+ * and counts the distinct rows it finds there until it reaches k, checking
+ * their distance to the query first if the parameters ask to verify. A query
+ * costs O(L*m*d) for the hashes plus the rows in its buckets.
+ *
+ * This is not faster than BasicCoverageChecker in general. Its trees prune
+ * well on data of few clusters even in 10-d and 20-d, where the default
+ * parameters need dozens of tables and are slower to build and to query.
+ * LSH is expected to win on many rows in high dimensions that are spread
+ * over many small clusters far apart compared with rho: the trees then
+ * visit most rows to rule out a query that is not near any of them, while
+ * its buckets hold only the rows of a cluster or two. LshCoverageTest
+ * measures both kinds of data.
+ *
+ * A row within rho of the query shares its bucket in a table with
+ * probability at least p(rho)^m, so all tables miss it with probability at
+ * most (1 - p(rho)^m)^L, and a covered query is reported uncovered with
+ * probability at most k times that, see
+ * Parameters.expectedFalseNegativeRate. Verified answers are never wrong the
+ * other way. Unverified answers count every row that shares a bucket with
+ * the query, so they may report uncovered points as covered, about as often
+ * as unverifiedFalsePositiveRate estimates. On the data of LshCoverageTest
+ * that is about half of the uncovered points, so the default verifies.
+ *
+ * Each table is stored CSR-style in primitive arrays, like the grid of
+ * GridCoverageChecker: the rows of bucket c are bucketRows[t][bucketStart[t][c]
+ * .. bucketStart[t][c+1]-1], and buckets are found through an open-addressing
+ * hash table over their keys. The tables are built in parallel on the common
+ * pool and are read-only afterwards, so queries may run in parallel.
+ */
+public class LshCoverageChecker implements CoverageChecker {
+	CoverageDataset dataset;
+	Scaler scaler;
+
+	int d;
+	int k;
+	double rho;
+	Parameters parameters;
+	DistanceKernel kernel;
+	double[] rows;
+
+	// numTables * numHashes projections of d values each, and their shifts
+	// in [0, width)
+	double[] projections;
+	double[] shifts;
+
+	// Buckets of table t in CSR layout
+	long[][] bucketKeys;
+	int[][] bucketStart; // numBuckets + 1 offsets into bucketRows
+	int[][] bucketRows; // the n row numbers grouped by bucket
+
+	// Open-addressing hash table of table t: slot -> bucket, -1 if empty
+	int[][] slots;
+
+	static final double DEFAULT_RECALL = 0.99;
+
+	/**
+	 * Parameters of the hash tables
+	 */
+	public static final class Parameters {
+		// Bucket widths relative to rho that forRecall tries, 4 as in E2LSH
+		static final double[] WIDTH_FACTORS = {2, 3, 4, 6, 8};
+		static final double WIDTH_FACTOR = 4;
+		// Without the rows, forRecall takes them all this many times rho
+		// away, which overestimates the rows in the buckets of a query
+		static final double FAR_FACTOR = 2;
+		// forRecall builds at most this many tables of n row numbers each
+		static final int MAX_TABLES = 64;
+		// forRecall measures the distances from this many rows to this many
+		// others, and keeps this many quantiles of them
+		static final int SAMPLE_QUERIES = 100;
+		static final int SAMPLE_ROWS = 1000;
+		static final int SAMPLE_QUANTILES = 256;
+
+		final int numTables;
+		final int numHashes;
+		final double width;
+		final boolean verify;
+
+		/**
+		 * @param numTables
+		 *            = L, the number of hash tables
+		 * @param numHashes
+		 *            = m, the projections concatenated into the key of a
+		 *            table
+		 * @param width
+		 *            = w, the width of a bucket along a projection
+		 * @param verify
+		 *            = whether rows in the buckets of a query are checked
+		 *            against rho before they are counted
+		 */
+		public Parameters(int numTables, int numHashes, double width,
+				boolean verify) {
+			if (numTables <= 0 || numHashes <= 0 || !(width > 0)) {
+				throw new IllegalArgumentException(String.format(
+						"Invalid hashing: %d tables of %d hashes, width %s",
+						numTables, numHashes, width));
+			}
+			this.numTables = numTables;
+			this.numHashes = numHashes;
+			this.width = width;
+			this.verify = verify;
+		}
+
+		/**
+		 * The cheapest parameters for n rows under which a covered query is
+		 * reported covered with probability at least recall, with every row
+		 * taken 2 * rho away from the query. See the forRecall that measures
+		 * the distances between rows, whose parameters are cheaper where the
+		 * rows are farther apart
+		 *
+		 * @param n
+		 *            = number of rows
+		 * @param k
+		 *            = threshold value
+		 * @param rho
+		 *            = vicinity value
+		 * @param recall
+		 *            = in (0, 1)
+		 * @param verify
+		 * @return
+		 */
+		public static Parameters forRecall(int n, int k, double rho,
+				double recall, boolean verify) {
+			if (k <= 0 || !(rho > 0) || !(recall > 0 && recall < 1)) {
+				throw new IllegalArgumentException(String.format(
+						"Invalid k = %d, rho = %s or recall = %s", k, rho,
+						recall));
+			}
+			return cheapest(n, k, rho, recall, verify,
+					new double[]{FAR_FACTOR * rho});
+		}
+
+		/**
+		 * The cheapest parameters for the rows of a dataset under which a
+		 * covered query is reported covered with probability at least
+		 * recall. The rows in the buckets of a query are estimated from the
+		 * distances between sampled rows
+		 *
+		 * @param dataset
+		 *            = rescaled rows
+		 * @param k
+		 *            = threshold value
+		 * @param rho
+		 *            = vicinity value
+		 * @param recall
+		 *            = in (0, 1)
+		 * @param verify
+		 * @param random
+		 *            = samples the rows
+		 * @return
+		 */
+		public static Parameters forRecall(CoverageDataset dataset, int k,
+				double rho, double recall, boolean verify, Random random) {
+			if (k <= 0 || !(rho > 0) || !(recall > 0 && recall < 1)) {
+				throw new IllegalArgumentException(String.format(
+						"Invalid k = %d, rho = %s or recall = %s", k, rho,
+						recall));
+			}
+			return cheapest(dataset.size(), k, rho, recall, verify,
+					sampleDistances(dataset, rho, random));
+		}
+
+		/**
+		 * Try every width of WIDTH_FACTORS and every number of hashes m that
+		 * reaches the recall with at most MAX_TABLES tables, and keep the
+		 * ones of least estimated cost per query. A query computes L*m
+		 * projections and checks the rows in its L buckets, each about as
+		 * costly as a projection, and a row at distance r shares a bucket
+		 * with probability p(r)^m, so the cost is L * (m + n * mean p(r)^m)
+		 * over the given distances. If no m is few enough tables, m = 1 with
+		 * buckets 4 * rho wide
+		 */
+		private static Parameters cheapest(int n, int k, double rho,
+				double recall, boolean verify, double[] distances) {
+			double missPerRow = (1 - recall) / k;
+			Parameters best = null;
+			double bestCost = Double.POSITIVE_INFINITY;
+			double[] collision = new double[distances.length];
+			double[] power = new double[distances.length];
+			for (double factor : WIDTH_FACTORS) {
+				double width = factor * rho;
+				double near = collisionProbability(width, rho);
+				for (int i = 0; i < distances.length; i++) {
+					collision[i] = collisionProbability(width, distances[i]);
+					power[i] = 1;
+				}
+				for (int numHashes = 1;; numHashes++) {
+					int numTables = numTables(near, numHashes, missPerRow);
+					if (numTables > MAX_TABLES)
+						break;
+					double mean = 0;
+					for (int i = 0; i < distances.length; i++) {
+						power[i] *= collision[i];
+						mean += power[i];
+					}
+					mean /= distances.length;
+					double cost = numTables * (numHashes + n * mean);
+					if (cost < bestCost) {
+						best = new Parameters(numTables, numHashes, width,
+								verify);
+						bestCost = cost;
+					}
+				}
+			}
+			if (best == null) {
+				double width = WIDTH_FACTOR * rho;
+				best = new Parameters(numTables(
+						collisionProbability(width, rho), 1, missPerRow), 1,
+						width, verify);
+			}
+			return best;
+		}
+
+		/**
+		 * Quantiles of the distances from SAMPLE_QUERIES rows to
+		 * SAMPLE_ROWS others, or 2 * rho if there are fewer than 2 rows
+		 */
+		private static double[] sampleDistances(CoverageDataset dataset,
+				double rho, Random random) {
+			int n = dataset.size(), d = dataset.dimension();
+			if (n < 2)
+				return new double[]{FAR_FACTOR * rho};
+			DistanceKernel kernel = DistanceKernel.of(d);
+			double[] rows = dataset.rows();
+			double[] distances = new double[SAMPLE_QUERIES * SAMPLE_ROWS];
+			int numDistances = 0;
+			for (int q = 0; q < SAMPLE_QUERIES; q++) {
+				int query = random.nextInt(n);
+				for (int i = 0; i < SAMPLE_ROWS; i++) {
+					int row = random.nextInt(n);
+					if (row != query) {
+						distances[numDistances++] = Math.sqrt(kernel
+								.dist2(rows, row * d, rows, query * d));
+					}
+				}
+			}
+			if (numDistances == 0)
+				return new double[]{FAR_FACTOR * rho};
+			Arrays.sort(distances, 0, numDistances);
+			int numQuantiles = Math.min(SAMPLE_QUANTILES, numDistances);
+			double[] quantiles = new double[numQuantiles];
+			for (int i = 0; i < numQuantiles; i++) {
+				quantiles[i] = distances[(int) ((i + 0.5) * numDistances
+						/ numQuantiles)];
+			}
+			return quantiles;
+		}
+
+		// The tables that miss a row with probability at most missPerRow
+		private static int numTables(double near, int numHashes,
+				double missPerRow) {
+			double hit = Math.pow(near, numHashes);
+			return Math.max(1, (int) Math
+					.ceil(Math.log(missPerRow) / Math.log1p(-hit)));
+		}
+
+		/**
+		 * Probability that two points at the given distance share a bucket
+		 * along one Gaussian projection of the given width
+		 *
+		 * @param width
+		 * @param distance
+		 * @return
+		 */
+		static double collisionProbability(double width, double distance) {
+			if (distance <= 0)
+				return 1;
+			double r = width / distance;
+			return Erf.erf(r / Math.sqrt(2)) - Math.sqrt(2 / Math.PI) / r
+					* (1 - Math.exp(-r * r / 2));
+		}
+
+		/**
+		 * An upper bound on the probability that a covered query is reported
+		 * uncovered: k times the probability that all tables miss a row at
+		 * distance rho. The bound holds for a query with exactly k rows at
+		 * distance rho, and queries with more or closer rows are missed less
+		 * often.
+		 *
+		 * @param k
+		 *            = threshold value
+		 * @param rho
+		 *            = vicinity value
+		 * @return
+		 */
+		public double expectedFalseNegativeRate(int k, double rho) {
+			if (k <= 0 || !(rho >= 0)) {
+				throw new IllegalArgumentException(String
+						.format("Invalid k = %d or rho = %s", k, rho));
+			}
+			double hit = Math.pow(collisionProbability(width, rho),
+					numHashes);
+			return Math.min(1, k * Math.pow(1 - hit, numTables));
+		}
+
+		public int getNumTables() {
+			return numTables;
+		}
+
+		public int getNumHashes() {
+			return numHashes;
+		}
+
+		public double getWidth() {
+			return width;
+		}
+
+		public boolean isVerified() {
+			return verify;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d tables of %d hashes, width %.4g, %s",
+					numTables, numHashes, width,
+					verify ? "verified" : "unverified");
+		}
+	}
+
+	/**
+	 * Find coverage through verified hash tables with a recall of 0.99, the
+	 * cheapest for the rows
+	 *
+	 * @param rawDataset
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 */
+	public LshCoverageChecker(DataFrame rawDataset, int k, double rho) {
+		this(rawDataset, k, rho, null);
+	}
+
+	/**
+	 * Find coverage through hash tables with the given parameters
+	 *
+	 * @param rawDataset
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param parameters
+	 *            = null for verified tables with a recall of 0.99, the
+	 *            cheapest for the rows
+	 */
+	public LshCoverageChecker(DataFrame rawDataset, int k, double rho,
+			Parameters parameters) {
+		// Rescaling
+		this(rawDataset, Utils.fitScaler(rawDataset), k, rho, parameters);
+	}
+
+	private LshCoverageChecker(DataFrame rawDataset, Scaler scaler, int k,
+			double rho, Parameters parameters) {
+		this(CoverageDataset.of(Utils.rescale(scaler, rawDataset)), scaler, k,
+				rho, parameters, new Random());
+	}
+
+	/**
+	 * Find coverage of a dataset that is already rescaled, e.g. one mapped
+	 * from a ColumnarDatasetFile
+	 *
+	 * @param dataset
+	 *            = rows rescaled by scaler
+	 * @param scaler
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param parameters
+	 *            = null for verified tables with a recall of 0.99, the
+	 *            cheapest for the rows
+	 * @param random
+	 *            = draws the projections
+	 */
+	public LshCoverageChecker(CoverageDataset dataset, Scaler scaler, int k,
+			double rho, Parameters parameters, Random random) {
+		if (!(rho > 0)) {
+			throw new IllegalArgumentException("rho must be positive: " + rho);
+		}
+
+		this.scaler = scaler;
+		this.dataset = dataset;
+
+		this.k = k;
+		this.rho = rho;
+		this.d = dataset.dimension();
+		if (parameters == null) {
+			parameters = Parameters.forRecall(dataset, k, rho, DEFAULT_RECALL,
+					true, random);
+		}
+		this.parameters = parameters;
+		this.kernel = DistanceKernel.of(d);
+		this.rows = dataset.rows();
+
+		int numHashes = parameters.numTables * parameters.numHashes;
+		projections = new double[numHashes * d];
+		for (int i = 0; i < projections.length; i++)
+			projections[i] = random.nextGaussian();
+		shifts = new double[numHashes];
+		for (int i = 0; i < numHashes; i++)
+			shifts[i] = random.nextDouble() * parameters.width;
+
+		long start = CoverageMetrics.start();
+		bucketKeys = new long[parameters.numTables][];
+		bucketStart = new int[parameters.numTables][];
+		bucketRows = new int[parameters.numTables][];
+		slots = new int[parameters.numTables][];
+		ForkJoinPool.commonPool()
+				.invoke(new TableTask(0, parameters.numTables));
+		CoverageMetrics.stop(Stage.INDEX_BUILD, start);
+	}
+
+	/**
+	 * Builds tables [from, to), one per task
+	 */
+	private class TableTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final int from, to;
+
+		TableTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				buildTable(from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new TableTask(from, mid), new TableTask(mid, to));
+		}
+	}
+
+	/**
+	 * Hash every row into table t and lay the buckets out in CSR form
+	 */
+	private void buildTable(int t) {
+		int n = dataset.size();
+
+		int tableSize = Integer.highestOneBit(Math.max(4, n) * 2 - 1) << 1;
+		int[] table = new int[tableSize];
+		Arrays.fill(table, -1);
+		int mask = tableSize - 1;
+
+		long[] keys = new long[Math.max(1, n)];
+		int[] rowBucket = new int[n];
+		int[] bucketCount = new int[Math.max(1, n)];
+		int numBuckets = 0;
+
+		// Pass 1: find the bucket of every row and count rows per bucket
+		for (int i = 0; i < n; i++) {
+			long key = key(t, rows, i * d);
+			int slot = slot(key, mask);
+			while (table[slot] >= 0 && keys[table[slot]] != key)
+				slot = (slot + 1) & mask;
+			if (table[slot] < 0) {
+				table[slot] = numBuckets;
+				keys[numBuckets++] = key;
+			}
+			rowBucket[i] = table[slot];
+			bucketCount[table[slot]]++;
+		}
+
+		// Prefix sums
+		int[] start = new int[numBuckets + 1];
+		for (int c = 0; c < numBuckets; c++)
+			start[c + 1] = start[c] + bucketCount[c];
+
+		// Pass 2: scatter the rows to their buckets
+		int[] members = new int[n];
+		int[] next = Arrays.copyOf(start, numBuckets);
+		for (int i = 0; i < n; i++)
+			members[next[rowBucket[i]]++] = i;
+
+		bucketKeys[t] = Arrays.copyOf(keys, numBuckets);
+		bucketStart[t] = start;
+		bucketRows[t] = members;
+		slots[t] = table;
+	}
+
+	/**
+	 * The key of the bucket of a point in table t: its m hashes mixed into 64
+	 * bits. Distinct buckets that get the same key are merged, which only
+	 * adds candidates.
+	 */
+	private long key(int t, double[] points, int offset) {
+		long key = 0;
+		int first = t * parameters.numHashes;
+		for (int j = first; j < first + parameters.numHashes; j++) {
+			double dot = shifts[j];
+			for (int dim = 0, p = j * d; dim < d; dim++, p++)
+				dot += projections[p] * points[offset + dim];
+			key = (key + (long) Math.floor(dot / parameters.width))
+					* 0x9E3779B97F4A7C15L;
+		}
+		return key ^ (key >>> 29);
+	}
+
+	private static int slot(long key, int mask) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+
+	/**
+	 * The bucket of table t with the given key, -1 if it holds no rows
+	 */
+	private int findBucket(int t, long key) {
+		int[] table = slots[t];
+		long[] keys = bucketKeys[t];
+		int mask = table.length - 1;
+		for (int slot = slot(key, mask);; slot = (slot + 1) & mask) {
+			int c = table[slot];
+			if (c < 0 || keys[c] == key)
+				return c;
+		}
+	}
+
+	/**
+	 * The parameters of the hash tables
+	 */
+	public Parameters getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * An estimate of how often unverified answers report an uncovered query
+	 * as covered: the share of the given queries that are uncovered, found
+	 * by a scan of all rows, and yet share buckets of these tables with k
+	 * rows. The rows that share a bucket come in clusters rather than one by
+	 * one, so this is measured instead of derived from the parameters as
+	 * the false-negative bound is. With queries drawn as the real ones are,
+	 * a few hundred are enough. Verified answers are never wrong that way,
+	 * but the estimate tells what dropping verification would cost.
+	 *
+	 * @param queries
+	 *            = rescaled points, row-major
+	 * @param d
+	 * @return 0 if no query is uncovered
+	 */
+	public double unverifiedFalsePositiveRate(double[] queries, int d) {
+		if (d != this.d || queries.length % d != 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid batch of %d values for %d-d points, expected %d-d",
+					queries.length, d, this.d));
+		}
+		double rho2 = DistanceKernel.squaredRadius(rho);
+		int n = dataset.size();
+		Scratch scratch = new Scratch();
+		int numUncovered = 0, numReported = 0;
+		for (int q = 0; q < queries.length / d; q++) {
+			int within = 0;
+			for (int i = 0; i < n && within < k; i++) {
+				if (kernel.within(rows, i * d, queries, q * d, rho2))
+					within++;
+			}
+			if (within >= k)
+				continue;
+			numUncovered++;
+			if (countWithin(queries, q * d, scratch, false) >= k)
+				numReported++;
+		}
+		return numUncovered == 0 ? 0 : (double) numReported / numUncovered;
+	}
+
+	/**
+	 * Check if a point is covered
+	 */
+	@Override
+	public boolean ifCovered(double[] point) {
+		long start = CoverageMetrics.start();
+		boolean covered = countWithin(point, 0, new Scratch(),
+				parameters.verify) >= k;
+		CoverageMetrics.stop(Stage.QUERY, start);
+		CoverageMetrics.count(Counter.QUERIES, 1);
+		return covered;
+	}
+
+	/**
+	 * Check a batch of points
+	 */
+	@Override
+	public BitSet ifCoveredBatch(double[] points, int d) {
+		if (d != this.d || points.length % d != 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid batch of %d values for %d-d points, expected %d-d",
+					points.length, d, this.d));
+		}
+
+		long start = CoverageMetrics.start();
+		int numPoints = points.length / d;
+		Scratch scratch = new Scratch();
+		BitSet covered = new BitSet(numPoints);
+		for (int i = 0; i < numPoints; i++) {
+			if (countWithin(points, i * d, scratch, parameters.verify) >= k)
+				covered.set(i);
+		}
+		CoverageMetrics.stop(Stage.QUERY_BATCH, start);
+		CoverageMetrics.count(Counter.QUERIES, numPoints);
+
+		return covered;
+	}
+
+	/**
+	 * Arrays a query reuses from the previous one
+	 */
+	private final class Scratch {
+		final int[] buckets = new int[parameters.numTables];
+		// Open-addressing set of the rows seen, -1 in empty slots
+		int[] seen = new int[0];
+	}
+
+	/**
+	 * Count the distinct rows in the buckets of the query, or only those
+	 * within rho if verified, stopping at k
+	 */
+	private int countWithin(double[] q, int offset, Scratch scratch,
+			boolean verify) {
+		int total = 0;
+		for (int t = 0; t < parameters.numTables; t++) {
+			int c = findBucket(t, key(t, q, offset));
+			scratch.buckets[t] = c;
+			if (c >= 0)
+				total += bucketStart[t][c + 1] - bucketStart[t][c];
+		}
+		if (total == 0)
+			return 0;
+
+		// A set of at most half load over the rows that may be seen
+		int size = Integer.highestOneBit(
+				Math.max(2, Math.min(total, dataset.size())) * 2 - 1) << 1;
+		if (scratch.seen.length < size)
+			scratch.seen = new int[size];
+		int[] seen = scratch.seen;
+		Arrays.fill(seen, 0, size, -1);
+		int mask = size - 1;
+
+		double rho2 = DistanceKernel.squaredRadius(rho);
+		int count = 0;
+		for (int t = 0; t < parameters.numTables; t++) {
+			int c = scratch.buckets[t];
+			if (c < 0)
+				continue;
+			int[] members = bucketRows[t];
+			for (int i = bucketStart[t][c]; i < bucketStart[t][c + 1]; i++) {
+				int row = members[i];
+				int h = row * 0x9E3779B1;
+				int slot = (h ^ (h >>> 16)) & mask;
+				while (seen[slot] >= 0 && seen[slot] != row)
+					slot = (slot + 1) & mask;
+				if (seen[slot] == row)
+					continue;
+				seen[slot] = row;
+				if (verify && !kernel.within(rows, row * d, q, offset, rho2))
+					continue;
+				if (++count >= k)
+					return count;
+			}
+		}
+		return count;
+	}
+}
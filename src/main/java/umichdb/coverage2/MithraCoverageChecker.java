@@ -9,18 +9,34 @@ import javax.swing.WindowConstants;
 
 import java.awt.Graphics;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.math3.util.*;
 import org.jfree.ui.RefineryUtilities;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.geom.TopologyException;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.operation.overlay.OverlayOp;
+import org.locationtech.jts.operation.overlay.snap.SnapIfNeededOverlayOp;
+import org.locationtech.jts.operation.union.CascadedPolygonUnion;
+import org.locationtech.jts.precision.GeometryPrecisionReducer;
 
 import guru.nidi.graphviz.attribute.Color;
 import guru.nidi.graphviz.attribute.Style;
@@ -35,17 +51,43 @@ import smile.data.type.StructType;
 import smile.data.vector.BaseVector;
 import smile.data.vector.BooleanVector;
 import smile.feature.Scaler;
+import umichdb.coverage2.CoverageMetrics.Counter;
+import umichdb.coverage2.CoverageMetrics.Stage;
 import umichdb.coverage2.MithraCoverageCheckerUI.Uiconfig;
 import smile.base.cart.DecisionNode;
 import smile.base.cart.Node;
 import smile.classification.DecisionTree;
 import smile.base.cart.SplitRule;
 
+/**
+ * Coverage of a dataset, exact through an order-k Voronoi diagram or
+ * approximate through a decision tree trained on samples.
+ * 
+ * A built or loaded checker may be shared by any number of query threads
+ * once it is safely published (e.g. through a final field or an executor).
+ * Queries take no lock: the decision tree is only read, and the Voronoi
+ * cells are read from an immutable CellIndex that addRows and removeRows
+ * replace after each change. A query sees the rows before or after a
+ * concurrent change, never a mix; a batch query sees one state for all its
+ * points. Updates, save and getUncoveredRegion are serialized on the
+ * checker.
+ */
 public class MithraCoverageChecker implements CoverageChecker {
 	VoronoiKOrder coverageVoronoiDiagram;
+	// null in a checker loaded from a file, which has only flatTree
 	DecisionTree coverageDecisionTree;
+	// the decision tree as arrays, which queries use; null if it cannot be
+	// flattened
+	FlatDecisionTree flatTree;
+	// the model chosen under a ModelBudget if it is not a decision tree
+	CoverageModel coverageModel;
+	// null without a ModelBudget
+	CoverageModels.Selection modelSelection;
+	// the decision tree passed the validation of adaptive sampling
+	boolean certified;
 	StructType srcDataSchema;
-	DataFrame dataset;
+	// replaced by addRows and removeRows
+	volatile CoverageDataset dataset;
 	Scaler scaler;
 
 	int d;
@@ -53,6 +95,32 @@ public class MithraCoverageChecker implements CoverageChecker {
 	double rho;
 
 	static final int TAU = 10;
+	static final int SEGMENTS_PER_QUADRANT = 16;
+	// Name of the label column the decision tree is trained on
+	static final String LABEL_NAME = "ifCovered";
+
+	/**
+	 * How the approximate checker draws the samples its decision tree is
+	 * trained on
+	 */
+	public enum Sampling {
+		/**
+		 * ln(1/phi) / epsilon * TAU uniform samples
+		 */
+		UNIFORM,
+		/**
+		 * A uniform round, then rounds aimed at the boundaries and impure
+		 * leaves of the tree, until it passes validation on held-out uniform
+		 * samples (see AdaptiveSampler and isCertified). If no tree passes
+		 * within the labels UNIFORM draws, the tree is trained on all
+		 * samples labelled, as many as UNIFORM draws.
+		 */
+		ADAPTIVE,
+	}
+
+	// Filled in by CoverageIndexFile.load
+	MithraCoverageChecker() {
+	}
 
 	/**
 	 * Find exact coverage
@@ -64,18 +132,64 @@ public class MithraCoverageChecker implements CoverageChecker {
 	 *            = vicinity value
 	 */
 	public MithraCoverageChecker(DataFrame rawDataset, int k, double rho) {
+		this(rawDataset, k, rho, null);
+	}
+
+	/**
+	 * Find exact coverage, building the Voronoi diagram tile by tile in
+	 * parallel
+	 * 
+	 * @param rawDataset
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param pool
+	 *            = the pool that builds the tiles, null for a sequential
+	 *            build
+	 */
+	public MithraCoverageChecker(DataFrame rawDataset, int k, double rho,
+			ForkJoinPool pool) {
 		// Rescaling
-		scaler = Scaler.fit(rawDataset);
-		this.dataset = scaler.transform(rawDataset);
+		this(rawDataset, Utils.fitScaler(rawDataset), k, rho, pool);
+	}
+
+	private MithraCoverageChecker(DataFrame rawDataset, Scaler scaler, int k,
+			double rho, ForkJoinPool pool) {
+		this(CoverageDataset.of(Utils.rescale(scaler, rawDataset)), scaler, k,
+				rho, pool);
+	}
+
+	/**
+	 * Find exact coverage of a dataset that is already rescaled, e.g. one
+	 * mapped from a ColumnarDatasetFile
+	 * 
+	 * @param dataset
+	 *            = rows rescaled by scaler
+	 * @param scaler
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param pool
+	 *            = the pool that builds the tiles, null for a sequential
+	 *            build
+	 */
+	public MithraCoverageChecker(CoverageDataset dataset, Scaler scaler,
+			int k, double rho, ForkJoinPool pool) {
+		this.scaler = scaler;
 
 		// Add some random noise to make sure all data points are unique in the
 		// dataset so that the voronoi library won't fail
-		Noiser noiser = Noiser.fit(this.dataset);
-		this.dataset = noiser.transform(this.dataset);
+		long start = CoverageMetrics.start();
+		DataFrame scaled = dataset.toDataFrame();
+		Noiser noiser = Noiser.fit(scaled);
+		this.dataset = CoverageDataset.of(noiser.transform(scaled));
+		CoverageMetrics.stop(Stage.NOISE, start);
 
 		this.k = k; // k points
 		this.rho = rho; // max distance to qualify as adjacent
-		this.d = rawDataset.ncols();
+		this.d = dataset.dimension();
 
 		if (this.d != 2) {
 			System.err.println(
@@ -83,7 +197,7 @@ public class MithraCoverageChecker implements CoverageChecker {
 		}
 
 		// Create cache in the form of a Voronoi diagram
-		findVoronoi();
+		findVoronoi(pool);
 
 		this.coverageDecisionTree = null;
 	}
@@ -103,57 +217,205 @@ public class MithraCoverageChecker implements CoverageChecker {
 	 */
 	public MithraCoverageChecker(DataFrame dataset, int k, double rho,
 			double epsilon, double phi) {
+		this(dataset, k, rho, epsilon, phi, Sampling.UNIFORM);
+	}
+
+	/**
+	 * Find approximate coverage through uniform or adaptive sampling
+	 * 
+	 * @param dataset
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param epsilon
+	 *            = error bound
+	 * @param phi
+	 *            = (1-phi) is the probability of the error bound
+	 * @param sampling
+	 */
+	public MithraCoverageChecker(DataFrame dataset, int k, double rho,
+			double epsilon, double phi, Sampling sampling) {
+		this(dataset, k, rho, epsilon, phi, sampling, null);
+	}
+
+	/**
+	 * Find approximate coverage through uniform or adaptive sampling, with
+	 * the most accurate model within a budget (see getModelSelection)
+	 * 
+	 * @param dataset
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param epsilon
+	 *            = error bound
+	 * @param phi
+	 *            = (1-phi) is the probability of the error bound
+	 * @param sampling
+	 * @param budget
+	 *            = limits on the model and its candidates, null for a
+	 *            decision tree trained on all samples; only with
+	 *            Sampling.UNIFORM
+	 * @throws IllegalArgumentException
+	 *             if a budget is given with Sampling.ADAPTIVE
+	 */
+	public MithraCoverageChecker(DataFrame dataset, int k, double rho,
+			double epsilon, double phi, Sampling sampling,
+			ModelBudget budget) {
 		// Rescaling
-		scaler = Scaler.fit(dataset);
-		this.dataset = scaler.transform(dataset);
+		this(dataset, Utils.fitScaler(dataset), k, rho, epsilon, phi,
+				sampling, checkBudget(sampling, budget));
+	}
+
+	private MithraCoverageChecker(DataFrame dataset, Scaler scaler, int k,
+			double rho, double epsilon, double phi, Sampling sampling,
+			ModelBudget budget) {
+		this(CoverageDataset.of(Utils.rescale(scaler, dataset)), scaler, k,
+				rho, epsilon, phi, sampling, budget);
+	}
+
+	/**
+	 * Find approximate coverage of a dataset that is already rescaled, e.g.
+	 * one mapped from a ColumnarDatasetFile
+	 * 
+	 * @param dataset
+	 *            = rows rescaled by scaler
+	 * @param scaler
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param epsilon
+	 *            = error bound
+	 * @param phi
+	 *            = (1-phi) is the probability of the error bound
+	 */
+	public MithraCoverageChecker(CoverageDataset dataset, Scaler scaler,
+			int k, double rho, double epsilon, double phi) {
+		this(dataset, scaler, k, rho, epsilon, phi, Sampling.UNIFORM);
+	}
+
+	/**
+	 * Find approximate coverage of a dataset that is already rescaled,
+	 * through uniform or adaptive sampling
+	 * 
+	 * @param dataset
+	 *            = rows rescaled by scaler
+	 * @param scaler
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param epsilon
+	 *            = error bound
+	 * @param phi
+	 *            = (1-phi) is the probability of the error bound
+	 * @param sampling
+	 */
+	public MithraCoverageChecker(CoverageDataset dataset, Scaler scaler,
+			int k, double rho, double epsilon, double phi,
+			Sampling sampling) {
+		this(dataset, scaler, k, rho, epsilon, phi, sampling, null);
+	}
+
+	/**
+	 * Find approximate coverage of a dataset that is already rescaled,
+	 * through uniform or adaptive sampling, with the most accurate model
+	 * within a budget (see getModelSelection)
+	 * 
+	 * @param dataset
+	 *            = rows rescaled by scaler
+	 * @param scaler
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param epsilon
+	 *            = error bound
+	 * @param phi
+	 *            = (1-phi) is the probability of the error bound
+	 * @param sampling
+	 * @param budget
+	 *            = limits on the model and its candidates, null for a
+	 *            decision tree trained on all samples; only with
+	 *            Sampling.UNIFORM
+	 * @throws IllegalArgumentException
+	 *             if a budget is given with Sampling.ADAPTIVE
+	 */
+	public MithraCoverageChecker(CoverageDataset dataset, Scaler scaler,
+			int k, double rho, double epsilon, double phi, Sampling sampling,
+			ModelBudget budget) {
+		checkBudget(sampling, budget);
+		this.scaler = scaler;
+		this.dataset = dataset;
 
 		this.k = k; // k points
 		this.rho = rho; // max distance to qualify as adjacent
-		this.d = dataset.ncols();
+		this.d = dataset.dimension();
+
+		SpatialIndex index = BasicCoverageChecker.createIndex(this.dataset,
+				BasicCoverageChecker.defaultIndexType(this.d));
+		DataFrame sampleDataset;
+		boolean[] labels;
+		AdaptiveSampler sampler = null;
+		if (sampling == Sampling.ADAPTIVE) {
+			sampler = new AdaptiveSampler(index, this.d, k, this.rho, epsilon,
+					phi, new Random());
+			sampler.run();
+			sampleDataset = sampler.toDataFrame();
+			labels = Arrays.copyOf(sampler.labels, sampler.numSamples);
+		} else {
+			// Create "s" many samples as observations to build a "decision
+			// tree" later
+			long start = CoverageMetrics.start();
+			int numSamples = getNumSamples(epsilon, phi);
+			sampleDataset = Utils.genRandDataset(numSamples, this.d);
+			CoverageMetrics.stop(Stage.SAMPLING, start);
 
-		// Create "s" many samples as observations to build a "decision tree"
-		// later
-		int numSamples = getNumSamples(epsilon, phi);
-		DataFrame sampleDataset = Utils.genRandDataset(numSamples, this.d);
+			// Create training data on the sampled dataset
+			labels = label(index, CoverageDataset.of(sampleDataset).rows(),
+					this.d, k, this.rho);
+		}
 
-		// Create training data on the sampled dataset
-		boolean[] labels = new boolean[sampleDataset.nrows()];
-		int counter = 0;
 		int numCovers = 0;
-		int numUncovers = 0;
-
-		for (int i = 0; i < sampleDataset.size(); i++) {
-			int neighborCount = 0;
-			for (int j = 0; j < this.dataset.size(); j++) {
-				if (Utils.getEuclideanDistance(sampleDataset.get(i),
-						this.dataset.get(j)) <= this.rho) {
-					neighborCount++;
-					if (neighborCount >= k) {
-						break;
-					}
-				}
-			}
-			// This is covered
-			if (neighborCount >= k) {
-				labels[counter++] = true;
+		for (boolean label : labels) {
+			if (label)
 				numCovers++;
-			} else { // not covered
-				labels[counter++] = false;
-				numUncovers++;
-			}
 		}
+		int numUncovers = labels.length - numCovers;
 
 		if (numCovers != 0 && numUncovers != 0) {
 
-			String labelName = "ifCovered";
 			srcDataSchema = sampleDataset.schema();
 
-			DataFrame labeledSampleDataset = sampleDataset
-					.merge(BooleanVector.of(labelName, labels));
-			Formula f = Formula.lhs(labelName);
-
-			// Start building decision tree (default setting of decision tree learning)
-			coverageDecisionTree = DecisionTree.fit(f, labeledSampleDataset, SplitRule.GINI , 100, 1000, 1);
+			if (budget != null) {
+				// Trained on part of the samples, measured on the rest
+				modelSelection = CoverageModels.select(
+						CoverageDataset.of(sampleDataset).rows(), labels,
+						this.d, budget, new Random());
+				CoverageModel model = modelSelection.getModel();
+				if (model instanceof CoverageModels.TreeModel) {
+					CoverageModels.TreeModel tree =
+							(CoverageModels.TreeModel) model;
+					coverageDecisionTree = tree.tree;
+					flatTree = tree.flatTree;
+				} else {
+					coverageModel = model;
+				}
+			} else if (sampler != null) {
+				// Trained on the samples in the last round, or on all
+				// samples if none passed validation
+				coverageDecisionTree = sampler.tree;
+				flatTree = sampler.flatTree;
+				certified = sampler.certified;
+			} else {
+				long start = CoverageMetrics.start();
+				coverageDecisionTree = fitTree(sampleDataset, labels);
+				flatTree = FlatDecisionTree.compile(coverageDecisionTree,
+						srcDataSchema);
+				CoverageMetrics.stop(Stage.TREE_TRAINING, start);
+			}
 //			
 //			
 //			int wrong = 0;
@@ -179,6 +441,109 @@ public class MithraCoverageChecker implements CoverageChecker {
 		this.coverageVoronoiDiagram = null;
 	}
 
+	/**
+	 * A budget measures its candidates on samples held out from uniform ones.
+	 * Adaptive samples are not uniform, so the accuracy measured on them says
+	 * little of the space, and the validation of adaptive sampling only
+	 * certifies its own tree.
+	 *
+	 * @return the budget
+	 */
+	private static ModelBudget checkBudget(Sampling sampling,
+			ModelBudget budget) {
+		if (budget != null && sampling == Sampling.ADAPTIVE) {
+			throw new IllegalArgumentException(
+					"A ModelBudget needs uniform samples, it cannot be used with Sampling.ADAPTIVE");
+		}
+		return budget;
+	}
+
+	/**
+	 * Label samples as covered if k rows lie within rho, counted through a
+	 * spatial index over the dataset, with the samples split among the
+	 * threads of the common pool. Distances are compared with rho as smile's
+	 * EuclideanDistance compares them, see
+	 * DistanceKernel.euclideanSquaredRadius
+	 * 
+	 * @param index
+	 * @param samples
+	 *            = n*d coordinates in row-major order
+	 * @param d
+	 * @param k
+	 * @param rho
+	 * @return
+	 */
+	static boolean[] label(SpatialIndex index, double[] samples, int d, int k,
+			double rho) {
+		long start = CoverageMetrics.start();
+		boolean[] labels = new boolean[samples.length / d];
+		ForkJoinPool.commonPool().invoke(new LabelTask(index, samples, d, k,
+				DistanceKernel.euclideanSquaredRadius(rho, d), labels, 0,
+				labels.length));
+		CoverageMetrics.stop(Stage.LABELLING, start);
+		return labels;
+	}
+
+	/**
+	 * Train the decision tree on labelled samples (default setting of
+	 * decision tree learning)
+	 * 
+	 * @param samples
+	 * @param labels
+	 * @return
+	 */
+	static DecisionTree fitTree(DataFrame samples, boolean[] labels) {
+		DataFrame labeledSampleDataset = samples
+				.merge(BooleanVector.of(LABEL_NAME, labels));
+		Formula f = Formula.lhs(LABEL_NAME);
+		return DecisionTree.fit(f, labeledSampleDataset, SplitRule.GINI, 100,
+				1000, 1);
+	}
+
+	/**
+	 * Labels samples [from, to) as covered or not, splitting the range until
+	 * at most LABEL_BATCH samples are left
+	 */
+	private static class LabelTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		static final int LABEL_BATCH = 256;
+
+		final SpatialIndex index;
+		final double[] samples;
+		final int d, k;
+		final double rho2;
+		final boolean[] labels;
+		final int from, to;
+
+		LabelTask(SpatialIndex index, double[] samples, int d, int k,
+				double rho2, boolean[] labels, int from, int to) {
+			this.index = index;
+			this.samples = samples;
+			this.d = d;
+			this.k = k;
+			this.rho2 = rho2;
+			this.labels = labels;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= LABEL_BATCH) {
+				for (int i = from; i < to; i++) {
+					labels[i] = index.countWithinSquared(samples, i * d, rho2,
+							k) >= k;
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(
+					new LabelTask(index, samples, d, k, rho2, labels, from,
+							mid),
+					new LabelTask(index, samples, d, k, rho2, labels, mid, to));
+		}
+	}
+
 	/**
 	 * Get number of samples given epsilon and delta using a fixed constant tau.
 	 * 
@@ -186,7 +551,7 @@ public class MithraCoverageChecker implements CoverageChecker {
 	 * @param phi
 	 * @return
 	 */
-	private static int getNumSamples(double epsilon, double phi) {
+	static int getNumSamples(double epsilon, double phi) {
 		return (int) Math.ceil(1 / epsilon * Math.log(1 / phi) * TAU);
 	}
 
@@ -205,17 +570,395 @@ public class MithraCoverageChecker implements CoverageChecker {
 
 	/**
 	 * Create k Voronoi diagrams for the given sites.
+	 * 
+	 * @param pool
+	 *            = the pool for a tiled build, null for a sequential build
 	 */
-	private void findVoronoi() {
+	private void findVoronoi(ForkJoinPool pool) {
 		List<Point2D> point2dList = new ArrayList<Point2D>();
 
 		for (int i = 0; i < this.dataset.size(); i++) {
-			Tuple r = this.dataset.get(i);
-			Point2D newP = new Point2D(r.getDouble(0), r.getDouble(1));
+			Point2D newP = new Point2D(this.dataset.get(i, 0),
+					this.dataset.get(i, 1));
 			point2dList.add(newP);
 		}
 
-		this.coverageVoronoiDiagram = new VoronoiKOrder(point2dList, k, false);
+		if (pool == null) {
+			this.coverageVoronoiDiagram = new VoronoiKOrder(point2dList, k,
+					false);
+		} else {
+			int tilesPerSide = TiledVoronoiBuilder.defaultTilesPerSide(
+					point2dList.size(), k, pool.getParallelism());
+			this.coverageVoronoiDiagram = TiledVoronoiBuilder
+					.build(point2dList, k, tilesPerSide, pool);
+		}
+	}
+
+	/**
+	 * Get the uncovered region inside a box of the rescaled space. Cells that
+	 * are uncovered are taken as is; for mixed cells the intersection of the
+	 * rho-disks around their key sites is cut out. Disks are approximated by
+	 * polygons with SEGMENTS_PER_QUADRANT segments per quarter circle.
+	 * 
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @return the uncovered region, null without a Voronoi diagram
+	 */
+	public Geometry getUncoveredRegion(double minX, double minY, double maxX,
+			double maxY) {
+		return getUncoveredRegion(minX, minY, maxX, maxY, this.rho);
+	}
+
+	/**
+	 * Get the uncovered region for any vicinity value; the Voronoi diagram
+	 * does not depend on rho.
+	 * 
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param rho
+	 *            = vicinity value
+	 * @return the uncovered region, null without a Voronoi diagram
+	 */
+	public synchronized Geometry getUncoveredRegion(double minX, double minY,
+			double maxX, double maxY, double rho) {
+		if (this.coverageVoronoiDiagram == null)
+			return null;
+
+		GeometryFactory factory = new GeometryFactory();
+		Geometry box = factory.toGeometry(new Envelope(minX, maxX, minY, maxY));
+
+		List<Geometry> parts = new ArrayList<Geometry>();
+		for (VoronoiPolygon poly : coverageVoronoiDiagram.getPolygons()) {
+			VoronoiPolygon.Coverage coverage = poly.classify(rho);
+			if (coverage == VoronoiPolygon.Coverage.COVERED
+					|| poly.npoints < 3)
+				continue;
+
+			Coordinate[] coords = new Coordinate[poly.npoints + 1];
+			for (int i = 0; i < poly.npoints; i++)
+				coords[i] = new Coordinate(poly.xpoints[i], poly.ypoints[i]);
+			coords[poly.npoints] = coords[0];
+			Geometry cell = factory.createPolygon(coords).intersection(box);
+			if (cell.isEmpty())
+				continue;
+
+			if (coverage == VoronoiPolygon.Coverage.MIXED) {
+				SiteTable sites = coverageVoronoiDiagram.siteTable;
+				Geometry covered = cell;
+				for (int i = 0; i < poly.regionKey.size(); i++) {
+					int site = poly.regionKey.get(i);
+					Geometry disk = factory
+							.createPoint(
+									new Coordinate(sites.x[site], sites.y[site]))
+							.buffer(rho, SEGMENTS_PER_QUADRANT);
+					covered = covered.intersection(disk);
+					if (covered.isEmpty())
+						break;
+				}
+				cell = cell.difference(covered);
+			}
+			if (!cell.isEmpty())
+				parts.add(cell);
+		}
+		Geometry region = CascadedPolygonUnion.union(parts);
+		return region == null ? factory.createPolygon() : region;
+	}
+
+	/**
+	 * Whether the decision tree was certified on held-out uniform samples, so
+	 * that its error is at most epsilon with probability 1 - phi. Only
+	 * adaptive sampling certifies a tree. A tree trained on uniform samples
+	 * by Sampling.UNIFORM has the bound of the uniform sample count instead,
+	 * and one trained on all adaptive samples after no tree passed has
+	 * neither.
+	 *
+	 * @return true iff adaptive sampling found a tree that passed validation
+	 */
+	public boolean isCertified() {
+		return certified;
+	}
+
+	/**
+	 * Get the candidates measured for a ModelBudget: the accuracy of each on
+	 * samples held out from training, its size, query time and training
+	 * time, and which one the checker uses
+	 *
+	 * @return the selection, null if the checker was built without a budget
+	 *         or needs no model, or was loaded from a file
+	 */
+	public CoverageModels.Selection getModelSelection() {
+		return modelSelection;
+	}
+
+	/**
+	 * Get the uncovered part of the rescaled space [0, 1]^d as predicted by
+	 * the decision tree: its subtrees whose leaves are all uncovered as boxes,
+	 * indexed by an R-tree. Only the approximate checker has a decision
+	 * tree.
+	 *
+	 * @return
+	 */
+	public UncoveredBoxes getUncoveredBoxes() {
+		if (this.coverageDecisionTree == null && this.flatTree == null) {
+			throw new IllegalArgumentException(
+					"Only the approximate checker with a decision tree has uncovered boxes");
+		}
+		if (this.flatTree == null) {
+			throw new IllegalArgumentException(
+					"The nodes of the decision tree cannot be read");
+		}
+		String[] names = Arrays.stream(srcDataSchema.fields())
+				.map(field -> field.name).toArray(String[]::new);
+		return UncoveredBoxes.of(flatTree, names);
+	}
+
+	/**
+	 * Add training rows without rebuilding the Voronoi diagram. Only the
+	 * cells around the new sites are recomputed, and the point locator keeps
+	 * its other cells. Rows are rescaled with the scaler of the checker, so
+	 * values outside the original range are clamped to [0, 1]. A row equal
+	 * to an existing one gets a little noise, as in the constructor.
+	 * 
+	 * Queries may run concurrently; they see the rows before the change
+	 * until it is complete.
+	 * 
+	 * @param rawRows
+	 *            = rows with the columns of the training data
+	 * @return the ids of the new rows and the region whose coverage flipped
+	 */
+	public synchronized CoverageChange addRows(DataFrame rawRows) {
+		checkUpdatable();
+		if (rawRows.ncols() != d) {
+			throw new IllegalArgumentException(String.format(
+					"Rows have %d columns, expected %d", rawRows.ncols(), d));
+		}
+		CoverageDataset rows = CoverageDataset.of(scaler.transform(rawRows));
+		List<Point2D> points = new ArrayList<Point2D>(rows.size());
+		for (int i = 0; i < rows.size(); i++)
+			points.add(new Point2D(rows.get(i, 0), rows.get(i, 1)));
+		long start = CoverageMetrics.start();
+		CoverageChange change = changeRows(points, new int[0]);
+		CoverageMetrics.stop(Stage.UPDATE, start);
+		CoverageMetrics.count(Counter.ROWS_ADDED, points.size());
+		return change;
+	}
+
+	/**
+	 * Remove training rows without rebuilding the Voronoi diagram, see
+	 * addRows. Row ids are stable: the rows the checker was built with are
+	 * 0..n-1 in their original order (after duplicates are made distinct)
+	 * and addRows returns the ids of the rows it adds. Ids of removed rows
+	 * are not reused, so after a removal the row ids no longer match the
+	 * positions in the dataset.
+	 * 
+	 * @param rows
+	 *            = ids of rows that are still in the checker
+	 * @return the region whose coverage flipped
+	 */
+	public synchronized CoverageChange removeRows(int... rows) {
+		checkUpdatable();
+		long start = CoverageMetrics.start();
+		CoverageChange change = changeRows(new ArrayList<Point2D>(), rows);
+		CoverageMetrics.stop(Stage.UPDATE, start);
+		CoverageMetrics.count(Counter.ROWS_REMOVED, rows.length);
+		return change;
+	}
+
+	private void checkUpdatable() {
+		if (this.coverageVoronoiDiagram == null) {
+			throw new IllegalArgumentException(
+					"Rows can only be added to or removed from a checker with a Voronoi diagram");
+		}
+		if (this.d != 2) {
+			throw new IllegalArgumentException(String.format(
+					"Rows can only be added to or removed from 2-d data, not %d-d",
+					this.d));
+		}
+	}
+
+	private CoverageChange changeRows(List<Point2D> added, int[] removed) {
+		VoronoiKOrder diagram = this.coverageVoronoiDiagram;
+		CellChange cells = diagram.changeSites(added, removed);
+
+		GeometryFactory factory = new GeometryFactory();
+		Geometry box = factory.toGeometry(new Envelope(0, 1, 0, 1));
+		// More rows never uncover a point and fewer never cover one
+		Geometry newlyCovered = added.isEmpty()
+				? factory.createPolygon()
+				: gained(cells.added, cells.removed, box, factory);
+		Geometry newlyUncovered = removed.length == 0
+				? factory.createPolygon()
+				: gained(cells.removed, cells.added, box, factory);
+
+		// The live sites in id order become the dataset
+		SiteTable sites = diagram.siteTable;
+		double[] values = new double[sites.size * 2];
+		int n = 0;
+		for (int id = 0; id < sites.numIds; id++) {
+			if (sites.isLive(id)) {
+				values[n * 2] = sites.x[id];
+				values[n * 2 + 1] = sites.y[id];
+				n++;
+			}
+		}
+		this.dataset = CoverageDataset.wrap(values, n, 2,
+				CoverageDataset.Layout.ROW_MAJOR, this.dataset.schema());
+
+		return new CoverageChange(cells.addedIds, removed.clone(),
+				cells.removed.size(), cells.added.size(), newlyCovered,
+				newlyUncovered);
+	}
+
+	/**
+	 * The part of a box that is covered by cells now but not by the cells
+	 * then, when both sets of cells tile the same area. Each pair of
+	 * overlapping cells is handled on its own: inside both cells the covered
+	 * part is the intersection of the rho-disks around their key sites, so a
+	 * point gains coverage iff it lies in all disks of the key now but not in
+	 * all disks of the sites that only the key then has. This avoids
+	 * overlaying the shared cell edges and disks, which JTS does not handle
+	 * robustly.
+	 */
+	private Geometry gained(List<VoronoiPolygon> now, List<VoronoiPolygon> then,
+			Geometry box, GeometryFactory factory) {
+		STRtree index = new STRtree();
+		for (VoronoiPolygon poly : then) {
+			if (poly.npoints >= 3
+					&& poly.classify(rho) != VoronoiPolygon.Coverage.COVERED)
+				index.insert(toGeometry(poly, factory).getEnvelopeInternal(),
+						poly);
+		}
+
+		List<Geometry> parts = new ArrayList<Geometry>();
+		for (VoronoiPolygon poly : now) {
+			VoronoiPolygon.Coverage coverage = poly.classify(rho);
+			if (coverage == VoronoiPolygon.Coverage.UNCOVERED
+					|| poly.npoints < 3)
+				continue;
+			Geometry covered = overlay(toGeometry(poly, factory), box,
+					OverlayOp.INTERSECTION);
+			if (coverage == VoronoiPolygon.Coverage.MIXED)
+				covered = intersectDisks(covered, poly.regionKey, factory);
+			if (covered.getArea() == 0)
+				continue;
+
+			for (Object o : index.query(covered.getEnvelopeInternal())) {
+				VoronoiPolygon old = (VoronoiPolygon) o;
+				SiteSet lost = old.regionKey.without(poly.regionKey);
+				VoronoiPolygon.Coverage oldCoverage = old.classify(rho);
+				if (oldCoverage == VoronoiPolygon.Coverage.MIXED
+						&& lost.size() == 0)
+					continue;
+				Geometry part = overlay(covered, toGeometry(old, factory),
+						OverlayOp.INTERSECTION);
+				if (part.getArea() == 0)
+					continue;
+				if (oldCoverage == VoronoiPolygon.Coverage.MIXED)
+					part = overlay(part, intersectDisks(part, lost, factory),
+							OverlayOp.DIFFERENCE);
+				for (int i = 0; i < part.getNumGeometries(); i++) {
+					Geometry piece = part.getGeometryN(i);
+					if (piece instanceof Polygon && piece.getArea() > 0)
+						parts.add(piece);
+				}
+			}
+		}
+		if (parts.isEmpty())
+			return factory.createPolygon();
+
+		// The parts do not overlap, so they are an answer as they are. Merge
+		// them only if JTS does so without losing area, which it may on the
+		// shared edges.
+		double area = 0;
+		for (Geometry part : parts)
+			area += part.getArea();
+		try {
+			Geometry union = CascadedPolygonUnion.union(parts);
+			if (union != null
+					&& Math.abs(union.getArea() - area) <= 1e-9 * area)
+				return union;
+		} catch (TopologyException e) {
+		}
+		return factory.buildGeometry(parts);
+	}
+
+	private static Geometry toGeometry(VoronoiPolygon poly,
+			GeometryFactory factory) {
+		Coordinate[] coords = new Coordinate[poly.npoints + 1];
+		for (int i = 0; i < poly.npoints; i++)
+			coords[i] = new Coordinate(poly.xpoints[i], poly.ypoints[i]);
+		coords[poly.npoints] = coords[0];
+		return factory.createPolygon(coords);
+	}
+
+	// the part of a region within rho of all the given sites
+	private Geometry intersectDisks(Geometry region, SiteSet key,
+			GeometryFactory factory) {
+		SiteTable sites = coverageVoronoiDiagram.siteTable;
+		for (int i = 0; i < key.size() && !region.isEmpty(); i++) {
+			int site = key.get(i);
+			Geometry disk = factory
+					.createPoint(new Coordinate(sites.x[site], sites.y[site]))
+					.buffer(rho, SEGMENTS_PER_QUADRANT);
+			region = overlay(region, disk, OverlayOp.INTERSECTION);
+		}
+		return region;
+	}
+
+	/**
+	 * Overlay two geometries, see OverlayOp. Cell edges often pass through
+	 * the vertices of disks and of other cells, where the overlay of JTS may
+	 * fail; then both geometries are rounded to a grid of 1e-10 first, or a
+	 * coarser one if that still fails.
+	 */
+	private static Geometry overlay(Geometry a, Geometry b, int opCode) {
+		try {
+			return SnapIfNeededOverlayOp.overlayOp(a, b, opCode);
+		} catch (TopologyException e) {
+			for (double scale = 1e10;; scale /= 100) {
+				PrecisionModel model = new PrecisionModel(scale);
+				try {
+					return SnapIfNeededOverlayOp.overlayOp(
+							GeometryPrecisionReducer.reduce(a, model),
+							GeometryPrecisionReducer.reduce(b, model), opCode);
+				} catch (TopologyException again) {
+					if (scale < 1e7)
+						throw again;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Save the built checker (Voronoi cells and point locator, scaler and
+	 * decision tree) to a file that load maps back into memory
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public synchronized void save(File file) throws IOException {
+		long start = CoverageMetrics.start();
+		CoverageIndexFile.save(this, file);
+		CoverageMetrics.stop(Stage.SAVE, start);
+	}
+
+	/**
+	 * Load a checker saved by save. The file is memory-mapped and must not be
+	 * changed while the checker is in use.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MithraCoverageChecker load(File file) throws IOException {
+		long start = CoverageMetrics.start();
+		MithraCoverageChecker checker = CoverageIndexFile.load(file);
+		CoverageMetrics.stop(Stage.LOAD, start);
+		return checker;
 	}
 
 	/**
@@ -229,7 +972,8 @@ public class MithraCoverageChecker implements CoverageChecker {
 	public void view(double delta, int sampleSize,
 			Map<Uiconfig, Boolean> viewConfig) {
 		String title = String.format("%d points in %d-d space (k=%d, ρ=%.2f)",
-				this.dataset.size(), this.dataset.ncols(), this.k, this.rho);
+				this.dataset.size(), this.dataset.dimension(), this.k,
+				this.rho);
 
 		MithraCoverageCheckerUI chart = new MithraCoverageCheckerUI(title, this,
 				delta, sampleSize, viewConfig);
@@ -258,30 +1002,246 @@ public class MithraCoverageChecker implements CoverageChecker {
 	 * @return
 	 */
 	public boolean ifCovered(double[] point, boolean ifRescale) {
+		long start = CoverageMetrics.start();
 
 		if (ifRescale) {
 			point = scaler.transform(point);
 		}
 
+		boolean covered = false;
 		if (this.coverageVoronoiDiagram != null) {
-			PointSet polygonKeys = coverageVoronoiDiagram.locate(point[0],
-					point[1]);
-			if (polygonKeys == null)
-				return false;
-
-			double x = point[0];
-			double y = point[1];
-
-			// Count the number of adjacent points to the given point (x,y)
-			// (distance <= theta)
-			return polygonKeys.stream().mapToInt(
-					p -> (p.dist2(new Point2D(x, y)) <= rho * rho) ? 1 : 0)
-					.sum() >= k;
+			covered = ifCoveredInVoronoi(coverageVoronoiDiagram.index,
+					point[0], point[1], rho);
+		} else if (this.flatTree != null) {
+			covered = this.flatTree.predict(point, 0) != 0;
 		} else if (this.coverageDecisionTree != null) {
-			return this.coverageDecisionTree
+			covered = this.coverageDecisionTree
 					.predict(Tuple.of(point, srcDataSchema)) == 0
 							? false
 							: true;
+		} else if (this.coverageModel != null) {
+			covered = this.coverageModel.isCovered(point, 0);
+		}
+		CoverageMetrics.stop(Stage.QUERY, start);
+		CoverageMetrics.count(Counter.QUERIES, 1);
+		return covered;
+	}
+
+	/**
+	 * Check a batch of points (x,y,...) packed row-major. Rescaling is not
+	 * used. In the decision tree mode the points are read in place by the
+	 * flattened tree, or else through a single scratch row and tuple that
+	 * are reused for the whole batch.
+	 */
+	@Override
+	public BitSet ifCoveredBatch(double[] points, int d) {
+		if (d != this.d || points.length % d != 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid batch of %d values for %d-d points, expected %d-d",
+					points.length, d, this.d));
+		}
+
+		long start = CoverageMetrics.start();
+		int numPoints = points.length / d;
+		BitSet covered = new BitSet(numPoints);
+
+		if (this.coverageVoronoiDiagram != null) {
+			CellIndex index = coverageVoronoiDiagram.index;
+			for (int i = 0; i < numPoints; i++) {
+				if (ifCoveredInVoronoi(index, points[i * d], points[i * d + 1],
+						rho))
+					covered.set(i);
+			}
+		} else if (this.flatTree != null) {
+			this.flatTree.predict(points, numPoints, covered);
+		} else if (this.coverageDecisionTree != null) {
+			double[] row = new double[d];
+			Tuple tuple = Tuple.of(row, srcDataSchema);
+			for (int i = 0; i < numPoints; i++) {
+				System.arraycopy(points, i * d, row, 0, d);
+				if (this.coverageDecisionTree.predict(tuple) != 0)
+					covered.set(i);
+			}
+		} else if (this.coverageModel != null) {
+			this.coverageModel.isCovered(points, numPoints, covered);
+		}
+		CoverageMetrics.stop(Stage.QUERY_BATCH, start);
+		CoverageMetrics.count(Counter.QUERIES, numPoints);
+		return covered;
+	}
+
+	/**
+	 * Check if a point is covered for a vicinity value given at query time.
+	 * Rescaling is not used. Only the exact checker supports this: its
+	 * Voronoi diagram depends on k but not on rho, so one build serves any
+	 * number of rho values.
+	 * 
+	 * @param point
+	 * @param rho
+	 *            = vicinity value
+	 * @return
+	 */
+	public boolean ifCovered(double[] point, double rho) {
+		if (this.coverageVoronoiDiagram == null) {
+			throw new IllegalArgumentException(String.format(
+					"Only the exact checker accepts a query-time rho, this checker is built for rho=%.3f",
+					this.rho));
+		}
+		long start = CoverageMetrics.start();
+		boolean covered = ifCoveredInVoronoi(coverageVoronoiDiagram.index,
+				point[0], point[1], rho);
+		CoverageMetrics.stop(Stage.QUERY, start);
+		CoverageMetrics.count(Counter.QUERIES, 1);
+		return covered;
+	}
+
+	/**
+	 * Check if a point is covered for any threshold k up to the order of the
+	 * Voronoi diagram and any vicinity value. Rescaling is not used. The key
+	 * sites of an order-K cell are the K nearest sites of every point in it,
+	 * and they contain its k nearest sites for all k <= K. So one diagram
+	 * built for the largest k of a sweep answers all smaller k.
+	 * 
+	 * @param point
+	 * @param k
+	 *            = threshold value, 1 <= k <= order of the diagram
+	 * @param rho
+	 *            = vicinity value
+	 * @return
+	 */
+	public boolean ifCovered(double[] point, int k, double rho) {
+		checkQueryOrder(k);
+		long start = CoverageMetrics.start();
+		boolean covered = ifCoveredInVoronoi(coverageVoronoiDiagram.index,
+				point[0], point[1], k, rho);
+		CoverageMetrics.stop(Stage.QUERY, start);
+		CoverageMetrics.count(Counter.QUERIES, 1);
+		return covered;
+	}
+
+	/**
+	 * Check a batch of points (x,y,...) packed row-major for a threshold and
+	 * vicinity value given at query time, see
+	 * {@link #ifCovered(double[], int, double)}
+	 * 
+	 * @param points
+	 * @param d
+	 * @param k
+	 *            = threshold value, 1 <= k <= order of the diagram
+	 * @param rho
+	 *            = vicinity value
+	 * @return
+	 */
+	public BitSet ifCoveredBatch(double[] points, int d, int k, double rho) {
+		checkQueryOrder(k);
+		if (d != this.d || points.length % d != 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid batch of %d values for %d-d points, expected %d-d",
+					points.length, d, this.d));
+		}
+
+		long start = CoverageMetrics.start();
+		int numPoints = points.length / d;
+		CellIndex index = coverageVoronoiDiagram.index;
+		BitSet covered = new BitSet(numPoints);
+		for (int i = 0; i < numPoints; i++) {
+			if (ifCoveredInVoronoi(index, points[i * d], points[i * d + 1], k,
+					rho))
+				covered.set(i);
+		}
+		CoverageMetrics.stop(Stage.QUERY_BATCH, start);
+		CoverageMetrics.count(Counter.QUERIES, numPoints);
+		return covered;
+	}
+
+	/**
+	 * Get the sorted distances from a point to its K nearest sites, K being
+	 * the order of the Voronoi diagram. The point is covered for (k, rho) iff
+	 * the k-th distance is at most rho, so a whole k/rho grid can be
+	 * evaluated from one lookup. Rescaling is not used.
+	 * 
+	 * @param point
+	 * @return
+	 */
+	public double[] getNearestDistances(double[] point) {
+		checkQueryOrder(1);
+		double x = point[0], y = point[1];
+		CellIndex index = coverageVoronoiDiagram.index;
+		SiteSet polygonKeys = index.locateSites(x, y);
+		double[] distances = new double[polygonKeys.size()];
+		for (int i = 0; i < polygonKeys.size(); i++) {
+			double dx = index.x[polygonKeys.get(i)] - x;
+			double dy = index.y[polygonKeys.get(i)] - y;
+			distances[i] = Math.sqrt(dx * dx + dy * dy);
+		}
+		Arrays.sort(distances);
+		return distances;
+	}
+
+	private void checkQueryOrder(int k) {
+		if (this.coverageVoronoiDiagram == null) {
+			throw new IllegalArgumentException(String.format(
+					"Only the exact checker accepts a query-time k and rho, this checker is built for k=%d",
+					this.k));
+		}
+		if (k < 1 || k > coverageVoronoiDiagram.getK()) {
+			throw new IllegalArgumentException(String.format(
+					"k=%d is out of range, the Voronoi diagram answers 1 <= k <= %d",
+					k, coverageVoronoiDiagram.getK()));
+		}
+	}
+
+	/**
+	 * Check if point (x,y) is covered using the cells of the Voronoi diagram.
+	 * The bounds of the cell decide most points; only points in mixed cells
+	 * need their distances to the key sites.
+	 */
+	private boolean ifCoveredInVoronoi(CellIndex index, double x, double y,
+			double rho) {
+		SiteSet polygonKeys;
+		VoronoiPolygon poly = index.locatePolygon(x, y);
+		if (poly != null) {
+			VoronoiPolygon.Coverage coverage = poly.classify(rho);
+			if (coverage == VoronoiPolygon.Coverage.COVERED)
+				return true;
+			if (coverage == VoronoiPolygon.Coverage.UNCOVERED)
+				return false;
+			polygonKeys = poly.regionKey;
+		} else {
+			polygonKeys = index.locateSites(x, y);
+		}
+
+		// Count the number of adjacent points to the given point (x,y)
+		// (distance <= rho)
+		double rho2 = DistanceKernel.squaredRadius(rho);
+		int closeNeighborsCount = 0;
+		for (int i = 0; i < polygonKeys.size(); i++) {
+			double dx = index.x[polygonKeys.get(i)] - x;
+			double dy = index.y[polygonKeys.get(i)] - y;
+			if (dx * dx + dy * dy <= rho2)
+				closeNeighborsCount++;
+		}
+		return closeNeighborsCount >= k;
+	}
+
+	/**
+	 * Check if point (x,y) has at least k of the K nearest sites of its cell
+	 * within rho
+	 */
+	private boolean ifCoveredInVoronoi(CellIndex index, double x, double y,
+			int k, double rho) {
+		if (k == index.k)
+			return ifCoveredInVoronoi(index, x, y, rho);
+
+		// At least k of the K nearest sites within rho
+		double rho2 = DistanceKernel.squaredRadius(rho);
+		int closeNeighborsCount = 0;
+		SiteSet polygonKeys = index.locateSites(x, y);
+		for (int i = 0; i < polygonKeys.size(); i++) {
+			double dx = index.x[polygonKeys.get(i)] - x;
+			double dy = index.y[polygonKeys.get(i)] - y;
+			if (dx * dx + dy * dy <= rho2 && ++closeNeighborsCount >= k)
+				return true;
 		}
 		return false;
 	}
@@ -55,7 +55,6 @@ import guru.nidi.graphviz.engine.Graphviz;
 import guru.nidi.graphviz.model.MutableGraph;
 import guru.nidi.graphviz.parse.Parser;
 import smile.data.DataFrame;
-import smile.data.Tuple;
 import smile.data.vector.BaseVector;
 
 import org.apache.commons.math3.ml.clustering.CentroidCluster;
@@ -99,7 +98,7 @@ public class MithraCoverageCheckerUI extends ApplicationFrame {
 			int sampleSize, Map<Uiconfig, Boolean> viewConfig) {
 		super(title);
 
-		DataFrame points = cc.dataset;
+		CoverageDataset points = cc.dataset;
 		double radius = cc.rho;
 		VoronoiKOrder v = cc.coverageVoronoiDiagram;
 		this.cc = cc;
@@ -143,10 +142,9 @@ public class MithraCoverageCheckerUI extends ApplicationFrame {
 		// Add circles
 		if (viewConfig.getOrDefault(Uiconfig.SHOWCIRCLE, true)) {
 			for (int i = 0; i < points.size(); i++) {
-				Tuple r = points.get(i);
 				plot.addAnnotation(new XYShapeAnnotation(
-						new Ellipse2D.Double(r.getDouble(0) - radius,
-								r.getDouble(1) - radius, radius + radius,
+						new Ellipse2D.Double(points.get(i, 0) - radius,
+								points.get(i, 1) - radius, radius + radius,
 								radius + radius),
 						circleStroke, this.circleColor));
 			}
@@ -437,15 +435,13 @@ public class MithraCoverageCheckerUI extends ApplicationFrame {
 			label.setIcon(new ImageIcon(image));
 	}
 
-	private XYDataset createPointDataset(DataFrame points) {
+	private XYDataset createPointDataset(CoverageDataset points) {
 		XYSeriesCollection dataset = new XYSeriesCollection();
 
 		// Boys (Age,weight) series
 		XYSeries series1 = new XYSeries("NDPoints");
-		for (int i = 0; i < points.size(); i++) {
-			Tuple r = points.get(i);
-			series1.add(r.getDouble(0), r.getDouble(1));
-		}
+		for (int i = 0; i < points.size(); i++)
+			series1.add(points.get(i, 0), points.get(i, 1));
 		dataset.addSeries(series1);
 
 		return dataset;
@@ -0,0 +1,82 @@
+package umichdb.coverage2;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Limits on the model of the approximate checker, and the trainers that may
+ * produce it. The checker trains every candidate on part of its samples,
+ * measures it on the rest and keeps the most accurate one within the limits.
+ */
+public final class ModelBudget {
+	/**
+	 * No limit
+	 */
+	public static final ModelBudget UNLIMITED = new ModelBudget(
+			Long.MAX_VALUE, Double.POSITIVE_INFINITY,
+			Double.POSITIVE_INFINITY);
+
+	final long maxBytes;
+	final double maxQueryNanos;
+	final double maxTrainingMillis;
+	final List<CoverageModel.Trainer> candidates;
+
+	/**
+	 * A budget over the default candidates: a decision tree, a shallow random
+	 * forest, boosted stumps and nearest neighbors
+	 *
+	 * @param maxBytes
+	 *            = most bytes of the model in memory
+	 * @param maxQueryNanos
+	 *            = most nanoseconds per query, measured in batches
+	 * @param maxTrainingMillis
+	 *            = most milliseconds to train the model
+	 */
+	public ModelBudget(long maxBytes, double maxQueryNanos,
+			double maxTrainingMillis) {
+		this(maxBytes, maxQueryNanos, maxTrainingMillis,
+				CoverageModels.defaultTrainers());
+	}
+
+	/**
+	 * A budget over the given candidates
+	 *
+	 * @param maxBytes
+	 *            = most bytes of the model in memory
+	 * @param maxQueryNanos
+	 *            = most nanoseconds per query, measured in batches
+	 * @param maxTrainingMillis
+	 *            = most milliseconds to train the model
+	 * @param candidates
+	 */
+	public ModelBudget(long maxBytes, double maxQueryNanos,
+			double maxTrainingMillis,
+			List<? extends CoverageModel.Trainer> candidates) {
+		if (maxBytes <= 0 || !(maxQueryNanos > 0)
+				|| !(maxTrainingMillis > 0)) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid model budget: %d bytes, %s ns per query, %s ms of training",
+					maxBytes, maxQueryNanos, maxTrainingMillis));
+		}
+		if (candidates.isEmpty())
+			throw new IllegalArgumentException("No candidate models");
+		this.maxBytes = maxBytes;
+		this.maxQueryNanos = maxQueryNanos;
+		this.maxTrainingMillis = maxTrainingMillis;
+		this.candidates = Collections.unmodifiableList(
+				Arrays.asList(candidates.toArray(new CoverageModel.Trainer[0])));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s bytes, %s ns per query, %s ms of training",
+				maxBytes == Long.MAX_VALUE ? "any" : String.valueOf(maxBytes),
+				Double.isInfinite(maxQueryNanos)
+						? "any"
+						: String.valueOf(maxQueryNanos),
+				Double.isInfinite(maxTrainingMillis)
+						? "any"
+						: String.valueOf(maxTrainingMillis));
+	}
+}
@@ -1,333 +1,533 @@
 package umichdb.coverage2;
 
-import org.locationtech.jts.geom.Coordinate;
-
-import org.locationtech.jts.geom.Point;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.GeometryCollection;
-import org.locationtech.jts.geom.Polygon;
-import org.locationtech.jts.io.ParseException;
-import org.locationtech.jts.io.WKTReader;
-import org.locationtech.jts.triangulate.DelaunayTriangulationBuilder;
-import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.LineString;
-import org.locationtech.jts.geom.LinearRing;
-import org.locationtech.jts.geom.MultiLineString;
-import org.locationtech.jts.*;
-//import org.locationtech.geowave.analytic.GeometryHullTool;
-import org.locationtech.jts.awt.PolygonShape;
-import org.jgrapht.graph.DirectedAcyclicGraph;
-import org.jgrapht.graph.SimpleDirectedGraph;
-import org.jgrapht.graph.SimpleGraph;
-import org.jgrapht.graph.DefaultEdge;
-import org.jgrapht.alg.cycle.CycleDetector;
-
-import java.util.List;
-import java.util.Collection;
-import java.util.ArrayList;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.HashSet;
-
+import java.util.Map;
+
+/**
+ * Point location in a planar subdivision given as a list of non-overlapping
+ * simple polygons (e.g. the cells of a Voronoi diagram), using the persistent
+ * slab decomposition of Sarnak and Tarjan.
+ *
+ * The distinct x coordinates of the polygon vertices cut the plane into
+ * vertical slabs. Within a slab the polygon edges crossing it are totally
+ * ordered from bottom to top, and each edge knows the polygon directly above
+ * it. Sweeping from left to right, the ordered set of edges changes only by
+ * deleting the edges that end and inserting the edges that start at each
+ * slab boundary. Keeping that set in a persistent AVL tree (path copying)
+ * stores the order of every slab in O(m log m) nodes for m edges. A query
+ * binary searches its slab and walks that slab's tree, both O(log m) in the
+ * worst case.
+ *
+ * Edges shared by two polygons are stored once. The tree is built in
+ * primitive arrays; queries read it through buffers, which either wrap those
+ * arrays or are views of a memory-mapped file (see CoverageIndexFile). The
+ * locator is read-only after construction.
+ */
 public class PointLocator {
-	private Geometry finalTriangle;
-	private SimpleDirectedGraph<Geometry, DefaultEdge> triangleHierarchy;
-	private HashMap<Set<Coordinate>, Geometry> triangleToPolygon;
-
-	public PointLocator(Polygon[] faces) {
-
-		
-		
-		/* Initialize local variables */
-		GeometryFactory fact = new GeometryFactory();
-		
-		HashMap<Coordinate, List<Geometry>> coordinateToRegions = new HashMap<Coordinate, List<Geometry>>();
-
-		triangleToPolygon = new HashMap<Set<Coordinate>, Geometry>();
-
-		/* Initialize private variables */
-		triangleHierarchy = new SimpleDirectedGraph<Geometry, DefaultEdge>(DefaultEdge.class);
-
-		/* Create outer bounding triangle to contain all the regions */
-		Coordinate p1 = new Coordinate(-1000000000, -1000000000);
-		Coordinate p2 = new Coordinate(0.0, 1000000000);
-		Coordinate p3 = new Coordinate(1000000000, -1000000000);
-		finalTriangle = fact.createPolygon(new Coordinate[] { p1, p2, p3, p1 }).convexHull();
-		
-		
-		
-		List<Geometry> triangles = new ArrayList<Geometry>();
-
-		// Step 1: Triangulate all faces
-		for (Polygon poly : faces) {
-			DelaunayTriangulationBuilder triangualtionBuilder = new DelaunayTriangulationBuilder();
-			triangualtionBuilder.setSites(poly);
-			Geometry polyTriangles = triangualtionBuilder.getTriangles(fact);
-			for (int i = 0; i < polyTriangles.getNumGeometries(); i++) {
-				Geometry innerTriangle = polyTriangles.getGeometryN(i);
-				triangles.add(innerTriangle);
-				triangleToPolygon.put(new HashSet<>(Arrays.asList(innerTriangle.getCoordinates())), poly);
-			}
-		}
-		
-
-		// Step 2: Triangulate space between boundary triangle and the convex hull of all faces
-		ArrayList<Coordinate> boundaryPoints = new ArrayList<Coordinate>();
-		boundaryPoints.add(p1);
-		boundaryPoints.add(p2);
-		boundaryPoints.add(p3);
-
-		LinearRing shell = fact.createLinearRing(new Coordinate[] {p1,p2,p3,p1});
-		LinearRing convexHullOfFaces = fact.createLinearRing(fact.createGeometryCollection(faces).convexHull().getCoordinates());
-
-		Polygon spaceBetweenBoundaryAndConvexHullOfFaces = new Polygon(shell, new LinearRing[]{convexHullOfFaces}, fact);
-		EarClipper ec = new EarClipper(spaceBetweenBoundaryAndConvexHullOfFaces);
-		Geometry outerTriangles = ec.getResult();
-		
-		for (int i = 0; i < outerTriangles.getNumGeometries(); i++) {
-			Geometry outerTriangle = outerTriangles.getGeometryN(i);
-			triangles.add(outerTriangle);
-		}
+	// Non-vertical edges, oriented from left to right
+	final int numSegments;
+	final DoubleBuffer segX1, segY1, segX2, segY2;
+	final IntBuffer segAbove; // polygon directly above the edge, -1 if none
+	final IntBuffer segBelow; // polygon directly below the edge, -1 if none
+
+	// Slab i spans [slabX[i], slabX[i+1]); its edges are in tree slabRoot[i]
+	final DoubleBuffer slabX;
+	final IntBuffer slabRoot;
+
+	// Nodes of the persistent tree
+	final int numNodes;
+	final IntBuffer nodeSeg;
+	final IntBuffer nodeLeft;
+	final IntBuffer nodeRight;
 
-		// Step 3: Create graph that we later use to find independent sets
-		SimpleGraph<Coordinate, DefaultEdge> graph = new SimpleGraph<Coordinate, DefaultEdge>(DefaultEdge.class);
-		for (Geometry t : triangles) {
-			Coordinate[] coordinates = t.getCoordinates();
-			graph.addVertex(coordinates[0]);
-			graph.addVertex(coordinates[1]);
-			graph.addVertex(coordinates[2]);
-			graph.addEdge(coordinates[0], coordinates[1]);
-			graph.addEdge(coordinates[0], coordinates[2]);
-			graph.addEdge(coordinates[1], coordinates[2]);
-
-			/* add triangles to the digraph as vertices for now */
-			triangleHierarchy.addVertex(t);
-
-			for (int i = 0; i < 3; i++) {
-				List<Geometry> affectedRegions;
-
-				affectedRegions = coordinateToRegions.getOrDefault(coordinates[i], new ArrayList<Geometry>());
-				affectedRegions.add(t);
-				coordinateToRegions.put(coordinates[i], affectedRegions);
-			}
-		}
+	/**
+	 * Build the point locator
+	 *
+	 * @param polygons
+	 *            = non-overlapping polygons; lookup returns indices into this
+	 *            list
+	 */
+	public PointLocator(List<? extends Polygon2D> polygons) {
+		this(new Sweep(polygons));
+	}
 
-		// Step 4: building hierarchies of triangles from bottom up
-		do {
+	private PointLocator(Sweep sweep) {
+		this(DoubleBuffer.wrap(sweep.segX1, 0, sweep.numSegments),
+				DoubleBuffer.wrap(sweep.segY1, 0, sweep.numSegments),
+				DoubleBuffer.wrap(sweep.segX2, 0, sweep.numSegments),
+				DoubleBuffer.wrap(sweep.segY2, 0, sweep.numSegments),
+				IntBuffer.wrap(sweep.segAbove, 0, sweep.numSegments),
+				IntBuffer.wrap(sweep.segBelow, 0, sweep.numSegments),
+				DoubleBuffer.wrap(sweep.slabX), IntBuffer.wrap(sweep.slabRoot),
+				IntBuffer.wrap(sweep.nodeSeg, 0, sweep.numNodes),
+				IntBuffer.wrap(sweep.nodeLeft, 0, sweep.numNodes),
+				IntBuffer.wrap(sweep.nodeRight, 0, sweep.numNodes));
+	}
 
-			/*
-			 * Create independent set. Use two lists to avoid modifying list we're iterating
-			 * over
-			 */
-			ArrayList<Coordinate> independentSetCandidates = new ArrayList<Coordinate>();
-			ArrayList<Coordinate> independentSet = new ArrayList<Coordinate>();
+	/**
+	 * Point locator over a tree that was built before, e.g. one that is
+	 * mapped from a file. The buffers are used as they are, from index 0 to
+	 * their limit.
+	 */
+	PointLocator(DoubleBuffer segX1, DoubleBuffer segY1, DoubleBuffer segX2,
+			DoubleBuffer segY2, IntBuffer segAbove, IntBuffer segBelow,
+			DoubleBuffer slabX, IntBuffer slabRoot, IntBuffer nodeSeg,
+			IntBuffer nodeLeft, IntBuffer nodeRight) {
+		this.numSegments = segX1.limit();
+		this.segX1 = segX1;
+		this.segY1 = segY1;
+		this.segX2 = segX2;
+		this.segY2 = segY2;
+		this.segAbove = segAbove;
+		this.segBelow = segBelow;
+		this.slabX = slabX;
+		this.slabRoot = slabRoot;
+		this.numNodes = nodeSeg.limit();
+		this.nodeSeg = nodeSeg;
+		this.nodeLeft = nodeLeft;
+		this.nodeRight = nodeRight;
+	}
 
-			Set<Coordinate> vertices = graph.vertexSet();
-			for (Coordinate p : vertices) {
-				if (graph.degreeOf(p) <= 8 && !boundaryPoints.contains(p)) {
-					independentSetCandidates.add(p);
-				}
+	/**
+	 * Find the polygon containing the point (x,y). Points on a shared edge
+	 * are assigned to the polygon above it.
+	 *
+	 * @param x
+	 * @param y
+	 * @return index of the polygon in the input list, -1 if no polygon
+	 *         contains the point
+	 */
+	public int lookup(double x, double y) {
+		// The last slab starting at or left of x
+		int lo = 0, hi = slabX.limit() - 1, slab = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (slabX.get(mid) <= x) {
+				slab = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
 			}
+		}
+		if (slab < 0)
+			return -1;
+
+		// The highest segment at or below the point
+		int below = -1;
+		int node = slabRoot.get(slab);
+		while (node >= 0) {
+			int seg = nodeSeg.get(node);
+			if (yAt(seg, x) <= y) {
+				below = seg;
+				node = nodeRight.get(node);
+			} else {
+				node = nodeLeft.get(node);
+			}
+		}
+		return below < 0 ? -1 : segAbove.get(below);
+	}
 
-			for (Coordinate u : independentSetCandidates) {
-				boolean add = true;
-				for (Coordinate v : independentSet) {
-					if (graph.containsEdge(u, v) || graph.containsEdge(v, u))
-						add = false;
+	/**
+	 * y coordinate of segment s at x
+	 */
+	private double yAt(int s, double x) {
+		double x1 = segX1.get(s), x2 = segX2.get(s);
+		if (x <= x1)
+			return segY1.get(s);
+		if (x >= x2)
+			return segY2.get(s);
+		double y1 = segY1.get(s);
+		return y1 + (segY2.get(s) - y1) * (x - x1) / (x2 - x1);
+	}
 
-					if (v.equals(u))
-						add = false;
-				}
+	/**
+	 * Number of nodes in the persistent tree (for diagnostics)
+	 */
+	public int size() {
+		return numNodes;
+	}
 
-				if (add)
-					independentSet.add(u);
-			}
-			
-			System.out.println("independentSet:"+independentSet);
-
-			/*
-			 * Create new triangulation using the independentSet to formulate a new layer in the hierarchy
-			 * 
-			 */
-			for (Coordinate p : independentSet) {
-				List<Coordinate> neighbors = new ArrayList<Coordinate>();
-				List<Geometry> oldTriangles = new ArrayList<Geometry>();
-				List<Geometry> newTriangles = new ArrayList<Geometry>();
-				
-				
-
-				
-				Polygon newHole = findBoundingPolygon(p, coordinateToRegions.get(p));
-				
-				System.out.println("remove=" + p);
-				System.out.println("newHole=" + newHole);
-				
-				EarClipper ec2 = new EarClipper(newHole);
-				Geometry trianglesOfNewHole = ec2.getResult();
-				
-				// Triangulate the resulting hole
-				for (int i = 0; i < trianglesOfNewHole.getNumGeometries(); i++) {
-					newTriangles.add(trianglesOfNewHole.getGeometryN(i));
-				}
-				
-				System.out.println("new trangles " + trianglesOfNewHole);
+	/**
+	 * Key of an undirected edge, used to store shared edges only once
+	 */
+	private static class EdgeKey {
+		final double x1, y1, x2, y2;
+
+		EdgeKey(double x1, double y1, double x2, double y2) {
+			this.x1 = x1;
+			this.y1 = y1;
+			this.x2 = x2;
+			this.y2 = y2;
+		}
 
-				oldTriangles = new ArrayList<Geometry>(coordinateToRegions.get(p));
-				oldTriangles.removeAll(newTriangles);
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof EdgeKey))
+				return false;
+			EdgeKey e = (EdgeKey) other;
+			return x1 == e.x1 && y1 == e.y1 && x2 == e.x2 && y2 == e.y2;
+		}
 
-				if (newTriangles.size() == 1) {
-					finalTriangle = newTriangles.get(0);
-					System.out.println("update final triangle: " + newTriangles.get(0));
-				}
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(new double[]{x1, y1, x2, y2});
+		}
+	}
 
-				/* Update undirected graph */
-				graph.removeVertex(p);
-				System.out.println("remaining=" + graph.vertexSet());
+	/**
+	 * Builds the persistent tree in growable primitive arrays
+	 */
+	private static class Sweep {
+		// Non-vertical edges, oriented from left to right
+		int numSegments;
+		double[] segX1, segY1, segX2, segY2;
+		int[] segAbove;
+		int[] segBelow;
+
+		double[] slabX;
+		int[] slabRoot;
+
+		int numNodes;
+		int[] nodeSeg;
+		int[] nodeLeft;
+		int[] nodeRight;
+		byte[] nodeHeight;
+
+		// Nodes created at or after this index belong to the version under
+		// construction and may still be modified in place
+		private int versionStart;
+		private boolean deleteFailed;
+
+		Sweep(List<? extends Polygon2D> polygons) {
+			long start = CoverageMetrics.start();
+			collectSegments(polygons);
+			sweep();
+			CoverageMetrics.stop(CoverageMetrics.Stage.LOCATOR_BUILD, start);
+		}
 
+		/**
+		 * Turn the polygon edges into left-to-right segments labelled with the
+		 * polygons above and below them
+		 */
+		private void collectSegments(List<? extends Polygon2D> polygons) {
+			int capacity = 16;
+			for (Polygon2D p : polygons)
+				capacity += p.npoints;
+			segX1 = new double[capacity];
+			segY1 = new double[capacity];
+			segX2 = new double[capacity];
+			segY2 = new double[capacity];
+			segAbove = new int[capacity];
+			segBelow = new int[capacity];
+
+			Map<EdgeKey, Integer> edgeToSegment = new HashMap<EdgeKey, Integer>();
+
+			for (int id = 0; id < polygons.size(); id++) {
+				Polygon2D p = polygons.get(id);
+
+				// Orientation of the polygon (shoelace formula)
+				double area = 0;
+				for (int i = 0; i < p.npoints; i++) {
+					int j = (i + 1) % p.npoints;
+					area += p.xpoints[i] * p.ypoints[j]
+							- p.xpoints[j] * p.ypoints[i];
+				}
+				if (area == 0)
+					continue;
+
+				for (int i = 0; i < p.npoints; i++) {
+					int j = (i + 1) % p.npoints;
+					double ax = p.xpoints[i], ay = p.ypoints[i];
+					double bx = p.xpoints[j], by = p.ypoints[j];
+					if (ax == bx)
+						continue; // vertical edges do not separate slabs
+
+					// The interior lies left of a counter-clockwise edge, so the
+					// polygon is above a counter-clockwise edge going right
+					boolean polygonAbove = (ax < bx) == (area > 0);
+
+					EdgeKey key = ax < bx
+							? new EdgeKey(ax, ay, bx, by)
+							: new EdgeKey(bx, by, ax, ay);
+					Integer seg = edgeToSegment.get(key);
+					if (seg == null) {
+						seg = numSegments++;
+						edgeToSegment.put(key, seg);
+						segX1[seg] = key.x1;
+						segY1[seg] = key.y1;
+						segX2[seg] = key.x2;
+						segY2[seg] = key.y2;
+						segAbove[seg] = -1;
+						segBelow[seg] = -1;
+					}
+					if (polygonAbove) {
+						if (segAbove[seg] < 0)
+							segAbove[seg] = id;
+					} else if (segBelow[seg] < 0) {
+						segBelow[seg] = id;
+					}
+				}
+			}
+		}
 
-				/* Update DAG */
-				for (Geometry newT : newTriangles) {
-					triangleHierarchy.addVertex(newT);
+		/**
+		 * Sweep a vertical line from left to right and record one version of the
+		 * tree of crossing segments per slab
+		 */
+		private void sweep() {
+			// Slab boundaries
+			double[] xs = new double[2 * numSegments];
+			for (int s = 0; s < numSegments; s++) {
+				xs[2 * s] = segX1[s];
+				xs[2 * s + 1] = segX2[s];
+			}
+			Arrays.sort(xs);
+			int numSlabs = 0;
+			for (int i = 0; i < xs.length; i++) {
+				if (numSlabs == 0 || xs[i] != xs[numSlabs - 1])
+					xs[numSlabs++] = xs[i];
+			}
+			slabX = Arrays.copyOf(xs, numSlabs);
+			slabRoot = new int[numSlabs];
+
+			// Segments by the slab where they start and end (CSR layout)
+			int[] startOffsets = new int[numSlabs + 1];
+			int[] endOffsets = new int[numSlabs + 1];
+			int[] startSlab = new int[numSegments];
+			int[] endSlab = new int[numSegments];
+			for (int s = 0; s < numSegments; s++) {
+				startSlab[s] = Arrays.binarySearch(slabX, segX1[s]);
+				endSlab[s] = Arrays.binarySearch(slabX, segX2[s]);
+				startOffsets[startSlab[s] + 1]++;
+				endOffsets[endSlab[s] + 1]++;
+			}
+			for (int i = 0; i < numSlabs; i++) {
+				startOffsets[i + 1] += startOffsets[i];
+				endOffsets[i + 1] += endOffsets[i];
+			}
+			int[] starting = new int[numSegments];
+			int[] ending = new int[numSegments];
+			int[] nextStart = Arrays.copyOf(startOffsets, numSlabs);
+			int[] nextEnd = Arrays.copyOf(endOffsets, numSlabs);
+			for (int s = 0; s < numSegments; s++) {
+				starting[nextStart[startSlab[s]]++] = s;
+				ending[nextEnd[endSlab[s]]++] = s;
+			}
 
-					for (Geometry oldT : oldTriangles) {
-						triangleHierarchy.addVertex(oldT);
-						triangleHierarchy.addEdge(newT, oldT);
+			int capacity = Math.max(16, numSegments * 8);
+			nodeSeg = new int[capacity];
+			nodeLeft = new int[capacity];
+			nodeRight = new int[capacity];
+			nodeHeight = new byte[capacity];
+
+			boolean[] active = new boolean[numSegments];
+			int root = -1;
+			for (int i = 0; i < numSlabs; i++) {
+				versionStart = numNodes;
+
+				// Remove the segments ending here, ordered as in the previous slab
+				if (i > 0) {
+					double x = (slabX[i - 1] + slabX[i]) / 2;
+					deleteFailed = false;
+					for (int e = endOffsets[i]; e < endOffsets[i + 1]; e++) {
+						root = delete(root, ending[e], x);
+						active[ending[e]] = false;
 					}
-				}
-				
-				
-				
-				/* update neighbor and affected triangles list */
-				for (Geometry oldTriangle : oldTriangles) {
-					for (Coordinate c : oldTriangle.getCoordinates()) {
-//						System.out.println(c + " " + coordinateToGeometry.get(c));
-						if (coordinateToRegions.containsKey(c))
-						coordinateToRegions.get(c).remove(oldTriangle);
+					if (deleteFailed) {
+						// Rounding made the order at x inconsistent with the
+						// tree; rebuild this slab's tree from scratch
+						root = rebuild(active, i);
 					}
 				}
-				
-				for (Geometry newTriangle : newTriangles) {
-					for (Coordinate c : newTriangle.getCoordinates()) {
-						List<Geometry> temp = coordinateToRegions.getOrDefault(c, new ArrayList<Geometry>()); 
-						temp.add(newTriangle);
+
+				// Insert the segments starting here, ordered as in this slab
+				if (i + 1 < numSlabs) {
+					double x = (slabX[i] + slabX[i + 1]) / 2;
+					for (int e = startOffsets[i]; e < startOffsets[i + 1]; e++) {
+						root = insert(root, starting[e], x);
+						active[starting[e]] = true;
 					}
 				}
-				
-				
-				coordinateToRegions.remove(p);
-				
-//				System.out.println("coordinateToNeighbors:" + coordinateToNeighbors + "\n");
+
+				slabRoot[i] = root;
 			}
-			
-		} while (graph.vertexSet().size() > 3);
 
-	}
-	
-	
-	/**
-	 * Find a bounding polygon if point p is removed from affected regions
-	 * @param p
-	 * @param affectedRegions
-	 * @return
-	 */
-	public Polygon findBoundingPolygon(Coordinate p, List<Geometry> affectedRegions) {
-		// TODO: write a function that finds a bounding polygon
-		GeometryFactory fact = new GeometryFactory();		
-		Geometry regions = fact.buildGeometry(affectedRegions);
-		// TODO:
-		bound <- a concave hull of regions
-		LinearRing shell = fact.createLinearRing(coordsToLinearRingCoords(bound.getCoordinates()));
-
-		return new Polygon(shell, null, fact);
-	}
+			nodeSeg = Arrays.copyOf(nodeSeg, numNodes);
+			nodeLeft = Arrays.copyOf(nodeLeft, numNodes);
+			nodeRight = Arrays.copyOf(nodeRight, numNodes);
+			nodeHeight = Arrays.copyOf(nodeHeight, numNodes);
+		}
 
-	public Geometry lookup(double x, double y) {
-		return lookup(new Coordinate(x, y));
-	}
+		/**
+		 * y coordinate of segment s at x
+		 */
+		private double yAt(int s, double x) {
+			if (x <= segX1[s])
+				return segY1[s];
+			if (x >= segX2[s])
+				return segY2[s];
+			return segY1[s] + (segY2[s] - segY1[s]) * (x - segX1[s])
+					/ (segX2[s] - segX1[s]);
+		}
 
-	/**
-	 * Find the polygon containing the point p
-	 * 
-	 * @param queryPointCoordinate
-	 * @return
-	 */
-	public Geometry lookup(Coordinate queryPointCoordinate) {
-		GeometryFactory fact = new GeometryFactory();
-		Point queryPoint = fact.createPoint(queryPointCoordinate);
+		private double slope(int s) {
+			return (segY2[s] - segY1[s]) / (segX2[s] - segX1[s]);
+		}
 
-		Geometry curr = finalTriangle;
-		
-		System.out.println("final trangle");
-		System.out.println(finalTriangle);
+		/**
+		 * Order of two segments crossing the vertical line at x
+		 */
+		private int compare(int a, int b, double x) {
+			if (a == b)
+				return 0;
+			int c = Double.compare(yAt(a, x), yAt(b, x));
+			if (c != 0)
+				return c;
+			// Segments that meet at x, or only differ by rounding (e.g. the same
+			// edge clipped in two tiles), are ordered as they continue
+			c = Double.compare(slope(a), slope(b));
+			if (c != 0)
+				return c;
+			// Of two overlapping segments the one with a polygon above goes on
+			// top, so that lookups find that polygon
+			c = Boolean.compare(segAbove[a] >= 0, segAbove[b] >= 0);
+			if (c != 0)
+				return c;
+			return Integer.compare(a, b);
+		}
 
-		if (!curr.contains(queryPoint)) {
-			return null;
+		private int height(int node) {
+			return node < 0 ? 0 : nodeHeight[node];
 		}
 
-		while (!triangleHierarchy.outgoingEdgesOf(curr).isEmpty()) {
-			boolean findTriangle = false;
-			for (DefaultEdge e : triangleHierarchy.outgoingEdgesOf(curr)) {
-				Geometry t = triangleHierarchy.getEdgeTarget(e);
-				if (t.covers(queryPoint)) { // Add intersect just in case the point is on
-											// the edge of this triangle
-					System.out.println("containing triangle:" + t + " if_original:"
-							+ triangleToPolygon.containsKey(new HashSet<>(Arrays.asList(t.getCoordinates()))));
-
-					curr = t;
-					findTriangle = true;
-					break;
-				}
-			}
-			if (!findTriangle) {
-				System.err.println("ERROR: no triangle found for " + queryPoint + " for " + curr);
+		private int newNode(int seg, int left, int right) {
+			if (numNodes == nodeSeg.length) {
+				int capacity = nodeSeg.length * 2;
+				nodeSeg = Arrays.copyOf(nodeSeg, capacity);
+				nodeLeft = Arrays.copyOf(nodeLeft, capacity);
+				nodeRight = Arrays.copyOf(nodeRight, capacity);
+				nodeHeight = Arrays.copyOf(nodeHeight, capacity);
 			}
+			return setNode(numNodes++, seg, left, right);
 		}
 
-		if (triangleToPolygon.containsKey(new HashSet<>(Arrays.asList(curr.getCoordinates())))) {
-			return triangleToPolygon.get(new HashSet<>(Arrays.asList(curr.getCoordinates())));
+		private int setNode(int node, int seg, int left, int right) {
+			nodeSeg[node] = seg;
+			nodeLeft[node] = left;
+			nodeRight[node] = right;
+			nodeHeight[node] = (byte) (1
+					+ Math.max(height(left), height(right)));
+			return node;
 		}
-		
-		System.out.println(queryPointCoordinate + " not found");
-
-		return null;
 
-	}
-	
-	private Coordinate[] coordsToLinearRingCoords(Coordinate[] origCoords) {
-		Coordinate[] linearRingCoords = new Coordinate[origCoords.length];
-		System.arraycopy(origCoords, 0, linearRingCoords, 0, origCoords.length);
-		linearRingCoords[linearRingCoords.length - 1] = origCoords[0];
-		return linearRingCoords;
-	}
+		/**
+		 * Node with the given content. Nodes of older versions are shared and
+		 * must not change, so they are copied; nodes created for the current
+		 * version are reused.
+		 */
+		private int node(int old, int seg, int left, int right) {
+			if (old >= versionStart)
+				return setNode(old, seg, left, right);
+			return newNode(seg, left, right);
+		}
 
-	public static void main(String[] args) throws ParseException {
+		/**
+		 * Rebalance a node whose subtrees differ in height by at most 2
+		 */
+		private int balance(int old, int seg, int left, int right) {
+			int hl = height(left), hr = height(right);
+			if (hl > hr + 1) {
+				int ll = nodeLeft[left], lr = nodeRight[left];
+				if (height(ll) >= height(lr)) {
+					int r = node(old, seg, lr, right);
+					return node(left, nodeSeg[left], ll, r);
+				}
+				int l = node(left, nodeSeg[left], ll, nodeLeft[lr]);
+				int r = node(old, seg, nodeRight[lr], right);
+				return node(lr, nodeSeg[lr], l, r);
+			}
+			if (hr > hl + 1) {
+				int rl = nodeLeft[right], rr = nodeRight[right];
+				if (height(rr) >= height(rl)) {
+					int l = node(old, seg, left, rl);
+					return node(right, nodeSeg[right], l, rr);
+				}
+				int l = node(old, seg, left, nodeLeft[rl]);
+				int r = node(right, nodeSeg[right], nodeRight[rl], rr);
+				return node(rl, nodeSeg[rl], l, r);
+			}
+			return node(old, seg, left, right);
+		}
 
+		private int insert(int root, int seg, double x) {
+			if (root < 0)
+				return newNode(seg, -1, -1);
+			if (compare(seg, nodeSeg[root], x) < 0)
+				return balance(root, nodeSeg[root],
+						insert(nodeLeft[root], seg, x), nodeRight[root]);
+			return balance(root, nodeSeg[root], nodeLeft[root],
+					insert(nodeRight[root], seg, x));
+		}
 
-		GeometryFactory geometryFactory = new GeometryFactory();
+		private int delete(int root, int seg, double x) {
+			if (root < 0) {
+				deleteFailed = true;
+				return root;
+			}
+			int c = compare(seg, nodeSeg[root], x);
+			if (c < 0)
+				return balance(root, nodeSeg[root],
+						delete(nodeLeft[root], seg, x), nodeRight[root]);
+			if (c > 0)
+				return balance(root, nodeSeg[root], nodeLeft[root],
+						delete(nodeRight[root], seg, x));
+
+			int left = nodeLeft[root], right = nodeRight[root];
+			if (left < 0)
+				return right;
+			if (right < 0)
+				return left;
+			int min = right;
+			while (nodeLeft[min] >= 0)
+				min = nodeLeft[min];
+			return balance(root, nodeSeg[min], left, deleteMin(right));
+		}
 
-//		Coordinate p1 = new Coordinate(0.0, 0.0);
-//		Coordinate p2 = new Coordinate(0.0, 1.0);
-//		Coordinate p3 = new Coordinate(1.0, 2.0);
-//		Coordinate p4 = new Coordinate(1.0, 0.0);
-//		
-//		Coordinate p5 = new Coordinate(2.0, 2.0);
-//		Coordinate p6 = new Coordinate(2.0, 0.0);
-		
-		Coordinate p1 = new Coordinate(0.0, 0.0);
-		Coordinate p2 = new Coordinate(0.5, 1.0);
-		Coordinate p3 = new Coordinate(1.5, 1.0);
-		Coordinate p4 = new Coordinate(1.0, 0.0);
-		
-		Polygon g1 = geometryFactory.createPolygon(new Coordinate[] { p1, p2, p3, p4, p1 });
-//		Polygon g2 = geometryFactory.createPolygon(new Coordinate[] { p4, p3, p5, p6, p4 });
-		
-		PointLocator t = new PointLocator(new Polygon[] { g1});
+		private int deleteMin(int root) {
+			if (nodeLeft[root] < 0)
+				return nodeRight[root];
+			return balance(root, nodeSeg[root], deleteMin(nodeLeft[root]),
+					nodeRight[root]);
+		}
 
-		System.out.println("found: " + t.lookup(new Coordinate(0.4, 0.5)));
+		/**
+		 * Build a balanced tree of the active segments that remain in slab i
+		 */
+		private int rebuild(boolean[] active, int slab) {
+			double x = slab + 1 < slabX.length
+					? (slabX[slab] + slabX[slab + 1]) / 2
+					: slabX[slab];
+			Integer[] segs = new Integer[numSegments];
+			int num = 0;
+			for (int s = 0; s < numSegments; s++) {
+				if (active[s])
+					segs[num++] = s;
+			}
+			Arrays.sort(segs, 0, num, (a, b) -> compare(a, b, x));
+			return build(segs, 0, num);
+		}
 
+		private int build(Integer[] segs, int from, int to) {
+			if (from >= to)
+				return -1;
+			int mid = (from + to) >>> 1;
+			int left = build(segs, from, mid);
+			int right = build(segs, mid + 1, to);
+			return newNode(segs[mid], left, right);
+		}
 	}
 }
@@ -0,0 +1,58 @@
+package umichdb.coverage2;
+
+/**
+ * A static index over n points in d-dimensional space that answers rho-range
+ * counting queries. Implementations are built once from a flat row-major
+ * array of coordinates and are read-only afterwards, so a single index can be
+ * queried from several threads. A point is within rho if its distance is at
+ * most rho, compared as in DistanceKernel.squaredRadius.
+ */
+public interface SpatialIndex {
+	/**
+	 * Count the indexed points within distance rho (inclusive) of a query
+	 * point. The search stops as soon as the count reaches limit.
+	 *
+	 * @param point
+	 *            = array holding the query point
+	 * @param offset
+	 *            = index of the first coordinate of the query point
+	 * @param rho
+	 *            = vicinity value
+	 * @param limit
+	 *            = the count at which the search can stop
+	 * @return min(limit, number of points within rho)
+	 */
+	public default int countWithin(double[] point, int offset, double rho,
+			int limit) {
+		return countWithinSquared(point, offset,
+				DistanceKernel.squaredRadius(rho), limit);
+	}
+
+	/**
+	 * Count the indexed points whose squared distance to a query point, as
+	 * DistanceKernel sums it, is at most rho2. The search stops as soon as
+	 * the count reaches limit.
+	 *
+	 * @param point
+	 *            = array holding the query point
+	 * @param offset
+	 *            = index of the first coordinate of the query point
+	 * @param rho2
+	 *            = squared radius, e.g. DistanceKernel.squaredRadius(rho)
+	 * @param limit
+	 *            = the count at which the search can stop
+	 * @return min(limit, number of points within)
+	 */
+	public int countWithinSquared(double[] point, int offset, double rho2,
+			int limit);
+
+	/**
+	 * Number of indexed points
+	 */
+	public int size();
+
+	/**
+	 * Dimensionality of the indexed points
+	 */
+	public int dimension();
+}
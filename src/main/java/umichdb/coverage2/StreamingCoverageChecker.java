@@ -0,0 +1,662 @@
+package umichdb.coverage2;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+
+import smile.feature.Scaler;
+import umichdb.coverage2.CoverageMetrics.Counter;
+import umichdb.coverage2.CoverageMetrics.Stage;
+
+/**
+ * Exact coverage over a sliding window of a stream of rows: the last maxRows
+ * rows, the rows of the last maxAge time units, or both. Rows are pushed one
+ * at a time and expire in arrival order.
+ *
+ * The window is kept in a hash grid with cells of side rho, as in
+ * GridCoverageChecker. Each cell appends its points to an array and expires
+ * them from the front, and publishes the range in use; a slot is never
+ * written again once published, so queries read the grid without any lock
+ * and cost O(3^d) cell lookups plus the points in those cells. A push or an
+ * expiry costs O(d) amortized and locks only the cell it changes and the
+ * row itself, so several threads may push while others query.
+ *
+ * Watched regions are boxes of the rescaled space, sampled by a lattice of
+ * probe points. Every push and expiry updates the number of window rows
+ * within rho of the probes it reaches, and the listener of a region is told
+ * when the first probe loses coverage and when the last one regains it.
+ * Registering a watch does not stop pushes: each row records the last watch
+ * it was counted in, so that it is counted in a new watch exactly once,
+ * either by its push or by the registration.
+ *
+ * Rows are rescaled with a scaler fitted beforehand, e.g. on a reference
+ * sample of the stream; values outside its range are clamped to [0, 1].
+ */
+public class StreamingCoverageChecker implements CoverageChecker {
+	/**
+	 * Gets told when a watched region loses or regains coverage. It is called
+	 * on the thread whose push or expiry caused the change; with several
+	 * pushing threads the calls of one region may arrive out of order, so
+	 * use Watch.isCovered for the current state. Changes while the watch is
+	 * being registered are not told.
+	 */
+	public interface Listener {
+		void coverageChanged(Watch watch, boolean covered);
+	}
+
+	Scaler scaler;
+
+	int d;
+	int k;
+	double rho;
+	DistanceKernel kernel;
+
+	int maxRows; // 0 = no limit
+	long maxAge; // 0 = no limit
+
+	// Grid: packed cell coordinates -> cell. Cells are never removed, since
+	// there are at most (maxCell+1)^d of them.
+	ConcurrentHashMap<Long, Cell> cells = new ConcurrentHashMap<Long, Cell>();
+	int maxCell; // cell coordinates are 0..maxCell
+	int bitsPerDim;
+
+	// The window in arrival order
+	ConcurrentLinkedQueue<Entry> window = new ConcurrentLinkedQueue<Entry>();
+	AtomicInteger size = new AtomicInteger();
+
+	// Watches in the order of their ids; registrations lock the list
+	CopyOnWriteArrayList<Watch> watches = new CopyOnWriteArrayList<Watch>();
+	long lastWatchId; // guarded by watches
+
+	// Offsets of the 3^d neighbouring cells, the query's own cell first
+	int[] neighborOffsets;
+
+	static final double CELL_PADDING = 1e-9;
+	// probes of a watched region are at most rho / PROBES_PER_RHO apart
+	static final int PROBES_PER_RHO = 4;
+
+	/**
+	 * @param scaler
+	 *            = rescales the pushed rows
+	 * @param d
+	 *            = dimensionality of the rows
+	 * @param k
+	 *            = threshold value
+	 * @param rho
+	 *            = vicinity value
+	 * @param maxRows
+	 *            = size of a count-based window, 0 for none
+	 * @param maxAge
+	 *            = length of a time-based window in the unit of the
+	 *            timestamps, 0 for none
+	 */
+	public StreamingCoverageChecker(Scaler scaler, int d, int k, double rho,
+			int maxRows, long maxAge) {
+		if (rho <= 0) {
+			throw new IllegalArgumentException("rho must be positive: " + rho);
+		}
+		if (maxRows < 0 || maxAge < 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid window of %d rows and age %d", maxRows, maxAge));
+		}
+
+		this.scaler = scaler;
+		this.d = d;
+		this.k = k;
+		this.rho = rho;
+		this.maxRows = maxRows;
+		this.maxAge = maxAge;
+		this.kernel = DistanceKernel.of(d);
+
+		// Rescaled values lie in [0, 1], so the cell coordinates are small
+		// enough to pack into one long
+		this.maxCell = (int) Math.floor(1 / rho);
+		this.bitsPerDim = 32 - Integer.numberOfLeadingZeros(maxCell);
+		if (bitsPerDim * d > 63) {
+			throw new IllegalArgumentException(String.format(
+					"A grid of %d^%d cells is too fine, use a larger rho",
+					maxCell + 1, d));
+		}
+		this.neighborOffsets = createNeighborOffsets(d);
+	}
+
+	/**
+	 * Push a row stamped with the current time in milliseconds
+	 */
+	public void push(double[] rawRow) {
+		push(rawRow, System.currentTimeMillis());
+	}
+
+	/**
+	 * Push a row and expire the rows that fall out of the window
+	 *
+	 * @param rawRow
+	 *            = d values, rescaled with the scaler of the checker
+	 * @param timestamp
+	 *            = arrival time; rows expire in arrival order, so the
+	 *            timestamps of a stream should not decrease
+	 */
+	public void push(double[] rawRow, long timestamp) {
+		if (rawRow.length != d) {
+			throw new IllegalArgumentException(String.format(
+					"Row has %d values, expected %d", rawRow.length, d));
+		}
+		long start = CoverageMetrics.start();
+		Entry entry = new Entry(scaler.transform(rawRow), timestamp);
+		entry.cell = cells.computeIfAbsent(key(entry.point),
+				c -> new Cell(d));
+		entry.cell.add(entry);
+		window.add(entry);
+		size.incrementAndGet();
+		entry.enter(watches);
+		expireRows(timestamp);
+		CoverageMetrics.stop(Stage.UPDATE, start);
+		CoverageMetrics.count(Counter.ROWS_ADDED, 1);
+	}
+
+	/**
+	 * Expire the rows that are out of the window at the given time. Pushes do
+	 * this on their own; call it when a time-based window has to move on
+	 * while no rows arrive.
+	 *
+	 * @param now
+	 * @return the number of expired rows
+	 */
+	public int expire(long now) {
+		long start = CoverageMetrics.start();
+		int expired = expireRows(now);
+		CoverageMetrics.stop(Stage.UPDATE, start);
+		return expired;
+	}
+
+	// expire rows as expire does, timed as part of the caller's update
+	private int expireRows(long now) {
+		int expired = 0;
+		while (true) {
+			Entry head = window.peek();
+			if (head == null)
+				break;
+			boolean full = maxRows > 0 && size.get() > maxRows;
+			boolean old = maxAge > 0 && now - head.timestamp >= maxAge;
+			if (!full && !old)
+				break;
+			// Another thread may have taken the head meanwhile; only the
+			// one whose remove succeeds expires it
+			if (!window.remove(head))
+				continue;
+			size.decrementAndGet();
+			head.cell.remove(head);
+			head.leave(watches);
+			expired++;
+		}
+		if (expired > 0)
+			CoverageMetrics.count(Counter.ROWS_REMOVED, expired);
+		return expired;
+	}
+
+	/**
+	 * @return the number of rows in the window
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Check if a rescaled point is covered by the rows in the window
+	 */
+	@Override
+	public boolean ifCovered(double[] point) {
+		return ifCovered(point, false);
+	}
+
+	/**
+	 * Check if a point is covered by the rows in the window
+	 *
+	 * @param point
+	 * @param ifRescale
+	 *            = the point is raw and has to be rescaled first
+	 */
+	public boolean ifCovered(double[] point, boolean ifRescale) {
+		long start = CoverageMetrics.start();
+		if (ifRescale)
+			point = scaler.transform(point);
+		boolean covered = countWithin(point, 0, new int[d]) >= k;
+		CoverageMetrics.stop(Stage.QUERY, start);
+		CoverageMetrics.count(Counter.QUERIES, 1);
+		return covered;
+	}
+
+	/**
+	 * Check a batch of rescaled points
+	 */
+	@Override
+	public BitSet ifCoveredBatch(double[] points, int d) {
+		if (d != this.d || points.length % d != 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid batch of %d values for %d-d points, expected %d-d",
+					points.length, d, this.d));
+		}
+
+		long start = CoverageMetrics.start();
+		int numPoints = points.length / d;
+		int[] queryCell = new int[d];
+		BitSet covered = new BitSet(numPoints);
+		for (int i = 0; i < numPoints; i++) {
+			if (countWithin(points, i * d, queryCell) >= k)
+				covered.set(i);
+		}
+		CoverageMetrics.stop(Stage.QUERY_BATCH, start);
+		CoverageMetrics.count(Counter.QUERIES, numPoints);
+		return covered;
+	}
+
+	/**
+	 * Watch a box of the rescaled space. The box is sampled by a lattice of
+	 * probes at most rho/PROBES_PER_RHO apart, corners included, and counts as
+	 * covered iff all probes are covered. Pushes go on while the window is
+	 * counted; only other registrations wait.
+	 *
+	 * @param lo
+	 *            = lower corner
+	 * @param hi
+	 *            = upper corner
+	 * @param listener
+	 * @return the watch, which starts with the coverage of the current window
+	 */
+	public Watch watch(double[] lo, double[] hi, Listener listener) {
+		if (lo.length != d || hi.length != d) {
+			throw new IllegalArgumentException(String.format(
+					"Corners have %d and %d values, expected %d", lo.length,
+					hi.length, d));
+		}
+		Watch watch = new Watch(this, lo.clone(), hi.clone(), listener);
+		// A row counts in the watches up to the id it recorded, so the
+		// registrations must not overlap
+		synchronized (watches) {
+			watch.id = ++lastWatchId;
+			watches.add(watch);
+			for (Entry entry : window)
+				entry.enter(watch);
+		}
+		watch.started = true;
+		return watch;
+	}
+
+	/**
+	 * Stop watching a region
+	 */
+	public void unwatch(Watch watch) {
+		watches.remove(watch);
+	}
+
+	private int cellOf(double v) {
+		return (int) Math.floor(v / rho);
+	}
+
+	// the packed coordinates of the cell of a rescaled point
+	private long key(double[] point) {
+		long key = 0;
+		for (int dim = 0; dim < d; dim++) {
+			int c = Math.min(Math.max(cellOf(point[dim]), 0), maxCell);
+			key = (key << bitsPerDim) | c;
+		}
+		return key;
+	}
+
+	/**
+	 * Count the rows within rho of the query, stopping at k. queryCell is a
+	 * scratch array of length d.
+	 */
+	private int countWithin(double[] q, int offset, int[] queryCell) {
+		double rho2 = DistanceKernel.squaredRadius(rho);
+		// Cells are padded a little since floor(v / rho) may round a point
+		// into the neighbouring cell
+		double pad = CELL_PADDING * rho;
+		for (int dim = 0; dim < d; dim++)
+			queryCell[dim] = cellOf(q[offset + dim]);
+
+		int count = 0;
+		int numNeighbors = neighborOffsets.length / d;
+		neighbors : for (int nb = 0; nb < numNeighbors; nb++) {
+			// Distance range between the query and the neighbouring cell
+			double minDist2 = 0, maxDist2 = 0;
+			long key = 0;
+			for (int dim = 0; dim < d; dim++) {
+				int c = queryCell[dim] + neighborOffsets[nb * d + dim];
+				if (c < 0 || c > maxCell)
+					continue neighbors;
+				key = (key << bitsPerDim) | c;
+				double v = q[offset + dim];
+				// The last cell also holds the points at 1 and above
+				double lo = c * rho - pad;
+				double hi = c == maxCell
+						? Double.POSITIVE_INFINITY
+						: lo + rho + 2 * pad;
+				if (c == 0)
+					lo = Double.NEGATIVE_INFINITY;
+				if (v < lo)
+					minDist2 += (lo - v) * (lo - v);
+				else if (v > hi)
+					minDist2 += (v - hi) * (v - hi);
+				double far = Math.max(v - lo, hi - v);
+				maxDist2 += far * far;
+			}
+			if (minDist2 > rho2)
+				continue;
+
+			Cell cell = cells.get(key);
+			if (cell == null)
+				continue;
+			Cell.Rows rows = cell.rows;
+			double[] points = rows.points;
+			int num = rows.to - rows.from;
+			if (maxDist2 <= rho2) {
+				// The whole cell is inside the query ball
+				count += num;
+				if (count >= k)
+					return count;
+				continue;
+			}
+
+			for (int row = rows.from; row < rows.to; row++) {
+				if (kernel.within(points, row * d, q, offset, rho2)
+						&& ++count >= k)
+					return count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * All offsets in {-1,0,1}^d, starting with the all-zero offset
+	 */
+	private static int[] createNeighborOffsets(int d) {
+		int num = 1;
+		for (int dim = 0; dim < d; dim++)
+			num *= 3;
+		int[] offsets = new int[num * d];
+		for (int i = 0; i < num; i++) {
+			// Digit order 0, 1, -1 puts the query's own cell first
+			int code = i;
+			for (int dim = 0; dim < d; dim++) {
+				int digit = code % 3;
+				offsets[i * d + dim] = digit == 2 ? -1 : digit;
+				code /= 3;
+			}
+		}
+		return offsets;
+	}
+
+	/**
+	 * A row of the window. Its monitor orders its push and expiry against
+	 * the registration of watches.
+	 */
+	static final class Entry {
+		final double[] point; // rescaled
+		final long timestamp;
+		Cell cell;
+		int slot; // row of the cell's points, guarded by the cell
+
+		// guarded by the entry
+		boolean entered; // counted in the watches of its push
+		boolean expired;
+		long lastWatchId; // counted in the watches with ids up to this one
+
+		Entry(double[] point, long timestamp) {
+			this.point = point;
+			this.timestamp = timestamp;
+		}
+
+		// count the row in the watches registered so far
+		synchronized void enter(List<Watch> watches) {
+			if (expired)
+				return;
+			for (Watch watch : watches) {
+				watch.update(point, 1);
+				lastWatchId = Math.max(lastWatchId, watch.id);
+			}
+			entered = true;
+		}
+
+		// count the row in a watch being registered, unless its push does or
+		// did
+		synchronized void enter(Watch watch) {
+			if (!entered || expired || lastWatchId >= watch.id)
+				return;
+			watch.update(point, 1);
+			lastWatchId = watch.id;
+		}
+
+		// take the row out of the watches it was counted in
+		synchronized void leave(List<Watch> watches) {
+			expired = true;
+			for (Watch watch : watches) {
+				if (watch.id <= lastWatchId)
+					watch.update(point, -1);
+			}
+		}
+	}
+
+	/**
+	 * The rows of one grid cell. Writers lock the cell, append points after
+	 * the published range and move its start past expired ones; once the
+	 * array is full they copy the live rows to a new one. Readers only read
+	 * the published Rows.
+	 */
+	static final class Cell {
+		/**
+		 * Rows from..to of points are the cell's, and stay as they are
+		 */
+		static final class Rows {
+			final double[] points;
+			final int from;
+			final int to;
+
+			Rows(double[] points, int from, int to) {
+				this.points = points;
+				this.from = from;
+				this.to = to;
+			}
+		}
+
+		static final int MIN_CAPACITY = 4;
+
+		final int d;
+		volatile Rows rows = new Rows(new double[0], 0, 0);
+		// guarded by the cell: rows head..tail of points are live
+		double[] points = new double[0];
+		Entry[] entries = new Entry[0];
+		int head, tail;
+
+		Cell(int d) {
+			this.d = d;
+		}
+
+		synchronized void add(Entry entry) {
+			if (tail == entries.length)
+				copyLive(null, Math.max(MIN_CAPACITY, 2 * (tail - head + 1)));
+			System.arraycopy(entry.point, 0, points, tail * d, d);
+			entries[tail] = entry;
+			entry.slot = tail++;
+			rows = new Rows(points, head, tail);
+		}
+
+		synchronized void remove(Entry entry) {
+			if (entry.slot == head) {
+				entries[head++] = null;
+			} else {
+				// Rows usually expire in the order they were added; when
+				// concurrent pushes or expiries reorder them, copy the rest
+				copyLive(entry, entries.length);
+			}
+			rows = new Rows(points, head, tail);
+		}
+
+		// copy the live rows but one to the front of new arrays
+		private void copyLive(Entry skip, int capacity) {
+			double[] newPoints = new double[capacity * d];
+			Entry[] newEntries = new Entry[capacity];
+			int n = 0;
+			for (int i = head; i < tail; i++) {
+				if (entries[i] == skip)
+					continue;
+				System.arraycopy(points, i * d, newPoints, n * d, d);
+				newEntries[n] = entries[i];
+				entries[i].slot = n;
+				n++;
+			}
+			points = newPoints;
+			entries = newEntries;
+			head = 0;
+			tail = n;
+		}
+	}
+
+	/**
+	 * A watched box. Each probe keeps the number of window rows within rho,
+	 * and the box keeps the number of probes with fewer than k of them.
+	 */
+	public static final class Watch {
+		final StreamingCoverageChecker checker;
+		final double[] lo;
+		final double[] hi;
+		final Listener listener;
+
+		final int[] probesPerDim;
+		final double[] step;
+		final AtomicIntegerArray counts;
+		final AtomicInteger uncovered;
+
+		long id; // set on registration
+		// the listener is told of changes once the window has been counted
+		volatile boolean started;
+
+		Watch(StreamingCoverageChecker checker, double[] lo, double[] hi,
+				Listener listener) {
+			int d = checker.d;
+			this.checker = checker;
+			this.lo = lo;
+			this.hi = hi;
+			this.listener = listener;
+
+			probesPerDim = new int[d];
+			step = new double[d];
+			long numProbes = 1;
+			double maxStep = checker.rho / PROBES_PER_RHO;
+			for (int dim = 0; dim < d; dim++) {
+				double width = hi[dim] - lo[dim];
+				if (!(width >= 0)) {
+					throw new IllegalArgumentException(String.format(
+							"Empty box [%f, %f] in dimension %d", lo[dim],
+							hi[dim], dim));
+				}
+				int intervals = (int) Math.ceil(width / maxStep);
+				probesPerDim[dim] = intervals + 1;
+				step[dim] = intervals == 0 ? 0 : width / intervals;
+				numProbes *= probesPerDim[dim];
+			}
+			if (numProbes > Integer.MAX_VALUE / 4) {
+				throw new IllegalArgumentException(String.format(
+						"The box needs %d probes, watch a smaller one",
+						numProbes));
+			}
+			counts = new AtomicIntegerArray((int) numProbes);
+			// no row counted yet
+			uncovered = new AtomicInteger(checker.k > 0 ? (int) numProbes : 0);
+		}
+
+		/**
+		 * @return true iff all probes are covered
+		 */
+		public boolean isCovered() {
+			return uncovered.get() == 0;
+		}
+
+		/**
+		 * @return the number of probes that are not covered
+		 */
+		public int getUncoveredProbes() {
+			return uncovered.get();
+		}
+
+		public int getProbes() {
+			return counts.length();
+		}
+
+		public double[] getLo() {
+			return lo.clone();
+		}
+
+		public double[] getHi() {
+			return hi.clone();
+		}
+
+		// a row entered (delta = 1) or left (delta = -1) the window
+		void update(double[] point, int delta) {
+			int k = checker.k;
+			forEachProbe(point, i -> {
+				int count = counts.addAndGet(i, delta);
+				if (delta > 0 && count == k) {
+					if (uncovered.decrementAndGet() == 0 && started
+							&& listener != null)
+						listener.coverageChanged(this, true);
+				} else if (delta < 0 && count == k - 1) {
+					if (uncovered.getAndIncrement() == 0 && started
+							&& listener != null)
+						listener.coverageChanged(this, false);
+				}
+			});
+		}
+
+		// visit the probes within rho of a point
+		private void forEachProbe(double[] point, IntConsumer action) {
+			int d = checker.d;
+			double rho = checker.rho;
+			int[] from = new int[d], to = new int[d];
+			for (int dim = 0; dim < d; dim++) {
+				if (point[dim] < lo[dim] - rho || point[dim] > hi[dim] + rho)
+					return;
+				if (step[dim] == 0) {
+					from[dim] = 0;
+					to[dim] = 0;
+					continue;
+				}
+				// one probe of slack on each side against rounding; the
+				// distance test below decides
+				from[dim] = Math.max(0, (int) Math
+						.floor((point[dim] - rho - lo[dim]) / step[dim]) - 1);
+				to[dim] = Math.min(probesPerDim[dim] - 1, (int) Math
+						.ceil((point[dim] + rho - lo[dim]) / step[dim]) + 1);
+			}
+
+			double rho2 = DistanceKernel.squaredRadius(rho);
+			int[] index = from.clone();
+			while (true) {
+				// squared distance, summed in dimension order as the kernels
+				double dist2 = 0;
+				int probe = 0;
+				for (int dim = 0; dim < d; dim++) {
+					double diff = point[dim] - (lo[dim] + index[dim] * step[dim]);
+					dist2 += diff * diff;
+					probe = probe * probesPerDim[dim] + index[dim];
+				}
+				if (dist2 <= rho2)
+					action.accept(probe);
+
+				int dim = d - 1;
+				while (dim >= 0 && index[dim] == to[dim]) {
+					index[dim] = from[dim];
+					dim--;
+				}
+				if (dim < 0)
+					return;
+				index[dim]++;
+			}
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package umichdb.coverage2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel construction of the cells of an order-k Voronoi diagram. The
+ * bounding box of the sites and the unit square is cut into tilesPerSide^2
+ * tiles. Every tile builds the diagram of its own sites plus a halo, clips
+ * the cells to the tile and maps the keys back to global site ids. The tiles
+ * are built independently on a ForkJoinPool and their cells are stitched into
+ * one diagram with a single point locator.
+ *
+ * The halo must hold the k nearest sites of every point in the tile. The
+ * distance r_k(q) from q to its k-th nearest site is 1-Lipschitz, so with
+ * r_k evaluated at the centers of a HALO_SAMPLES^2 grid over the tile,
+ * r_k(q) <= max r_k(sample) + (half diagonal of a grid cell) =: h for all q
+ * in the tile. All sites within h of the tile are taken, which makes the
+ * local keys equal to the global keys everywhere inside the tile.
+ *
+ * The result only depends on the sites, k and tilesPerSide, not on the
+ * number of threads: the local builds are seeded by the tile index and the
+ * cells are collected by tile index and key. Queries outside the
+ * tiles are answered by VoronoiKOrder.locateSites by brute force.
+ */
+class TiledVoronoiBuilder {
+	static final int HALO_SAMPLES = 4;
+	// Tiles smaller than this spend most of their time on the halo
+	static final int MIN_SITES_PER_TILE = 256;
+	// Tiles per thread, to balance tiles of different density
+	static final int TILES_PER_THREAD = 4;
+
+	final SiteTable sites;
+	final int k;
+	final int tilesPerSide;
+
+	// Tile grid
+	double minX, minY, tileWidth, tileHeight;
+
+	// Clipped cells of every tile, keyed by global ids
+	final List<ArrayList<VoronoiPolygon>> tileCells;
+
+	/**
+	 * @param S
+	 *            = the sites; they get ids in the order of S as in
+	 *            VoronoiKOrder
+	 * @param k
+	 * @param tilesPerSide
+	 */
+	TiledVoronoiBuilder(Collection<Point2D> S, int k, int tilesPerSide) {
+		if (tilesPerSide <= 0) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid number of tiles per side: %d", tilesPerSide));
+		}
+		this.sites = new SiteTable();
+		for (Point2D p : S)
+			sites.add(p);
+		this.k = Math.max(1, Math.min(k, sites.size - 1));
+		this.tilesPerSide = tilesPerSide;
+
+		minX = 0;
+		minY = 0;
+		double maxX = 1, maxY = 1;
+		for (int p = 0; p < sites.numIds; p++) {
+			minX = Math.min(minX, sites.x[p]);
+			minY = Math.min(minY, sites.y[p]);
+			maxX = Math.max(maxX, sites.x[p]);
+			maxY = Math.max(maxY, sites.y[p]);
+		}
+		tileWidth = (maxX - minX) / tilesPerSide;
+		tileHeight = (maxY - minY) / tilesPerSide;
+
+		tileCells = new ArrayList<ArrayList<VoronoiPolygon>>();
+		for (int t = 0; t < tilesPerSide * tilesPerSide; t++)
+			tileCells.add(null);
+	}
+
+	/**
+	 * Build the diagram of the sites in S tile by tile
+	 *
+	 * @param S
+	 * @param k
+	 * @param tilesPerSide
+	 * @param pool
+	 *            = the pool that builds the tiles
+	 * @return a diagram with cells and a point locator, but without edges and
+	 *         vertices
+	 */
+	static VoronoiKOrder build(Collection<Point2D> S, int k, int tilesPerSide,
+			ForkJoinPool pool) {
+		TiledVoronoiBuilder builder = new TiledVoronoiBuilder(S, k,
+				tilesPerSide);
+		pool.invoke(builder.new TileTask(0, tilesPerSide * tilesPerSide));
+
+		ArrayList<VoronoiPolygon> cells = new ArrayList<VoronoiPolygon>();
+		for (ArrayList<VoronoiPolygon> tile : builder.tileCells)
+			cells.addAll(tile);
+		return new VoronoiKOrder(builder.sites, builder.k, cells);
+	}
+
+	/**
+	 * Choose the number of tiles per side: enough tiles to keep all threads
+	 * busy, but not so many that the halos dominate
+	 *
+	 * @param numSites
+	 * @param k
+	 * @param parallelism
+	 * @return
+	 */
+	static int defaultTilesPerSide(int numSites, int k, int parallelism) {
+		int bySize = (int) Math.sqrt(
+				(double) numSites / Math.max(MIN_SITES_PER_TILE, 4 * k));
+		int byThreads = (int) Math.ceil(
+				Math.sqrt((double) TILES_PER_THREAD * parallelism));
+		return Math.max(1, Math.min(bySize, byThreads));
+	}
+
+	/**
+	 * Builds the tiles in [from, to), splitting the range until a single tile
+	 * is left
+	 */
+	class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int from, to;
+
+		TileTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				tileCells.set(from, buildTile(from));
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new TileTask(from, mid), new TileTask(mid, to));
+		}
+	}
+
+	/**
+	 * Build the clipped cells of one tile
+	 *
+	 * @param tile
+	 *            = row * tilesPerSide + column
+	 * @return
+	 */
+	ArrayList<VoronoiPolygon> buildTile(int tile) {
+		int column = tile % tilesPerSide, row = tile / tilesPerSide;
+		double x1 = minX + column * tileWidth;
+		double y1 = minY + row * tileHeight;
+		// The last tiles end exactly at the far side of the box
+		double x2 = column == tilesPerSide - 1 ? minX + tilesPerSide * tileWidth
+				: x1 + tileWidth;
+		double y2 = row == tilesPerSide - 1 ? minY + tilesPerSide * tileHeight
+				: y1 + tileHeight;
+
+		// Halo radius from r_k at the centers of a grid over the tile
+		double[] dist2 = new double[sites.size];
+		double sampleWidth = (x2 - x1) / HALO_SAMPLES;
+		double sampleHeight = (y2 - y1) / HALO_SAMPLES;
+		double maxRk2 = 0;
+		for (int i = 0; i < HALO_SAMPLES; i++) {
+			for (int j = 0; j < HALO_SAMPLES; j++) {
+				double qx = x1 + (i + 0.5) * sampleWidth;
+				double qy = y1 + (j + 0.5) * sampleHeight;
+				int num = 0;
+				for (int p = 0; p < sites.numIds; p++) {
+					if (sites.isLive(p))
+						dist2[num++] = (sites.x[p] - qx) * (sites.x[p] - qx)
+								+ (sites.y[p] - qy) * (sites.y[p] - qy);
+				}
+				maxRk2 = Math.max(maxRk2, kthSmallest(dist2, num, k));
+			}
+		}
+		double halo = Math.sqrt(maxRk2)
+				+ 0.5 * Math.hypot(sampleWidth, sampleHeight);
+		// A little slack for the rounding of the distances
+		halo = halo * (1 + 1e-9) + 1e-12;
+
+		// Sites within the halo of the tile, in id order
+		int[] local = new int[sites.size];
+		List<Point2D> localSites = new ArrayList<Point2D>();
+		for (int p = 0; p < sites.numIds; p++) {
+			if (!sites.isLive(p))
+				continue;
+			double dx = Math.max(0, Math.max(x1 - sites.x[p], sites.x[p] - x2));
+			double dy = Math.max(0, Math.max(y1 - sites.y[p], sites.y[p] - y2));
+			if (dx * dx + dy * dy <= halo * halo) {
+				local[localSites.size()] = p;
+				localSites.add(sites.point(p));
+			}
+		}
+
+		ArrayList<VoronoiPolygon> cells = new ArrayList<VoronoiPolygon>();
+		if (localSites.size() <= k)
+			return cells;
+		// Seeded by the tile so that the vertices are rounded the same way in
+		// every build
+		VoronoiKOrder diagram = new VoronoiKOrder(localSites, k, false,
+				new Random(tile));
+
+		int[] key = new int[k];
+		double[] xs = new double[16], ys = new double[16];
+		for (VoronoiPolygon poly : diagram.polygonList) {
+			int n = poly.npoints;
+			// Clipping a convex polygon adds at most one vertex per side
+			if (xs.length < n + 4) {
+				xs = new double[2 * (n + 4)];
+				ys = new double[2 * (n + 4)];
+			}
+			System.arraycopy(poly.xpoints, 0, xs, 0, n);
+			System.arraycopy(poly.ypoints, 0, ys, 0, n);
+			n = clip(xs, ys, n, true, x1, true);
+			n = clip(xs, ys, n, true, x2, false);
+			n = clip(xs, ys, n, false, y1, true);
+			n = clip(xs, ys, n, false, y2, false);
+			if (n < 3)
+				continue;
+
+			for (int i = 0; i < poly.regionKey.size(); i++)
+				key[i] = local[poly.regionKey.get(i)];
+			VoronoiPolygon cell = new VoronoiPolygon(
+					SiteSet.of(key, poly.regionKey.size()));
+			addCanonical(cell, xs, ys, n);
+			if (cell.npoints >= 3)
+				cells.add(cell);
+		}
+
+		cells.sort((a, b) -> a.regionKey.compareTo(b.regionKey));
+		return cells;
+	}
+
+	/**
+	 * Add the vertices to the cell counterclockwise, starting with the
+	 * lowest vertex in (x, y) order
+	 */
+	private static void addCanonical(VoronoiPolygon cell, double[] xs,
+			double[] ys, int n) {
+		double area = 0;
+		int first = 0;
+		for (int i = 0; i < n; i++) {
+			int j = (i + 1) % n;
+			area += xs[i] * ys[j] - xs[j] * ys[i];
+			if (xs[i] < xs[first] || (xs[i] == xs[first] && ys[i] < ys[first]))
+				first = i;
+		}
+		int step = area >= 0 ? 1 : n - 1;
+		for (int i = 0, v = first; i < n; i++, v = (v + step) % n)
+			cell.addPoint(xs[v], ys[v]);
+	}
+
+	/**
+	 * Clip a convex polygon against an axis-parallel half plane
+	 * (Sutherland-Hodgman), in place. The crossing point of an edge is
+	 * computed from its endpoints in a fixed order, so the two cells on either
+	 * side of the edge get exactly the same vertex.
+	 *
+	 * @param xs
+	 * @param ys
+	 * @param n
+	 *            = number of vertices
+	 * @param vertical
+	 *            = true for the line x = value, false for y = value
+	 * @param value
+	 * @param keepAbove
+	 *            = keep the side with coordinates >= value
+	 * @return the number of vertices after clipping
+	 */
+	static int clip(double[] xs, double[] ys, int n, boolean vertical,
+			double value, boolean keepAbove) {
+		if (n == 0)
+			return 0;
+		double[] inX = xs.clone(), inY = ys.clone();
+		int num = 0;
+		for (int i = 0; i < n; i++) {
+			int j = (i + 1) % n;
+			boolean inI = inside(inX[i], inY[i], vertical, value, keepAbove);
+			boolean inJ = inside(inX[j], inY[j], vertical, value, keepAbove);
+			if (inI) {
+				xs[num] = inX[i];
+				ys[num] = inY[i];
+				num++;
+			}
+			if (inI != inJ) {
+				// Order the endpoints so the result does not depend on the
+				// direction of the edge
+				int a = i, b = j;
+				if (inX[b] < inX[a] || (inX[b] == inX[a] && inY[b] < inY[a])) {
+					a = j;
+					b = i;
+				}
+				if (vertical) {
+					double t = (value - inX[a]) / (inX[b] - inX[a]);
+					xs[num] = value;
+					ys[num] = inY[a] + t * (inY[b] - inY[a]);
+				} else {
+					double t = (value - inY[a]) / (inY[b] - inY[a]);
+					xs[num] = inX[a] + t * (inX[b] - inX[a]);
+					ys[num] = value;
+				}
+				num++;
+			}
+		}
+		return num;
+	}
+
+	private static boolean inside(double x, double y, boolean vertical,
+			double value, boolean keepAbove) {
+		double v = vertical ? x : y;
+		return keepAbove ? v >= value : v <= value;
+	}
+
+	/**
+	 * The k-th smallest of the first n values (1-based k), reordering them
+	 */
+	static double kthSmallest(double[] values, int n, int k) {
+		int target = Math.min(k, n) - 1;
+		int lo = 0, hi = n - 1;
+		while (lo < hi) {
+			double pivot = values[(lo + hi) >>> 1];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (values[i] < pivot)
+					i++;
+				while (values[j] > pivot)
+					j--;
+				if (i <= j) {
+					double tmp = values[i];
+					values[i] = values[j];
+					values[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (target <= j)
+				hi = j;
+			else if (target >= i)
+				lo = i;
+			else
+				break;
+		}
+		return values[target];
+	}
+}
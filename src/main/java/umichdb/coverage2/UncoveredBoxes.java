@@ -0,0 +1,410 @@
+package umichdb.coverage2;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The uncovered part of the rescaled space [0, 1]^d as predicted by the
+ * decision tree of an approximate MithraCoverageChecker, as axis-aligned
+ * boxes. The region of every highest subtree whose leaves are all labelled
+ * uncovered is one box, clipped to the space, so boxes do not overlap and
+ * their volumes add up. Boxes from different subtrees are then merged where
+ * two of them share a whole face, which happens where the tree splits at the
+ * same threshold in both subtrees.
+ *
+ * The boxes are indexed by an R-tree packed with Sort-Tile-Recursive (STR):
+ * the boxes are sorted by their centers into slabs along the first
+ * dimension, each slab along the second, and so on, and runs of NODE_SIZE
+ * boxes become the leaves. Boxes are treated as closed, so a query box that
+ * only touches a box intersects it. The object is read-only and may be shared
+ * between threads.
+ */
+public final class UncoveredBoxes {
+	static final int NODE_SIZE = 16;
+
+	final int d;
+	final String[] names;
+	final int numBoxes;
+	// Boxes in the order of the R-tree, row-major
+	final double[] lo;
+	final double[] hi;
+
+	// Nodes by level, leaves first and the root last. Leaf i holds boxes
+	// [childStart[i], childEnd[i]); a node above holds those nodes.
+	int numNodes;
+	int numLeaves;
+	int[] childStart;
+	int[] childEnd;
+	double[] nodeLo;
+	double[] nodeHi;
+
+	/**
+	 * @param d
+	 * @param names
+	 *            = the names of the dimensions
+	 * @param boxLo
+	 *            = lower corners of the boxes, row-major
+	 * @param boxHi
+	 *            = upper corners of the boxes, row-major
+	 */
+	UncoveredBoxes(int d, String[] names, double[] boxLo, double[] boxHi) {
+		this.d = d;
+		this.names = names;
+		this.numBoxes = boxLo.length / d;
+
+		Integer[] order = new Integer[numBoxes];
+		for (int i = 0; i < numBoxes; i++)
+			order[i] = i;
+		strSort(order, 0, numBoxes, 0, boxLo, boxHi);
+		lo = new double[numBoxes * d];
+		hi = new double[numBoxes * d];
+		for (int i = 0; i < numBoxes; i++) {
+			System.arraycopy(boxLo, order[i] * d, lo, i * d, d);
+			System.arraycopy(boxHi, order[i] * d, hi, i * d, d);
+		}
+		pack();
+	}
+
+	/**
+	 * The uncovered subtrees of a flat tree, clipped to [0, 1]^d and merged
+	 *
+	 * @param tree
+	 * @param names
+	 *            = the names of the dimensions
+	 * @return
+	 */
+	static UncoveredBoxes of(FlatDecisionTree tree, String[] names) {
+		int d = tree.d;
+		List<double[]> boxes = new ArrayList<double[]>();
+		double[] box = new double[2 * d];
+		Arrays.fill(box, d, 2 * d, 1);
+		if (collect(tree, 0, box, boxes))
+			boxes.add(box);
+		merge(boxes, d);
+
+		double[] boxLo = new double[boxes.size() * d];
+		double[] boxHi = new double[boxes.size() * d];
+		for (int i = 0; i < boxes.size(); i++) {
+			System.arraycopy(boxes.get(i), 0, boxLo, i * d, d);
+			System.arraycopy(boxes.get(i), d, boxHi, i * d, d);
+		}
+		return new UncoveredBoxes(d, names, boxLo, boxHi);
+	}
+
+	/**
+	 * Add the uncovered parts below a node whose region within the space is
+	 * box (lower corner, then upper corner). If all of the region is
+	 * uncovered nothing is added and true is returned, so that the caller
+	 * adds the region of the highest such node as one box.
+	 */
+	private static boolean collect(FlatDecisionTree tree, int node,
+			double[] box, List<double[]> boxes) {
+		if (isEmpty(box, tree.d))
+			return true;
+		if (tree.left[node] == node)
+			return tree.label[node] == 0;
+		int d = tree.d;
+		int f = tree.feature[node];
+		double t = tree.threshold[node];
+		double[] left = box.clone();
+		left[d + f] = Math.min(left[d + f], t);
+		boolean leftUncovered = collect(tree, tree.left[node], left, boxes);
+		double[] right = box.clone();
+		right[f] = Math.max(right[f], t);
+		boolean rightUncovered = collect(tree, tree.right[node], right,
+				boxes);
+		if (leftUncovered && rightUncovered)
+			return true;
+		if (leftUncovered && !isEmpty(left, d))
+			boxes.add(left);
+		if (rightUncovered && !isEmpty(right, d))
+			boxes.add(right);
+		return false;
+	}
+
+	/**
+	 * Merge boxes that share a whole face until none do: for each dimension
+	 * in turn, the boxes are grouped by their extents in all other dimensions
+	 * and sorted along it, and runs that touch end to start are joined. A
+	 * merged box can share a face with another one along a dimension done
+	 * before, so the passes repeat until nothing is joined.
+	 *
+	 * @param boxes
+	 *            = lower corner, then upper corner of each box
+	 * @param d
+	 */
+	static void merge(List<double[]> boxes, int d) {
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int dim = 0; dim < d; dim++) {
+				final int along = dim;
+				boxes.sort((a, b) -> {
+					for (int i = 0; i < d; i++) {
+						if (i == along)
+							continue;
+						int c = Double.compare(a[i], b[i]);
+						if (c == 0)
+							c = Double.compare(a[d + i], b[d + i]);
+						if (c != 0)
+							return c;
+					}
+					return Double.compare(a[along], b[along]);
+				});
+				List<double[]> joined = new ArrayList<double[]>(boxes.size());
+				double[] last = null;
+				for (double[] box : boxes) {
+					if (last != null && last[d + along] == box[along]
+							&& sameExceptAlong(last, box, d, along)) {
+						last[d + along] = box[d + along];
+						merged = true;
+					} else {
+						joined.add(box);
+						last = box;
+					}
+				}
+				boxes.clear();
+				boxes.addAll(joined);
+			}
+		}
+	}
+
+	private static boolean sameExceptAlong(double[] a, double[] b, int d,
+			int along) {
+		for (int i = 0; i < d; i++) {
+			if (i != along && (a[i] != b[i] || a[d + i] != b[d + i]))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isEmpty(double[] box, int d) {
+		for (int i = 0; i < d; i++) {
+			if (box[i] >= box[d + i])
+				return true;
+		}
+		return false;
+	}
+
+	// order boxes [from, to) so that runs of NODE_SIZE are compact, by
+	// slabs along dimension dim and recursively along the next ones
+	private void strSort(Integer[] order, int from, int to, int dim,
+			double[] boxLo, double[] boxHi) {
+		Comparator<Integer> byCenter = Comparator.comparingDouble(
+				i -> boxLo[i * d + dim] + boxHi[i * d + dim]);
+		Arrays.sort(order, from, to, byCenter);
+		int n = to - from;
+		if (dim == d - 1 || n <= NODE_SIZE)
+			return;
+		int leaves = (n + NODE_SIZE - 1) / NODE_SIZE;
+		int slabs = (int) Math.ceil(Math.pow(leaves, 1.0 / (d - dim)));
+		int slabSize = NODE_SIZE * ((leaves + slabs - 1) / slabs);
+		for (int start = from; start < to; start += slabSize)
+			strSort(order, start, Math.min(to, start + slabSize), dim + 1,
+					boxLo, boxHi);
+	}
+
+	// build the levels of the tree over the sorted boxes
+	private void pack() {
+		int capacity = 1;
+		for (int n = (numBoxes + NODE_SIZE - 1) / NODE_SIZE; n > 1; n = (n
+				+ NODE_SIZE - 1) / NODE_SIZE)
+			capacity += n;
+		childStart = new int[capacity];
+		childEnd = new int[capacity];
+		nodeLo = new double[capacity * d];
+		nodeHi = new double[capacity * d];
+
+		// the leaves, then each level over the one below
+		int levelStart = 0, levelEnd = numBoxes;
+		boolean leaves = true;
+		do {
+			int first = numNodes;
+			for (int start = levelStart; start < levelEnd; start += NODE_SIZE) {
+				int node = numNodes++;
+				childStart[node] = start;
+				childEnd[node] = Math.min(levelEnd, start + NODE_SIZE);
+				double[] childLo = leaves ? lo : nodeLo;
+				double[] childHi = leaves ? hi : nodeHi;
+				Arrays.fill(nodeLo, node * d, node * d + d,
+						Double.POSITIVE_INFINITY);
+				Arrays.fill(nodeHi, node * d, node * d + d,
+						Double.NEGATIVE_INFINITY);
+				for (int c = childStart[node]; c < childEnd[node]; c++) {
+					for (int i = 0; i < d; i++) {
+						nodeLo[node * d + i] = Math.min(nodeLo[node * d + i],
+								childLo[c * d + i]);
+						nodeHi[node * d + i] = Math.max(nodeHi[node * d + i],
+								childHi[c * d + i]);
+					}
+				}
+			}
+			if (leaves)
+				numLeaves = numNodes;
+			leaves = false;
+			levelStart = first;
+			levelEnd = numNodes;
+		} while (levelEnd - levelStart > 1);
+	}
+
+	public int size() {
+		return numBoxes;
+	}
+
+	public int dimension() {
+		return d;
+	}
+
+	/**
+	 * Lower corner of box i
+	 */
+	public double[] getLo(int i) {
+		return Arrays.copyOfRange(lo, i * d, i * d + d);
+	}
+
+	/**
+	 * Upper corner of box i
+	 */
+	public double[] getHi(int i) {
+		return Arrays.copyOfRange(hi, i * d, i * d + d);
+	}
+
+	/**
+	 * Volume of box i
+	 */
+	public double getVolume(int i) {
+		double volume = 1;
+		for (int j = 0; j < d; j++)
+			volume *= hi[i * d + j] - lo[i * d + j];
+		return volume;
+	}
+
+	/**
+	 * The uncovered volume of the space, a fraction of 1
+	 */
+	public double getVolume() {
+		double volume = 0;
+		for (int i = 0; i < numBoxes; i++)
+			volume += getVolume(i);
+		return volume;
+	}
+
+	/**
+	 * Find the boxes that intersect a query box
+	 *
+	 * @param queryLo
+	 *            = lower corner of the query box
+	 * @param queryHi
+	 *            = upper corner of the query box
+	 * @return the ids of the boxes, for getLo and getHi
+	 * @throws IllegalArgumentException
+	 *             if a lower bound is above its upper bound
+	 */
+	public int[] intersecting(double[] queryLo, double[] queryHi) {
+		checkQuery(queryLo, queryHi);
+		int[] found = new int[Math.min(numBoxes, 16)];
+		int numFound = 0;
+		if (numNodes == 0)
+			return found.clone();
+		int[] stack = new int[numNodes];
+		int top = 0;
+		stack[top++] = numNodes - 1;
+		while (top > 0) {
+			int node = stack[--top];
+			if (!overlaps(nodeLo, nodeHi, node, queryLo, queryHi))
+				continue;
+			for (int c = childStart[node]; c < childEnd[node]; c++) {
+				if (node >= numLeaves) {
+					stack[top++] = c;
+				} else if (overlaps(lo, hi, c, queryLo, queryHi)) {
+					if (numFound == found.length)
+						found = Arrays.copyOf(found, 2 * numFound);
+					found[numFound++] = c;
+				}
+			}
+		}
+		return Arrays.copyOf(found, numFound);
+	}
+
+	/**
+	 * The uncovered volume inside a query box, without sampling
+	 *
+	 * @param queryLo
+	 *            = lower corner of the query box
+	 * @param queryHi
+	 *            = upper corner of the query box
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if a lower bound is above its upper bound
+	 */
+	public double getVolume(double[] queryLo, double[] queryHi) {
+		double volume = 0;
+		for (int box : intersecting(queryLo, queryHi)) {
+			double part = 1;
+			for (int i = 0; i < d; i++) {
+				part *= Math.min(hi[box * d + i], queryHi[i])
+						- Math.max(lo[box * d + i], queryLo[i]);
+			}
+			volume += part;
+		}
+		return volume;
+	}
+
+	private void checkQuery(double[] queryLo, double[] queryHi) {
+		if (queryLo.length != d || queryHi.length != d) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid query box of %d-d and %d-d corners, expected %d-d",
+					queryLo.length, queryHi.length, d));
+		}
+		for (int i = 0; i < d; i++) {
+			if (!(queryLo[i] <= queryHi[i])) {
+				throw new IllegalArgumentException(String.format(
+						"Invalid query box [%f, %f] in dimension %d",
+						queryLo[i], queryHi[i], i));
+			}
+		}
+	}
+
+	private boolean overlaps(double[] boxLo, double[] boxHi, int box,
+			double[] queryLo, double[] queryHi) {
+		for (int i = 0; i < d; i++) {
+			if (boxLo[box * d + i] > queryHi[i]
+					|| queryLo[i] > boxHi[box * d + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the boxes as CSV, one per row, with the columns lo_name and
+	 * hi_name for the name of each dimension, in the rescaled space
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+			StringBuilder header = new StringBuilder();
+			for (String name : names)
+				header.append(header.length() == 0 ? "" : ",").append("lo_")
+						.append(name);
+			for (String name : names)
+				header.append(",hi_").append(name);
+			out.println(header);
+			for (int i = 0; i < numBoxes; i++) {
+				StringBuilder row = new StringBuilder();
+				for (int j = 0; j < d; j++)
+					row.append(j == 0 ? "" : ",").append(lo[i * d + j]);
+				for (int j = 0; j < d; j++)
+					row.append(',').append(hi[i * d + j]);
+				out.println(row);
+			}
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package umichdb.coverage2;
 
+import java.io.IOException;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
@@ -18,8 +20,9 @@ import smile.data.type.DataTypes;
 import smile.data.type.StructField;
 import smile.data.type.StructType;
 import smile.data.vector.BaseVector;
+import smile.feature.Scaler;
 import smile.io.CSV;
-import smile.math.distance.EuclideanDistance;
+import umichdb.coverage2.CoverageMetrics.Stage;
 
 public class Utils {
 //	final static long seed = 10;
@@ -61,6 +64,26 @@ public class Utils {
 	}
 
 
+	/**
+	 * Fit a scaler to a dataset, timed as Stage.SCALER_FIT
+	 */
+	static Scaler fitScaler(DataFrame data) {
+		long start = CoverageMetrics.start();
+		Scaler scaler = Scaler.fit(data);
+		CoverageMetrics.stop(Stage.SCALER_FIT, start);
+		return scaler;
+	}
+
+	/**
+	 * Rescale a dataset, timed as Stage.SCALE
+	 */
+	static DataFrame rescale(Scaler scaler, DataFrame data) {
+		long start = CoverageMetrics.start();
+		DataFrame scaled = scaler.transform(data);
+		CoverageMetrics.stop(Stage.SCALE, start);
+		return scaled;
+	}
+
 	static final String SCHEMA_NAME_COL = "Name";
 	static final String SCHEMA_TYPE_COL = "Type";
 	static final String SCHEMA_VALS_COL = "Values";
@@ -69,15 +92,40 @@ public class Utils {
 	static final String SCHEMA_TYPE_NOMINAL = "nominal";
 
 	/**
-	 * Load dataset from CSV file (using the schema information)
+	 * Load dataset from CSV file (using the schema information). Large files
+	 * should be converted once with ColumnarDatasetFile.fromCsv instead.
 	 * 
 	 * @param dataFileName
 	 * @param schemaFileName
 	 * @return
+	 * @throws IOException
+	 *             if a file cannot be read or parsed
 	 */
 	public static DataFrame loadDataSetFromCSV(String dataFileName,
-			String schemaFileName) {
-		// Load schema
+			String schemaFileName) throws IOException {
+		// Load data
+		CSV dataCsv = new CSV(CSVFormat.DEFAULT);
+		dataCsv.schema(loadSchema(schemaFileName));
+
+		try {
+			return dataCsv.read(dataFileName);
+		} catch (URISyntaxException | RuntimeException ex) {
+			throw new IOException("Failed to load file: " + dataFileName, ex);
+		}
+	}
+
+	/**
+	 * Load the schema file of a dataset. Every row names an attribute, its
+	 * type (continuous or nominal) and, for nominal attributes, the
+	 * comma-separated values; rows of any other type (e.g. the header) are
+	 * skipped.
+	 * 
+	 * @param schemaFileName
+	 * @return
+	 * @throws IOException
+	 *             if the file cannot be read or parsed
+	 */
+	static StructType loadSchema(String schemaFileName) throws IOException {
 		List<StructField> schemaFields = new ArrayList<StructField>();
 		schemaFields
 				.add(new StructField(SCHEMA_NAME_COL, DataTypes.StringType));
@@ -91,69 +139,70 @@ public class Utils {
 
 		// Build schema 
 		List<StructField> dataFields = new ArrayList<StructField>();
+		DataFrame schemaDf;
 		try {
-			DataFrame schemaDf = schemaCsv.read(schemaFileName);
-			for (int i = 0; i < schemaDf.size(); i++) {
-				String attrName = schemaDf.getString(i, SCHEMA_NAME_COL);
-				String typeName = schemaDf.getString(i, SCHEMA_TYPE_COL);
-				String values = schemaDf.getString(i, SCHEMA_VALS_COL);
-				switch (typeName) {
-					case SCHEMA_TYPE_CONTINUOUS : {
-						dataFields.add(new StructField(attrName,
-								DataTypes.DoubleType));
-						break;
-					}
-					case SCHEMA_TYPE_NOMINAL : {
-						dataFields.add(
-								new StructField(attrName, DataTypes.ByteType,
-										new NominalScale(values.split(","))));
-						break;
-					}
+			schemaDf = schemaCsv.read(schemaFileName);
+		} catch (URISyntaxException | RuntimeException ex) {
+			throw new IOException("Failed to load file: " + schemaFileName,
+					ex);
+		}
+		for (int i = 0; i < schemaDf.size(); i++) {
+			String attrName = schemaDf.getString(i, SCHEMA_NAME_COL);
+			String typeName = schemaDf.getString(i, SCHEMA_TYPE_COL);
+			String values = schemaDf.getString(i, SCHEMA_VALS_COL);
+			switch (typeName) {
+				case SCHEMA_TYPE_CONTINUOUS : {
+					dataFields.add(
+							new StructField(attrName, DataTypes.DoubleType));
+					break;
+				}
+				case SCHEMA_TYPE_NOMINAL : {
+					dataFields.add(new StructField(attrName, DataTypes.ByteType,
+							new NominalScale(values.split(","))));
+					break;
 				}
 			}
-
-		} catch (Exception ex) {
-			System.err.println("Failed to load file: " + ex);
-			ex.printStackTrace();
-			System.exit(-1);
-		}
-
-		// Load data
-		CSV dataCsv = new CSV(CSVFormat.DEFAULT);
-		dataCsv.schema(new StructType(dataFields));
-
-		try {
-			return dataCsv.read(dataFileName);
-		} catch (Exception ex) {
-			System.err.println("Failed to load file: " + ex);
-			ex.printStackTrace();
-			System.exit(-1);
 		}
-
-		return null;
-
+		return new StructType(dataFields);
 	}
 
 	/**
-	 * Get Euclidean distance between two tuples
+	 * Get Euclidean distance between two tuples. Hot loops should compare
+	 * squared distances through a DistanceKernel instead.
 	 * 
 	 * @param v1
 	 * @param v2
 	 * @return
 	 */
 	public static double getEuclideanDistance(Tuple v1, Tuple v2) {
-		return new EuclideanDistance().d(v1.toArray(), v2.toArray());
+		if (v1.length() != v2.length()) {
+			throw new IllegalArgumentException(
+					String.format("Tuples have different length: %d, %d",
+							v1.length(), v2.length()));
+		}
+		double sum = 0;
+		for (int i = 0; i < v1.length(); i++) {
+			double diff = v1.getDouble(i) - v2.getDouble(i);
+			sum += diff * diff;
+		}
+		return Math.sqrt(sum);
 	}
 
 	/**
-	 * Get Euclidean distance between two double arrays
+	 * Get Euclidean distance between two double arrays. Hot loops should
+	 * compare squared distances through a DistanceKernel instead.
 	 * 
 	 * @param v1
 	 * @param v2
 	 * @return
 	 */
 	public static double getEuclideanDistance(double[] v1, double[] v2) {
-		return new EuclideanDistance().d(v1, v2);
+		if (v1.length != v2.length) {
+			throw new IllegalArgumentException(
+					String.format("Arrays have different length: %d, %d",
+							v1.length, v2.length));
+		}
+		return Math.sqrt(DistanceKernel.of(v1.length).dist2(v1, 0, v2, 0));
 	}
 
 	public static void main(String[] args) {
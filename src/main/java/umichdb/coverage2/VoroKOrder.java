@@ -223,10 +223,10 @@ class GfxInteractor {
 								e.isCritical(activePoint)
 										? Color.BLUE
 										: Color.BLACK,
-								(int) e.critical1.getX(),
-								(int) e.critical1.getY(),
-								(int) e.critical2.getX(),
-								(int) e.critical2.getY());
+								(int) e.getCritical1().getX(),
+								(int) e.getCritical1().getY(),
+								(int) e.getCritical2().getX(),
+								(int) e.getCritical2().getY());
 					if (e.v1.getP().isAtInfinity())
 						return new GfxObj(1,
 								e.isCritical(activePoint)
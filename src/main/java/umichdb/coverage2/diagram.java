@@ -26,33 +26,34 @@ change history:
 
 import java.util.*;
 
-import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.GeometryFactory;
-import org.locationtech.jts.geom.Polygon;
+import umichdb.coverage2.CoverageMetrics.Counter;
+import umichdb.coverage2.CoverageMetrics.Stage;
+
 
 //KCircle implements common properties of edges and vertices:
-//it may be checked if a point is relevant or critical, and 
-//it may be chosen if relevant points should be inside (near diagrams)
-//or outside (far diagrams) the circle given by the critical points
+//it may be checked if a site (given by its id in the SiteTable) is relevant
+//or critical, and it may be chosen if relevant points should be inside (near
+//diagrams) or outside (far diagrams) the circle given by the critical points
 interface KCircle {
-	boolean isCritical(Point2D p);
-	boolean isRelevant(Point2D p);
+	boolean isCritical(int site);
+	boolean isRelevant(int site);
 
 	boolean relevantInside();
 	// setRelevantInside should check if the requested value
 	// of inside corresponds to the current state. If not, the
 	// new set of relevant points can ve computed from the set
 	// of all points S as: relevant=S-relevant-critical
-	void setRelevantInside(boolean inside, PointSet S);
+	void setRelevantInside(boolean inside, SiteTable S);
 }
 
 // VEdge represents an edge of a higher order Voronoi diagram.
 // The information held by this class is determined by the needs of
 // the algorithm implemented in VoronoiKOrder.
-// Edges are characterized by two critical and a set of relevant points.
+// Edges are characterized by two critical and a set of relevant points,
+// all given by their ids in the SiteTable of the diagram.
 // Usually, they are also connected to two vertices v1 and v2.
-// Edges are ordered by their critical and relevant points.
+// Edges are identified by their critical and relevant points; the
+// precomputed hash of the relevant set makes them cheap hash keys.
 // v1 and v2 are null whilst unconnected. If both are null,
 // the variable pointInside must be defined.
 // Legal state of VEdge are:
@@ -64,32 +65,34 @@ interface KCircle {
 // searched for the next vertex (as long as v1 or v2 is null).
 // Therefore, this order is switched whenever a new vertex is connected
 // or disconnected.
-class VEdge implements Comparable<VEdge>, KCircle {
+class VEdge implements KCircle {
 	// the state of the edge:
-	public PointSet relevant;
+	public SiteSet relevant;
 	public VVertex v1, v2;
-	public Point2D critical1, critical2;
+	public int critical1, critical2;
 	public Point2D pointInside;
 
+	private final SiteTable sites;
 	private Set<VEdge> edges;
-	private TreeMap<VEdge, VEdge> todo;
+	private Map<VEdge, VEdge> todo;
 	private boolean relevantInside;
-	
+
 	// constructor: the critical points must be provided at construction time;
 	// the sets todo and edges
 	// are provided so that an edge can automatically remove or add itself when
 	// a vertex is connected or
 	// disconnected. After construction, the new edge must be added to todo
 	// manually once the relevant
-	// points have been added.
-	public VEdge(Point2D p1, Point2D p2, TreeMap<VEdge, VEdge> todo,
+	// points have been set.
+	public VEdge(int p1, int p2, SiteTable sites, Map<VEdge, VEdge> todo,
 			Set<VEdge> edges, boolean relevantInside) {
+		this.sites = sites;
 		this.edges = edges;
 		this.todo = todo;
 		critical1 = p1;
 		critical2 = p2;
 		v1 = v2 = null;
-		relevant = new PointSet();
+		relevant = SiteSet.EMPTY;
 		pointInside = null;
 		this.relevantInside = relevantInside;
 	}
@@ -100,73 +103,75 @@ class VEdge implements Comparable<VEdge>, KCircle {
 	public String toString() {
 		return String.format(
 				"Crtitical(%s,%s); End points(%s,%s); Relevant(%s); PtsInside(%s), #edges(%d)",
-				this.critical1, this.critical2, this.v1, this.v2, this.relevant,
-				this.pointInside, this.edges.size());
+				getCritical1(), getCritical2(), this.v1, this.v2,
+				sites.toPointSet(relevant), this.pointInside,
+				this.edges.size());
+	}
+
+	// the critical points as points
+	public Point2D getCritical1() {
+		return sites.point(critical1);
+	}
+	public Point2D getCritical2() {
+		return sites.point(critical2);
 	}
 
-	// for consitency with compareTo
+	// edges are equal if they have the same critical and relevant points
 	public boolean equals(Object other) {
-		if (other == null)
+		if (this == other)
+			return true;
+		if (!(other instanceof VEdge))
 			return false;
-		if (other instanceof VEdge)
-			return compareTo((VEdge) other) == 0;
-		return other.equals(this);
+		VEdge e = (VEdge) other;
+		return c1() == e.c1() && c2() == e.c2() && relevant.equals(e.relevant);
 	}
 
-	public int compareTo(VEdge other) {
-		int c = c1().compareTo(other.c1());
-		if (c != 0)
-			return c;
-		c = c2().compareTo(other.c2());
-		if (c != 0)
-			return c;
-		return relevant.compareTo(other.relevant);
+	public int hashCode() {
+		long h = relevant.hash + Long.rotateLeft(
+				SiteSet.mix(critical1) + SiteSet.mix(critical2), 17);
+		return (int) (h ^ (h >>> 32));
 	}
 
-	// these functions return the smaller and bigger of the two critical points
-	// they should only be used by compareTo
-	public Point2D c1() {
-		if (critical1.compareTo(critical2) < 0)
-			return critical1;
-		return critical2;
+	// these functions return the smaller and bigger of the two critical ids
+	// they should only be used by equals
+	public int c1() {
+		return Math.min(critical1, critical2);
 	}
-	public Point2D c2() {
-		if (critical1.compareTo(critical2) < 0)
-			return critical2;
-		return critical1;
+	public int c2() {
+		return Math.max(critical1, critical2);
 	}
 
 	// the following methods are required by the interface KCircle
-	public boolean isCritical(Point2D p) {
-		if (p == null)
-			return false;
-		return (p.compareTo(critical1) == 0) || (p.compareTo(critical2) == 0);
+	public boolean isCritical(int site) {
+		return site == critical1 || site == critical2;
 	}
-	public boolean isRelevant(Point2D p) {
-		return relevant.contains(p);
+	public boolean isRelevant(int site) {
+		return relevant.contains(site);
+	}
+	public boolean isCritical(Point2D p) {
+		int site = sites.id(p);
+		return site >= 0 && isCritical(site);
 	}
 
 	public boolean relevantInside() {
 		return relevantInside;
 	}
-	public void setRelevantInside(boolean inside, PointSet S) {
+	public void setRelevantInside(boolean inside, SiteTable S) {
 		if (inside == relevantInside)
 			return;
 		relevantInside = inside;
-		PointSet newRelevant = new PointSet();
-		for (Iterator<Point2D> i = S.iterator(); i.hasNext();) {
-			Point2D p = i.next();
-			if (!relevant.contains(p))
-				newRelevant.add(p);
+		int[] newRelevant = new int[S.size];
+		int num = 0;
+		for (int p = 0; p < S.numIds; p++) {
+			if (S.isLive(p) && !relevant.contains(p) && !isCritical(p))
+				newRelevant[num++] = p;
 		}
-		newRelevant.remove(critical1);
-		newRelevant.remove(critical2);
-		relevant = newRelevant;
+		relevant = SiteSet.of(newRelevant, num);
 	}
 
 	// switch the critical points when a vertex is (dis)connected
 	private void flip() {
-		Point2D s = critical1;
+		int s = critical1;
 		critical1 = critical2;
 		critical2 = s;
 	}
@@ -218,18 +223,17 @@ class VEdge implements Comparable<VEdge>, KCircle {
 	}
 
 	// replace a point in the set of relevant points; this is
-	// used when a point is moved; as this affects the ordering
-	// the edge must be removed from the respective ordered set
+	// used when a point is moved; as this affects the hash
+	// the edge must be removed from the respective set
 	// before the operation.
-	public void replaceRelevant(Point2D po, Point2D pn) {
+	public void replaceRelevant(int po, int pn) {
 		if (!relevant.contains(po))
 			return;
 		if (v2 != null)
 			edges.remove(this);
 		else
 			todo.remove(this);
-		relevant.remove(po);
-		relevant.add(pn);
+		relevant = relevant.without(po).with(pn);
 		if (v2 != null)
 			edges.add(this);
 		else
@@ -238,6 +242,109 @@ class VEdge implements Comparable<VEdge>, KCircle {
 
 }
 
+// EdgeSet holds the finished edges of a diagram. Edges add and remove
+// themselves when vertices are (dis)connected, so once tracking is started
+// the set also keeps the edges of every cell and collects the keys of the
+// cells whose edges changed. Cell keys are the relevant sites plus one of the
+// critical sites, as in VoronoiKOrder.findPolygons.
+class EdgeSet extends LinkedHashSet<VEdge> {
+	private static final long serialVersionUID = 1L;
+
+	// cell key -> edges of the cell; null while not tracking
+	HashMap<SiteSet, ArrayList<VEdge>> cellEdges;
+	// keys of the cells whose edges changed since the last takeDirty
+	HashSet<SiteSet> dirty;
+	// true if the set was cleared while tracking, e.g. by a rebuild
+	boolean cleared;
+
+	// start tracking the edges of the cells
+	void track() {
+		cellEdges = new HashMap<SiteSet, ArrayList<VEdge>>();
+		dirty = new HashSet<SiteSet>();
+		cleared = false;
+		for (VEdge e : this)
+			addToCells(e);
+		dirty.clear();
+	}
+
+	boolean isTracking() {
+		return cellEdges != null;
+	}
+
+	// the keys of the cells that changed since the last call
+	Set<SiteSet> takeDirty() {
+		Set<SiteSet> changed = dirty;
+		dirty = new HashSet<SiteSet>();
+		return changed;
+	}
+
+	// the edges of a cell, null if it has none
+	List<VEdge> edgesOf(SiteSet key) {
+		return cellEdges.get(key);
+	}
+
+	@Override
+	public boolean add(VEdge e) {
+		boolean added = super.add(e);
+		if (added && cellEdges != null)
+			addToCells(e);
+		return added;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		boolean removed = super.remove(o);
+		if (removed && cellEdges != null) {
+			VEdge e = (VEdge) o;
+			removeFromCell(e.relevant.with(e.critical1), e);
+			removeFromCell(e.relevant.with(e.critical2), e);
+		}
+		return removed;
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		if (cellEdges != null) {
+			cellEdges.clear();
+			cleared = true;
+		}
+	}
+
+	private void addToCells(VEdge e) {
+		for (SiteSet key : new SiteSet[]{e.relevant.with(e.critical1),
+				e.relevant.with(e.critical2)}) {
+			ArrayList<VEdge> list = cellEdges.get(key);
+			if (list == null) {
+				list = new ArrayList<VEdge>(6);
+				cellEdges.put(key, list);
+			}
+			list.add(e);
+			dirty.add(key);
+		}
+	}
+
+	private void removeFromCell(SiteSet key, VEdge e) {
+		ArrayList<VEdge> list = cellEdges.get(key);
+		if (list == null)
+			return;
+		// the stored edge is nearly always e itself; equal edges are
+		// interchangeable for the shape of the cell
+		int index = -1;
+		for (int i = 0; i < list.size() && index < 0; i++) {
+			if (list.get(i) == e)
+				index = i;
+		}
+		if (index < 0)
+			index = list.indexOf(e);
+		if (index >= 0)
+			list.remove(index);
+		if (list.isEmpty())
+			cellEdges.remove(key);
+		dirty.add(key);
+	}
+}
+
 // VVertex is the a vertex of a higher order Voronoi diagram. It is
 // derived from Point2D and inherits the ordering of points. Vertices may
 // be located at infinity: the algorithm implemented in VoronoiKOrder
@@ -249,146 +356,159 @@ class VEdge implements Comparable<VEdge>, KCircle {
 // complex but spares us some additional considerations elsewhere.
 // Creation of a new VVertex takes three steps
 // (1) construct an instance
-// (2) set up the sets of relevant and critical points by adding points
+// (2) set up the sets of relevant and critical points
 // (3) invoke the complete(...) method (see below)
 class VVertex extends Point2D implements KCircle {
 
-	public VVertex(Point2D p, boolean relevantInside) {
+	public VVertex(Point2D p, SiteTable sites, boolean relevantInside) {
 		super(p);
+		this.sites = sites;
 		this.relevantInside = relevantInside;
-		critical = new PointSet();
-		relevant = new PointSet();
+		critical = SiteSet.EMPTY;
+		relevant = SiteSet.EMPTY;
 	}
 
 	/**
 	 * This method should be called after the vertex has been constructed and
-	 * all points have been added to the critical and relevant sets. It checks
-	 * the todo set for incident edges (constructing them if they don't exist)
-	 * and connects them. The cases of finite and infinite vertices are treated
-	 * differently.
+	 * the critical and relevant sets have been set. It checks the todo set for
+	 * incident edges (constructing them if they don't exist) and connects
+	 * them. The cases of finite and infinite vertices are treated differently.
 	 * 
 	 * @param n
 	 * @param k
 	 * @param todo
 	 * @param edges
 	 */
-	public void complete(int n, int k, TreeMap<VEdge, VEdge> todo,
+	public void complete(int n, int k, Map<VEdge, VEdge> todo,
 			Set<VEdge> edges) {
 		edgeList = new Vector<VEdge>();
 
-		Point2D orderedCritical[] = new Point2D[critical.size()];
-		PointSet sortedCritical;
-
 		// if the vertex is at infinity, the lexicographic order is fine;
 		// otherwise
 		// sort by angle
+		Integer[] sorted = new Integer[critical.size()];
+		for (int i = 0; i < sorted.length; i++)
+			sorted[i] = critical.get(i);
+		final Comparator<Point2D> order = isAtInfinity()
+				? Comparator.<Point2D>naturalOrder()
+				: new AngleComparator(this);
+		Arrays.sort(sorted,
+				(a, b) -> order.compare(sites.point(a), sites.point(b)));
+		int[] orderedCritical = new int[sorted.length];
+		for (int i = 0; i < sorted.length; i++)
+			orderedCritical[i] = sorted[i];
 
-		if (isAtInfinity()) {
-			sortedCritical = critical;
-		} else {
-			sortedCritical = new PointSet(new AngleComparator(this));
-			sortedCritical.addAll(critical);
-		}
-
-		Iterator<Point2D> j = sortedCritical.iterator();
-
-		for (int i = 0; i < critical.size(); i++) {
-			orderedCritical[i] = j.next();
-		}
 		int distance = relevantInside
 				? (k - relevant.size())
 				: (k - (n - critical.size() - relevant.size()));
 
+		int[] extra = new int[critical.size()];
+		int numEdges = isAtInfinity()
+				? critical.size() - distance
+				: critical.size();
+		boolean side = false;
 		if (isAtInfinity()) {
-			double dx = critical.last().getX() - critical.first().getX(),
-					dy = critical.last().getY() - critical.first().getY();
-			boolean side = getX() * dy - getY() * dx > 0; // side indicates on
-															// which side of the
-															// line (given by
-															// the ordered
-															// critical pints)
-															// the vertex lies
-
-			for (int i = 0; i < critical.size() - distance; i++) {
-				// construct edge
-				VEdge newEdge = side
-						? new VEdge(orderedCritical[i + distance],
-								orderedCritical[i], todo, edges, relevantInside)
-						: new VEdge(orderedCritical[i],
-								orderedCritical[i + distance], todo, edges,
-								relevantInside);
-				newEdge.relevant.addAll(relevant);
-				if (relevantInside)
-					for (int l = 1; l < distance; l++)
-						newEdge.relevant.add(orderedCritical[i + l]);
-				else
-					for (int l = 1; l < critical.size() - distance; l++)
-						newEdge.relevant.add(orderedCritical[(i + distance + l)
-								% critical.size()]);
-				// check if it exists
-				VEdge existingEdge = todo.get(newEdge);
-				// connect it
-				if (existingEdge == null) {
-					todo.put(newEdge, newEdge);
-					newEdge.connect(this);
-					edgeList.add(newEdge);
-				} else {
-					existingEdge.connect(this);
-					edgeList.add(existingEdge);
-				}
-			}
-		} else // vertex not at infinity
-		{
-			for (int i = 0; i < critical.size(); i++) {
-				// construct edge
-				VEdge newEdge = new VEdge(
+			Point2D first = sites.point(orderedCritical[0]);
+			Point2D last = sites.point(orderedCritical[critical.size() - 1]);
+			double dx = last.getX() - first.getX(),
+					dy = last.getY() - first.getY();
+			side = getX() * dy - getY() * dx > 0; // side indicates on which
+													// side of the line (given
+													// by the ordered critical
+													// pints) the vertex lies
+		}
+
+		for (int i = 0; i < numEdges; i++) {
+			// construct edge
+			VEdge newEdge;
+			if (!isAtInfinity())
+				newEdge = new VEdge(
 						orderedCritical[(i + distance) % critical.size()],
-						orderedCritical[i], todo, edges, relevantInside);
-				newEdge.relevant.addAll(relevant);
-				if (relevantInside)
-					for (int l = 1; l < distance; l++)
-						newEdge.relevant.add(
-								orderedCritical[(i + l) % critical.size()]);
-				else
-					for (int l = 1; l < critical.size() - distance; l++)
-						newEdge.relevant.add(orderedCritical[(i + distance + l)
-								% critical.size()]);
-				// check if it exists
-				VEdge existingEdge = todo.get(newEdge);
-				// connect it
-				if (existingEdge == null) {
-					todo.put(newEdge, newEdge);
-					newEdge.connect(this);
-					edgeList.add(newEdge);
-				} else {
-					existingEdge.connect(this);
-					edgeList.add(existingEdge);
-				}
+						orderedCritical[i], sites, todo, edges,
+						relevantInside);
+			else if (side)
+				newEdge = new VEdge(orderedCritical[i + distance],
+						orderedCritical[i], sites, todo, edges,
+						relevantInside);
+			else
+				newEdge = new VEdge(orderedCritical[i],
+						orderedCritical[i + distance], sites, todo, edges,
+						relevantInside);
+
+			int numExtra = 0;
+			if (relevantInside)
+				for (int l = 1; l < distance; l++)
+					extra[numExtra++] = orderedCritical[(i + l)
+							% critical.size()];
+			else
+				for (int l = 1; l < critical.size() - distance; l++)
+					extra[numExtra++] = orderedCritical[(i + distance + l)
+							% critical.size()];
+			newEdge.relevant = relevant.with(extra, numExtra);
+
+			// check if it exists
+			VEdge existingEdge = todo.get(newEdge);
+			// connect it
+			if (existingEdge == null) {
+				todo.put(newEdge, newEdge);
+				newEdge.connect(this);
+				edgeList.add(newEdge);
+			} else {
+				existingEdge.connect(this);
+				edgeList.add(existingEdge);
 			}
 		}
 	}
 
 	// these methods implement the KCircle interface:
+	public boolean isCritical(int site) {
+		return critical.contains(site);
+	}
+	public boolean isRelevant(int site) {
+		return relevant.contains(site);
+	}
 	public boolean isCritical(Point2D p) {
-		return critical.contains(p);
+		int site = sites.id(p);
+		return site >= 0 && isCritical(site);
 	}
 	public boolean isRelevant(Point2D p) {
-		return relevant.contains(p);
+		int site = sites.id(p);
+		return site >= 0 && isRelevant(site);
 	}
 	public boolean relevantInside() {
 		return relevantInside;
 	}
-	public void setRelevantInside(boolean inside, PointSet S) {
+	public void setRelevantInside(boolean inside, SiteTable S) {
 		if (inside == relevantInside)
 			return;
 		relevantInside = inside;
-		PointSet newRelevant = new PointSet();
-		for (Iterator<Point2D> i = S.iterator(); i.hasNext();) {
-			Point2D p = i.next();
-			if (!relevant.contains(p) && !critical.contains(p))
-				newRelevant.add(p);
+		int[] newRelevant = new int[S.size];
+		int num = 0;
+		for (int p = 0; p < S.numIds; p++) {
+			if (S.isLive(p) && !relevant.contains(p) && !critical.contains(p))
+				newRelevant[num++] = p;
 		}
-		relevant = newRelevant;
+		relevant = SiteSet.of(newRelevant, num);
+	}
+
+	// the lexicographically first and last critical points
+	private Point2D firstCritical() {
+		Point2D first = null;
+		for (int i = 0; i < critical.size(); i++) {
+			Point2D p = sites.point(critical.get(i));
+			if (first == null || p.compareTo(first) < 0)
+				first = p;
+		}
+		return first;
+	}
+	private Point2D lastCritical() {
+		Point2D last = null;
+		for (int i = 0; i < critical.size(); i++) {
+			Point2D p = sites.point(critical.get(i));
+			if (last == null || p.compareTo(last) > 0)
+				last = p;
+		}
+		return last;
 	}
 
 	// check wheter a new point (not yet in the set S) is in the relevant or
@@ -396,48 +516,50 @@ class VVertex extends Point2D implements KCircle {
 	public boolean inCriticalArea(Point2D p) {
 		// This method allows for numerical inaccuracies to really make
 		// sure that a vertex is destroyed when a new critical node is inserted.
-		if (isAtInfinity())
-			return Math.abs(VoronoiKOrder.distance(critical.first(),
-					critical.last(),
-					p)) <= 10E-10 * ((Math.abs(critical.first().getY())
-							+ Math.abs(critical.last().getY()))
+		Point2D first = firstCritical();
+		if (isAtInfinity()) {
+			Point2D last = lastCritical();
+			return Math.abs(VoronoiKOrder.distance(first, last,
+					p)) <= 10E-10 * ((Math.abs(first.getY())
+							+ Math.abs(last.getY()))
 							* (Math.abs(p.getX())
-									+ Math.abs(critical.first().getX()))
-							+ (Math.abs(critical.first().getX())
-									+ Math.abs(critical.last().getX()))
+									+ Math.abs(first.getX()))
+							+ (Math.abs(first.getX())
+									+ Math.abs(last.getX()))
 									* (Math.abs(p.getY()) + Math
-											.abs(critical.first().getY())));
-		double d1 = dist2(critical.first()), d2 = dist2(p);
+											.abs(first.getY())));
+		}
+		double d1 = dist2(first), d2 = dist2(p);
 		return Math.abs(d1 - d2) <= 10E-10 * (d1 + d2);
 	}
 	public boolean inRelevantArea(Point2D p) {
+		Point2D first = firstCritical();
 		if (isAtInfinity()) {
-			double side = VoronoiKOrder.distance(critical.first(),
-					critical.last(), p)
-					* VoronoiKOrder.distance(critical.first(), critical.last(),
-							new Point2D(critical.first().getX() + getX(),
-									critical.first().getY() + getY()));
+			Point2D last = lastCritical();
+			double side = VoronoiKOrder.distance(first, last, p)
+					* VoronoiKOrder.distance(first, last,
+							new Point2D(first.getX() + getX(),
+									first.getY() + getY()));
 			if (relevantInside)
 				return side > 0;
 			return side < 0;
 		}
 		if (relevantInside)
-			return dist2(critical.first()) > dist2(p);
-		return dist2(critical.first()) < dist2(p);
+			return dist2(first) > dist2(p);
+		return dist2(first) < dist2(p);
 	}
 
 	public Point2D getP() {
 		return this;
 	}
 
-	// return the sets of critical and relevant points; these sets
-	// are filled by the function that created the vertex before
-	// calling complete()
+	// return the sets of critical and relevant points as points; the
+	// engine itself works on the site ids in critical and relevant
 	public PointSet getCritical() {
-		return critical;
+		return sites.toPointSet(critical);
 	}
 	public PointSet getRelevant() {
-		return relevant;
+		return sites.toPointSet(relevant);
 	}
 
 	// the list of connected edges; available after complete() has been called
@@ -451,22 +573,108 @@ class VVertex extends Point2D implements KCircle {
 	}
 
 	// the private variables:
-	PointSet critical, relevant;
+	SiteSet critical, relevant;
 	boolean relevantInside;
+	private final SiteTable sites;
 
 	Vector<VEdge> edgeList;
 }
 
 // A polygon class for Voronoi diagram
 class VoronoiPolygon extends Polygon2D {
-	PointSet regionKey;
+	// ids of the k nearest sites of every point in the polygon
+	SiteSet regionKey;
 	public VoronoiPolygon() {
 		super();
-		regionKey = new PointSet();
+		regionKey = SiteSet.EMPTY;
 	}
-	public VoronoiPolygon(PointSet points) {
+	public VoronoiPolygon(SiteSet sites) {
 		super();
-		regionKey = points;
+		regionKey = sites;
+	}
+	public VoronoiPolygon(SiteSet sites, double[] xpoints, double[] ypoints,
+			int npoints) {
+		super(xpoints, ypoints, npoints);
+		regionKey = sites;
+	}
+
+	// Coverage of the whole polygon for a given rho: every point of the
+	// polygon has the key sites as its k nearest sites, so a point is covered
+	// iff all key sites are within rho of it
+	enum Coverage {
+		COVERED, UNCOVERED, MIXED
+	}
+
+	// Squared bounds on the distance to the farthest key site over the
+	// polygon; they do not depend on rho
+	double minFarthest2 = 0;
+	double maxFarthest2 = Double.POSITIVE_INFINITY;
+
+	// index of the polygon in the polygonList of the last locator built over
+	// it, -1 if it has only been in an overlay
+	int locatorId = -1;
+
+	/**
+	 * Compute the bounds on the distance to the farthest key site. That
+	 * distance is convex, so its maximum is attained at a vertex. Every point
+	 * is at least as far from the farthest key site as the polygon is from
+	 * any single key site, which gives the lower bound.
+	 */
+	void computeBounds(SiteTable sites) {
+		if (npoints < 3)
+			return;
+
+		maxFarthest2 = 0;
+		for (int i = 0; i < npoints; i++) {
+			for (int j = 0; j < regionKey.size(); j++) {
+				double dx = sites.x[regionKey.get(j)] - xpoints[i];
+				double dy = sites.y[regionKey.get(j)] - ypoints[i];
+				maxFarthest2 = Math.max(maxFarthest2, dx * dx + dy * dy);
+			}
+		}
+
+		minFarthest2 = 0;
+		for (int j = 0; j < regionKey.size(); j++)
+			minFarthest2 = Math.max(minFarthest2, distance2(
+					sites.x[regionKey.get(j)], sites.y[regionKey.get(j)]));
+	}
+
+	/**
+	 * Classify the polygon for vicinity rho. Polygons that cannot be decided
+	 * from the bounds are reported as mixed, which is always safe.
+	 * 
+	 * @param rho
+	 * @return
+	 */
+	Coverage classify(double rho) {
+		double rho2 = DistanceKernel.squaredRadius(rho);
+		if (maxFarthest2 <= rho2)
+			return Coverage.COVERED;
+		if (minFarthest2 > rho2)
+			return Coverage.UNCOVERED;
+		return Coverage.MIXED;
+	}
+
+	/**
+	 * Squared distance from (x,y) to the polygon, 0 inside
+	 */
+	double distance2(double x, double y) {
+		if (contains(x, y))
+			return 0;
+		double min = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < npoints; i++) {
+			int j = (i + 1) % npoints;
+			double ax = xpoints[i], ay = ypoints[i];
+			double ex = xpoints[j] - ax, ey = ypoints[j] - ay;
+			double len2 = ex * ex + ey * ey;
+			double t = len2 == 0
+					? 0
+					: Math.max(0,
+							Math.min(1, ((x - ax) * ex + (y - ay) * ey) / len2));
+			double dx = ax + t * ex - x, dy = ay + t * ey - y;
+			min = Math.min(min, dx * dx + dy * dy);
+		}
+		return min;
 	}
 
 	public String toString() {
@@ -474,6 +682,137 @@ class VoronoiPolygon extends Polygon2D {
 	}
 }
 
+// The cells replaced by VoronoiKOrder.changeSites, the cells that replace
+// them, and the ids of the sites that were added
+class CellChange {
+	final ArrayList<VoronoiPolygon> removed = new ArrayList<VoronoiPolygon>();
+	final ArrayList<VoronoiPolygon> added = new ArrayList<VoronoiPolygon>();
+	int[] addedIds;
+}
+
+// The cells of a VoronoiKOrder as queries see them: a locator over the cells
+// of the last build, the ids of those that have been replaced since, and an
+// overlay locator over their replacements. An index is never changed once
+// it is published, and the diagram publishes a new one after every change,
+// so any number of threads may look points up in it while the diagram is
+// being changed. Site coordinates are read from the arrays of the SiteTable
+// as they were at publication; the entries of existing ids never change.
+final class CellIndex {
+	final int k;
+	final ArrayList<VoronoiPolygon> polygonList;
+	final PointLocator locater;
+	// ids of the cells of polygonList that are no longer current, null if
+	// there are none
+	final BitSet replaced;
+	final ArrayList<VoronoiPolygon> overlayList;
+	final PointLocator overlayLocater;
+	// coordinates and ids of the live sites, for points outside the cells
+	final double[] x, y;
+	final int[] liveSites;
+
+	CellIndex(int k, ArrayList<VoronoiPolygon> polygonList,
+			PointLocator locater, BitSet replaced,
+			ArrayList<VoronoiPolygon> overlayList, PointLocator overlayLocater,
+			SiteTable sites) {
+		this.k = k;
+		this.polygonList = polygonList;
+		this.locater = locater;
+		this.replaced = replaced;
+		this.overlayList = overlayList;
+		this.overlayLocater = overlayLocater;
+		this.x = sites.x;
+		this.y = sites.y;
+		this.liveSites = new int[sites.size];
+		int num = 0;
+		for (int p = 0; p < sites.numIds; p++) {
+			if (sites.isLive(p))
+				liveSites[num++] = p;
+		}
+	}
+
+	/**
+	 * Get the polygon that contains point (x,y), see
+	 * VoronoiKOrder.locatePolygon
+	 */
+	VoronoiPolygon locatePolygon(double x, double y) {
+		if (overlayLocater != null) {
+			int id = overlayLocater.lookup(x, y);
+			if (id >= 0)
+				return overlayList.get(id);
+		}
+		int id = locater.lookup(x, y);
+		// A replaced cell not covered by the overlay, e.g. a sliver between
+		// new cells: let the caller find the nearest sites directly
+		if (id < 0 || replaced != null && replaced.get(id))
+			return null;
+		return polygonList.get(id);
+	}
+
+	/**
+	 * Get the ids of the k sites closest to point (x,y), see
+	 * VoronoiKOrder.locateSites
+	 */
+	SiteSet locateSites(double x, double y) {
+		VoronoiPolygon poly = locatePolygon(x, y);
+		if (poly != null)
+			return poly.regionKey;
+		CoverageMetrics.count(Counter.LOCATE_FALLBACKS, 1);
+		return nearestSites(x, y, k, this.x, this.y, liveSites,
+				liveSites.length);
+	}
+
+	// the k sites among ids[0..num) closest to (x,y), the earlier one on a
+	// tie, kept in a max-heap of size k ordered by distance then position
+	static SiteSet nearestSites(double x, double y, int k, double[] sx,
+			double[] sy, int[] ids, int num) {
+		int size = Math.min(k, num);
+		int[] heap = new int[size];
+		double[] dist = new double[size];
+		for (int i = 0; i < num; i++) {
+			int p = ids[i];
+			double d2 = (sx[p] - x) * (sx[p] - x) + (sy[p] - y) * (sy[p] - y);
+			// i is later than every entry, so it goes below the ones as far
+			int slot;
+			if (i < size) {
+				// sift up from the end
+				slot = i;
+				while (slot > 0 && dist[(slot - 1) / 2] <= d2) {
+					heap[slot] = heap[(slot - 1) / 2];
+					dist[slot] = dist[(slot - 1) / 2];
+					slot = (slot - 1) / 2;
+				}
+			} else if (d2 < dist[0]) {
+				// sift down from the root, which is replaced
+				slot = 0;
+				while (2 * slot + 1 < size) {
+					int child = 2 * slot + 1;
+					if (child + 1 < size && farther(dist, heap, child + 1,
+							child))
+						child++;
+					if (dist[child] <= d2)
+						break;
+					heap[slot] = heap[child];
+					dist[slot] = dist[child];
+					slot = child;
+				}
+			} else {
+				continue;
+			}
+			heap[slot] = i;
+			dist[slot] = d2;
+		}
+		int[] key = new int[size];
+		for (int i = 0; i < size; i++)
+			key[i] = ids[heap[i]];
+		return SiteSet.of(key, size);
+	}
+
+	// whether heap entry a is farther than b, or as far and later
+	private static boolean farther(double[] dist, int[] heap, int a, int b) {
+		return dist[a] > dist[b] || dist[a] == dist[b] && heap[a] > heap[b];
+	}
+}
+
 // VoronoiKOrder contains the data structures and methods to
 // create and describe (higher order) Voronoi diagrams. This includes
 // the set of points S. Methods are provided to
@@ -509,32 +848,68 @@ class VoronoiKOrder {
 	int k;
 	boolean kIsConstant;
 	PointSet sites;
-	TreeSet<VEdge> edges;
+	// the same sites by id, as used by edges, vertices and polygons
+	SiteTable siteTable;
+	EdgeSet edges;
 	PointSet vertices;
 
-	// Add polygons dictated by key point set
-	HashMap<PointSet, VoronoiPolygon> polygonKeyToPolygon;
+	// Add polygons dictated by key site set
+	HashMap<SiteSet, VoronoiPolygon> polygonKeyToPolygon;
 
 	// todo is only used during the construction
-	TreeMap<VEdge, VEdge> todo;
-	
+	Map<VEdge, VEdge> todo;
+
+	// Point location over the polygons, which are indexed as in polygonList
+	ArrayList<VoronoiPolygon> polygonList;
 	PointLocator locater;
 
+	// true if only the cells are known, e.g. built tile by tile or loaded
+	// from a file (no edges or vertices)
+	boolean cellsOnly;
+
+	// Cells created by changeSites since the locator was built. They are
+	// looked up before polygonList, whose replaced cells (replaced) are
+	// skipped; stale is true until the locator is rebuilt. overlayList is
+	// null until the first change.
+	ArrayList<VoronoiPolygon> overlayList;
+	BitSet replaced;
+	boolean stale;
+	// the locator is rebuilt once the overlay has more than 1/OVERLAY_FRACTION
+	// of the cells
+	static final int OVERLAY_FRACTION = 8;
+
+	// The cells for queries, published after every build and change; null
+	// until the locator is first built
+	volatile CellIndex index;
+
+	// picks the point where the construction starts
+	Random random = new Random();
+
 	// create an empty diagram:
 	public VoronoiKOrder() {
 		kIsConstant = true;
 		k = 1;
 		sites = new PointSet();
-		edges = new TreeSet<VEdge>();
+		siteTable = new SiteTable();
+		edges = new EdgeSet();
 		vertices = new PointSet();
 
-		todo = new TreeMap<VEdge, VEdge>();
+		todo = new LinkedHashMap<VEdge, VEdge>();
 
-		polygonKeyToPolygon = new HashMap<PointSet, VoronoiPolygon>();
+		polygonKeyToPolygon = new HashMap<SiteSet, VoronoiPolygon>();
 	}
 
-	// create diagram for the points in S:
+	// create diagram for the points in S; the sites get ids in the order of
+	// S:
 	public VoronoiKOrder(Collection<Point2D> S, int k, boolean nMinusK) {
+		this(S, k, nMinusK, new Random());
+	}
+
+	// the same with a given source of randomness, so that the construction
+	// (including the rounding of the vertices) can be repeated exactly:
+	VoronoiKOrder(Collection<Point2D> S, int k, boolean nMinusK,
+			Random random) {
+		this.random = random;
 		kIsConstant = !nMinusK;
 		this.k = k;
 		if (this.k <= 0)
@@ -542,54 +917,58 @@ class VoronoiKOrder {
 		else if (this.k >= S.size())
 			this.k = S.size() - 1;
 		this.sites = new PointSet();
-		this.sites.addAll(S);
-		edges = new TreeSet<VEdge>();
+		this.siteTable = new SiteTable();
+		for (Point2D p : S) {
+			this.sites.add(p);
+			this.siteTable.add(p);
+		}
+		edges = new EdgeSet();
 		vertices = new PointSet();
 
-		polygonKeyToPolygon = new HashMap<PointSet, VoronoiPolygon>();
+		polygonKeyToPolygon = new HashMap<SiteSet, VoronoiPolygon>();
 
-		todo = new TreeMap<VEdge, VEdge>();
+		todo = new LinkedHashMap<VEdge, VEdge>();
 
 		createGraph();
-		
-		this.findPolygons();
-		
-		
-		// Add point locator
-		Polygon[] polys = new Polygon[polygonKeyToPolygon.size()];
-		GeometryFactory geometryFactory = new GeometryFactory();
-		int i = 0;
-		for (Map.Entry<PointSet,VoronoiPolygon> e : polygonKeyToPolygon.entrySet()) {
-			VoronoiPolygon p = e.getValue();			
-			Coordinate[] coords = new Coordinate[p.npoints + 1];
-			
-			for (int j = 0; j < p.npoints; j++) {
-				coords[j] = new Coordinate(p.xpoints[j], p.ypoints[j]);
-			}
-			
-			coords[coords.length - 1] = new Coordinate(p.xpoints[0], p.ypoints[0]);
-			
-			polys[i++] = geometryFactory.createPolygon(coords);
+
+		this.buildLocator();
+	}
+
+	// create a diagram from cells that were already built, e.g. by a
+	// TiledVoronoiBuilder; the cells may be pieces of the true cells:
+	VoronoiKOrder(SiteTable siteTable, int k,
+			ArrayList<VoronoiPolygon> cells) {
+		this(siteTable, k, cells, null);
+	}
+
+	// the same with a locator over the cells, whose bounds are already
+	// computed (e.g. a diagram loaded by CoverageIndexFile); a null locator
+	// is built here:
+	VoronoiKOrder(SiteTable siteTable, int k, ArrayList<VoronoiPolygon> cells,
+			PointLocator locator) {
+		kIsConstant = true;
+		cellsOnly = true;
+		this.k = k;
+		this.sites = new PointSet();
+		this.siteTable = siteTable;
+		for (int p = 0; p < siteTable.numIds; p++) {
+			if (siteTable.isLive(p))
+				this.sites.add(siteTable.point(p));
+		}
+		edges = new EdgeSet();
+		vertices = new PointSet();
+
+		polygonKeyToPolygon = new HashMap<SiteSet, VoronoiPolygon>();
+
+		todo = new LinkedHashMap<VEdge, VEdge>();
+
+		polygonList = cells;
+		if (locator == null) {
+			indexPolygons();
+		} else {
+			locater = locator;
+			publish();
 		}
-		
-		this.locater = new PointLocator(polys);
-	}
-
-	// this function returns the center of the circle through the three points;
-	// it may be at infinity
-	// if the points are collinear
-	private Point2D circleCenter(Point2D p1, Point2D p2, Point2D p3) {
-		double w1 = p2.getY() - p1.getY(), w2 = p1.getX() - p2.getX(),
-				v1 = p3.getY() - p2.getY(), v2 = p2.getX() - p3.getX();
-		double det = v2 * w1 - v1 * w2;
-		if (det == 0)
-			return new Point2D(w1, w2, true);
-		double n1 = (p1.getX() + p2.getX()) / 2,
-				n2 = (p1.getY() + p2.getY()) / 2,
-				m1 = (p3.getX() + p2.getX()) / 2,
-				m2 = (p3.getY() + p2.getY()) / 2;
-		double f = (v2 * (m1 - n1) - v1 * (m2 - n2)) / det;
-		return new Point2D(n1 + f * w1, n2 + f * w2);
 	}
 
 	// a signed measure of the distance of x from the line through p1 and p2;
@@ -602,109 +981,117 @@ class VoronoiKOrder {
 
 	// complete a vertex and add it to the set vertices
 	private void addVertex(VVertex v) {
-		v.complete(sites.size(), k, todo, edges);
+		v.complete(siteTable.size, k, todo, edges);
 		vertices.add(v);
 	}
 
 	// this method finds a first edge (or vertex) that is needed to
-	// get the algorithm started and adds it to todo. O(n) time.
+	// get the algorithm started and adds it to todo. O(n log n) time.
 	private void findStartingEdge() {
-		if (k + 1 > sites.size())
+		if (k + 1 > siteTable.size)
 			return; // nothing to do...
 
 		// the method proceeds in four steps:
-		// (1) find a point "center" that is not in S and sort all points in
-		// S by their distance to this point:
-		TreeMap<Double, PointSet> dist = new TreeMap<Double, PointSet>();
-		Iterator<Point2D> i = sites.iterator();
+		// (1) find a point "center" that is not in S and compute the
+		// distances of all points in S to this point:
 		Point2D center;
 		do {
-			center = new Point2D(0.5, Math.random());
+			center = new Point2D(0.5, random.nextDouble());
 		} while (sites.contains(center));
-		while (i.hasNext()) {
-			Point2D next = i.next();
-			Double newKey = Double.valueOf(center.dist2(next));
-			if (!dist.containsKey(newKey))
-				dist.put(newKey, new PointSet());
-			dist.get(newKey).add(next);
+		double[] dist = new double[siteTable.numIds];
+		double[] sortedDist = new double[siteTable.size];
+		int num = 0;
+		for (int p = 0; p < siteTable.numIds; p++) {
+			if (siteTable.isLive(p)) {
+				dist[p] = center.dist2(siteTable.point(p));
+				sortedDist[num++] = dist[p];
+			}
 		}
+		Arrays.sort(sortedDist, 0, num);
 
 		// (2) Using this information "inflate" a circle around "center"
 		// that has at least on point on its border and k+1 on its border
 		// and inside; points on the border are stored in the set C, those
 		// inside in H
-		PointSet H = new PointSet(), C = new PointSet();
-		Iterator<PointSet> j = dist.values().iterator();
-		do {
-			H.addAll(C);
-			C.clear();
-			C.addAll(j.next());
-		} while (H.size() + C.size() < k + 1);
+		double border = sortedDist[k];
+		int[] H = new int[num], C = new int[num];
+		int numH = 0, numC = 0;
+		for (int p = 0; p < siteTable.numIds; p++) {
+			if (!siteTable.isLive(p))
+				continue;
+			if (dist[p] < border)
+				H[numH++] = p;
+			else if (dist[p] == border)
+				C[numC++] = p;
+		}
 
 		Point2D circleCenter = center;
 
 		// (3) If C contains at least 2 points, "center" already lies on an
 		// edge or vertex and we're fine. If not, "deflate" the circle
 		// until there are at least 2 points on its border.
-		if (C.size() < 2) {
-			Point2D onBorder = C.first();
-			C.clear();
-			PointSet toCheck = new PointSet();
-			toCheck.addAll(H);
-			H.clear();
+		if (numC < 2) {
+			int onBorder = C[0];
+			numC = 0;
+			int[] toCheck = Arrays.copyOf(H, numH);
+			numH = 0;
 
 			double maxDist = 0;
-			double w1 = center.getX() - onBorder.getX(),
-					w2 = center.getY() - onBorder.getY();
-			double n1 = onBorder.getX(), n2 = onBorder.getY();
+			double bx = siteTable.x[onBorder], by = siteTable.y[onBorder];
+			double w1 = center.getX() - bx, w2 = center.getY() - by;
+			double n1 = bx, n2 = by;
 			double f;
-			for (i = toCheck.iterator(); i.hasNext();) {
-				Point2D current = i.next();
-
-				double v1 = current.getY() - onBorder.getY(),
-						v2 = onBorder.getX() - current.getX();
+			for (int current : toCheck) {
+				double cx = siteTable.x[current], cy = siteTable.y[current];
+				double v1 = cy - by, v2 = bx - cx;
 				double det = (v2 * w1 - v1 * w2);
-				double m1 = (current.getX() + onBorder.getX()) / 2,
-						m2 = (current.getY() + onBorder.getY()) / 2;
+				double m1 = (cx + bx) / 2, m2 = (cy + by) / 2;
 				f = (v2 * (m1 - n1) - v1 * (m2 - n2)) / det;
-				Point2D currentCircleCenter = new Point2D(n1 + f * w1,
-						n2 + f * w2);
+				double ccx = n1 + f * w1, ccy = n2 + f * w2;
 				f = f * f;
 				if (f > maxDist) {
-					H.addAll(C);
-					C.clear();
-					C.add(current);
+					System.arraycopy(C, 0, H, numH, numC);
+					numH += numC;
+					numC = 0;
+					C[numC++] = current;
 					maxDist = f;
-					circleCenter = currentCircleCenter;
+					circleCenter = new Point2D(ccx, ccy);
 				} else if (f < maxDist)
-					H.add(current);
+					H[numH++] = current;
 				else
-					C.add(current);
+					C[numC++] = current;
 			}
-			C.add(onBorder);
+			C[numC++] = onBorder;
 		}
 
 		// (4) Check if we have fond an edge (2 points on the border)
 		// or a vertex (more then 2 points); add the respective object.
-		if (C.size() > 2) {
-			VVertex firstVertex = new VVertex(circleCenter, true);
-			firstVertex.getCritical().addAll(C);
-			firstVertex.getRelevant().addAll(H);
-			firstVertex.setRelevantInside(kIsConstant, sites);
+		if (numC > 2) {
+			VVertex firstVertex = new VVertex(circleCenter, siteTable, true);
+			firstVertex.critical = SiteSet.of(C, numC);
+			firstVertex.relevant = SiteSet.of(H, numH);
+			firstVertex.setRelevantInside(kIsConstant, siteTable);
 			addVertex(firstVertex);
 		} else {
-			VEdge firstEdge = new VEdge(C.first(), C.last(), todo, edges, true);
-			firstEdge.relevant.addAll(H);
-			firstEdge.setRelevantInside(kIsConstant, sites);
+			// the critical points in lexicographic order
+			int first = C[0], last = C[numC - 1];
+			if (siteTable.point(first).compareTo(siteTable.point(last)) > 0) {
+				first = C[numC - 1];
+				last = C[0];
+			}
+			VEdge firstEdge = new VEdge(first, last, siteTable, todo, edges,
+					true);
+			firstEdge.relevant = SiteSet.of(H, numH);
+			firstEdge.setRelevantInside(kIsConstant, siteTable);
 			firstEdge.pointInside = circleCenter;
 			todo.put(firstEdge, firstEdge);
 		}
 	}
 
-	// Check if vertex v is affected by removing point po from S and adding pn
-	// Either po or pn may be null.
-	private boolean isAffected(VVertex v, Point2D po, Point2D pn) {
-		if ((po != null) && (v.isCritical(po) || v.isRelevant(po)))
+	// Check if vertex v is affected by removing site po from S and adding pn
+	// Either po may be -1 or pn may be null.
+	private boolean isAffected(VVertex v, int po, Point2D pn) {
+		if ((po >= 0) && (v.isCritical(po) || v.isRelevant(po)))
 			return true;
 		if ((pn != null) && (v.inRelevantArea(pn) || v.inCriticalArea(pn)))
 			return true;
@@ -714,8 +1101,8 @@ class VoronoiKOrder {
 	// minorChange checks if replaceing po by pn has a structural effect on
 	// the vertex v, or if it's enough to replace the point in the "relevant"
 	// set.
-	private boolean minorChange(VVertex v, Point2D po, Point2D pn) {
-		if ((po == null) || (pn == null))
+	private boolean minorChange(VVertex v, int po, Point2D pn) {
+		if ((po < 0) || (pn == null))
 			return false;
 		if (v.isRelevant(po) && v.inRelevantArea(pn))
 			return true;
@@ -723,11 +1110,12 @@ class VoronoiKOrder {
 	}
 
 	// removeGraph deletes the part of the diagram that must be redrawn when
-	// po is removed and/or pn added. During the removel process, patly
+	// site po is removed and/or pn added (pnSite is the id of pn, needed
+	// when po is replaced by pn). During the removel process, patly
 	// connected
 	// edges are automatically added to the "todo" list, so the algoritm that
 	// constructs the new diagram can start right away.
-	private void removeGraph(Point2D po, Point2D pn) {
+	private void removeGraph(int po, Point2D pn, int pnSite) {
 		// The following two lines have been commented out; if you leave them
 		// in,
 		// the diagram will always be fully recomputed.
@@ -739,7 +1127,7 @@ class VoronoiKOrder {
 
 		// Try to find at least one vertex that is affected by (1) removing po
 		// (2) adding pn
-		boolean findPo = po != null, findPn = pn != null;
+		boolean findPo = po >= 0, findPn = pn != null;
 
 		// start by checking the vertices at infinity; there are not many of
 		// them
@@ -752,7 +1140,7 @@ class VoronoiKOrder {
 			if (!v.isAtInfinity())
 				done = true;
 			else {
-				if ((po != null) && (v.isCritical(po) || v.isRelevant(po))) {
+				if ((po >= 0) && (v.isCritical(po) || v.isRelevant(po))) {
 					findPo = false;
 					checkMe.add(v);
 				}
@@ -777,7 +1165,7 @@ class VoronoiKOrder {
 			Point2D target;
 			boolean searchingForPo = false, searchingForPn = false;
 			if (findPo) {
-				target = po;
+				target = siteTable.point(po);
 				searchingForPo = true;
 			} else {
 				target = pn;
@@ -815,7 +1203,7 @@ class VoronoiKOrder {
 						? otherWays.remove(otherWays.size() - 1)
 						: null;
 				if (starting != null) {
-					if ((po != null) && (starting.isCritical(po)
+					if ((po >= 0) && (starting.isCritical(po)
 							|| starting.isRelevant(po))) {
 						findPo = false;
 						checkMe.add(starting);
@@ -849,14 +1237,13 @@ class VoronoiKOrder {
 			if (isAffected(next, po, pn)) {
 				if (minorChange(next, po, pn)) // only change the "relevant" set
 				{
-					next.getRelevant().remove(po);
-					next.getRelevant().add(pn);
+					next.relevant = next.relevant.without(po).with(pnSite);
 					Vector<VEdge> edgeList = next.getEdgeList();
 					for (int i = 0; i < edgeList.size(); i++) {
 						VVertex other = edgeList.get(i).getOtherVertex(next);
 						if ((other != null) && !checked.contains(other))
 							checkMe.add(other);
-						edgeList.get(i).replaceRelevant(po, pn);
+						edgeList.get(i).replaceRelevant(po, pnSite);
 					}
 				} else // remove it completely
 				{
@@ -876,13 +1263,15 @@ class VoronoiKOrder {
 
 	// this is only to improve error robustness
 	public void createGraph() {
+		long start = CoverageMetrics.start();
 		createGraph(false);
+		CoverageMetrics.stop(Stage.VORONOI_BUILD, start);
 	}
 
 	// This is where the actual construction takes place
 	private void createGraph(boolean error) {
 		// if there is nothing in the "todo" list, try to find a starting edge
-		if ((todo.size() == 0) && (sites.size() > k) && (edges.size() == 0))
+		if ((todo.size() == 0) && (siteTable.size > k) && (edges.size() == 0))
 			findStartingEdge();
 
 		// This is to prevent the algorithm from hanging if something goes
@@ -890,7 +1279,10 @@ class VoronoiKOrder {
 		// emergencyStop is the maximum number of iterations allowed until the
 		// loop is forcefully stopped. To jump without parachute, set
 		// emergencyStop=-1.
-		int emergencyStop = (sites.size() * (sites.size() - k) + 100) * 3;
+		int emergencyStop = (siteTable.size * (siteTable.size - k) + 100) * 3;
+
+		double[] sx = siteTable.x, sy = siteTable.y;
+		int[] C = new int[16];
 
 		while (todo.size() > 0) {
 			// Again, the emergency stop. If the maximum number of iterations is
@@ -905,20 +1297,26 @@ class VoronoiKOrder {
 				todo.clear();
 				edges.clear();
 				vertices.clear();
-				System.out.println("Vironoi diagram construction ERROR");
-				if (!error)
+				if (!error) {
+					CoverageMetrics.count(Counter.CONSTRUCTION_RESTARTS, 1);
 					createGraph(true);
+				} else {
+					CoverageMetrics.count(Counter.CONSTRUCTION_FAILURES, 1);
+					System.err.println(
+							"[WARNING] The Voronoi diagram construction failed twice, the diagram is empty");
+				}
 				return;
 			}
 
 			// take an arbitrary ege from the "todo" list
-			VEdge current = todo.get(todo.firstKey());
-			PointSet C = new PointSet();
+			VEdge current = todo.values().iterator().next();
+			int numC = 0;
+
+			double p1x = sx[current.critical1], p1y = sy[current.critical1];
+			double p2x = sx[current.critical2], p2y = sy[current.critical2];
 
 			// if we don't find anything, our next vertex will be at infinity:
-			Point2D circleCenter = new Point2D(
-					current.critical1.getY() - current.critical2.getY(),
-					current.critical2.getX() - current.critical1.getX(), true);
+			Point2D circleCenter = new Point2D(p1y - p2y, p2x - p1x, true);
 			double minDist = Double.POSITIVE_INFINITY;
 			// cutOffPoint and cutOffDist will tell us where to start searching
 			// on the bisector of current.critical1 and current.critical2
@@ -939,54 +1337,73 @@ class VoronoiKOrder {
 			}
 			double cutOffDist = cutOffPoint.isAtInfinity()
 					? Double.NEGATIVE_INFINITY
-					: distance(current.critical1, current.critical2,
-							cutOffPoint);
+					: (p1y - p2y) * (cutOffPoint.getX() - p1x)
+							- (p1x - p2x) * (cutOffPoint.getY() - p1y);
 
 			// Now we check all points in S (except those identified by
 			// "excludeCritical") to find the next vertex on our edge.
 			// That's O(n) of course, so check my thesis to find out about
 			// improving this critical part of the algorithm
 			// making use of a first order Voronoi diagram.
-			for (Iterator<Point2D> i = sites.iterator(); i.hasNext();) {
-				Point2D testPoint = i.next();
-				if (!excludeCritical.isCritical(testPoint)) // should the point
-															// be checked?
-				{
-					Point2D currentCC = circleCenter(current.critical1,
-							current.critical2, testPoint);
-					// check if the vertex implied by current.critical1,
-					// current.critical2, and currentCC
-					// is the closest one to our starting point "cutOffPoint" at
-					// "cutOffDist" so far:
-					if (currentCC.isAtInfinity()) {
-						if (minDist == Double.POSITIVE_INFINITY)
-							C.add(testPoint);
-					} else {
-						double currentDistance = distance(current.critical1,
-								current.critical2, currentCC);
-						if (currentDistance == minDist)
-							C.add(testPoint);
-						else if ((currentDistance < minDist)
-								&& (currentDistance > cutOffDist)) {
-							C.clear();
-							C.add(testPoint);
-							minDist = currentDistance;
-							circleCenter = currentCC;
-						}
+			// The center of the circle through the two critical points and
+			// the test point is computed inline on the primitive coordinates.
+			double w1 = p2y - p1y, w2 = p1x - p2x;
+			double n1 = (p1x + p2x) / 2, n2 = (p1y + p2y) / 2;
+			double ccx = 0, ccy = 0;
+			for (int testPoint = 0; testPoint < siteTable.numIds; testPoint++) {
+				if (!siteTable.isLive(testPoint)
+						|| excludeCritical.isCritical(testPoint))
+					continue;
+
+				double p3x = sx[testPoint], p3y = sy[testPoint];
+				double v1 = p3y - p2y, v2 = p2x - p3x;
+				double det = v2 * w1 - v1 * w2;
+				// check if the vertex implied by current.critical1,
+				// current.critical2, and the test point
+				// is the closest one to our starting point "cutOffPoint" at
+				// "cutOffDist" so far:
+				if (det == 0) {
+					// the circle center is at infinity
+					if (minDist == Double.POSITIVE_INFINITY) {
+						if (numC == C.length)
+							C = Arrays.copyOf(C, numC * 2);
+						C[numC++] = testPoint;
+					}
+				} else {
+					double m1 = (p3x + p2x) / 2, m2 = (p3y + p2y) / 2;
+					double f = (v2 * (m1 - n1) - v1 * (m2 - n2)) / det;
+					double cx = n1 + f * w1, cy = n2 + f * w2;
+					double currentDistance = (p1y - p2y) * (cx - p1x)
+							- (p1x - p2x) * (cy - p1y);
+					if (currentDistance == minDist) {
+						if (numC == C.length)
+							C = Arrays.copyOf(C, numC * 2);
+						C[numC++] = testPoint;
+					} else if ((currentDistance < minDist)
+							&& (currentDistance > cutOffDist)) {
+						numC = 0;
+						C[numC++] = testPoint;
+						minDist = currentDistance;
+						ccx = cx;
+						ccy = cy;
 					}
 				}
 			}
+			if (minDist != Double.POSITIVE_INFINITY)
+				circleCenter = new Point2D(ccx, ccy);
 
 			// That was it. Simply create the new Vertex, and we're done!
-			VVertex newVertex = new VVertex(circleCenter, kIsConstant);
-			newVertex.getRelevant().addAll(current.relevant);
-			for (Iterator<Point2D> i = C.iterator(); i.hasNext();) {
-				Point2D c = i.next();
-				newVertex.getRelevant().remove(c);
-				newVertex.getCritical().add(c);
-			}
-			newVertex.getCritical().add(current.critical1);
-			newVertex.getCritical().add(current.critical2);
+			VVertex newVertex = new VVertex(circleCenter, siteTable,
+					kIsConstant);
+			SiteSet relevant = current.relevant;
+			for (int i = 0; i < numC; i++)
+				relevant = relevant.without(C[i]);
+			newVertex.relevant = relevant;
+			if (numC + 2 > C.length)
+				C = Arrays.copyOf(C, numC + 2);
+			C[numC++] = current.critical1;
+			C[numC++] = current.critical2;
+			newVertex.critical = SiteSet.of(C, numC);
 
 			addVertex(newVertex);
 		}
@@ -998,8 +1415,9 @@ class VoronoiKOrder {
 	public void addPoint(Point2D p) {
 		if (sites.contains(p))
 			return;
-		removeGraph(null, p);
+		removeGraph(-1, p, -1);
 		sites.add(p);
+		siteTable.add(p);
 		if (!kIsConstant && (k < sites.size() - 1))
 			k++;
 		createGraph();
@@ -1009,8 +1427,10 @@ class VoronoiKOrder {
 	public void removePoint(Point2D p) {
 		if (!sites.contains(p))
 			return;
-		removeGraph(p, null);
+		int po = siteTable.id(p);
+		removeGraph(po, null, -1);
 		sites.remove(p);
+		siteTable.remove(po);
 		if (!kIsConstant && (k > 1))
 			k--;
 		createGraph();
@@ -1020,15 +1440,19 @@ class VoronoiKOrder {
 	public void movePoint(Point2D po, Point2D pn) {
 		if (!sites.contains(po) || sites.contains(pn))
 			return;
-		removeGraph(po, pn);
+		int poSite = siteTable.id(po);
+		int pnSite = siteTable.add(pn);
+		removeGraph(poSite, pn, pnSite);
 		sites.remove(po);
 		sites.add(pn);
+		siteTable.remove(poSite);
 		createGraph();
 	}
 
 	// clear S and the diagram
 	public void clear() {
 		sites.clear();
+		siteTable.clear();
 		edges.clear();
 		vertices.clear();
 		k = 1;
@@ -1039,17 +1463,15 @@ class VoronoiKOrder {
 		if (kIsConstant != nMinusK)
 			return;
 		kIsConstant = !nMinusK;
-		TreeSet<VEdge> newEdges = new TreeSet<VEdge>();
-		while (edges.size() > 0) {
-			VEdge e = edges.first();
-			edges.remove(e);
-			e.setRelevantInside(kIsConstant, sites);
+		EdgeSet newEdges = new EdgeSet();
+		for (VEdge e : edges) {
+			e.setRelevantInside(kIsConstant, siteTable);
 			e.setEdges(newEdges);
 			newEdges.add(e);
 		}
 		edges = newEdges;
 		for (Iterator<Point2D> i = vertices.iterator(); i.hasNext();)
-			((VVertex) (i.next())).setRelevantInside(kIsConstant, sites);
+			((VVertex) (i.next())).setRelevantInside(kIsConstant, siteTable);
 	}
 
 	// change the order of the diagram and recompute it
@@ -1067,6 +1489,148 @@ class VoronoiKOrder {
 		createGraph();
 	}
 
+	/**
+	 * Remove and add sites, repairing the diagram locally with removePoint
+	 * and addPoint. Only the cells whose edges changed are rebuilt; they go
+	 * to the overlay of the point locator, so the rest of the locator is kept.
+	 * A diagram that only knows its cells is first rebuilt from its sites.
+	 * 
+	 * @param added
+	 *            = new sites; a site that coincides with an existing one is
+	 *            moved by up to Noiser.noiseRatio in each dimension, like the
+	 *            noise that makes the training rows distinct
+	 * @param removed
+	 *            = ids of live sites
+	 * @return the replaced cells, their replacements and the ids of the added
+	 *         sites
+	 */
+	CellChange changeSites(List<Point2D> added, int[] removed) {
+		Set<Integer> distinct = new HashSet<Integer>();
+		for (int id : removed) {
+			if (!siteTable.isLive(id)) {
+				throw new IllegalArgumentException(
+						String.format("Site %d does not exist", id));
+			}
+			distinct.add(id);
+		}
+		int remaining = siteTable.size - distinct.size() + added.size();
+		if (remaining <= k) {
+			throw new IllegalArgumentException(String.format(
+					"%d sites would be left, an order-%d diagram needs more than %d",
+					remaining, k, k));
+		}
+
+		startTracking();
+		CellChange change = new CellChange();
+		for (int id : distinct)
+			removePoint(siteTable.point(id));
+		change.addedIds = new int[added.size()];
+		for (int i = 0; i < added.size(); i++) {
+			Point2D p = added.get(i);
+			// Sites closer than a few ulps break the construction
+			while (sites.contains(p))
+				p = new Point2D(p.getX() + Utils.randDouble(Noiser.noiseRatio),
+						p.getY() + Utils.randDouble(Noiser.noiseRatio));
+			addPoint(p);
+			change.addedIds[i] = siteTable.id(p);
+		}
+		refreshCells(change);
+		return change;
+	}
+
+	// make sure the diagram has edges, its cells are known and the edges of
+	// every cell are tracked
+	private void startTracking() {
+		if (cellsOnly) {
+			cellsOnly = false;
+			edges = new EdgeSet();
+			vertices = new PointSet();
+			todo.clear();
+			createGraph();
+			polygonKeyToPolygon.clear();
+			buildLocator();
+		} else if (locater == null) {
+			buildLocator();
+		}
+		if (!edges.isTracking()) {
+			findPolygons();
+			edges.track();
+			overlayList = new ArrayList<VoronoiPolygon>();
+			replaced = new BitSet();
+		}
+	}
+
+	// rebuild the cells whose edges changed and update the overlay
+	private void refreshCells(CellChange change) {
+		Set<SiteSet> dirty = edges.takeDirty();
+		if (edges.cleared) {
+			// the construction started over, so every old cell is gone
+			dirty.addAll(polygonKeyToPolygon.keySet());
+			edges.cleared = false;
+		}
+		for (SiteSet key : dirty) {
+			VoronoiPolygon old = polygonKeyToPolygon.remove(key);
+			if (old != null) {
+				change.removed.add(old);
+				if (old.locatorId >= 0 && old.locatorId < polygonList.size()
+						&& polygonList.get(old.locatorId) == old)
+					replaced.set(old.locatorId);
+			}
+			List<VEdge> cell = edges.edgesOf(key);
+			if (cell != null) {
+				VoronoiPolygon poly = makePolygon(key, cell);
+				poly.computeBounds(siteTable);
+				polygonKeyToPolygon.put(key, poly);
+				change.added.add(poly);
+			}
+		}
+
+		ArrayList<VoronoiPolygon> overlay = new ArrayList<VoronoiPolygon>();
+		for (VoronoiPolygon poly : overlayList) {
+			if (isCurrent(poly))
+				overlay.add(poly);
+		}
+		overlay.addAll(change.added);
+		stale = true;
+		if (overlay.size() * OVERLAY_FRACTION > polygonList.size()) {
+			compactLocator();
+		} else {
+			overlayList = overlay;
+			index = new CellIndex(k, polygonList, locater,
+					(BitSet) replaced.clone(), overlayList,
+					overlay.isEmpty() ? null : new PointLocator(overlayList),
+					siteTable);
+		}
+	}
+
+	// true if poly is the cell of its key in the current diagram
+	private boolean isCurrent(VoronoiPolygon poly) {
+		return polygonKeyToPolygon.get(poly.regionKey) == poly;
+	}
+
+	/**
+	 * Rebuild the point locator over the current cells and empty the overlay
+	 */
+	void compactLocator() {
+		if (!stale)
+			return;
+		polygonList = new ArrayList<VoronoiPolygon>(
+				polygonKeyToPolygon.values());
+		locater = new PointLocator(polygonList);
+		overlayList = new ArrayList<VoronoiPolygon>();
+		replaced = new BitSet();
+		stale = false;
+		publish();
+	}
+
+	// publish the cells of polygonList and its locator, without an overlay
+	private void publish() {
+		for (int i = 0; i < polygonList.size(); i++)
+			polygonList.get(i).locatorId = i;
+		index = new CellIndex(k, polygonList, locater, null, null, null,
+				siteTable);
+	}
+
 	/**
 	 * Discover all polygons in the Voronoi graph Each edge will create two
 	 * polygons. We take one critical point plus all relevant points as the key
@@ -1076,87 +1640,85 @@ class VoronoiKOrder {
 	 */
 	void findPolygons() {
 		if (this.polygonKeyToPolygon.isEmpty()) {
-			HashMap<PointSet, Set<Point2D>> tempPolyVertex = new HashMap<PointSet, Set<Point2D>>();
-
+			long start = CoverageMetrics.start();
+			HashMap<SiteSet, List<VEdge>> cellEdges = new HashMap<SiteSet, List<VEdge>>();
 			for (VEdge e : this.edges) {
-
-				double i1 = e.v1.getX(), i2 = e.v1.getY(), i3 = e.v2.getX(),
-						i4 = e.v2.getY();
-				double x1 = i1, y1 = i2, x2 = i3, y2 = i4;
-
-				if (e.v1.isAtInfinity() && e.v2.isAtInfinity()) {
-					double dx = (i2 - i4) * 5000;
-					double dy = (i3 - i1) * 5000;
-					x1 = (i1 + i3) / 2 + dx;
-					y1 = (i2 + i4) / 2 + dy;
-					x2 = (i1 + i3) / 2 - dx;
-					y2 = (i2 + i4) / 2 - dy;
-				} else if (e.v1.isAtInfinity()) {
-					x1 = i3;
-					y1 = i4;
-					x2 = i3 + i1 * 5000;
-					y2 = i4 + i2 * 5000;
-				} else if (e.v2.isAtInfinity()) {
-					x1 = i1;
-					y1 = i2;
-					x2 = i1 + i3 * 5000;
-					y2 = i2 + i4 * 5000;
-				} else {
-					x1 = i1;
-					y1 = i2;
-					x2 = i3;
-					y2 = i4;
+				for (SiteSet key : new SiteSet[]{e.relevant.with(e.critical1),
+						e.relevant.with(e.critical2)}) {
+					List<VEdge> cell = cellEdges.get(key);
+					if (cell == null) {
+						cell = new ArrayList<VEdge>(6);
+						cellEdges.put(key, cell);
+					}
+					cell.add(e);
 				}
-
-				PointSet polygon1Key = new PointSet();
-				polygon1Key.add(e.critical1);
-				polygon1Key.addAll(e.relevant);
-				Set<Point2D> poly1 = tempPolyVertex.getOrDefault(polygon1Key,
-						new HashSet<Point2D>());
-
-				poly1.add(new Point2D(x1, y1));
-				poly1.add(new Point2D(x2, y2));
-				tempPolyVertex.put(polygon1Key, poly1);
-
-				PointSet polygon2Key = new PointSet();
-				polygon2Key.add(e.critical2);
-				polygon2Key.addAll(e.relevant);
-				Set<Point2D> poly2 = tempPolyVertex.getOrDefault(polygon2Key,
-						new HashSet<Point2D>());
-				poly2.add(new Point2D(x1, y1));
-				poly2.add(new Point2D(x2, y2));
-				tempPolyVertex.put(polygon2Key, poly2);
 			}
 
 			// Add polygons
-			for (Map.Entry<PointSet, Set<Point2D>> e : tempPolyVertex
-					.entrySet()) {
-
-				VoronoiPolygon poly = new VoronoiPolygon(e.getKey());
-				List<Point2D> vertices = new ArrayList<Point2D>(e.getValue());
-				// Sort vertices clockwise
-				double xMean = vertices.stream().mapToDouble(v -> v.getX())
-						.average().orElse(0);
-				double yMean = vertices.stream().mapToDouble(v -> v.getY())
-						.average().orElse(0);
-				Point2D center = new Point2D(xMean, yMean);
-
-				Collections.sort(vertices, (a, b) -> {
-
-					double angle0 = angleToX(center.getX(), center.getY(),
-							a.getX(), a.getY());
-					double angle1 = angleToX(center.getX(), center.getY(),
-							b.getX(), b.getY());
-					return Double.compare(angle1, angle0);
-				});
-
-				// Sort vertices (end)
-				vertices.stream()
-						.forEach(v -> poly.addPoint(v.getX(), v.getY()));
-
-				this.polygonKeyToPolygon.put(e.getKey(), poly);
+			for (Map.Entry<SiteSet, List<VEdge>> e : cellEdges.entrySet())
+				this.polygonKeyToPolygon.put(e.getKey(),
+						makePolygon(e.getKey(), e.getValue()));
+			CoverageMetrics.stop(Stage.FIND_POLYGONS, start);
+		}
+	}
+
+	/**
+	 * Build the polygon of a cell from its edges. Edges to vertices at
+	 * infinity are cut off far away.
+	 */
+	private static VoronoiPolygon makePolygon(SiteSet key,
+			Collection<VEdge> cellEdges) {
+		Set<Point2D> polyVertices = new HashSet<Point2D>();
+		for (VEdge e : cellEdges) {
+
+			double i1 = e.v1.getX(), i2 = e.v1.getY(), i3 = e.v2.getX(),
+					i4 = e.v2.getY();
+			double x1 = i1, y1 = i2, x2 = i3, y2 = i4;
+
+			if (e.v1.isAtInfinity() && e.v2.isAtInfinity()) {
+				double dx = (i2 - i4) * 5000;
+				double dy = (i3 - i1) * 5000;
+				x1 = (i1 + i3) / 2 + dx;
+				y1 = (i2 + i4) / 2 + dy;
+				x2 = (i1 + i3) / 2 - dx;
+				y2 = (i2 + i4) / 2 - dy;
+			} else if (e.v1.isAtInfinity()) {
+				x1 = i3;
+				y1 = i4;
+				x2 = i3 + i1 * 5000;
+				y2 = i4 + i2 * 5000;
+			} else if (e.v2.isAtInfinity()) {
+				x1 = i1;
+				y1 = i2;
+				x2 = i1 + i3 * 5000;
+				y2 = i2 + i4 * 5000;
 			}
+
+			polyVertices.add(new Point2D(x1, y1));
+			polyVertices.add(new Point2D(x2, y2));
 		}
+
+		VoronoiPolygon poly = new VoronoiPolygon(key);
+		List<Point2D> vertices = new ArrayList<Point2D>(polyVertices);
+		// Sort vertices clockwise
+		double xMean = vertices.stream().mapToDouble(v -> v.getX()).average()
+				.orElse(0);
+		double yMean = vertices.stream().mapToDouble(v -> v.getY()).average()
+				.orElse(0);
+		Point2D center = new Point2D(xMean, yMean);
+
+		Collections.sort(vertices, (a, b) -> {
+
+			double angle0 = angleToX(center.getX(), center.getY(), a.getX(),
+					a.getY());
+			double angle1 = angleToX(center.getX(), center.getY(), b.getX(),
+					b.getY());
+			return Double.compare(angle1, angle0);
+		});
+
+		// Sort vertices (end)
+		vertices.stream().forEach(v -> poly.addPoint(v.getX(), v.getY()));
+		return poly;
 	}
 
 	private static double angleToX(double x0, double y0, double x1, double y1) {
@@ -1172,6 +1734,8 @@ class VoronoiKOrder {
 	 * @return
 	 */
 	public Collection<VoronoiPolygon> getPolygons() {
+		if (cellsOnly)
+			return polygonList;
 		findPolygons();
 		return this.polygonKeyToPolygon.values();
 	}
@@ -1188,6 +1752,9 @@ class VoronoiKOrder {
 	public PointSet getS() {
 		return sites;
 	}
+	public PointSet getSites(SiteSet ids) {
+		return siteTable.toPointSet(ids);
+	}
 	public Set<VEdge> getEdges() {
 		return edges;
 	}
@@ -1196,65 +1763,75 @@ class VoronoiKOrder {
 	}
 
 	/**
-	 * Get the Voronoi polygon (keys) that contains point (x,y)
+	 * Build the point locator over the current polygons and compute their
+	 * coverage bounds
+	 */
+	void buildLocator() {
+		findPolygons();
+		polygonList = new ArrayList<VoronoiPolygon>(
+				polygonKeyToPolygon.values());
+		indexPolygons();
+	}
+
+	/**
+	 * Compute the coverage bounds of the polygons in polygonList and build
+	 * the point locator over them
+	 */
+	private void indexPolygons() {
+		for (VoronoiPolygon poly : polygonList)
+			poly.computeBounds(siteTable);
+		locater = new PointLocator(polygonList);
+		publish();
+	}
+
+	/**
+	 * Get the Voronoi polygon that contains point (x,y) in O(log n). Safe to
+	 * call from any thread, also while the diagram is changed by changeSites;
+	 * the answer is from the cells before or after the change.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return the polygon, null if the point is outside the (clipped) diagram
+	 *         or no locator has been built
+	 */
+	public VoronoiPolygon locatePolygon(double x, double y) {
+		CellIndex index = this.index;
+		return index == null ? null : index.locatePolygon(x, y);
+	}
+
+	/**
+	 * Get the Voronoi polygon keys, i.e. the k sites closest to point (x,y)
 	 * 
-	 * @param mithraCoverageChecker TODO
 	 * @param x
 	 * @param y
 	 * @return
 	 */
 	public PointSet locate(double x, double y) {
-//		for (VoronoiPolygon p : getPolygons()) {
-//			if (p.contains(x, y)) {
-//				return p.regionKey;
-//			}
-//		}
-		
-		Geometry poly = this.locater.lookup(x,y);
-		
-		if (poly != null) {
-			Coordinate[] polyPoints = poly.getCoordinates();
-			PointSet polyKey = new PointSet();
-			for (Coordinate c : polyPoints) {
-				polyKey.add(new Point2D(c.x, c.y));
-			}
-			System.out.println(String.format(
-					"Good: (%.3f,%.3f) found in voronoi polygon",
-					x, y));
-			return polyKey;
-		}		
-		
-		try {
-			throw new Exception(String.format(
-					"Exception: (%.3f,%.3f) is not found in any voronoi polygon",
-					x, y));
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-	
-		double minDist = Double.MAX_VALUE;
-		Point2D closestP = null;
-	
-		for (Point2D p : sites) {
-	
-			double dist = (p.getX() - x) * (p.getX() - x)
-					+ (p.getY() - y) * (p.getY() - y);
-	
-			if (dist < minDist) {
-				minDist = dist;
-				closestP = p;
-			}
+		return siteTable.toPointSet(locateSites(x, y));
+	}
+
+	/**
+	 * Get the ids of the k sites closest to point (x,y)
+	 * 
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public SiteSet locateSites(double x, double y) {
+		CellIndex index = this.index;
+		if (index != null)
+			return index.locateSites(x, y);
+
+		// No locator yet: find the k closest sites directly
+		CoverageMetrics.count(Counter.LOCATE_FALLBACKS, 1);
+		int[] live = new int[siteTable.size];
+		int num = 0;
+		for (int p = 0; p < siteTable.numIds; p++) {
+			if (siteTable.isLive(p))
+				live[num++] = p;
 		}
-	
-		System.err.println("closest p:" + closestP);
-	
-		// for (VEdge e : this.coverageVoronoiDiagram.edges) {
-		// System.err.println(e);
-		// }
-	
-		System.exit(1);
-		return null;
+		return CellIndex.nearestSites(x, y, k, siteTable.x, siteTable.y, live,
+				num);
 	}
 
 }
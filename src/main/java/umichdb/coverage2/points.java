@@ -215,3 +215,224 @@ class PointSet extends TreeSet<Point2D> implements Comparable<PointSet> {
 		return closest;
 	}
 }
+
+// SiteTable gives every site of a diagram an int id and keeps the
+// coordinates in primitive arrays, so that the Voronoi engine can refer to
+// sites by id. Ids of removed sites are not reused.
+class SiteTable {
+	double[] x, y;
+	Point2D[] points; // null for removed sites
+	int numIds;
+	int size;
+	private HashMap<Point2D, Integer> ids;
+
+	public SiteTable() {
+		x = new double[16];
+		y = new double[16];
+		points = new Point2D[16];
+		ids = new HashMap<Point2D, Integer>();
+	}
+
+	// add a site and return its id; an existing site keeps its id
+	public int add(Point2D p) {
+		Integer id = ids.get(p);
+		if (id != null)
+			return id;
+		if (numIds == points.length) {
+			x = Arrays.copyOf(x, numIds * 2);
+			y = Arrays.copyOf(y, numIds * 2);
+			points = Arrays.copyOf(points, numIds * 2);
+		}
+		x[numIds] = p.getX();
+		y[numIds] = p.getY();
+		points[numIds] = p;
+		ids.put(p, numIds);
+		size++;
+		return numIds++;
+	}
+
+	// reserve the next id for a site that has been removed, so that a table
+	// can be restored with its original ids
+	int addRemoved() {
+		if (numIds == points.length) {
+			x = Arrays.copyOf(x, numIds * 2);
+			y = Arrays.copyOf(y, numIds * 2);
+			points = Arrays.copyOf(points, numIds * 2);
+		}
+		x[numIds] = Double.NaN;
+		y[numIds] = Double.NaN;
+		return numIds++;
+	}
+
+	public void remove(int id) {
+		if (!isLive(id))
+			return;
+		ids.remove(points[id]);
+		points[id] = null;
+		size--;
+	}
+
+	public void clear() {
+		Arrays.fill(points, 0, numIds, null);
+		ids.clear();
+		numIds = 0;
+		size = 0;
+	}
+
+	// the id of a site, -1 if p is not a site
+	public int id(Point2D p) {
+		if (p == null)
+			return -1;
+		Integer id = ids.get(p);
+		return id == null ? -1 : id;
+	}
+
+	public boolean isLive(int id) {
+		return id >= 0 && id < numIds && points[id] != null;
+	}
+
+	public Point2D point(int id) {
+		return points[id];
+	}
+
+	public PointSet toPointSet(SiteSet s) {
+		PointSet result = new PointSet();
+		for (int i = 0; i < s.size(); i++)
+			result.add(points[s.get(i)]);
+		return result;
+	}
+}
+
+// SiteSet is an immutable set of site ids (see SiteTable), stored as a
+// sorted int array with a precomputed 64-bit hash. The hash is the sum of a
+// mixing function over the ids, so it is independent of how the set was
+// built, and unequal sets are nearly always told apart without looking at
+// their ids.
+final class SiteSet implements Comparable<SiteSet> {
+	static final SiteSet EMPTY = new SiteSet(new int[0], 0);
+
+	final int[] ids;
+	final long hash;
+
+	private SiteSet(int[] ids, long hash) {
+		this.ids = ids;
+		this.hash = hash;
+	}
+
+	// the 64-bit finalizer of SplitMix64
+	static long mix(int id) {
+		long z = (id + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	// the set of the first num ids (in any order, duplicates allowed)
+	static SiteSet of(int[] ids, int num) {
+		int[] sorted = Arrays.copyOf(ids, num);
+		Arrays.sort(sorted);
+		int size = 0;
+		long hash = 0;
+		for (int i = 0; i < num; i++) {
+			if (size == 0 || sorted[i] != sorted[size - 1]) {
+				sorted[size++] = sorted[i];
+				hash += mix(sorted[i]);
+			}
+		}
+		return new SiteSet(size == num ? sorted : Arrays.copyOf(sorted, size),
+				hash);
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	public int get(int i) {
+		return ids[i];
+	}
+
+	public boolean contains(int id) {
+		return Arrays.binarySearch(ids, id) >= 0;
+	}
+
+	public SiteSet with(int id) {
+		int pos = Arrays.binarySearch(ids, id);
+		if (pos >= 0)
+			return this;
+		pos = -pos - 1;
+		int[] result = new int[ids.length + 1];
+		System.arraycopy(ids, 0, result, 0, pos);
+		result[pos] = id;
+		System.arraycopy(ids, pos, result, pos + 1, ids.length - pos);
+		return new SiteSet(result, hash + mix(id));
+	}
+
+	public SiteSet without(int id) {
+		int pos = Arrays.binarySearch(ids, id);
+		if (pos < 0)
+			return this;
+		int[] result = new int[ids.length - 1];
+		System.arraycopy(ids, 0, result, 0, pos);
+		System.arraycopy(ids, pos + 1, result, pos, ids.length - pos - 1);
+		return new SiteSet(result, hash - mix(id));
+	}
+
+	// the ids that are not in other
+	public SiteSet without(SiteSet other) {
+		int[] result = new int[ids.length];
+		int size = 0;
+		long h = 0;
+		for (int id : ids) {
+			if (!other.contains(id)) {
+				result[size++] = id;
+				h += mix(id);
+			}
+		}
+		if (size == ids.length)
+			return this;
+		return new SiteSet(Arrays.copyOf(result, size), h);
+	}
+
+	// the union with the first num ids of extra
+	public SiteSet with(int[] extra, int num) {
+		if (num == 0)
+			return this;
+		int[] all = Arrays.copyOf(ids, ids.length + num);
+		System.arraycopy(extra, 0, all, ids.length, num);
+		return of(all, all.length);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other)
+			return true;
+		if (!(other instanceof SiteSet))
+			return false;
+		SiteSet s = (SiteSet) other;
+		return hash == s.hash && Arrays.equals(ids, s.ids);
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	// ordered by size, hash and ids; cheaper than the order of PointSet,
+	// but not related to the coordinates of the sites
+	public int compareTo(SiteSet other) {
+		if (ids.length != other.ids.length)
+			return ids.length < other.ids.length ? -1 : 1;
+		if (hash != other.hash)
+			return Long.compare(hash, other.hash);
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] != other.ids[i])
+				return ids[i] < other.ids[i] ? -1 : 1;
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(ids);
+	}
+}
@@ -0,0 +1,168 @@
+package umichdb.coverage2;
+
+import java.util.Random;
+
+import smile.data.DataFrame;
+
+/**
+ * Compares the uniform and the adaptive sampler of the approximate checker
+ * on clustered data for some dimensionalities: the samples each labels, the
+ * time to build the checker and the share of the space its tree
+ * misclassifies, measured on uniform test points labelled exactly. The
+ * uniform sampler also runs with MORE_LABELS times the samples, to compare
+ * the labels each needs for the same accuracy. Both run with the given
+ * epsilon and with CERTIFY_EPSILON, where trees can err far less than
+ * epsilon and the adaptive sampler certifies them with fewer labels. Exits
+ * with status 1 if an adaptive tree that passed validation misclassifies
+ * clearly more than epsilon, if the adaptive sampler labels more than the
+ * uniform one, if a tree that did not pass is not trained on the uniform
+ * sample count, or if fewer than half of the runs with CERTIFY_EPSILON pass
+ * validation.
+ *
+ * Usage: AdaptiveSamplingBenchmark [numPoints] [k] [epsilon] [phi]
+ * [numTests]
+ */
+public class AdaptiveSamplingBenchmark {
+	static final int ROUNDS = 3;
+	static final int MORE_LABELS = 4;
+	static final int CLUSTERS = 4;
+	static final double SPREAD = 0.1;
+	static final int[] DIMENSIONS = {2, 3, 5};
+	static final double CERTIFY_EPSILON = 0.2;
+	// vicinity values that leave part of the space of 20000 clustered rows
+	// uncovered
+	static final double[] RHOS = {0.15, 0.3, 0.6};
+
+	public static void main(String[] args) {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		double epsilon = args.length > 2 ? Double.parseDouble(args[2]) : 0.02;
+		double phi = args.length > 3 ? Double.parseDouble(args[3]) : 0.01;
+		int numTests = args.length > 4 ? Integer.parseInt(args[4]) : 200000;
+
+		boolean failed = false;
+		for (double e : new double[]{epsilon, CERTIFY_EPSILON}) {
+			int certified = 0;
+			for (int t = 0; t < DIMENSIONS.length; t++) {
+				int passed = run(DIMENSIONS[t], RHOS[t], numPoints, k, e, phi,
+						numTests);
+				if (passed < 0)
+					failed = true;
+				certified += Math.max(0, passed);
+			}
+			System.out.println(String.format(
+					"epsilon %s: %d of %d adaptive trees validated", e,
+					certified, ROUNDS * DIMENSIONS.length));
+			if (e == CERTIFY_EPSILON
+					&& 2 * certified < ROUNDS * DIMENSIONS.length)
+				failed = true;
+		}
+
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Compare the samplers ROUNDS times in d dimensions
+	 *
+	 * @return the runs in which the adaptive tree passed validation, or -1
+	 *         if a run failed a check
+	 */
+	private static int run(int d, double rho, int numPoints, int k,
+			double epsilon, double phi, int numTests) {
+		DataFrame data = clusters(numPoints, d, new Random(-d));
+		CoverageDataset dataset = CoverageDataset
+				.of(Utils.rescale(Utils.fitScaler(data), data));
+		SpatialIndex index = BasicCoverageChecker.createIndex(dataset.rows(),
+				d, BasicCoverageChecker.defaultIndexType(d));
+		Random random = new Random(d);
+		double[] tests = new double[numTests * d];
+		for (int i = 0; i < tests.length; i++)
+			tests[i] = random.nextDouble();
+		boolean[] truth = MithraCoverageChecker.label(index, tests, d, k,
+				rho);
+
+		boolean failed = false;
+		int certified = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long begin = System.nanoTime();
+			MithraCoverageChecker uniform = new MithraCoverageChecker(dataset,
+					null, k, rho, epsilon, phi);
+			double uniformMs = (System.nanoTime() - begin) / 1e6;
+			// as many labels as it takes to match the adaptive tree
+			MithraCoverageChecker uniformMore = new MithraCoverageChecker(
+					dataset, null, k, rho, epsilon / MORE_LABELS, phi);
+
+			begin = System.nanoTime();
+			AdaptiveSampler sampler = new AdaptiveSampler(index, d, k, rho,
+					epsilon, phi, new Random(round));
+			sampler.run();
+			double adaptiveMs = (System.nanoTime() - begin) / 1e6;
+
+			int budget = MithraCoverageChecker.getNumSamples(epsilon, phi);
+			double adaptiveError = error(sampler.flatTree, tests, truth, d);
+			System.out.println(String.format(
+					"%d-d, epsilon %s: uniform %d labels, %.0f ms, error %.4f (%d labels: %.4f); adaptive %d labels, %d rounds, %.0f ms, error %.4f, %s",
+					d, epsilon, budget, uniformMs,
+					error(uniform.flatTree, tests, truth, d),
+					MithraCoverageChecker.getNumSamples(epsilon / MORE_LABELS,
+							phi),
+					error(uniformMore.flatTree, tests, truth, d),
+					sampler.numLabelled, sampler.rounds, adaptiveMs,
+					adaptiveError,
+					sampler.certified ? "validated" : "not validated"));
+			// A validated tree errs by more than epsilon with probability
+			// phi; allow for the error of the test estimate as well
+			double slack = 4 * Math.sqrt(epsilon / numTests);
+			if (sampler.certified && adaptiveError > epsilon + slack)
+				failed = true;
+			// Never more labels than the uniform sampler, and without a
+			// certificate the uniform sample count
+			if (sampler.numLabelled > budget
+					|| !sampler.certified && sampler.numSamples != budget)
+				failed = true;
+			if (sampler.certified)
+				certified++;
+		}
+		return failed ? -1 : certified;
+	}
+
+	// Gaussian clusters, so that coverage has regions rather than holes
+	// everywhere
+	static DataFrame clusters(int n, int d, Random random) {
+		return clusters(n, d, CLUSTERS, SPREAD, random);
+	}
+
+	static DataFrame clusters(int n, int d, int numClusters, double spread,
+			Random random) {
+		double[][] centers = new double[numClusters][d];
+		for (double[] center : centers) {
+			for (int j = 0; j < d; j++)
+				center[j] = random.nextDouble();
+		}
+		double[][] rows = new double[n][d];
+		for (int i = 0; i < n; i++) {
+			double[] center = centers[random.nextInt(numClusters)];
+			for (int j = 0; j < d; j++)
+				rows[i][j] = center[j] + spread * random.nextGaussian();
+		}
+		return DataFrame.of(rows);
+	}
+
+	// share of the tests the tree labels differently from the truth
+	private static double error(FlatDecisionTree tree, double[] tests,
+			boolean[] truth, int d) {
+		int errors = 0;
+		for (int i = 0; i < truth.length; i++) {
+			boolean covered = tree == null
+					? truth[0]
+					: tree.predict(tests, i * d) != 0;
+			if (covered != truth[i])
+				errors++;
+		}
+		return (double) errors / truth.length;
+	}
+}
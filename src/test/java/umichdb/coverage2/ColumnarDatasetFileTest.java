@@ -0,0 +1,186 @@
+package umichdb.coverage2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import smile.data.DataFrame;
+import smile.feature.Scaler;
+
+/**
+ * Writes a random CSV file (quoted fields, CRLF line ends, blank lines and a
+ * nominal attribute), converts it with ColumnarDatasetFile and checks that
+ * the mapped columns, the scaler and a checker built on them agree with
+ * Utils.loadDataSetFromCSV followed by Scaler, also when the columns are
+ * mapped in small chunks that do not line up with them. Also checks that bad
+ * input raises an IOException. Exits with status 1 on any mismatch.
+ *
+ * Usage: ColumnarDatasetFileTest [numRows] [numQueries]
+ */
+public class ColumnarDatasetFileTest {
+	static final String[] LEVELS = {"low", "mid", "high"};
+	// mappings of 4 KB and 32 KB for the columns of a few hundred KB
+	static final long[] CHUNK_BYTES = {1 << 12, 1 << 15};
+
+	public static void main(String[] args) throws IOException {
+		int numRows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+		File dataFile = File.createTempFile("coverage", ".data");
+		File schemaFile = File.createTempFile("coverage", ".schema");
+		File out = File.createTempFile("coverage", ".col");
+		dataFile.deleteOnExit();
+		schemaFile.deleteOnExit();
+		out.deleteOnExit();
+
+		try (PrintWriter schema = new PrintWriter(schemaFile)) {
+			schema.print("Name,Type,Values\n");
+			schema.print("a,continuous,\n");
+			schema.print("b,continuous,\n");
+			schema.print("level,nominal,\"low,mid,high\"\n");
+			schema.print("c,continuous,\n");
+		}
+		Random random = new Random(0);
+		try (PrintWriter data = new PrintWriter(dataFile)) {
+			for (int i = 0; i < numRows; i++) {
+				if (i % 1000 == 500)
+					data.print("\n");
+				data.print(random.nextGaussian() * 10 + ",");
+				data.print("\"" + random.nextDouble() + "\",");
+				data.print(LEVELS[random.nextInt(LEVELS.length)] + ",");
+				data.print(random.nextInt(100) - 50);
+				data.print(i % 7 == 0 ? "\r\n" : "\n");
+			}
+		}
+
+		boolean failed = false;
+		failed |= check(dataFile, schemaFile, out, new String[]{"c", "a"},
+				numQueries);
+		failed |= check(dataFile, schemaFile, out,
+				new String[]{"b", "level"}, numQueries);
+
+		// Bad input must surface as exceptions
+		try (PrintWriter data = new PrintWriter(dataFile)) {
+			data.print("1.0,2.0,low,3\n1.0,x,low,3\n");
+		}
+		failed |= !fails(dataFile, schemaFile, out, new String[]{"a", "b"},
+				"invalid value");
+		failed |= !fails(dataFile, schemaFile, out, new String[]{"a", "z"},
+				"unknown attribute");
+		try (PrintWriter data = new PrintWriter(dataFile)) {
+			data.print("1.0,2.0,low,3\n1.0,2.0\n");
+		}
+		failed |= !fails(dataFile, schemaFile, out, new String[]{"c"},
+				"missing field");
+		try (PrintWriter data = new PrintWriter(dataFile)) {
+			data.print("1.0,2.0,none,3\n");
+		}
+		failed |= !fails(dataFile, schemaFile, out, new String[]{"level"},
+				"unknown level");
+
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static boolean check(File dataFile, File schemaFile, File out,
+			String[] attrs, int numQueries) throws IOException {
+		long begin = System.nanoTime();
+		DataFrame df = Utils.loadDataSetFromCSV(dataFile.getPath(),
+				schemaFile.getPath()).select(attrs);
+		Scaler expectedScaler = Scaler.fit(df);
+		DataFrame expected = expectedScaler.transform(df);
+		double csvTime = (System.nanoTime() - begin) / 1e9;
+
+		begin = System.nanoTime();
+		ColumnarDatasetFile.fromCsv(dataFile.getPath(), schemaFile.getPath(),
+				attrs, out);
+		double convertTime = (System.nanoTime() - begin) / 1e9;
+		begin = System.nanoTime();
+		ColumnarDatasetFile file = ColumnarDatasetFile.open(out);
+		double openTime = (System.nanoTime() - begin) / 1e9;
+		CoverageDataset actual = file.dataset();
+
+		int d = attrs.length;
+		int mismatches = 0;
+		if (actual.size() != expected.size() || actual.dimension() != d
+				|| !file.schema().equals(df.schema()))
+			mismatches++;
+		for (int i = 0; i < Math.min(actual.size(), expected.size()); i++) {
+			for (int j = 0; j < d; j++) {
+				if (actual.get(i, j) != expected.getDouble(i, j))
+					mismatches++;
+			}
+		}
+
+		// Same scaler and same coverage
+		Random random = new Random(1);
+		double[] queries = new double[numQueries * d];
+		for (int i = 0; i < numQueries; i++) {
+			double[] raw = new double[d];
+			for (int j = 0; j < d; j++)
+				raw[j] = df.getDouble(random.nextInt(df.size()), j)
+						+ random.nextGaussian();
+			double[] scaled = expectedScaler.transform(raw);
+			if (!Arrays.equals(scaled, file.scaler().transform(raw)))
+				mismatches++;
+			System.arraycopy(scaled, 0, queries, i * d, d);
+		}
+		BitSet expectedCovered = new BasicCoverageChecker(df, 10, 0.05)
+				.ifCoveredBatch(queries, d);
+		BitSet actualCovered = new BasicCoverageChecker(actual, file.scaler(),
+				10, 0.05, BasicCoverageChecker.defaultIndexType(d))
+						.ifCoveredBatch(queries, d);
+		expectedCovered.xor(actualCovered);
+		mismatches += expectedCovered.cardinality();
+
+		for (long chunkBytes : CHUNK_BYTES) {
+			CoverageDataset chunked = ColumnarDatasetFile
+					.open(out, chunkBytes).dataset();
+			if (chunked.chunks == null || chunked.size() != actual.size())
+				mismatches++;
+			CoverageDataset.Row row = chunked.row(0);
+			double[] copy = new double[d];
+			for (int i = 0; i < Math.min(actual.size(), chunked.size()); i++) {
+				row.moveTo(i);
+				chunked.copyRow(i, copy, 0);
+				for (int j = 0; j < d; j++) {
+					if (chunked.get(i, j) != actual.get(i, j)
+							|| row.get(j) != actual.get(i, j)
+							|| copy[j] != actual.get(i, j))
+						mismatches++;
+				}
+			}
+			BitSet chunkedCovered = new BasicCoverageChecker(chunked,
+					file.scaler(), 10, 0.05,
+					BasicCoverageChecker.defaultIndexType(d))
+							.ifCoveredBatch(queries, d);
+			chunkedCovered.xor(actualCovered);
+			mismatches += chunkedCovered.cardinality();
+		}
+
+		System.out.println(String.format(
+				"%s: %d rows, csv + scaler %.3f s, convert %.3f s, open %.3f s, %d mismatches",
+				String.join(",", attrs), actual.size(), csvTime, convertTime,
+				openTime, mismatches));
+		return mismatches > 0;
+	}
+
+	private static boolean fails(File dataFile, File schemaFile, File out,
+			String[] attrs, String what) {
+		try {
+			ColumnarDatasetFile.fromCsv(dataFile.getPath(),
+					schemaFile.getPath(), attrs, out);
+		} catch (IOException e) {
+			System.out.println(what + ": " + e.getMessage());
+			return true;
+		}
+		System.out.println(what + ": no exception");
+		return false;
+	}
+}
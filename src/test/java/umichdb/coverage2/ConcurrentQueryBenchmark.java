@@ -0,0 +1,192 @@
+package umichdb.coverage2;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import smile.data.DataFrame;
+
+/**
+ * Query throughput of one shared MithraCoverageChecker (exact and
+ * approximate) for 1, 2, 4, ... threads, with every answer checked against
+ * a single thread. Then one thread adds a batch of rows and removes it again
+ * while the others query, and every batch of answers must be those of the
+ * rows with or without the batch. Exits with status 1 on any mismatch.
+ *
+ * Usage: ConcurrentQueryBenchmark [numPoints] [k] [rho] [maxThreads]
+ * [seconds]
+ */
+public class ConcurrentQueryBenchmark {
+	static final int BATCH = 1000;
+
+	public static void main(String[] args) throws InterruptedException {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		double rho = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+		int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+		double seconds = args.length > 4 ? Double.parseDouble(args[4]) : 1;
+
+		DataFrame data = Utils.genRandDataset(numPoints, 2);
+		Random random = new Random(0);
+		double[] queries = new double[2 * 100 * BATCH];
+		for (int i = 0; i < queries.length; i++)
+			queries[i] = random.nextDouble();
+		System.out.println(String.format("%d processors",
+				Runtime.getRuntime().availableProcessors()));
+
+		boolean failed = false;
+		MithraCoverageChecker exact = new MithraCoverageChecker(data, k, rho);
+		failed |= scale("exact", exact, queries, maxThreads, seconds);
+		failed |= scale("approximate",
+				new MithraCoverageChecker(data, k, rho, 0.01, 0.01), queries,
+				maxThreads, seconds);
+		failed |= checkUpdates(exact, data, queries, maxThreads, seconds,
+				random);
+
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static boolean scale(String name, MithraCoverageChecker checker,
+			double[] queries, int maxThreads, double seconds)
+			throws InterruptedException {
+		BitSet expected = checker.ifCoveredBatch(queries, 2);
+		long[] counts = new long[2];
+		// warm up the JIT
+		query(checker, queries, expected, 1, seconds, counts);
+		double single = 0;
+		boolean failed = false;
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			query(checker, queries, expected, threads, seconds, counts);
+			double throughput = counts[0] / seconds;
+			if (threads == 1)
+				single = throughput;
+			System.out.println(String.format(
+					"%s, %d threads: %.0f queries/s, speedup %.2f, %d mismatches",
+					name, threads, throughput, throughput / single, counts[1]));
+			failed |= counts[1] > 0;
+		}
+		return failed;
+	}
+
+	// query from some threads for some seconds; counts gets the number of
+	// queries and of wrong answers (and errors)
+	private static void query(MithraCoverageChecker checker, double[] queries,
+			BitSet expected, int threads, double seconds, long[] counts)
+			throws InterruptedException {
+		AtomicLong numQueries = new AtomicLong();
+		AtomicLong mismatches = new AtomicLong();
+		List<Throwable> errors = run(threads, seconds, (t, stop) -> {
+			// single points on even threads, batches on odd ones
+			double[] point = new double[2];
+			double[] batch = new double[2 * BATCH];
+			for (int b = t; !stop.get(); b++) {
+				int first = (b % (queries.length / 2 / BATCH)) * BATCH;
+				if (t % 2 == 0) {
+					for (int i = first; i < first + BATCH; i++) {
+						point[0] = queries[2 * i];
+						point[1] = queries[2 * i + 1];
+						if (checker.ifCovered(point) != expected.get(i))
+							mismatches.incrementAndGet();
+					}
+				} else {
+					System.arraycopy(queries, 2 * first, batch, 0,
+							batch.length);
+					BitSet covered = checker.ifCoveredBatch(batch, 2);
+					covered.xor(expected.get(first, first + BATCH));
+					mismatches.addAndGet(covered.cardinality());
+				}
+				numQueries.addAndGet(BATCH);
+			}
+		});
+		counts[0] = numQueries.get();
+		counts[1] = mismatches.get() + errors.size();
+	}
+
+	private static boolean checkUpdates(MithraCoverageChecker checker,
+			DataFrame data, double[] queries, int maxThreads, double seconds,
+			Random random) throws InterruptedException {
+		double[][] rows = new double[20][];
+		for (int i = 0; i < rows.length; i++)
+			rows[i] = new double[]{random.nextDouble(), random.nextDouble()};
+		DataFrame batch = DataFrame.of(rows, data.names());
+
+		// The answers without and with the batch
+		BitSet without = checker.ifCoveredBatch(queries, 2);
+		int[] ids = checker.addRows(batch).getAddedRows();
+		BitSet with = checker.ifCoveredBatch(queries, 2);
+		checker.removeRows(ids);
+
+		AtomicLong numUpdates = new AtomicLong();
+		AtomicLong numQueries = new AtomicLong();
+		AtomicLong mismatches = new AtomicLong();
+		List<Throwable> errors = run(Math.max(2, maxThreads / 4), seconds,
+				(t, stop) -> {
+					if (t == 0) {
+						while (!stop.get()) {
+							int[] added = checker.addRows(batch).getAddedRows();
+							checker.removeRows(added);
+							numUpdates.incrementAndGet();
+						}
+						return;
+					}
+					double[] points = new double[2 * BATCH];
+					for (int b = t; !stop.get(); b++) {
+						int first = (b % (queries.length / 2 / BATCH)) * BATCH;
+						System.arraycopy(queries, 2 * first, points, 0,
+								points.length);
+						BitSet covered = checker.ifCoveredBatch(points, 2);
+						if (!covered.equals(without.get(first, first + BATCH))
+								&& !covered
+										.equals(with.get(first, first + BATCH)))
+							mismatches.incrementAndGet();
+						numQueries.addAndGet(BATCH);
+					}
+				});
+		BitSet after = checker.ifCoveredBatch(queries, 2);
+		after.xor(without);
+		System.out.println(String.format(
+				"updating: %d batches added and removed, %d queries, %d inconsistent batches, %d mismatches after",
+				numUpdates.get(), numQueries.get(), mismatches.get(),
+				after.cardinality()));
+		return mismatches.get() + errors.size() + after.cardinality() > 0
+				|| numUpdates.get() == 0;
+	}
+
+	interface Worker {
+		void work(int thread, AtomicBoolean stop);
+	}
+
+	// run the worker on the given number of threads for some seconds and
+	// return what they threw
+	private static List<Throwable> run(int threads, double seconds,
+			Worker worker) throws InterruptedException {
+		AtomicBoolean stop = new AtomicBoolean();
+		List<Throwable> errors = new ArrayList<Throwable>();
+		List<Thread> started = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			Thread th = new Thread(() -> worker.work(thread, stop));
+			th.setUncaughtExceptionHandler((x, e) -> {
+				synchronized (errors) {
+					errors.add(e);
+				}
+			});
+			started.add(th);
+			th.start();
+		}
+		Thread.sleep((long) (seconds * 1000));
+		stop.set(true);
+		for (Thread th : started)
+			th.join();
+		for (Throwable e : errors)
+			e.printStackTrace();
+		return errors;
+	}
+}
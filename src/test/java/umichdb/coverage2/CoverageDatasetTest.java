@@ -0,0 +1,151 @@
+package umichdb.coverage2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import smile.data.DataFrame;
+import umichdb.coverage2.BasicCoverageChecker.IndexType;
+
+/**
+ * Builds the same rows as a CoverageDataset in every layout and store: row
+ * major and columnar, on the heap, in a direct buffer and wrapped around a
+ * little-endian buffer as a mapped file is. Every variant must read the same
+ * values through get, copyRow, rows, row views and toDataFrame, and the
+ * checkers built on it (k-d tree, ball tree, linear scan and, up to
+ * GridCoverageChecker.MAX_RECOMMENDED_DIM, grid) must answer random queries
+ * as the ones built on the heap row-major dataset do, and those as the linear
+ * scan. Exits with status 1 on any mismatch.
+ *
+ * Usage: CoverageDatasetTest [numPoints] [numQueries]
+ */
+public class CoverageDatasetTest {
+	static final int[] DIMENSIONS = {2, 4, 12};
+	// about half of the queries are covered
+	static final double[] RHOS = {0.02, 0.1, 0.6};
+	static final int K = 3;
+
+	static int failures = 0;
+
+	public static void main(String[] args) {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+		int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		for (int t = 0; t < DIMENSIONS.length; t++) {
+			int d = DIMENSIONS[t];
+			double rho = RHOS[t];
+			Random random = new Random(d);
+			double[][] values = new double[numPoints][d];
+			for (double[] row : values) {
+				for (int j = 0; j < d; j++)
+					row[j] = random.nextDouble();
+			}
+			DataFrame df = DataFrame.of(values);
+			double[] queries = new double[numQueries * d];
+			for (int i = 0; i < queries.length; i++)
+				queries[i] = random.nextDouble();
+
+			CoverageDataset reference = CoverageDataset.of(df);
+			CoverageDataset[] variants = {reference,
+					CoverageDataset.of(df, CoverageDataset.Layout.COLUMNAR,
+							false),
+					CoverageDataset.of(df, CoverageDataset.Layout.ROW_MAJOR,
+							true),
+					CoverageDataset.of(df, CoverageDataset.Layout.COLUMNAR,
+							true),
+					mapped(df, CoverageDataset.Layout.ROW_MAJOR),
+					mapped(df, CoverageDataset.Layout.COLUMNAR)};
+			String[] names = {"row-major heap", "columnar heap",
+					"row-major direct", "columnar direct",
+					"row-major little-endian", "columnar little-endian"};
+
+			BitSet[] expected = answers(reference, queries, d, rho);
+			for (int c = 0; c < expected.length; c++) {
+				check(String.format("%d-d, checker %d against the scan", d, c),
+						expected[c].equals(expected[IndexType.LINEAR
+								.ordinal()]));
+			}
+			for (int v = 0; v < variants.length; v++) {
+				String name = String.format("%d-d, %s", d, names[v]);
+				checkValues(name, variants[v], values);
+				BitSet[] actual = answers(variants[v], queries, d, rho);
+				int mismatches = 0;
+				for (int c = 0; c < expected.length; c++) {
+					BitSet diff = (BitSet) expected[c].clone();
+					diff.xor(actual[c]);
+					mismatches += diff.cardinality();
+				}
+				System.out.println(String.format(
+						"%s: %d of %d covered, %d mismatches", name,
+						actual[0].cardinality(), numQueries, mismatches));
+				check(name + ", checkers", mismatches == 0);
+			}
+		}
+
+		if (failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void check(String name, boolean ok) {
+		if (!ok) {
+			System.out.println("Failed: " + name);
+			failures++;
+		}
+	}
+
+	// the rows written to a little-endian buffer in the layout, and wrapped
+	private static CoverageDataset mapped(DataFrame df,
+			CoverageDataset.Layout layout) {
+		CoverageDataset heap = CoverageDataset.of(df, layout, false);
+		DoubleBuffer buffer = ByteBuffer
+				.allocateDirect(8 * heap.size() * heap.dimension())
+				.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+		buffer.put(heap.array).flip();
+		return CoverageDataset.wrap(buffer, heap.size(), heap.dimension(),
+				layout, df.schema());
+	}
+
+	private static void checkValues(String name, CoverageDataset dataset,
+			double[][] values) {
+		int n = values.length, d = values[0].length;
+		double[] rows = dataset.rows();
+		double[] copy = new double[d + 1];
+		DataFrame df = dataset.toDataFrame();
+		CoverageDataset.Row view = dataset.row(0);
+		int mismatches = 0;
+		for (int i = 0; i < n; i++) {
+			dataset.copyRow(i, copy, 1);
+			view.moveTo(i);
+			for (int j = 0; j < d; j++) {
+				double v = values[i][j];
+				if (dataset.get(i, j) != v || copy[1 + j] != v
+						|| rows[i * d + j] != v || view.get(j) != v
+						|| df.getDouble(i, j) != v)
+					mismatches++;
+			}
+		}
+		check(name + ", values", mismatches == 0 && dataset.size() == n
+				&& dataset.dimension() == d);
+	}
+
+	// the answers of each checker to the queries
+	private static BitSet[] answers(CoverageDataset dataset, double[] queries,
+			int d, double rho) {
+		List<CoverageChecker> checkers = new ArrayList<>();
+		for (IndexType type : IndexType.values())
+			checkers.add(new BasicCoverageChecker(dataset, null, K, rho, type));
+		if (d <= GridCoverageChecker.MAX_RECOMMENDED_DIM)
+			checkers.add(new GridCoverageChecker(dataset, null, K, rho));
+		BitSet[] answers = new BitSet[checkers.size()];
+		for (int c = 0; c < answers.length; c++)
+			answers[c] = checkers.get(c).ifCoveredBatch(queries, d);
+		return answers;
+	}
+}
@@ -0,0 +1,220 @@
+package umichdb.coverage2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Random;
+
+import smile.data.DataFrame;
+
+/**
+ * Saves exact and approximate checkers with CoverageIndexFile, loads them
+ * back and checks that both answer random queries the same way. Reports
+ * build, save and load times and the file size. A checker loaded from the
+ * file must keep its answers after another checker is saved over it, and
+ * the approximate checker must keep its uncovered boxes, adaptive ones
+ * whether they are certified, for one that is and one that is not. Files of
+ * versions 1 and 2, whose objects are Java serialization, must still load
+ * the same; one with an unknown flag or a class outside the allowed packages
+ * must be rejected. Exits with status 1 on any mismatch.
+ *
+ * Usage: CoverageIndexRoundTripTest [numPoints] [k] [rho] [numQueries]
+ */
+public class CoverageIndexRoundTripTest {
+	// adaptive checkers until one is certified and one is not
+	static final int ADAPTIVE_TRIES = 20;
+	static final double ADAPTIVE_RHO = 0.25;
+	static final double ADAPTIVE_EPSILON = 0.2;
+
+	public static void main(String[] args)
+			throws IOException, URISyntaxException {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		double rho = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+		int numQueries = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+
+		DataFrame data = Utils.genRandDataset(numPoints, 2);
+		Random random = new Random(0);
+		double[] queries = new double[2 * numQueries];
+		for (int i = 0; i < queries.length; i++)
+			queries[i] = random.nextDouble();
+
+		boolean failed = false;
+		File file = File.createTempFile("coverage", ".idx");
+		file.deleteOnExit();
+
+		// Exact mode
+		long begin = System.nanoTime();
+		MithraCoverageChecker built = new MithraCoverageChecker(data, k, rho);
+		double buildTime = (System.nanoTime() - begin) / 1e9;
+		MithraCoverageChecker loaded = roundTrip(built, file, "exact",
+				buildTime);
+
+		int mismatches = count(built.ifCoveredBatch(queries, 2),
+				loaded.ifCoveredBatch(queries, 2));
+		for (int i = 0; i < numQueries; i += 100) {
+			double[] q = {queries[2 * i], queries[2 * i + 1]};
+			int kq = 1 + i % k;
+			double rhoq = rho * (0.5 + (i % 7) / 4.0);
+			if (built.ifCovered(q, kq, rhoq) != loaded.ifCovered(q, kq, rhoq))
+				mismatches++;
+			double[] expected = built.getNearestDistances(q);
+			double[] actual = loaded.getNearestDistances(q);
+			if (!java.util.Arrays.equals(expected, actual))
+				mismatches++;
+		}
+		System.out.println(String.format("exact: %d mismatches", mismatches));
+		failed |= mismatches > 0;
+
+		// Approximate mode, saved over the file the exact checker has mapped
+		MithraCoverageChecker exact = built, exactLoaded = loaded;
+		begin = System.nanoTime();
+		built = new MithraCoverageChecker(data, k, rho, 0.01, 0.1);
+		buildTime = (System.nanoTime() - begin) / 1e9;
+		loaded = roundTrip(built, file, "approximate", buildTime);
+		mismatches = count(exact.ifCoveredBatch(queries, 2),
+				exactLoaded.ifCoveredBatch(queries, 2));
+		System.out.println(String
+				.format("exact after overwrite: %d mismatches", mismatches));
+		failed |= mismatches > 0;
+		mismatches = count(built.ifCoveredBatch(queries, 2),
+				loaded.ifCoveredBatch(queries, 2));
+		double[] raw = {data.getDouble(0, 0), data.getDouble(0, 1)};
+		if (built.ifCovered(raw, true) != loaded.ifCovered(raw, true))
+			mismatches++;
+		System.out.println(
+				String.format("approximate: %d mismatches", mismatches));
+		failed |= mismatches > 0;
+
+		double volume = built.getUncoveredBoxes().getVolume();
+		double loadedVolume = loaded.getUncoveredBoxes().getVolume();
+		System.out.println(String.format(
+				"approximate: uncovered volume %.6f, loaded %.6f", volume,
+				loadedVolume));
+		failed |= volume != loadedVolume;
+
+		// Adaptive mode keeps whether its tree passed validation, both ways.
+		// On clusters with a large epsilon about half of the trees pass.
+		DataFrame clusters = AdaptiveSamplingBenchmark.clusters(numPoints, 2,
+				new Random(0));
+		boolean[] seen = new boolean[2];
+		for (int i = 0; i < ADAPTIVE_TRIES && !(seen[0] && seen[1]); i++) {
+			MithraCoverageChecker adaptive = new MithraCoverageChecker(
+					clusters, k, ADAPTIVE_RHO, ADAPTIVE_EPSILON, 0.01,
+					MithraCoverageChecker.Sampling.ADAPTIVE);
+			adaptive.save(file);
+			boolean certified = MithraCoverageChecker.load(file)
+					.isCertified();
+			if (!seen[certified ? 1 : 0]) {
+				System.out.println(String.format(
+						"adaptive: certified %s, loaded %s",
+						adaptive.isCertified(), certified));
+			}
+			failed |= certified != adaptive.isCertified();
+			seen[certified ? 1 : 0] = true;
+		}
+		failed |= !(seen[0] && seen[1]);
+
+		// Versions 1 and 2 are read, unknown flags and classes are not
+		for (int version = 1; version <= 2; version++) {
+			writeSerialized(built, built.scaler, file, version, 0);
+			mismatches = count(built.ifCoveredBatch(queries, 2),
+					MithraCoverageChecker.load(file)
+							.ifCoveredBatch(queries, 2));
+			System.out.println(String.format("version %d: %d mismatches",
+					version, mismatches));
+			failed |= mismatches > 0;
+		}
+		writeSerialized(built, built.scaler, file, 2, 1 << 30);
+		boolean flagRejected = rejects(file);
+		writeSerialized(built, new URI("http://localhost/"), file, 2,
+				0);
+		boolean classRejected = rejects(file);
+		System.out.println(String.format(
+				"unknown flag %s, unknown class %s",
+				flagRejected ? "rejected" : "accepted",
+				classRejected ? "rejected" : "accepted"));
+		failed |= !flagRejected || !classRejected;
+
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static MithraCoverageChecker roundTrip(
+			MithraCoverageChecker checker, File file, String mode,
+			double buildTime) throws IOException {
+		long begin = System.nanoTime();
+		checker.save(file);
+		double saveTime = (System.nanoTime() - begin) / 1e9;
+
+		begin = System.nanoTime();
+		MithraCoverageChecker loaded = MithraCoverageChecker.load(file);
+		double loadTime = (System.nanoTime() - begin) / 1e9;
+
+		System.out.println(String.format(
+				"%s: build %.3f s, save %.3f s, load %.3f s, %.1f MB",
+				mode, buildTime, saveTime, loadTime, file.length() / 1e6));
+		return loaded;
+	}
+
+	private static boolean rejects(File file) {
+		try {
+			MithraCoverageChecker.load(file);
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Write an approximate checker in the layout of versions 1 and 2, with
+	 * the given object in place of the scaler and extra flags
+	 */
+	private static void writeSerialized(MithraCoverageChecker checker,
+			Object scaler, File file, int version, int extraFlags)
+			throws IOException {
+		ByteArrayOutputStream objects = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(objects)) {
+			out.writeObject(scaler);
+			out.writeObject(checker.dataset.schema());
+			out.writeObject(checker.srcDataSchema);
+			out.writeObject(checker.coverageDecisionTree);
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			CoverageIndexFile.Writer out = new CoverageIndexFile.Writer(
+					channel);
+			out.putLong(CoverageIndexFile.MAGIC);
+			out.putInt(version);
+			out.putInt(CoverageIndexFile.HAS_TREE | extraFlags);
+			out.putInt(checker.k);
+			out.putInt(checker.d);
+			out.putDouble(checker.rho);
+			out.putInt(checker.dataset.size());
+			out.putInt(objects.size());
+			out.putBytes(objects.toByteArray());
+			out.align();
+			for (int i = 0; i < checker.dataset.size(); i++) {
+				for (int j = 0; j < checker.d; j++)
+					out.putDouble(checker.dataset.get(i, j));
+			}
+			out.flush();
+		}
+	}
+
+	private static int count(BitSet expected, BitSet actual) {
+		BitSet diff = (BitSet) expected.clone();
+		diff.xor(actual);
+		return diff.cardinality();
+	}
+}
@@ -0,0 +1,275 @@
+package umichdb.coverage2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import smile.data.DataFrame;
+import umichdb.coverage2.CoverageMetrics.Counter;
+import umichdb.coverage2.CoverageMetrics.Stage;
+
+/**
+ * Runs the exact, approximate, grid and streaming checkers with metrics off
+ * and on and checks that nothing is recorded while they are off, that every
+ * stage runs as often as expected while they are on, that listeners and the
+ * MBean see the same numbers, and that the histogram percentiles are within
+ * their resolution. Reports the query time with metrics off and on. Exits with
+ * status 1 on any mismatch.
+ *
+ * Usage: CoverageMetricsTest [numPoints] [k] [rho]
+ */
+public class CoverageMetricsTest {
+	static final int NUM_QUERIES = 1000;
+	// rows pushed to a stream, and the rows its window keeps
+	static final int STREAM_ROWS = 40, STREAM_WINDOW = 10;
+
+	static int failures = 0;
+
+	public static void main(String[] args) throws IOException, JMException {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		double rho = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+
+		DataFrame data = Utils.genRandDataset(numPoints, 2);
+		Random random = new Random(0);
+		double[] queries = new double[2 * NUM_QUERIES];
+		for (int i = 0; i < queries.length; i++)
+			queries[i] = random.nextDouble();
+
+		// Off: nothing is recorded
+		CoverageMetrics.setEnabled(false);
+		CoverageMetrics.reset();
+		run(data, k, rho, queries);
+		for (Stage stage : Stage.values())
+			check("off, " + stage, CoverageMetrics.timer(stage).getCount(), 0);
+		for (Counter counter : Counter.values())
+			check("off, " + counter, CoverageMetrics.getCount(counter), 0);
+
+		// On, with a listener that adds up what it sees
+		Map<Stage, AtomicLong> stages = new EnumMap<Stage, AtomicLong>(
+				Stage.class);
+		Map<Counter, AtomicLong> counts = new EnumMap<Counter, AtomicLong>(
+				Counter.class);
+		for (Stage stage : Stage.values())
+			stages.put(stage, new AtomicLong());
+		for (Counter counter : Counter.values())
+			counts.put(counter, new AtomicLong());
+		CoverageMetrics.Listener listener = new CoverageMetrics.Listener() {
+			@Override
+			public void stageCompleted(Stage stage, long nanos) {
+				stages.get(stage).incrementAndGet();
+			}
+
+			@Override
+			public void counted(Counter counter, long delta) {
+				counts.get(counter).addAndGet(delta);
+			}
+		};
+		CoverageMetrics.addListener(listener);
+		CoverageMetrics.setEnabled(true);
+		run(data, k, rho, queries);
+		CoverageMetrics.removeListener(listener);
+		System.out.print(CoverageMetrics.report());
+
+		// One exact and one approximate checker are built; updates and loading
+		// rebuild parts of the diagram and its locator
+		for (Stage stage : new Stage[]{Stage.SCALER_FIT, Stage.SCALE,
+				Stage.VORONOI_BUILD, Stage.FIND_POLYGONS, Stage.LOCATOR_BUILD,
+				Stage.INDEX_BUILD})
+			checkAtLeast(stage.toString(),
+					CoverageMetrics.timer(stage).getCount(), 1);
+		check("NOISE", CoverageMetrics.timer(Stage.NOISE).getCount(), 1);
+		check("SAMPLING", CoverageMetrics.timer(Stage.SAMPLING).getCount(), 1);
+		check("LABELLING", CoverageMetrics.timer(Stage.LABELLING).getCount(),
+				1);
+		check("TREE_TRAINING",
+				CoverageMetrics.timer(Stage.TREE_TRAINING).getCount(), 1);
+		// Each checker: single queries and a batch, and the exact one
+		// query-time rho and k
+		check("QUERY", CoverageMetrics.timer(Stage.QUERY).getCount(),
+				6 * NUM_QUERIES);
+		check("QUERY_BATCH",
+				CoverageMetrics.timer(Stage.QUERY_BATCH).getCount(), 5);
+		check("QUERIES", CoverageMetrics.getCount(Counter.QUERIES),
+				11 * NUM_QUERIES);
+		// addRows, removeRows, every push and one expire
+		check("UPDATE", CoverageMetrics.timer(Stage.UPDATE).getCount(),
+				3 + STREAM_ROWS);
+		check("ROWS_ADDED", CoverageMetrics.getCount(Counter.ROWS_ADDED),
+				10 + STREAM_ROWS);
+		check("ROWS_REMOVED", CoverageMetrics.getCount(Counter.ROWS_REMOVED),
+				10 + STREAM_ROWS);
+		check("SAVE", CoverageMetrics.timer(Stage.SAVE).getCount(), 1);
+		check("LOAD", CoverageMetrics.timer(Stage.LOAD).getCount(), 1);
+		for (Stage stage : Stage.values())
+			check("listener, " + stage, stages.get(stage).get(),
+					CoverageMetrics.timer(stage).getCount());
+		for (Counter counter : Counter.values())
+			check("listener, " + counter, counts.get(counter).get(),
+					CoverageMetrics.getCount(counter));
+
+		checkMBean();
+		checkHistogram();
+		reportOverhead(data, k, rho, queries);
+
+		CoverageMetrics.setEnabled(false);
+		if (failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	// build, query, update, save and load
+	private static void run(DataFrame data, int k, double rho,
+			double[] queries) throws IOException {
+		MithraCoverageChecker exact = new MithraCoverageChecker(data, k, rho);
+		query(exact, queries);
+		double[] point = new double[2];
+		for (int i = 0; i < NUM_QUERIES; i++) {
+			point[0] = queries[2 * i];
+			point[1] = queries[2 * i + 1];
+			exact.ifCovered(point, rho / 2);
+			exact.ifCovered(point, k - 1, rho);
+		}
+		exact.ifCoveredBatch(queries, 2, k - 1, rho);
+
+		double[][] rows = new double[10][];
+		Random random = new Random(1);
+		for (int i = 0; i < rows.length; i++)
+			rows[i] = new double[]{random.nextDouble(), random.nextDouble()};
+		int[] added = exact.addRows(DataFrame.of(rows, data.names()))
+				.getAddedRows();
+		exact.removeRows(added);
+
+		File file = File.createTempFile("metrics", ".cidx");
+		file.deleteOnExit();
+		exact.save(file);
+		MithraCoverageChecker.load(file);
+
+		MithraCoverageChecker approximate = new MithraCoverageChecker(data, k,
+				rho, 0.05, 0.05);
+		query(approximate, queries);
+
+		query(new GridCoverageChecker(data, k, rho), queries);
+
+		// pushes expire all but the window, expire the rest
+		StreamingCoverageChecker stream = new StreamingCoverageChecker(
+				Utils.fitScaler(data), 2, k, rho, STREAM_WINDOW, 1000);
+		for (int i = 0; i < STREAM_ROWS; i++) {
+			stream.push(new double[]{data.getDouble(i, 0),
+					data.getDouble(i, 1)}, i);
+		}
+		query(stream, queries);
+		stream.expire(STREAM_ROWS + 1000);
+	}
+
+	private static BitSet query(CoverageChecker checker, double[] queries) {
+		double[] point = new double[2];
+		for (int i = 0; i < NUM_QUERIES; i++) {
+			point[0] = queries[2 * i];
+			point[1] = queries[2 * i + 1];
+			checker.ifCovered(point);
+		}
+		return checker.ifCoveredBatch(queries, 2);
+	}
+
+	private static void checkMBean() throws JMException {
+		ObjectName name = CoverageMetrics.registerMBean();
+		CoverageMetrics.registerMBean();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		check("MBean enabled", (Boolean) server.getAttribute(name, "Enabled")
+				? 1
+				: 0, 1);
+		CoverageMetricsMXBean proxy = JMX.newMXBeanProxy(server, name,
+				CoverageMetricsMXBean.class);
+		check("MBean QUERY", proxy.getStageCounts().get("QUERY"),
+				CoverageMetrics.timer(Stage.QUERY).getCount());
+		check("MBean QUERIES", proxy.getCounters().get("QUERIES"),
+				CoverageMetrics.getCount(Counter.QUERIES));
+		checkAtLeast("MBean QUERY p99 >= p50",
+				(long) (proxy.getStageP99Millis().get("QUERY") * 1e6),
+				(long) (proxy.getStageP50Millis().get("QUERY") * 1e6));
+		proxy.reset();
+		check("MBean reset", CoverageMetrics.timer(Stage.QUERY).getCount(), 0);
+		CoverageMetrics.unregisterMBean();
+		check("MBean unregistered", server.isRegistered(name) ? 1 : 0, 0);
+	}
+
+	// 1..10000 ns: the percentiles are within 25% of the true values
+	private static void checkHistogram() {
+		CoverageMetrics.Timer timer = new CoverageMetrics.Timer();
+		for (long nanos = 1; nanos <= 10000; nanos++)
+			timer.record(nanos);
+		checkWithin("p50", timer.getPercentileNanos(0.5), 5000);
+		checkWithin("p99", timer.getPercentileNanos(0.99), 9900);
+		check("p100", timer.getPercentileNanos(1), 10000);
+		check("max", timer.getMaxNanos(), 10000);
+		check("total", timer.getTotalNanos(), 10000L * 10001 / 2);
+		for (long nanos : new long[]{0, 3, 4, 5, 7, 8, 1000, 1L << 40,
+				Long.MAX_VALUE}) {
+			int bucket = CoverageMetrics.Timer.bucket(nanos);
+			check("bucket of " + nanos,
+					nanos <= CoverageMetrics.Timer.bucketMax(bucket)
+							&& (bucket == 0 || nanos > CoverageMetrics.Timer
+									.bucketMax(bucket - 1)) ? 1 : 0,
+					1);
+		}
+	}
+
+	private static void reportOverhead(DataFrame data, int k, double rho,
+			double[] queries) {
+		MithraCoverageChecker checker = new MithraCoverageChecker(data, k, rho);
+		double[] point = new double[2];
+		for (int round = 0; round < 4; round++) {
+			boolean on = round % 2 == 1;
+			CoverageMetrics.setEnabled(on);
+			long begin = System.nanoTime();
+			for (int r = 0; r < 200; r++) {
+				for (int i = 0; i < NUM_QUERIES; i++) {
+					point[0] = queries[2 * i];
+					point[1] = queries[2 * i + 1];
+					checker.ifCovered(point);
+				}
+			}
+			if (round >= 2)
+				System.out.println(String.format(
+						"metrics %s: %.3f us per query", on ? "on" : "off",
+						(System.nanoTime() - begin) / 1e3 / 200 / NUM_QUERIES));
+		}
+	}
+
+	private static void check(String name, long actual, long expected) {
+		if (actual != expected) {
+			System.out.println(String.format("%s: %d, expected %d", name,
+					actual, expected));
+			failures++;
+		}
+	}
+
+	private static void checkAtLeast(String name, long actual, long min) {
+		if (actual < min) {
+			System.out.println(String.format("%s: %d, expected at least %d",
+					name, actual, min));
+			failures++;
+		}
+	}
+
+	private static void checkWithin(String name, long actual, long expected) {
+		if (Math.abs(actual - expected) > expected / 4) {
+			System.out.println(String.format("%s: %d, expected %d +- 25%%",
+					name, actual, expected));
+			failures++;
+		}
+	}
+}
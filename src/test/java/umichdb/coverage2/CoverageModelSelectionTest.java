@@ -0,0 +1,262 @@
+package umichdb.coverage2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Random;
+
+import smile.classification.GradientTreeBoost;
+import smile.data.DataFrame;
+import smile.data.Tuple;
+import smile.data.formula.Formula;
+import smile.data.vector.BooleanVector;
+
+/**
+ * Checks the models of the approximate checker and their choice under a
+ * ModelBudget:
+ * - KdTree.nearest finds the neighbors a scan finds
+ * - flattened boosted stumps predict what smile's GradientTreeBoost predicts
+ * - without limits the most accurate candidate is chosen, and the accuracy
+ * reported on held-out samples is close to the accuracy on fresh uniform
+ * points
+ * - under a byte limit the chosen model fits the limit
+ * - under a limit no candidate fits, the smallest candidate is chosen
+ * - a checker with a model other than a tree answers single and batch
+ * queries alike, before and after a save and load
+ * - a budget with adaptive sampling is rejected
+ * Exits with status 1 on any failure.
+ *
+ * Usage: CoverageModelSelectionTest [numPoints] [k] [numTests]
+ */
+public class CoverageModelSelectionTest {
+	static final int[] DIMENSIONS = {2, 5};
+	// vicinity values that leave part of the space of 20000 rows uncovered
+	static final double[] RHOS = {0.015, 0.2};
+	static final double EPSILON = 0.01;
+	static final double PHI = 0.01;
+	// most difference between held-out and fresh accuracy
+	static final double ACCURACY_TOLERANCE = 0.02;
+	static final long MAX_BYTES = 10000;
+
+	static int failures = 0;
+
+	public static void main(String[] args) throws IOException {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int numTests = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+		checkNearest();
+		checkStumps();
+		checkAdaptiveRejected();
+
+		for (int t = 0; t < DIMENSIONS.length; t++) {
+			int d = DIMENSIONS[t];
+			DataFrame data = Utils.genRandDataset(numPoints, d);
+			CoverageDataset dataset = CoverageDataset
+					.of(Utils.rescale(Utils.fitScaler(data), data));
+			Random random = new Random(d);
+			double[] tests = new double[numTests * d];
+			for (int i = 0; i < tests.length; i++)
+				tests[i] = random.nextDouble();
+			boolean[] truth = MithraCoverageChecker.label(
+					BasicCoverageChecker.createIndex(dataset.rows(), d,
+							BasicCoverageChecker.defaultIndexType(d)),
+					tests, d, k, RHOS[t]);
+
+			// No limits: the most accurate candidate
+			MithraCoverageChecker checker = new MithraCoverageChecker(dataset,
+					null, k, RHOS[t], EPSILON, PHI,
+					MithraCoverageChecker.Sampling.UNIFORM,
+					ModelBudget.UNLIMITED);
+			CoverageModels.Selection selection = checker.getModelSelection();
+			System.out.print(String.format("%d-d, ", d) + selection);
+			double fresh = accuracy(checker, tests, truth);
+			System.out.println(String.format(
+					"%d-d: held-out accuracy %.4f, fresh accuracy %.4f", d,
+					selection.getAccuracy(), fresh));
+			for (CoverageModels.Candidate candidate : selection
+					.getCandidates()) {
+				check(d + "-d, " + candidate.getName() + " is not chosen",
+						candidate.getAccuracy() <= selection.getAccuracy());
+			}
+			check(d + "-d, held-out accuracy",
+					Math.abs(selection.getAccuracy()
+							- fresh) <= ACCURACY_TOLERANCE);
+
+			// A byte limit
+			checker = new MithraCoverageChecker(dataset, null, k, RHOS[t],
+					EPSILON, PHI, MithraCoverageChecker.Sampling.UNIFORM,
+					new ModelBudget(MAX_BYTES, Double.POSITIVE_INFINITY,
+							Double.POSITIVE_INFINITY));
+			selection = checker.getModelSelection();
+			System.out.println(String.format(
+					"%d-d, at most %d bytes: %s, fresh accuracy %.4f", d,
+					MAX_BYTES, selection.getChosen(),
+					accuracy(checker, tests, truth)));
+			check(d + "-d, byte limit",
+					selection.getChosen().getBytes() <= MAX_BYTES);
+
+			// A byte limit no candidate fits: the one that exceeds it least
+			checker = new MithraCoverageChecker(dataset, null, k, RHOS[t],
+					EPSILON, PHI, MithraCoverageChecker.Sampling.UNIFORM,
+					new ModelBudget(1, Double.POSITIVE_INFINITY,
+							Double.POSITIVE_INFINITY));
+			selection = checker.getModelSelection();
+			System.out.println(String.format("%d-d, at most 1 byte: %s", d,
+					selection.getChosen()));
+			for (CoverageModels.Candidate candidate : selection
+					.getCandidates()) {
+				check(d + "-d, " + candidate.getName() + " is smaller",
+						candidate.getBytes() >= selection.getChosen()
+								.getBytes());
+			}
+
+			// Each candidate alone: queries, and save and load
+			for (CoverageModel.Trainer trainer : CoverageModels
+					.defaultTrainers()) {
+				checker = new MithraCoverageChecker(dataset, null, k, RHOS[t],
+						EPSILON, PHI, MithraCoverageChecker.Sampling.UNIFORM,
+						new ModelBudget(Long.MAX_VALUE,
+								Double.POSITIVE_INFINITY,
+								Double.POSITIVE_INFINITY,
+								Collections.singletonList(trainer)));
+				File file = File.createTempFile("model", ".cidx");
+				file.deleteOnExit();
+				checker.save(file);
+				MithraCoverageChecker loaded = MithraCoverageChecker
+						.load(file);
+				BitSet batch = checker.ifCoveredBatch(tests, d);
+				BitSet loadedBatch = loaded.ifCoveredBatch(tests, d);
+				int mismatches = 0;
+				double[] point = new double[d];
+				for (int i = 0; i < numTests; i += 97) {
+					System.arraycopy(tests, i * d, point, 0, d);
+					if (checker.ifCovered(point) != batch.get(i))
+						mismatches++;
+				}
+				loadedBatch.xor(batch);
+				System.out.println(String.format(
+						"%d-d, %s: %d single and %d loaded mismatches", d,
+						trainer.name(), mismatches,
+						loadedBatch.cardinality()));
+				check(d + "-d, " + trainer.name() + " queries",
+						mismatches + loadedBatch.cardinality() == 0);
+			}
+		}
+
+		if (failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void check(String name, boolean ok) {
+		if (!ok) {
+			System.out.println("Failed: " + name);
+			failures++;
+		}
+	}
+
+	private static void checkAdaptiveRejected() {
+		CoverageDataset dataset = CoverageDataset
+				.of(Utils.genRandDataset(200, 2));
+		boolean rejected;
+		try {
+			new MithraCoverageChecker(dataset, null, 3, 0.1, 0.1, 0.1,
+					MithraCoverageChecker.Sampling.ADAPTIVE,
+					ModelBudget.UNLIMITED);
+			rejected = false;
+		} catch (IllegalArgumentException e) {
+			rejected = true;
+		}
+		System.out.println(String.format("budget with adaptive sampling: %s",
+				rejected ? "rejected" : "accepted"));
+		check("budget with adaptive sampling", rejected);
+	}
+
+	private static double accuracy(MithraCoverageChecker checker,
+			double[] tests, boolean[] truth) {
+		BitSet covered = checker.ifCoveredBatch(tests, checker.d);
+		int right = 0;
+		for (int i = 0; i < truth.length; i++) {
+			if (covered.get(i) == truth[i])
+				right++;
+		}
+		return (double) right / truth.length;
+	}
+
+	private static void checkNearest() {
+		Random random = new Random(1);
+		int mismatches = 0;
+		for (int d : new int[]{2, 5}) {
+			double[] data = new double[3000 * d];
+			for (int i = 0; i < data.length; i++)
+				data[i] = random.nextDouble();
+			KdTree tree = new KdTree(data, d);
+			int[] rows = new int[7];
+			for (int q = 0; q < 500; q++) {
+				double[] point = new double[d];
+				for (int j = 0; j < d; j++)
+					point[j] = random.nextDouble();
+				int found = tree.nearest(point, 0, rows.length, rows);
+				double[] expected = new double[3000];
+				for (int i = 0; i < 3000; i++)
+					expected[i] = dist2(data, i * d, point, d);
+				Arrays.sort(expected);
+				for (int i = 0; i < found; i++) {
+					if (dist2(data, rows[i] * d, point, d) != expected[i])
+						mismatches++;
+				}
+				if (found != rows.length)
+					mismatches++;
+			}
+		}
+		System.out.println(String.format("nearest: %d mismatches", mismatches));
+		check("nearest", mismatches == 0);
+	}
+
+	private static double dist2(double[] data, int offset, double[] point,
+			int d) {
+		double dist2 = 0;
+		for (int j = 0; j < d; j++) {
+			double diff = data[offset + j] - point[j];
+			dist2 += diff * diff;
+		}
+		return dist2;
+	}
+
+	private static void checkStumps() {
+		Random random = new Random(2);
+		int d = 3, n = 4000;
+		double[][] rows = new double[n][d];
+		boolean[] labels = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < d; j++)
+				rows[i][j] = random.nextDouble();
+			labels[i] = rows[i][0] + rows[i][1] * rows[i][2] > 0.7;
+		}
+		DataFrame data = DataFrame.of(rows);
+		GradientTreeBoost boost = GradientTreeBoost.fit(
+				Formula.lhs(MithraCoverageChecker.LABEL_NAME),
+				data.merge(BooleanVector.of(MithraCoverageChecker.LABEL_NAME,
+						labels)),
+				100, 2, 2, 5, 0.1, 1.0);
+		CoverageModel stumps = CoverageModels.StumpModel.of(boost,
+				data.schema());
+		int mismatches = 0;
+		double[] point = new double[d];
+		for (int i = 0; i < 20000; i++) {
+			for (int j = 0; j < d; j++)
+				point[j] = random.nextDouble();
+			boolean expected = boost
+					.predict(Tuple.of(point, data.schema())) != 0;
+			if (stumps.isCovered(point, 0) != expected)
+				mismatches++;
+		}
+		System.out.println(String.format("stumps: %d mismatches", mismatches));
+		check("stumps", mismatches == 0);
+	}
+}
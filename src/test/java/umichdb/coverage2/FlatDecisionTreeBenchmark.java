@@ -0,0 +1,159 @@
+package umichdb.coverage2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Random;
+
+import smile.data.DataFrame;
+import smile.data.Tuple;
+
+/**
+ * Builds approximate checkers for some dimensionalities and compares the
+ * flattened decision tree with smile's DecisionTree.predict on random
+ * points (some of them outside [0, 1] or NaN), one by one, in batches and
+ * after a save and load. Then reports the query throughput of smile's tree,
+ * of the flat tree point by point and of the flat tree in batches, for
+ * points of the rescaled space [0, 1)^d. The 2-d
+ * tree has a jump table, the others do not. Exits with status 1 on any
+ * mismatch.
+ *
+ * Usage: FlatDecisionTreeBenchmark [numPoints] [k] [numQueries]
+ */
+public class FlatDecisionTreeBenchmark {
+	static final int ROUNDS = 5;
+	static final int[] DIMENSIONS = {2, 5, 10};
+	// vicinity values that leave part of the space of 20000 rows uncovered
+	static final double[] RHOS = {0.015, 0.2, 0.5};
+
+	public static void main(String[] args) throws IOException {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 200000;
+
+		boolean failed = false;
+		for (int t = 0; t < DIMENSIONS.length; t++) {
+			int d = DIMENSIONS[t];
+			DataFrame data = Utils.genRandDataset(numPoints, d);
+			MithraCoverageChecker checker = new MithraCoverageChecker(data, k,
+					RHOS[t], 0.01, 0.01);
+			if (checker.flatTree == null) {
+				System.out.println(String.format("%d-d: no flat tree", d));
+				failed = true;
+				continue;
+			}
+			double[] queries = queries(numQueries, d, new Random(d));
+			failed |= compare(String.format("%d-d", d), checker, queries, d);
+
+			File file = File.createTempFile("flat", ".cidx");
+			file.deleteOnExit();
+			checker.save(file);
+			failed |= compare(String.format("%d-d loaded", d),
+					MithraCoverageChecker.load(file), queries, d);
+
+			Random random = new Random(-d);
+			for (int i = 0; i < queries.length; i++)
+				queries[i] = random.nextDouble();
+			measure(String.format("%d-d, %d nodes, depth %d, %s", d,
+					checker.flatTree.size(), checker.flatTree.depth,
+					checker.flatTree.jump == null ? "no table" : "table"),
+					checker, queries, d);
+		}
+
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	// uniform in [-0.1, 1.1)^d, with every 1000th value NaN
+	private static double[] queries(int n, int d, Random random) {
+		double[] queries = new double[n * d];
+		for (int i = 0; i < queries.length; i++)
+			queries[i] = i % 1000 == 999
+					? Double.NaN
+					: random.nextDouble() * 1.2 - 0.1;
+		return queries;
+	}
+
+	private static boolean compare(String name, MithraCoverageChecker checker,
+			double[] queries, int d) {
+		int numQueries = queries.length / d;
+		BitSet expected = smile(checker, queries, d);
+		BitSet single = new BitSet(numQueries);
+		double[] point = new double[d];
+		for (int i = 0; i < numQueries; i++) {
+			System.arraycopy(queries, i * d, point, 0, d);
+			single.set(i, checker.ifCovered(point));
+		}
+		// batches of odd sizes, to cover the points left after each group
+		BitSet batched = new BitSet(numQueries);
+		for (int first = 0; first < numQueries; first += 1003) {
+			int last = Math.min(numQueries, first + 1003);
+			double[] batch = new double[(last - first) * d];
+			System.arraycopy(queries, first * d, batch, 0, batch.length);
+			BitSet covered = checker.ifCoveredBatch(batch, d);
+			for (int i = covered.nextSetBit(0); i >= 0; i = covered
+					.nextSetBit(i + 1))
+				batched.set(first + i);
+		}
+		single.xor(expected);
+		batched.xor(expected);
+		System.out.println(String.format(
+				"%s: %d of %d covered, %d single and %d batch mismatches",
+				name, expected.cardinality(), numQueries, single.cardinality(),
+				batched.cardinality()));
+		return single.cardinality() + batched.cardinality() > 0;
+	}
+
+	// the predictions of smile's tree, as ifCovered made them before
+	private static BitSet smile(MithraCoverageChecker checker,
+			double[] queries, int d) {
+		int numQueries = queries.length / d;
+		BitSet covered = new BitSet(numQueries);
+		for (int i = 0; i < numQueries; i++) {
+			double[] point = new double[d];
+			System.arraycopy(queries, i * d, point, 0, d);
+			if (checker.coverageDecisionTree
+					.predict(Tuple.of(point, checker.srcDataSchema)) != 0)
+				covered.set(i);
+		}
+		return covered;
+	}
+
+	private static void measure(String name, MithraCoverageChecker checker,
+			double[] queries, int d) {
+		int numQueries = queries.length / d;
+		double smile = 0, single = 0, batch = 0;
+		long sink = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			long begin = System.nanoTime();
+			sink += smile(checker, queries, d).cardinality();
+			long end = System.nanoTime();
+			if (round > 0)
+				smile = Math.max(smile, numQueries / ((end - begin) / 1e9));
+
+			double[] point = new double[d];
+			begin = System.nanoTime();
+			for (int i = 0; i < numQueries; i++) {
+				System.arraycopy(queries, i * d, point, 0, d);
+				if (checker.ifCovered(point))
+					sink++;
+			}
+			end = System.nanoTime();
+			if (round > 0)
+				single = Math.max(single, numQueries / ((end - begin) / 1e9));
+
+			begin = System.nanoTime();
+			sink += checker.ifCoveredBatch(queries, d).cardinality();
+			end = System.nanoTime();
+			if (round > 0)
+				batch = Math.max(batch, numQueries / ((end - begin) / 1e9));
+		}
+		System.out.println(String.format(
+				"%s: smile %.2f M queries/s, flat %.2f M/s (%.1fx), flat batch %.2f M/s (%.1fx) [%d]",
+				name, smile / 1e6, single / 1e6, single / smile, batch / 1e6,
+				batch / smile, sink % 10));
+	}
+}
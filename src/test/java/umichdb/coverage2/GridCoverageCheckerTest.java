@@ -0,0 +1,107 @@
+package umichdb.coverage2;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import smile.data.DataFrame;
+
+/**
+ * Checks GridCoverageChecker against BasicCoverageChecker with a linear scan
+ * for d = 1..4 and a few k and rho. Rows and queries are snapped to a grid
+ * of step rho / 4, so many of them lie on cell boundaries, at 0 and at
+ * exactly 1.0, and many pairs are exactly rho apart. rho = 1/16 keeps those
+ * values exact; rho = 0.1 is not exact in binary and tests the rounding of
+ * floor(v / rho) near cell boundaries. Single and batch queries are both
+ * compared. The rows are few enough that part of the space is uncovered,
+ * and some answers must change if rho shrinks by one ulp. Exits with status
+ * 1 on any mismatch.
+ *
+ * Usage: GridCoverageCheckerTest [numQueries]
+ */
+public class GridCoverageCheckerTest {
+	static final double[] RHOS = {1.0 / 16, 0.1};
+	static final int[] KS = {1, 3, 10};
+	// rows for d = 1..4
+	static final int[] NUM_POINTS = {30, 300, 2000, 4000};
+
+	public static void main(String[] args) {
+		int numQueries = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+
+		boolean failed = false;
+		boolean anyBoundary = false;
+		for (int d = 1; d <= 4; d++) {
+			for (double rho : RHOS) {
+				Random random = new Random(d);
+				int numPoints = NUM_POINTS[d - 1];
+				// values i * rho / 4 in [0, 1], with 1.0 itself
+				int steps = (int) Math.floor(4 / rho);
+				double[][] rows = new double[numPoints][d];
+				for (double[] row : rows) {
+					for (int j = 0; j < d; j++)
+						row[j] = snap(random, steps, rho);
+				}
+				double[] queries = new double[numQueries * d];
+				for (int q = 0; q < numQueries; q++) {
+					double[] row = rows[random.nextInt(numPoints)];
+					int along = random.nextInt(d);
+					for (int j = 0; j < d; j++) {
+						if (q % 2 == 0)
+							queries[q * d + j] = snap(random, steps, rho);
+						else if (j == along)
+							// exactly rho away from the row along one axis
+							queries[q * d + j] = row[j]
+									+ (random.nextBoolean() ? rho : -rho);
+						else
+							queries[q * d + j] = row[j];
+					}
+				}
+
+				CoverageDataset dataset = CoverageDataset
+						.of(DataFrame.of(rows));
+				for (int k : KS) {
+					GridCoverageChecker grid = new GridCoverageChecker(
+							dataset, null, k, rho);
+					BasicCoverageChecker scan = new BasicCoverageChecker(
+							dataset, null, k, rho,
+							BasicCoverageChecker.IndexType.LINEAR);
+					BitSet expected = scan.ifCoveredBatch(queries, d);
+					// the answers that depend on a row at exactly rho
+					BitSet boundary = new BasicCoverageChecker(dataset, null,
+							k, Math.nextDown(rho),
+							BasicCoverageChecker.IndexType.LINEAR)
+									.ifCoveredBatch(queries, d);
+					boundary.xor(expected);
+					BitSet batch = grid.ifCoveredBatch(queries, d);
+					int mismatches = 0;
+					double[] point = new double[d];
+					for (int q = 0; q < numQueries; q++) {
+						System.arraycopy(queries, q * d, point, 0, d);
+						if (grid.ifCovered(point) != expected.get(q))
+							mismatches++;
+						if (batch.get(q) != expected.get(q))
+							mismatches++;
+					}
+					System.out.println(String.format(
+							"%d-d, k %d, rho %s: %d of %d covered, %d at rho, %d mismatches",
+							d, k, rho, expected.cardinality(), numQueries,
+							boundary.cardinality(), mismatches));
+					failed |= mismatches > 0;
+					anyBoundary |= !boundary.isEmpty();
+				}
+			}
+		}
+
+		failed |= !anyBoundary;
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	// a multiple of rho / 4 in [0, 1], or 1.0
+	private static double snap(Random random, int steps, double rho) {
+		int i = random.nextInt(steps + 2);
+		return i > steps ? 1.0 : i * (rho / 4);
+	}
+}
@@ -0,0 +1,193 @@
+package umichdb.coverage2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import smile.data.DataFrame;
+
+/**
+ * Adds and removes rows of an exact checker in random batches and checks
+ * after every batch that random queries get the same answers as counting
+ * the live rows within rho directly, and that the points whose answer
+ * flipped lie in the reported regions. Finally saves and loads the updated
+ * checker and removes the same rows from both. Reports the time per batch against a full rebuild. Exits with
+ * status 1 on any mismatch.
+ *
+ * Usage: IncrementalCoverageTest [numPoints] [k] [rho] [numBatches]
+ * [numQueries]
+ */
+public class IncrementalCoverageTest {
+	public static void main(String[] args) throws IOException {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		double rho = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+		int numBatches = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+		int numQueries = args.length > 4 ? Integer.parseInt(args[4]) : 20000;
+
+		DataFrame data = Utils.genRandDataset(numPoints, 2);
+		Random random = new Random(0);
+		double[] queries = new double[2 * numQueries];
+		for (int i = 0; i < queries.length; i++)
+			queries[i] = random.nextDouble();
+
+		long begin = System.nanoTime();
+		MithraCoverageChecker checker = new MithraCoverageChecker(data, k,
+				rho);
+		double buildTime = (System.nanoTime() - begin) / 1e9;
+
+		List<Integer> live = new ArrayList<Integer>();
+		for (int i = 0; i < numPoints; i++)
+			live.add(i);
+
+		boolean failed = false;
+		double updateTime = 0;
+		BitSet previous = bruteForce(checker, queries, k, rho);
+		for (int batch = 0; batch < numBatches; batch++) {
+			CoverageChange change;
+			begin = System.nanoTime();
+			if (batch % 2 == 0) {
+				// Raw rows in the range of the training data, some repeated
+				int num = 1 + random.nextInt(10);
+				double[][] rows = new double[num][];
+				for (int i = 0; i < num; i++) {
+					int j = random.nextInt(data.size());
+					rows[i] = i % 5 == 4
+							? new double[]{data.getDouble(j, 0),
+									data.getDouble(j, 1)}
+							: new double[]{random.nextDouble(),
+									random.nextDouble()};
+				}
+				change = checker.addRows(
+						DataFrame.of(rows, data.names()));
+				for (int id : change.getAddedRows())
+					live.add(id);
+			} else {
+				int num = 1 + random.nextInt(10);
+				int[] ids = new int[num];
+				for (int i = 0; i < num; i++)
+					ids[i] = live.remove(random.nextInt(live.size()));
+				change = checker.removeRows(ids);
+			}
+			updateTime += (System.nanoTime() - begin) / 1e9;
+
+			BitSet expected = bruteForce(checker, queries, k, rho);
+			BitSet actual = checker.ifCoveredBatch(queries, 2);
+			actual.xor(expected);
+			int mismatches = actual.cardinality();
+			if (checker.dataset.size() != live.size())
+				mismatches++;
+			int misplaced = checkFlips(change, previous, expected, queries,
+					rho);
+			System.out.println(String.format(
+					"batch %d: %s, %d mismatches, %d misplaced flips", batch,
+					change, mismatches, misplaced));
+			failed |= mismatches + misplaced > 0;
+			previous = expected;
+		}
+
+		// Bad ids must be rejected
+		try {
+			checker.removeRows(numPoints + 1000000);
+			System.out.println("removing an unknown row: no exception");
+			failed = true;
+		} catch (IllegalArgumentException e) {
+			System.out.println("removing an unknown row: " + e.getMessage());
+		}
+
+		File file = File.createTempFile("coverage", ".idx");
+		file.deleteOnExit();
+		checker.save(file);
+		MithraCoverageChecker loaded = MithraCoverageChecker.load(file);
+		BitSet expected = checker.ifCoveredBatch(queries, 2);
+		expected.xor(loaded.ifCoveredBatch(queries, 2));
+		System.out.println(String.format("saved and loaded: %d mismatches",
+				expected.cardinality()));
+		failed |= expected.cardinality() > 0;
+
+		// A loaded checker only has the cells; updating it rebuilds the edges
+		int[] ids = {live.get(0), live.get(live.size() - 1)};
+		checker.removeRows(ids);
+		loaded.removeRows(ids);
+		expected = checker.ifCoveredBatch(queries, 2);
+		expected.xor(loaded.ifCoveredBatch(queries, 2));
+		System.out.println(String.format(
+				"removed from both: %d mismatches", expected.cardinality()));
+		failed |= expected.cardinality() > 0;
+
+		System.out.println(String.format(
+				"full build %.3f s, %.4f s per incremental batch", buildTime,
+				updateTime / numBatches));
+
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Coverage of the queries by the live sites of the checker
+	 */
+	private static BitSet bruteForce(MithraCoverageChecker checker,
+			double[] queries, int k, double rho) {
+		SiteTable sites = checker.coverageVoronoiDiagram.siteTable;
+		double rho2 = DistanceKernel.squaredRadius(rho);
+		BitSet covered = new BitSet();
+		for (int i = 0; i < queries.length / 2; i++) {
+			int count = 0;
+			for (int p = 0; p < sites.numIds && count < k; p++) {
+				if (!sites.isLive(p))
+					continue;
+				double dx = sites.x[p] - queries[2 * i];
+				double dy = sites.y[p] - queries[2 * i + 1];
+				if (dx * dx + dy * dy <= rho2)
+					count++;
+			}
+			if (count >= k)
+				covered.set(i);
+		}
+		return covered;
+	}
+
+	/**
+	 * Count the queries that flipped outside the reported regions, or that
+	 * lie well inside a reported region without flipping. Disks are polygons
+	 * in the regions, so points closer than a small tolerance to a region
+	 * boundary are not counted.
+	 */
+	private static int checkFlips(CoverageChange change, BitSet before,
+			BitSet after, double[] queries, double rho) {
+		double tolerance = rho * 1e-2;
+		GeometryFactory factory = new GeometryFactory();
+		int misplaced = 0;
+		for (int i = 0; i < queries.length / 2; i++) {
+			Geometry point = factory.createPoint(
+					new Coordinate(queries[2 * i], queries[2 * i + 1]));
+			boolean gained = !before.get(i) && after.get(i);
+			boolean lost = before.get(i) && !after.get(i);
+			misplaced += misplaced(change.getNewlyCovered(), point, gained,
+					tolerance);
+			misplaced += misplaced(change.getNewlyUncovered(), point, lost,
+					tolerance);
+		}
+		return misplaced;
+	}
+
+	private static int misplaced(Geometry region, Geometry point,
+			boolean flipped, double tolerance) {
+		double distance = region.distance(point);
+		if (flipped)
+			return distance > tolerance ? 1 : 0;
+		if (distance == 0 && region.getBoundary().distance(point) > tolerance)
+			return 1;
+		return 0;
+	}
+}
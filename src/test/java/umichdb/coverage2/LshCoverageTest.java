@@ -0,0 +1,275 @@
+package umichdb.coverage2;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import smile.data.DataFrame;
+
+/**
+ * Checks LshCoverageChecker against the exact BasicCoverageChecker on
+ * clustered data in high dimensions:
+ * - the collision probability of a projection matches a simulation
+ * - verified answers never report an uncovered point as covered, and miss
+ * covered points no more often than the expected false-negative rate allows
+ * - with the same projections, unverified answers cover whatever verified
+ * answers cover, and report uncovered points as covered about as often as
+ * unverifiedFalsePositiveRate estimates from a sample of the tests
+ * - single and batch queries agree
+ * and prints the build and query times of both checkers, with the cheapest
+ * parameters forRecall finds for the rows. Queries are half
+ * uniform and half near rows, and rho is the median distance of a query
+ * near rows to its k-th nearest row, so that about half of those are
+ * covered. On a few clusters in 10-d and 20-d the trees of the exact checker
+ * are faster. Many small clusters in 50-d, where the trees visit most rows
+ * for a query far from them but the buckets of LSH hold few, must be
+ * answered faster by the default parameters, still without false positives.
+ * Exits with status 1 on any failure.
+ *
+ * Usage: LshCoverageTest [numPoints] [k] [recall] [numTests]
+ */
+public class LshCoverageTest {
+	static final int[] DIMENSIONS = {10, 20};
+	static final double SPREAD = 0.1;
+	// the workload where LSH is expected to win
+	static final int MANY_DIMENSIONS = 50;
+	static final int MANY_POINTS = 200000;
+	static final int MANY_CLUSTERS = 2000;
+	static final double MANY_SPREAD = 0.02;
+	// tests the false-positive estimate is made from
+	static final int ESTIMATE_TESTS = 500;
+	// most difference between the estimated and measured false-positive
+	// rates of unverified answers, a few standard errors of the estimate
+	static final double FALSE_POSITIVE_TOLERANCE = 0.1;
+
+	static int failures = 0;
+
+	public static void main(String[] args) {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		double recall = args.length > 2 ? Double.parseDouble(args[2]) : 0.99;
+		int numTests = args.length > 3 ? Integer.parseInt(args[3]) : 5000;
+
+		checkCollisionProbability();
+
+		for (int d : DIMENSIONS) {
+			Random random = new Random(d);
+			DataFrame data = AdaptiveSamplingBenchmark.clusters(numPoints, d,
+					random);
+			CoverageDataset dataset = CoverageDataset
+					.of(Utils.rescale(Utils.fitScaler(data), data));
+			double[] rows = dataset.rows();
+			double[] tests = tests(rows, d, numTests, SPREAD, random);
+			double rho = medianKthDistance(rows, d, k, tests);
+
+			long begin = System.nanoTime();
+			BasicCoverageChecker exact = new BasicCoverageChecker(dataset,
+					null, k, rho, BasicCoverageChecker.defaultIndexType(d));
+			double exactBuildMs = (System.nanoTime() - begin) / 1e6;
+			begin = System.nanoTime();
+			BitSet truth = exact.ifCoveredBatch(tests, d);
+			double exactQueryUs = (System.nanoTime() - begin) / 1e3 / numTests;
+
+			LshCoverageChecker.Parameters verified = LshCoverageChecker.Parameters
+					.forRecall(dataset, k, rho, recall, true, new Random(1));
+			double bound = verified.expectedFalseNegativeRate(k, rho);
+			if (verified
+					.getNumTables() <= LshCoverageChecker.Parameters.MAX_TABLES)
+				check(d + "-d, bound within recall", bound <= 1 - recall);
+
+			begin = System.nanoTime();
+			LshCoverageChecker lsh = new LshCoverageChecker(dataset, null, k,
+					rho, verified, new Random(0));
+			double lshBuildMs = (System.nanoTime() - begin) / 1e6;
+			begin = System.nanoTime();
+			BitSet covered = lsh.ifCoveredBatch(tests, d);
+			double lshQueryUs = (System.nanoTime() - begin) / 1e3 / numTests;
+
+			BitSet falsePositives = (BitSet) covered.clone();
+			falsePositives.andNot(truth);
+			BitSet falseNegatives = (BitSet) truth.clone();
+			falseNegatives.andNot(covered);
+			int numCovered = truth.cardinality();
+			double missed = (double) falseNegatives.cardinality()
+					/ Math.max(1, numCovered);
+			System.out.println(String.format(
+					"%d-d, rho %.4f, %s: %d of %d covered, %d false positives, false negatives %.4f (bound %.4f)",
+					d, rho, verified, numCovered, numTests,
+					falsePositives.cardinality(), missed, bound));
+			System.out.println(String.format(
+					"%d-d: exact %.0f ms build, %.1f us per query; lsh %.0f ms build, %.1f us per query",
+					d, exactBuildMs, exactQueryUs, lshBuildMs, lshQueryUs));
+			check(d + "-d, no false positives",
+					falsePositives.cardinality() == 0);
+			check(d + "-d, false negatives", missed <= bound
+					+ 4 * Math.sqrt(bound / Math.max(1, numCovered))
+					+ 1.0 / Math.max(1, numCovered));
+
+			// Same projections, unverified
+			LshCoverageChecker.Parameters unverified = new LshCoverageChecker.Parameters(
+					verified.getNumTables(), verified.getNumHashes(),
+					verified.getWidth(), false);
+			LshCoverageChecker fast = new LshCoverageChecker(dataset, null, k,
+					rho, unverified, new Random(0));
+			begin = System.nanoTime();
+			BitSet fastCovered = fast.ifCoveredBatch(tests, d);
+			double fastQueryUs = (System.nanoTime() - begin) / 1e3 / numTests;
+			BitSet lost = (BitSet) covered.clone();
+			lost.andNot(fastCovered);
+			BitSet fastFalsePositives = (BitSet) fastCovered.clone();
+			fastFalsePositives.andNot(truth);
+			double falsePositiveRate = (double) fastFalsePositives
+					.cardinality() / Math.max(1, numTests - numCovered);
+			// from a sample of the tests, through the verified checker
+			double expected = lsh.unverifiedFalsePositiveRate(
+					Arrays.copyOf(tests, ESTIMATE_TESTS * d), d);
+			System.out.println(String.format(
+					"%d-d, unverified: %.1f us per query, false positives %.4f (expected %.4f)",
+					d, fastQueryUs, falsePositiveRate, expected));
+			check(d + "-d, unverified covers verified", lost.isEmpty());
+			check(d + "-d, expected false positives", Math.abs(
+					falsePositiveRate - expected) <= FALSE_POSITIVE_TOLERANCE);
+
+			int mismatches = 0;
+			double[] point = new double[d];
+			for (int i = 0; i < numTests; i += 7) {
+				System.arraycopy(tests, i * d, point, 0, d);
+				if (lsh.ifCovered(point) != covered.get(i))
+					mismatches++;
+			}
+			check(d + "-d, single queries", mismatches == 0);
+		}
+
+		checkManyClusters(k, numTests);
+
+		if (failures > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	private static void check(String name, boolean ok) {
+		if (!ok) {
+			System.out.println("Failed: " + name);
+			failures++;
+		}
+	}
+
+	/**
+	 * MANY_CLUSTERS clusters of MANY_POINTS rows in MANY_DIMENSIONS: the
+	 * checker with default parameters must answer faster than the exact one,
+	 * without false positives and with few false negatives
+	 */
+	private static void checkManyClusters(int k, int numTests) {
+		int d = MANY_DIMENSIONS;
+		Random random = new Random(d);
+		DataFrame data = AdaptiveSamplingBenchmark.clusters(MANY_POINTS, d,
+				MANY_CLUSTERS, MANY_SPREAD, random);
+		CoverageDataset dataset = CoverageDataset
+				.of(Utils.rescale(Utils.fitScaler(data), data));
+		double[] tests = tests(dataset.rows(), d, numTests, MANY_SPREAD,
+				random);
+		double rho = medianKthDistance(dataset.rows(), d, k, tests);
+
+		long begin = System.nanoTime();
+		BasicCoverageChecker exact = new BasicCoverageChecker(dataset, null,
+				k, rho, BasicCoverageChecker.defaultIndexType(d));
+		double exactBuildMs = (System.nanoTime() - begin) / 1e6;
+		begin = System.nanoTime();
+		BitSet truth = exact.ifCoveredBatch(tests, d);
+		double exactQueryUs = (System.nanoTime() - begin) / 1e3 / numTests;
+
+		begin = System.nanoTime();
+		LshCoverageChecker lsh = new LshCoverageChecker(dataset, null, k, rho,
+				null, new Random(0));
+		double lshBuildMs = (System.nanoTime() - begin) / 1e6;
+		begin = System.nanoTime();
+		BitSet covered = lsh.ifCoveredBatch(tests, d);
+		double lshQueryUs = (System.nanoTime() - begin) / 1e3 / numTests;
+
+		BitSet falsePositives = (BitSet) covered.clone();
+		falsePositives.andNot(truth);
+		BitSet falseNegatives = (BitSet) truth.clone();
+		falseNegatives.andNot(covered);
+		int numCovered = truth.cardinality();
+		double missed = (double) falseNegatives.cardinality()
+				/ Math.max(1, numCovered);
+		double bound = lsh.parameters.expectedFalseNegativeRate(k, rho);
+		System.out.println(String.format(
+				"%d-d, %d clusters, rho %.4f, %s: %d of %d covered, %d false positives, false negatives %.4f (bound %.4f)",
+				d, MANY_CLUSTERS, rho, lsh.parameters, numCovered, numTests,
+				falsePositives.cardinality(), missed, bound));
+		System.out.println(String.format(
+				"%d-d, %d clusters: exact %.0f ms build, %.1f us per query; lsh %.0f ms build, %.1f us per query",
+				d, MANY_CLUSTERS, exactBuildMs, exactQueryUs, lshBuildMs,
+				lshQueryUs));
+		check(d + "-d clusters, no false positives",
+				falsePositives.cardinality() == 0);
+		check(d + "-d clusters, false negatives", missed <= bound
+				+ 4 * Math.sqrt(bound / Math.max(1, numCovered))
+				+ 1.0 / Math.max(1, numCovered));
+		check(d + "-d clusters, faster than exact",
+				lshQueryUs < exactQueryUs);
+	}
+
+	// Half uniform, half near a random row with Gaussian noise of spread / 2
+	private static double[] tests(double[] rows, int d, int numTests,
+			double spread, Random random) {
+		int n = rows.length / d;
+		double[] tests = new double[numTests * d];
+		for (int i = 0; i < numTests; i++) {
+			int row = random.nextInt(n);
+			for (int j = 0; j < d; j++) {
+				tests[i * d + j] = i % 2 == 0
+						? random.nextDouble()
+						: rows[row * d + j]
+								+ spread / 2 * random.nextGaussian();
+			}
+		}
+		return tests;
+	}
+
+	// Two points at a distance project to a distance times a standard
+	// Gaussian, and share a bucket if no boundary falls between them
+	private static void checkCollisionProbability() {
+		Random random = new Random(1);
+		double width = 4;
+		int trials = 200000;
+		double worst = 0;
+		for (double distance : new double[]{0.5, 1, 2, 4, 8}) {
+			int same = 0;
+			for (int i = 0; i < trials; i++) {
+				double x = random.nextDouble() * width;
+				double y = x + distance * random.nextGaussian();
+				if (Math.floor(x / width) == Math.floor(y / width))
+					same++;
+			}
+			worst = Math.max(worst,
+					Math.abs((double) same / trials - LshCoverageChecker.Parameters
+							.collisionProbability(width, distance)));
+		}
+		System.out.println(String
+				.format("collision probability: %.4f most difference", worst));
+		check("collision probability", worst < 0.005);
+	}
+
+	// Median distance of the tests near rows, the odd ones, to their k-th
+	// nearest row
+	private static double medianKthDistance(double[] rows, int d, int k,
+			double[] tests) {
+		KdTree tree = new KdTree(rows, d);
+		DistanceKernel kernel = DistanceKernel.of(d);
+		int numTests = Math.min(200, tests.length / d / 2);
+		double[] distances = new double[numTests];
+		int[] nearest = new int[k];
+		for (int i = 0; i < numTests; i++) {
+			int offset = (2 * i + 1) * d;
+			tree.nearest(tests, offset, k, nearest);
+			distances[i] = Math.sqrt(
+					kernel.dist2(rows, nearest[k - 1] * d, tests, offset));
+		}
+		Arrays.sort(distances);
+		return distances[numTests / 2];
+	}
+}
@@ -0,0 +1,74 @@
+package umichdb.coverage2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Throughput of the slab point locator against a linear scan over the
+ * polygons of an order-k Voronoi diagram. Both are checked to agree.
+ *
+ * Usage: PointLocatorBenchmark [numSites] [k] [numQueries]
+ */
+public class PointLocatorBenchmark {
+	public static void main(String[] args) {
+		int numSites = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+		Random random = new Random(0);
+		List<Point2D> sites = new ArrayList<Point2D>();
+		for (int i = 0; i < numSites; i++)
+			sites.add(new Point2D(random.nextDouble(), random.nextDouble()));
+
+		long buildBegin = System.nanoTime();
+		VoronoiKOrder diagram = new VoronoiKOrder(sites, k, false);
+		long buildEnd = System.nanoTime();
+		List<VoronoiPolygon> polygons = diagram.polygonList;
+		System.out.println(String.format(
+				"%d sites, k=%d: %d polygons, %d locator nodes, built in %.3f s",
+				numSites, k, polygons.size(), diagram.locater.size(),
+				(buildEnd - buildBegin) / 1e9));
+
+		double[] queries = new double[2 * numQueries];
+		for (int i = 0; i < queries.length; i++)
+			queries[i] = random.nextDouble();
+
+		// Slab locator
+		int[] located = new int[numQueries];
+		long begin = System.nanoTime();
+		for (int i = 0; i < numQueries; i++)
+			located[i] = diagram.locater.lookup(queries[2 * i],
+					queries[2 * i + 1]);
+		double locatorTime = (System.nanoTime() - begin) / 1e9;
+
+		// Linear scan
+		int[] scanned = new int[numQueries];
+		begin = System.nanoTime();
+		for (int i = 0; i < numQueries; i++) {
+			scanned[i] = -1;
+			for (int j = 0; j < polygons.size(); j++) {
+				if (polygons.get(j).contains(queries[2 * i],
+						queries[2 * i + 1])) {
+					scanned[i] = j;
+					break;
+				}
+			}
+		}
+		double scanTime = (System.nanoTime() - begin) / 1e9;
+
+		// Points on shared edges may be assigned to either polygon, so compare
+		// the keys of the k nearest sites instead of polygon ids
+		int mismatches = 0;
+		for (int i = 0; i < numQueries; i++) {
+			if (located[i] != scanned[i] && (located[i] < 0 || scanned[i] < 0
+					|| !polygons.get(located[i]).regionKey
+							.equals(polygons.get(scanned[i]).regionKey)))
+				mismatches++;
+		}
+
+		System.out.println(String.format(
+				"locator: %.0f queries/s, linear scan: %.0f queries/s, %d mismatches",
+				numQueries / locatorTime, numQueries / scanTime, mismatches));
+	}
+}
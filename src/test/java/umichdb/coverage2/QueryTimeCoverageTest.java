@@ -0,0 +1,112 @@
+package umichdb.coverage2;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import smile.data.DataFrame;
+
+/**
+ * Builds one exact checker of order K and checks that ifCovered and
+ * ifCoveredBatch with a threshold k <= K and a vicinity value given at query
+ * time get the same answers as counting the rows within rho directly, for
+ * several k and rho, and cover everything with an infinite rho. An integer
+ * literal must be taken as rho, not as the dimension of a batch. k = 0 and
+ * k = K + 1 must be rejected. Exits with status 1 on any mismatch.
+ *
+ * Usage: QueryTimeCoverageTest [numPoints] [K] [numQueries]
+ */
+public class QueryTimeCoverageTest {
+	static final double[] RHOS = {0.01, 0.02, 0.03, 0.05, 0.08};
+
+	public static void main(String[] args) {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int order = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+		DataFrame data = Utils.genRandDataset(numPoints, 2);
+		Random random = new Random(0);
+		double[] queries = new double[2 * numQueries];
+		for (int i = 0; i < queries.length; i++)
+			queries[i] = random.nextDouble();
+
+		// the rho given at build time does not matter to these queries
+		MithraCoverageChecker checker = new MithraCoverageChecker(data, order,
+				0.05);
+
+		boolean failed = false;
+		int[] ks = {1, 2, order / 2, order};
+		for (int k : ks) {
+			for (double rho : RHOS) {
+				BitSet expected = bruteForce(checker, queries, k, rho);
+				BitSet batch = checker.ifCoveredBatch(queries, 2, k, rho);
+				int mismatches = 0;
+				for (int i = 0; i < numQueries; i++) {
+					double[] q = {queries[2 * i], queries[2 * i + 1]};
+					if (checker.ifCovered(q, k, rho) != expected.get(i))
+						mismatches++;
+					if (batch.get(i) != expected.get(i))
+						mismatches++;
+				}
+				System.out.println(String.format(
+						"k %d, rho %s: %d of %d covered, %d mismatches", k, rho,
+						expected.cardinality(), numQueries, mismatches));
+				failed |= mismatches > 0;
+			}
+		}
+
+		// an infinite rho covers every point, single and batch
+		BitSet everywhere = checker.ifCoveredBatch(queries, 2, order,
+				Double.POSITIVE_INFINITY);
+		boolean single = checker.ifCovered(new double[]{0.5, 0.5}, order,
+				Double.POSITIVE_INFINITY);
+		System.out.println(String.format(
+				"rho Infinity: %d of %d covered, single %s",
+				everywhere.cardinality(), numQueries, single));
+		failed |= everywhere.cardinality() != numQueries || !single;
+
+		// an integer literal is a rho, the batch query has its own name
+		boolean literal = checker.ifCovered(new double[]{0.5, 0.5}, 1);
+		System.out.println(String.format("rho 1 as a literal: covered %s",
+				literal));
+		failed |= literal != checker.ifCovered(new double[]{0.5, 0.5}, order,
+				1.0);
+
+		for (int k : new int[]{0, order + 1}) {
+			try {
+				checker.ifCovered(new double[]{0.5, 0.5}, k, 0.05);
+				System.out.println(String.format("k %d: accepted", k));
+				failed = true;
+			} catch (IllegalArgumentException e) {
+				System.out.println(String.format("k %d: rejected", k));
+			}
+		}
+
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	// count the rescaled rows within rho of each query
+	private static BitSet bruteForce(MithraCoverageChecker checker,
+			double[] queries, int k, double rho) {
+		SiteTable sites = checker.coverageVoronoiDiagram.siteTable;
+		double rho2 = DistanceKernel.squaredRadius(rho);
+		BitSet covered = new BitSet();
+		for (int i = 0; i < queries.length / 2; i++) {
+			int count = 0;
+			for (int p = 0; p < sites.numIds && count < k; p++) {
+				if (!sites.isLive(p))
+					continue;
+				double dx = sites.x[p] - queries[2 * i];
+				double dy = sites.y[p] - queries[2 * i + 1];
+				if (dx * dx + dy * dy <= rho2)
+					count++;
+			}
+			if (count >= k)
+				covered.set(i);
+		}
+		return covered;
+	}
+}
@@ -0,0 +1,137 @@
+package umichdb.coverage2;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import smile.math.distance.EuclideanDistance;
+
+/**
+ * Checks the labels MithraCoverageChecker.label gives its samples through the
+ * index BasicCoverageChecker.createIndex builds against the loop they
+ * replaced, which counted the rows whose smile EuclideanDistance to the
+ * sample is at most rho. smile computes sqrt(d * sum / d), which can differ
+ * from sqrt(sum) in the last bit when d is not a power of two, and the labels
+ * must still agree on every sample. Every row is repeated k times, and half
+ * of the samples are placed at an offset t from a row along one axis, so
+ * that the distance of that row decides their label. Rows are multiples of
+ * 2^-10 and t of 2^-40, so those samples sum to exactly t * t, and rho is
+ * sqrt(t * t): within rho by sqrt(sum). Where one can be found (in 7 and 12
+ * dimensions, not when d is a power of two nor for 3 and 5), t is chosen so
+ * that smile's distance rounds above rho. t is about the median distance of
+ * a uniform sample to its nearest row, so that about half of the others are
+ * covered. Exits with status 1 on any disagreement, or if smile's rounding
+ * is tested in no dimension.
+ *
+ * Usage: SampleLabelTest [numRows] [numSamples] [k]
+ */
+public class SampleLabelTest {
+	static final int[] DIMENSIONS = {2, 3, 4, 5, 7, 12};
+	// distances this close to rho are at the boundary
+	static final int ULPS = 4;
+	static final double ROW_STEP = 0x1p-10, OFFSET_STEP = 0x1p-40;
+	// offsets tried for one that smile rounds above rho
+	static final int MAX_OFFSETS = 1000000;
+
+	public static void main(String[] args) {
+		int numRows = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int numSamples = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+		int k = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		EuclideanDistance distance = new EuclideanDistance();
+		boolean failed = false, anyAbove = false;
+		for (int d : DIMENSIONS) {
+			Random random = new Random(d);
+			double[] rows = new double[numRows * d];
+			for (int i = 0; i < numRows; i++) {
+				for (int j = 0; j < d; j++) {
+					rows[i * d + j] = i % k == 0
+							? random.nextInt((int) (1 / ROW_STEP)) * ROW_STEP
+							: rows[(i - 1) * d + j];
+				}
+			}
+			double offset = Math.rint(
+					medianNearest(rows, d, random) / OFFSET_STEP) * OFFSET_STEP;
+			boolean smileAbove = false;
+			for (int i = 0; i < MAX_OFFSETS && !smileAbove; i++) {
+				double sum = offset * offset;
+				smileAbove = Math.sqrt(d * sum / d) > Math.sqrt(sum);
+				if (!smileAbove)
+					offset += OFFSET_STEP;
+			}
+			double rho = Math.sqrt(offset * offset);
+			double[] samples = new double[numSamples * d];
+			for (int s = 0; s < numSamples; s++) {
+				int row = random.nextInt(numRows);
+				int along = random.nextInt(d);
+				for (int j = 0; j < d; j++) {
+					if (s % 2 == 0)
+						samples[s * d + j] = random.nextDouble();
+					else
+						// offset from the row along one axis
+						samples[s * d + j] = rows[row * d + j]
+								+ (j == along ? offset : 0);
+				}
+			}
+
+			boolean[] labels = MithraCoverageChecker.label(
+					BasicCoverageChecker.createIndex(rows, d,
+							BasicCoverageChecker.defaultIndexType(d)),
+					samples, d, k, rho);
+
+			int disagreements = 0, covered = 0, atRho = 0;
+			double[] sample = new double[d], row = new double[d];
+			for (int s = 0; s < numSamples; s++) {
+				System.arraycopy(samples, s * d, sample, 0, d);
+				int count = 0;
+				boolean nearRho = false;
+				for (int i = 0; i < numRows; i++) {
+					System.arraycopy(rows, i * d, row, 0, d);
+					double dist = distance.d(sample, row);
+					if (dist <= rho)
+						count++;
+					nearRho |= Math.abs(dist - rho) <= ULPS
+							* Math.ulp(rho);
+				}
+				if (nearRho)
+					atRho++;
+				boolean expected = count >= k;
+				if (expected)
+					covered++;
+				if (labels[s] != expected)
+					disagreements++;
+			}
+			System.out.println(String.format(
+					"%d-d, rho %.4f: %d of %d covered, %d with a row within %d ulps of rho, smile %s, %d disagreements",
+					d, rho, covered, numSamples, atRho, ULPS,
+					smileAbove ? "rounds above rho" : "agrees at rho",
+					disagreements));
+			failed |= disagreements > 0;
+			anyAbove |= smileAbove;
+		}
+
+		failed |= !anyAbove;
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	// median distance of uniform points to their nearest row
+	private static double medianNearest(double[] rows, int d, Random random) {
+		DistanceKernel kernel = DistanceKernel.of(d);
+		double[] distances = new double[201];
+		double[] point = new double[d];
+		for (int s = 0; s < distances.length; s++) {
+			for (int j = 0; j < d; j++)
+				point[j] = random.nextDouble();
+			double nearest = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < rows.length / d; i++)
+				nearest = Math.min(nearest,
+						kernel.dist2(rows, i * d, point, 0));
+			distances[s] = Math.sqrt(nearest);
+		}
+		Arrays.sort(distances);
+		return distances[distances.length / 2];
+	}
+}
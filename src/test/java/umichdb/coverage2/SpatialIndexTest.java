@@ -0,0 +1,99 @@
+package umichdb.coverage2;
+
+import java.util.Random;
+
+/**
+ * Checks KdTree and BallTree against LinearScanIndex: both must count the
+ * same points within rho as the scan, for every limit, in dimensions on both
+ * sides of BasicCoverageChecker.KDTREE_MAX_DIM. The rows include duplicates,
+ * and queries include the rows themselves and points at distance exactly
+ * rho from a row. Coordinates are multiples of 1/64 and rho is 5/16, so
+ * those distances are exact in floating point. Exits with status 1 on any
+ * mismatch.
+ *
+ * Usage: SpatialIndexTest [numPoints] [numQueries]
+ */
+public class SpatialIndexTest {
+	static final int[] DIMENSIONS = {1, 2, 3, 5, 10, 11, 16, 30};
+	static final int[] LIMITS = {1, 3, 10, Integer.MAX_VALUE};
+	static final int GRID = 64;
+	// the offset (3/16, 4/16) along two dimensions is 5/16 long
+	static final double RHO = 5.0 / 16;
+	static final double[] AT_RHO = {3.0 / 16, 4.0 / 16};
+
+	public static void main(String[] args) {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+		int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+		boolean failed = false;
+		for (int d : DIMENSIONS) {
+			Random random = new Random(d);
+			double[] rows = new double[numPoints * d];
+			for (int i = 0; i < numPoints; i++) {
+				if (i > 0 && random.nextInt(4) == 0) {
+					// a duplicate of an earlier row
+					int j = random.nextInt(i);
+					System.arraycopy(rows, j * d, rows, i * d, d);
+					continue;
+				}
+				for (int dim = 0; dim < d; dim++)
+					rows[i * d + dim] = random.nextInt(GRID) / (double) GRID;
+			}
+
+			double[] queries = new double[numQueries * d];
+			for (int q = 0; q < numQueries; q++) {
+				int row = random.nextInt(numPoints);
+				for (int dim = 0; dim < d; dim++) {
+					queries[q * d + dim] = q % 3 == 2
+							? random.nextInt(GRID) / (double) GRID
+							: rows[row * d + dim];
+				}
+				if (q % 3 == 1) {
+					// exactly rho from the row
+					if (d == 1) {
+						queries[q * d] += RHO;
+					} else {
+						int a = random.nextInt(d), b = (a + 1) % d;
+						queries[q * d + a] += AT_RHO[0];
+						queries[q * d + b] -= AT_RHO[1];
+					}
+				}
+			}
+
+			SpatialIndex scan = new LinearScanIndex(rows, d);
+			// the queries that have a row at exactly rho
+			int boundary = 0;
+			for (int q = 0; q < numQueries; q++) {
+				if (scan.countWithin(queries, q * d, RHO,
+						Integer.MAX_VALUE) != scan.countWithin(queries, q * d,
+								Math.nextDown(RHO), Integer.MAX_VALUE))
+					boundary++;
+			}
+			failed |= boundary == 0;
+			SpatialIndex[] indexes = {new KdTree(rows, d),
+					new BallTree(rows, d)};
+			String[] names = {"k-d tree", "ball tree"};
+			for (int t = 0; t < indexes.length; t++) {
+				int mismatches = 0;
+				for (int q = 0; q < numQueries; q++) {
+					for (int limit : LIMITS) {
+						if (indexes[t].countWithin(queries, q * d, RHO,
+								limit) != scan.countWithin(queries, q * d, RHO,
+										limit))
+							mismatches++;
+					}
+				}
+				System.out.println(String.format(
+						"%d-d, %s: %d mismatches, %d queries with a row at rho",
+						d, names[t], mismatches, boundary));
+				failed |= mismatches > 0;
+			}
+		}
+
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+}
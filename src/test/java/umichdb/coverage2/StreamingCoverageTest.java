@@ -0,0 +1,247 @@
+package umichdb.coverage2;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import smile.feature.Scaler;
+
+/**
+ * Pushes a drifting stream through StreamingCoverageChecker with a count
+ * window and a time window and checks queries and watched regions against
+ * counting the rows of the window directly. Then lets several threads push
+ * and query at the same time, registers watches while they push, reports
+ * the query latency and checks the state and the probe counts of the
+ * watches once they are done. Exits with status 1 on any mismatch.
+ *
+ * Usage: StreamingCoverageTest [numRows] [window] [k] [rho] [seconds]
+ */
+public class StreamingCoverageTest {
+	public static void main(String[] args) throws InterruptedException {
+		int numRows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		double rho = args.length > 3 ? Double.parseDouble(args[3]) : 0.05;
+		double seconds = args.length > 4 ? Double.parseDouble(args[4]) : 2;
+
+		Scaler scaler = Scaler.fit(Utils.genRandDataset(1000, 2));
+		Random random = new Random(0);
+		double[] queries = new double[2 * 2000];
+		for (int i = 0; i < queries.length; i++)
+			queries[i] = random.nextDouble();
+
+		boolean failed = false;
+		failed |= checkWindow("count window",
+				new StreamingCoverageChecker(scaler, 2, k, rho, window, 0),
+				numRows, queries, random);
+		failed |= checkWindow("time window",
+				new StreamingCoverageChecker(scaler, 2, k, rho, 0, window),
+				numRows, queries, random);
+		failed |= checkConcurrent(
+				new StreamingCoverageChecker(scaler, 2, k, rho, window, 0),
+				queries, seconds);
+
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	// A stream whose center moves around the unit square, so regions lose
+	// and regain coverage
+	private static double[] nextRow(Random random, int i) {
+		double angle = i * 2e-4;
+		return new double[]{
+				0.5 + 0.3 * Math.cos(angle) + random.nextGaussian() * 0.1,
+				0.5 + 0.3 * Math.sin(angle) + random.nextGaussian() * 0.1};
+	}
+
+	private static boolean checkWindow(String name,
+			StreamingCoverageChecker checker, int numRows, double[] queries,
+			Random random) {
+		boolean[] lastEvent = {true};
+		int[] numEvents = {0};
+		StreamingCoverageChecker.Watch watch = checker.watch(
+				new double[]{0.6, 0.6}, new double[]{0.7, 0.7},
+				(w, covered) -> {
+					lastEvent[0] = covered;
+					numEvents[0]++;
+				});
+		lastEvent[0] = watch.isCovered();
+
+		// Timestamps step by 0, 1 or 2, so a time window of w holds about w
+		// rows
+		List<double[]> pushed = new ArrayList<double[]>();
+		List<Long> stamps = new ArrayList<Long>();
+		long time = 0;
+		int mismatches = 0;
+		for (int i = 0; i < numRows; i++) {
+			double[] row = nextRow(random, i);
+			time += random.nextInt(3);
+			checker.push(row, time);
+			pushed.add(checker.scaler.transform(row));
+			stamps.add(time);
+
+			if (i % 997 == 0 || i == numRows - 1) {
+				List<double[]> live = new ArrayList<double[]>();
+				for (int j = 0; j < pushed.size(); j++) {
+					boolean inCount = checker.maxRows == 0
+							|| j >= pushed.size() - checker.maxRows;
+					boolean inTime = checker.maxAge == 0
+							|| time - stamps.get(j) < checker.maxAge;
+					if (inCount && inTime)
+						live.add(pushed.get(j));
+				}
+				if (live.size() != checker.size())
+					mismatches++;
+				BitSet expected = bruteForce(live, queries, checker.k,
+						checker.rho);
+				BitSet actual = checker.ifCoveredBatch(queries, 2);
+				actual.xor(expected);
+				mismatches += actual.cardinality();
+				if (watch.isCovered() != watchCovered(watch, live, checker)
+						|| watch.isCovered() != lastEvent[0])
+					mismatches++;
+			}
+		}
+		System.out.println(String.format(
+				"%s: %d rows in the window, %d events, %d mismatches", name,
+				checker.size(), numEvents[0], mismatches));
+		return mismatches > 0 || numEvents[0] == 0;
+	}
+
+	private static boolean checkConcurrent(StreamingCoverageChecker checker,
+			double[] queries, double seconds) throws InterruptedException {
+		AtomicBoolean stop = new AtomicBoolean();
+		AtomicLong numQueries = new AtomicLong();
+		AtomicLong queryNanos = new AtomicLong();
+		AtomicLong numPushes = new AtomicLong();
+		List<Throwable> errors = new ArrayList<Throwable>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 2; t++) {
+			final int seed = t;
+			threads.add(new Thread(() -> {
+				Random random = new Random(seed);
+				for (int i = 0; !stop.get(); i++) {
+					checker.push(nextRow(random, i), i);
+					numPushes.incrementAndGet();
+				}
+			}));
+		}
+		for (int t = 0; t < 4; t++) {
+			threads.add(new Thread(() -> {
+				double[] q = new double[2];
+				int i = 0;
+				while (!stop.get()) {
+					long begin = System.nanoTime();
+					for (int j = 0; j < 1000; j++) {
+						q[0] = queries[2 * i];
+						q[1] = queries[2 * i + 1];
+						checker.ifCovered(q);
+						i = (i + 1) % (queries.length / 2);
+					}
+					queryNanos.addAndGet(System.nanoTime() - begin);
+					numQueries.addAndGet(1000);
+				}
+			}));
+		}
+		StreamingCoverageChecker.Watch watch = checker
+				.watch(new double[]{0.2, 0.2}, new double[]{0.4, 0.4}, null);
+		for (Thread thread : threads) {
+			thread.setUncaughtExceptionHandler((th, e) -> {
+				synchronized (errors) {
+					errors.add(e);
+				}
+			});
+			thread.start();
+		}
+		// watches of the whole space registered while the pushers run
+		List<StreamingCoverageChecker.Watch> late =
+				new ArrayList<StreamingCoverageChecker.Watch>();
+		long end = System.nanoTime() + (long) (seconds * 1e9);
+		while (System.nanoTime() < end) {
+			Thread.sleep(10);
+			if (late.size() < 20)
+				late.add(checker.watch(new double[]{0, 0},
+						new double[]{1, 1}, null));
+		}
+		stop.set(true);
+		for (Thread thread : threads)
+			thread.join();
+
+		// Once quiet, the grid and the watch must agree with the window
+		List<double[]> live = new ArrayList<double[]>();
+		for (StreamingCoverageChecker.Entry entry : checker.window)
+			live.add(entry.point);
+		int mismatches = errors.size();
+		if (live.size() != checker.size() || live.size() != checker.maxRows)
+			mismatches++;
+		BitSet expected = bruteForce(live, queries, checker.k, checker.rho);
+		BitSet actual = checker.ifCoveredBatch(queries, 2);
+		actual.xor(expected);
+		mismatches += actual.cardinality();
+		StreamingCoverageChecker.Watch fresh = checker
+				.watch(watch.getLo(), watch.getHi(), null);
+		if (watch.getUncoveredProbes() != fresh.getUncoveredProbes()
+				|| watch.isCovered() != watchCovered(watch, live, checker))
+			mismatches++;
+		fresh = checker.watch(new double[]{0, 0}, new double[]{1, 1}, null);
+		for (StreamingCoverageChecker.Watch w : late) {
+			for (int i = 0; i < w.getProbes(); i++) {
+				if (w.counts.get(i) != fresh.counts.get(i))
+					mismatches++;
+			}
+		}
+
+		System.out.println(String.format(
+				"concurrent: %d pushes, %d queries at %.2f us per query, %d mismatches",
+				numPushes.get(), numQueries.get(),
+				queryNanos.get() / 1e3 / numQueries.get(), mismatches));
+		for (Throwable e : errors)
+			e.printStackTrace();
+		return mismatches > 0;
+	}
+
+	private static BitSet bruteForce(List<double[]> rows, double[] queries,
+			int k, double rho) {
+		double rho2 = DistanceKernel.squaredRadius(rho);
+		BitSet covered = new BitSet();
+		for (int i = 0; i < queries.length / 2; i++) {
+			if (countWithin(rows, queries[2 * i], queries[2 * i + 1],
+					rho2) >= k)
+				covered.set(i);
+		}
+		return covered;
+	}
+
+	private static int countWithin(List<double[]> rows, double x, double y,
+			double rho2) {
+		int count = 0;
+		for (double[] row : rows) {
+			double dx = row[0] - x, dy = row[1] - y;
+			if (dx * dx + dy * dy <= rho2)
+				count++;
+		}
+		return count;
+	}
+
+	// all probes of the watch are covered by the rows
+	private static boolean watchCovered(StreamingCoverageChecker.Watch watch,
+			List<double[]> rows, StreamingCoverageChecker checker) {
+		double rho2 = DistanceKernel.squaredRadius(checker.rho);
+		for (int i = 0; i < watch.probesPerDim[0]; i++) {
+			for (int j = 0; j < watch.probesPerDim[1]; j++) {
+				double x = watch.lo[0] + i * watch.step[0];
+				double y = watch.lo[1] + j * watch.step[1];
+				if (countWithin(rows, x, y, rho2) < checker.k)
+					return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,95 @@
+package umichdb.coverage2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks the tiled parallel build of the order-k Voronoi diagram against the
+ * sequential build: the cells must be the same for every number of threads,
+ * and the k nearest sites of random query points must agree with the
+ * sequential diagram. Exits with status 1 on any mismatch.
+ *
+ * Usage: TiledVoronoiDeterminismTest [numSites] [k] [tilesPerSide]
+ * [numQueries] [seed]
+ */
+public class TiledVoronoiDeterminismTest {
+	public static void main(String[] args) {
+		int numSites = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int tilesPerSide = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		int numQueries = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+		long seed = args.length > 4 ? Long.parseLong(args[4]) : 0;
+
+		Random random = new Random(seed);
+		List<Point2D> sites = new ArrayList<Point2D>();
+		for (int i = 0; i < numSites; i++)
+			sites.add(new Point2D(random.nextDouble(), random.nextDouble()));
+
+		long begin = System.nanoTime();
+		VoronoiKOrder sequential = new VoronoiKOrder(sites, k, false);
+		double sequentialTime = (System.nanoTime() - begin) / 1e9;
+		System.out.println(String.format(
+				"sequential: %d polygons, built in %.3f s",
+				sequential.polygonList.size(), sequentialTime));
+
+		boolean failed = false;
+		long expectedFingerprint = 0;
+		int maxThreads = Math.max(4,
+				Runtime.getRuntime().availableProcessors());
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			begin = System.nanoTime();
+			VoronoiKOrder tiled = TiledVoronoiBuilder.build(sites, k,
+					tilesPerSide, pool);
+			double tiledTime = (System.nanoTime() - begin) / 1e9;
+			pool.shutdown();
+
+			long fingerprint = fingerprint(tiled);
+			if (threads == 1)
+				expectedFingerprint = fingerprint;
+
+			Random queryRandom = new Random(seed + 1);
+			int mismatches = 0;
+			for (int i = 0; i < numQueries; i++) {
+				double x = queryRandom.nextDouble();
+				double y = queryRandom.nextDouble();
+				if (!tiled.locateSites(x, y)
+						.equals(sequential.locateSites(x, y)))
+					mismatches++;
+			}
+
+			System.out.println(String.format(
+					"%2d threads: %d cells in %d tiles, built in %.3f s (%.2fx), fingerprint %016x, %d mismatches",
+					threads, tiled.polygonList.size(),
+					tilesPerSide * tilesPerSide, tiledTime,
+					sequentialTime / tiledTime, fingerprint, mismatches));
+			if (fingerprint != expectedFingerprint || mismatches > 0)
+				failed = true;
+		}
+
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Order dependent fingerprint of the cells, their keys and their vertices
+	 */
+	private static long fingerprint(VoronoiKOrder diagram) {
+		long fingerprint = 17;
+		for (VoronoiPolygon poly : diagram.polygonList) {
+			fingerprint = fingerprint * 31 + poly.regionKey.hashCode();
+			for (int i = 0; i < poly.npoints; i++) {
+				fingerprint = fingerprint * 31
+						+ Double.doubleToLongBits(poly.xpoints[i]);
+				fingerprint = fingerprint * 31
+						+ Double.doubleToLongBits(poly.ypoints[i]);
+			}
+		}
+		return fingerprint;
+	}
+}
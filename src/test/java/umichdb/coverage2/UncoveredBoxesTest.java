@@ -0,0 +1,275 @@
+package umichdb.coverage2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import smile.data.DataFrame;
+
+/**
+ * Exports the uncovered boxes of approximate checkers in some
+ * dimensionalities and checks them against the decision tree: a random point
+ * lies in a box iff the tree predicts it uncovered, the boxes do not overlap
+ * and have the volume of the uncovered leaves, and R-tree queries for random
+ * boxes find what a scan of all boxes finds, and there are no more boxes than
+ * uncovered leaves. A hand-built tree checks that a subtree whose leaves are
+ * all uncovered becomes one box, and inverted query boxes must be rejected;
+ * another one that uncovered leaves in different subtrees sharing a face
+ * merge into fewer boxes. Exits with status 1 on any mismatch.
+ *
+ * Usage: UncoveredBoxesTest [numPoints] [k] [numQueries]
+ */
+public class UncoveredBoxesTest {
+	static final int[] DIMENSIONS = {2, 3, 5};
+	// vicinity values that leave part of the space of 20000 rows uncovered
+	static final double[] RHOS = {0.015, 0.06, 0.2};
+
+	public static void main(String[] args) throws IOException {
+		int numPoints = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+		int mismatches = 0;
+		for (int t = 0; t < DIMENSIONS.length; t++) {
+			int d = DIMENSIONS[t];
+			DataFrame data = Utils.genRandDataset(numPoints, d);
+			MithraCoverageChecker checker = new MithraCoverageChecker(data, k,
+					RHOS[t], 0.01, 0.01);
+			long begin = System.nanoTime();
+			UncoveredBoxes boxes = checker.getUncoveredBoxes();
+			double exportMs = (System.nanoTime() - begin) / 1e6;
+			Random random = new Random(d);
+
+			// Points: in a box iff predicted uncovered
+			int pointMismatches = 0;
+			BitSet covered = checker
+					.ifCoveredBatch(points(numQueries, d, random), d);
+			random = new Random(d);
+			double[] points = points(numQueries, d, random);
+			for (int i = 0; i < numQueries; i++) {
+				double[] point = Arrays.copyOfRange(points, i * d, i * d + d);
+				boolean inBox = boxes.intersecting(point, point).length > 0;
+				if (inBox == covered.get(i))
+					pointMismatches++;
+			}
+
+			// Volume: that of the uncovered leaves, and no overlaps
+			double leafVolume = leafVolume(checker.flatTree, 0, unitBox(d));
+			int overlaps = 0;
+			for (int i = 0; i < boxes.size(); i++) {
+				if (Math.abs(boxes.getVolume(boxes.getLo(i), boxes.getHi(i))
+						- boxes.getVolume(i)) > 1e-12)
+					overlaps++;
+			}
+			boolean volumeMismatch = Math
+					.abs(boxes.getVolume() - leafVolume) > 1e-9;
+
+			// Box queries: the R-tree against a scan
+			int queryMismatches = 0;
+			long treeNanos = 0, scanNanos = 0;
+			for (int q = 0; q < numQueries / 10; q++) {
+				double[] lo = new double[d], hi = new double[d];
+				for (int i = 0; i < d; i++) {
+					double a = random.nextDouble(), b = random.nextDouble();
+					double w = 0.1 * random.nextDouble();
+					lo[i] = Math.min(a, b);
+					hi[i] = Math.min(1, lo[i] + w);
+				}
+				begin = System.nanoTime();
+				int[] found = boxes.intersecting(lo, hi);
+				double volume = boxes.getVolume(lo, hi);
+				treeNanos += System.nanoTime() - begin;
+				begin = System.nanoTime();
+				int[] expected = scan(boxes, lo, hi);
+				double expectedVolume = scanVolume(boxes, expected, lo, hi);
+				scanNanos += System.nanoTime() - begin;
+				Arrays.sort(found);
+				if (!Arrays.equals(found, expected)
+						|| Math.abs(volume - expectedVolume) > 1e-12)
+					queryMismatches++;
+			}
+
+			int leaves = leaves(checker.flatTree, 0, unitBox(d));
+			boolean countMismatch = boxes.size() > leaves;
+
+			File csv = File.createTempFile("boxes", ".csv");
+			csv.deleteOnExit();
+			boxes.write(csv);
+			boolean csvMismatch = Files.readAllLines(csv.toPath())
+					.size() != boxes.size() + 1;
+
+			System.out.println(String.format(
+					"%d-d: %d uncovered leaves as %d boxes in %.1f ms, volume %.4f (leaves %.4f), %d point, %d overlap and %d query mismatches; box queries %.2f us, scan %.2f us",
+					d, leaves, boxes.size(),
+					exportMs, boxes.getVolume(), leafVolume, pointMismatches,
+					overlaps, queryMismatches,
+					treeNanos / 1e3 / (numQueries / 10),
+					scanNanos / 1e3 / (numQueries / 10)));
+			mismatches += pointMismatches + overlaps + queryMismatches
+					+ (volumeMismatch ? 1 : 0) + (csvMismatch ? 1 : 0)
+					+ (countMismatch ? 1 : 0);
+		}
+
+		mismatches += checkSubtrees();
+		mismatches += checkMerge();
+
+		if (mismatches > 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * In 2-d, x <= 0.5 splits into two uncovered leaves (y <= 0.5 or not),
+	 * and x > 0.5 into an uncovered leaf for y <= 0.25 and a covered one.
+	 * That is the box [0, 0.5] x [0, 1] and the box [0.5, 1] x [0, 0.25].
+	 */
+	private static int checkSubtrees() {
+		FlatDecisionTree tree = FlatDecisionTree.of(
+				new int[]{0, 1, 0, 0, 1, 0, 0},
+				new double[]{0.5, 0.5, 0, 0, 0.25, 0, 0},
+				new int[]{1, 2, 2, 3, 5, 5, 6}, new int[]{4, 3, 2, 3, 6, 5, 6},
+				new int[]{0, 0, 0, 0, 0, 0, 1}, 2);
+		UncoveredBoxes boxes = UncoveredBoxes.of(tree,
+				new String[]{"x", "y"});
+		int mismatches = 0;
+		if (boxes.size() != 2 || boxes.getVolume() != 0.625)
+			mismatches++;
+		for (int i = 0; i < boxes.size(); i++) {
+			double[] lo = boxes.getLo(i), hi = boxes.getHi(i);
+			if (!(Arrays.equals(lo, new double[]{0, 0})
+					&& Arrays.equals(hi, new double[]{0.5, 1}))
+					&& !(Arrays.equals(lo, new double[]{0.5, 0})
+							&& Arrays.equals(hi, new double[]{1, 0.25})))
+				mismatches++;
+		}
+		boolean rejected;
+		try {
+			boxes.getVolume(new double[]{0.6, 0}, new double[]{0.4, 1});
+			rejected = false;
+		} catch (IllegalArgumentException e) {
+			rejected = true;
+		}
+		if (!rejected)
+			mismatches++;
+		System.out.println(String.format(
+				"hand-built tree: %d boxes, volume %.4f, inverted query box %s",
+				boxes.size(), boxes.getVolume(),
+				rejected ? "rejected" : "accepted"));
+		return mismatches;
+	}
+
+	/**
+	 * In 2-d, x <= 0.5 splits into an uncovered leaf for y <= 0.5 and a
+	 * covered one. x > 0.5 splits at x <= 0.75 into a covered leaf on the
+	 * right and, on the left, an uncovered leaf for y <= 0.25 and a subtree
+	 * with an uncovered leaf for y <= 0.5. The last two share the face at
+	 * y = 0.25 and merge into [0.5, 0.75] x [0, 0.5], which then shares the
+	 * face at x = 0.5 with the first one: one box [0, 0.75] x [0, 0.5] for
+	 * three uncovered leaves.
+	 */
+	private static int checkMerge() {
+		FlatDecisionTree tree = FlatDecisionTree.of(
+				new int[]{0, 1, 0, 0, 0, 1, 0, 0, 1, 0, 0},
+				new double[]{0.5, 0.5, 0.75, 0, 0, 0.25, 0, 0, 0.5, 0, 0},
+				new int[]{1, 3, 5, 3, 4, 7, 6, 7, 9, 9, 10},
+				new int[]{2, 4, 6, 3, 4, 8, 6, 7, 10, 9, 10},
+				new int[]{0, 0, 0, 0, 1, 0, 1, 0, 0, 0, 1}, 2);
+		UncoveredBoxes boxes = UncoveredBoxes.of(tree,
+				new String[]{"x", "y"});
+		int leaves = leaves(tree, 0, unitBox(2));
+		int mismatches = 0;
+		if (leaves != 3 || boxes.size() != 1 || boxes.getVolume() != 0.375)
+			mismatches++;
+		else if (!Arrays.equals(boxes.getLo(0), new double[]{0, 0})
+				|| !Arrays.equals(boxes.getHi(0), new double[]{0.75, 0.5}))
+			mismatches++;
+		System.out.println(String.format(
+				"merged tree: %d uncovered leaves as %d boxes, volume %.4f",
+				leaves, boxes.size(), boxes.getVolume()));
+		return mismatches;
+	}
+
+	private static double[] points(int n, int d, Random random) {
+		double[] points = new double[n * d];
+		for (int i = 0; i < points.length; i++)
+			points[i] = random.nextDouble();
+		return points;
+	}
+
+	private static double[] unitBox(int d) {
+		double[] box = new double[2 * d];
+		Arrays.fill(box, d, 2 * d, 1);
+		return box;
+	}
+
+	// volume of the uncovered leaves below a node, within box
+	private static double leafVolume(FlatDecisionTree tree, int node,
+			double[] box) {
+		int d = tree.d;
+		double volume = 1;
+		for (int i = 0; i < d; i++)
+			volume *= Math.max(0, box[d + i] - box[i]);
+		if (volume == 0)
+			return 0;
+		if (tree.left[node] == node)
+			return tree.label[node] == 0 ? volume : 0;
+		double[] left = box.clone(), right = box.clone();
+		int f = tree.feature[node];
+		left[d + f] = Math.min(left[d + f], tree.threshold[node]);
+		right[f] = Math.max(right[f], tree.threshold[node]);
+		return leafVolume(tree, tree.left[node], left)
+				+ leafVolume(tree, tree.right[node], right);
+	}
+
+	private static int leaves(FlatDecisionTree tree, int node, double[] box) {
+		int d = tree.d;
+		for (int i = 0; i < d; i++) {
+			if (box[i] >= box[d + i])
+				return 0;
+		}
+		if (tree.left[node] == node)
+			return tree.label[node] == 0 ? 1 : 0;
+		double[] left = box.clone(), right = box.clone();
+		int f = tree.feature[node];
+		left[d + f] = Math.min(left[d + f], tree.threshold[node]);
+		right[f] = Math.max(right[f], tree.threshold[node]);
+		return leaves(tree, tree.left[node], left)
+				+ leaves(tree, tree.right[node], right);
+	}
+
+	private static int[] scan(UncoveredBoxes boxes, double[] lo,
+			double[] hi) {
+		int d = boxes.dimension();
+		int[] found = new int[boxes.size()];
+		int n = 0;
+		for (int b = 0; b < boxes.size(); b++) {
+			boolean overlaps = true;
+			for (int i = 0; i < d; i++) {
+				if (boxes.lo[b * d + i] > hi[i] || lo[i] > boxes.hi[b * d + i])
+					overlaps = false;
+			}
+			if (overlaps)
+				found[n++] = b;
+		}
+		return Arrays.copyOf(found, n);
+	}
+
+	private static double scanVolume(UncoveredBoxes boxes, int[] found,
+			double[] lo, double[] hi) {
+		int d = boxes.dimension();
+		double volume = 0;
+		for (int b : found) {
+			double part = 1;
+			for (int i = 0; i < d; i++)
+				part *= Math.min(boxes.hi[b * d + i], hi[i])
+						- Math.max(boxes.lo[b * d + i], lo[i]);
+			volume += part;
+		}
+		return volume;
+	}
+}
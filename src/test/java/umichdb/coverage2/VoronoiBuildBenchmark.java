@@ -0,0 +1,55 @@
+package umichdb.coverage2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Build time and retained heap of the order-k Voronoi diagram. The
+ * fingerprint summarizes the diagram (edges, vertices and polygon keys) so
+ * that builds of different versions of the engine can be compared.
+ *
+ * Usage: VoronoiBuildBenchmark [numSites] [k] [seed]
+ */
+public class VoronoiBuildBenchmark {
+	public static void main(String[] args) {
+		int numSites = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+		Random random = new Random(seed);
+		List<Point2D> sites = new ArrayList<Point2D>();
+		for (int i = 0; i < numSites; i++)
+			sites.add(new Point2D(random.nextDouble(), random.nextDouble()));
+
+		long heapBefore = usedHeap();
+		long begin = System.nanoTime();
+		VoronoiKOrder diagram = new VoronoiKOrder(sites, k, false);
+		double buildTime = (System.nanoTime() - begin) / 1e9;
+		long heapAfter = usedHeap();
+
+		// Order independent fingerprint of the polygon keys
+		long fingerprint = 0;
+		for (VoronoiPolygon poly : diagram.getPolygons()) {
+			long key = 17;
+			for (Point2D p : diagram.getSites(poly.regionKey))
+				key = key * 31 + p.hashCode();
+			fingerprint += key * 0x9E3779B97F4A7C15L;
+		}
+
+		System.out.println(String.format(
+				"n=%d k=%d: %d edges, %d vertices, %d polygons, fingerprint %016x",
+				numSites, k, diagram.getEdges().size(),
+				diagram.getVertices().size(), diagram.getPolygons().size(),
+				fingerprint));
+		System.out.println(String.format("build %.3f s, retained heap %.1f MB",
+				buildTime, (heapAfter - heapBefore) / 1e6));
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -1,9 +1,7 @@
 package vldb;
 
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -28,7 +26,7 @@ public class AccuracyTest {
 	MithraCoverageChecker approximateMCC;
 	BasicCoverageChecker bcc;
 
-	final static String resultDir = "result";
+	final static String resultDir = "target/perf";
 
 	/**
 	 * 
@@ -36,7 +34,7 @@ public class AccuracyTest {
 	 * @param schema
 	 */
 	public AccuracyTest(String dataFileName, String schemaFileName,
-			String[] selectedAttrs) {
+			String[] selectedAttrs) throws IOException {
 		this.df = Utils.loadDataSetFromCSV(dataFileName, schemaFileName);
 		this.df = this.df.select(selectedAttrs);
 	}
@@ -70,7 +68,7 @@ public class AccuracyTest {
 		return truePositiveCount / numQueryPts;
 	}
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 
 		// Parse command line arguments and set specs
 		Cli cmd = new Cli(args);
@@ -102,9 +100,7 @@ public class AccuracyTest {
 		AccuracyTest irisTest = new AccuracyTest(datasetFileName,
 				schemaFileName, selectedAttrs);
 
-		List<String> accuracyResult = new ArrayList<String>();
-		accuracyResult.add(
-				"Dataset,K,Rho,Epsilon,Phi,numQueryPts,Dimensions,Accuracy");
+		PerfReport report = new PerfReport();
 
 		for (int k : kValues) {
 			for (double rho : rhoValues) {
@@ -129,77 +125,39 @@ public class AccuracyTest {
 								accuracies.add(irisTest.testAccuracy(k, rho,
 										epsilon, phi, numQueryPts));
 							}
-							accuracyResult.add(String
-									.format("%s,%d,%.3f,%.3f,%.3f,%d,%d,%.3f",
-											datasetFileName, k, rho, epsilon,
-											phi, numQueryPts, dimensions,
-											accuracies.stream()
-													.mapToDouble(d -> d)
-													.average().orElse(0.0)));
+							report.put(String.format(
+									"%s k=%d rho=%.3f epsilon=%.3f phi=%.3f numQueryPts=%d dim=%d",
+									datasetFileName, k, rho, epsilon, phi,
+									numQueryPts, dimensions),
+									PerfReport.ACCURACY,
+									accuracies.stream().mapToDouble(d -> d)
+											.average().orElse(0.0));
 						}
 					}
 				}
 			}
 		}
 
-		// Output result
+		// Output result, in the format of the performance suite so that runs
+		// can be compared with PerformanceSuite -c
+		System.out.println(
+				"[RESULT] SAVE_TO_FILE=" + cmd.hasOption(Cli.ARG_OUTPUT));
 		if (cmd.hasOption(Cli.ARG_OUTPUT)) {
-			System.out.println(
-					"[RESULT] SAVE_TO_FILE=" + cmd.hasOption(Cli.ARG_OUTPUT));
-
-			LocalDateTime datetimeObj = LocalDateTime.now();
-			DateTimeFormatter formatObj = DateTimeFormatter
-					.ofPattern("MM_dd_HH_mm_ss");
-			String dataTimeStr = datetimeObj.format(formatObj);
-
-			// Output config
-			String cmdConfigFileName = String.format(
-					"%s/accuracy_%s_%s.config.txt", resultDir,
-					datasetFileName.replaceAll("[^0-9a-zA-Z]", "_"),
-					dataTimeStr);
-
+			File resultFile = new File(String.format("%s/accuracy_%s.csv",
+					resultDir,
+					datasetFileName.replaceAll("[^0-9a-zA-Z]", "_")));
 			try {
-				FileWriter myWriter = new FileWriter(cmdConfigFileName);
-				myWriter.write(cmd.toString());
-				myWriter.close();
-				System.out.println(String.format(
-						"[RESULT] Successfully wrote config to the file %s.",
-						cmdConfigFileName));
-			} catch (IOException e) {
-				System.out.println(String.format(
-						"[ERROR] Fail to write config to the file %s.",
-						cmdConfigFileName));
-				e.printStackTrace();
-			}
-
-			// Output accuracy result
-			String accuracyResultFileName = String.format(
-					"%s/accuracy_%s_%s.query.csv", resultDir,
-					datasetFileName.replaceAll("[^0-9a-zA-Z]", "_"),
-					dataTimeStr);
-			try {
-				FileWriter myWriter = new FileWriter(accuracyResultFileName);
-				for (String row : accuracyResult) {
-					myWriter.write(row + "\n");
-				}
-				myWriter.close();
+				report.write(resultFile);
 				System.out.println(String.format(
 						"[RESULT] Successfully wrote accuracies to the file %s.",
-						accuracyResultFileName));
+						resultFile));
 			} catch (IOException e) {
-				System.out.println(
-						String.format("[ERROR] Fail to write to the file %s.",
-								accuracyResultFileName));
+				System.out.println(String.format(
+						"[ERROR] Fail to write to the file %s.", resultFile));
 				e.printStackTrace();
 			}
-
 		} else {
-			System.out.println(
-					"[RESULT] SAVE_TO_FILE=" + cmd.hasOption(Cli.ARG_OUTPUT));
-			// Print final output
-			for (String row : accuracyResult)
-				System.out.println(row);
-
+			report.print(System.out);
 		}
 	}
 }
@@ -1,10 +1,7 @@
 package vldb;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -38,7 +35,7 @@ public class EfficiencyTest {
 	MithraCoverageChecker mcc;
 	BasicCoverageChecker bcc;
 
-	final static String resultDir = "result";
+	final static String resultDir = "target/perf";
 
 	/**
 	 * 
@@ -46,7 +43,7 @@ public class EfficiencyTest {
 	 * @param schemaFileName
 	 */
 	public EfficiencyTest(String dataFileName, String schemaFileName,
-			String[] selectedAttrs) {
+			String[] selectedAttrs) throws IOException {
 		this.df = Utils.loadDataSetFromCSV(dataFileName, schemaFileName);
 		this.df = this.df.select(selectedAttrs);
 	}
@@ -115,6 +112,29 @@ public class EfficiencyTest {
 		return (constructionEndTime - constructionBeginTime) / 1000.0;
 	}
 
+	/**
+	 * Evaluate exact MithraCoverage query time (in seconds) for a vicinity
+	 * value given at query time
+	 * 
+	 * @param numQueryPts
+	 * @param d
+	 * @param rho
+	 * @return
+	 */
+	public double mithraQueryTime(int numQueryPts, int d, double rho) {
+		DataFrame queryPoints = Utils.genRandDataset(numQueryPts, d);
+
+		double constructionBeginTime = System.currentTimeMillis();
+
+		for (int i = 0; i < queryPoints.size(); i++) {
+			Tuple p = queryPoints.get(i);
+			mcc.ifCovered(p.toArray(), rho);
+		}
+
+		double constructionEndTime = System.currentTimeMillis();
+		return (constructionEndTime - constructionBeginTime) / 1000.0;
+	}
+
 	/**
 	 * Evaluate basicCoverage query time (in seconds)
 	 * 
@@ -139,7 +159,8 @@ public class EfficiencyTest {
 		return (constructionEndTime - constructionBeginTime) / 1000.0;
 	}
 
-	public static void main(String[] args) throws ParseException {
+	public static void main(String[] args)
+			throws ParseException, IOException {
 		// Parse command line arguments and set specs
 		Cli cmd = new Cli(args);
 
@@ -160,31 +181,19 @@ public class EfficiencyTest {
 		EfficiencyTest irisTest = new EfficiencyTest(datasetFileName,
 				schemaFileName, selectedAttrs);
 
-		List<String> constructionResult = new ArrayList<String>();
-		if (!cmd.hasOption(Cli.ARG_EPSILON)) {
-			constructionResult.add("Dataset,K,Rho,Time");
-		} else {
-			constructionResult.add("Dataset,K,Rho,Epsilon,Phi,Time");
-		}
-
-		List<String> queryTimeResult = new ArrayList<String>();
-		if (!cmd.hasOption(Cli.ARG_EPSILON)) {
-
-			queryTimeResult.add("Dataset,K,Rho,numQueryPts,Dimensions,Time");
-		} else {
-			queryTimeResult.add(
-					"Dataset,K,Rho,Epsilon,Phi,numQueryPts,Dimensions,Time");
-
-		}
+		PerfReport report = new PerfReport();
 
 		for (int k : kValues) {
-			for (double rho : rhoValues) {
-				if (!cmd.hasOption(Cli.ARG_EPSILON)) {
-					// Construction test
-					double constructionTime = irisTest.mithraConstructionTime(k,
-							rho, repeat);
-					constructionResult.add(String.format("%s,%d,%.3f,%.3f",
-							datasetFileName, k, rho, constructionTime));
+			if (!cmd.hasOption(Cli.ARG_EPSILON)) {
+				// Construction test: the exact diagram does not depend on
+				// rho, so it is built once per k and serves all rho values
+				double constructionTime = irisTest.mithraConstructionTime(k,
+						rhoValues[0], repeat);
+
+				for (double rho : rhoValues) {
+					String workload = String.format("%s k=%d rho=%.3f",
+							datasetFileName, k, rho);
+					report.put(workload, "construction_s", constructionTime);
 
 					// Query test
 					for (int numQueryPts : numQueryPtsVals) {
@@ -196,15 +205,18 @@ public class EfficiencyTest {
 						List<Double> queryTimes = new ArrayList<Double>();
 						for (int i = 0; i < repeat; i++) {
 							queryTimes.add(irisTest.mithraQueryTime(numQueryPts,
-									dimensions));
+									dimensions, rho));
 						}
-						queryTimeResult.add(String.format(
-								"%s,%d,%.3f,%d,%d,%.3f", datasetFileName, k,
-								rho, numQueryPts, dimensions,
-								queryTimes.stream().mapToDouble(d -> d)
-										.average().orElse(0.0)));
+						report.put(
+								String.format("%s numQueryPts=%d dim=%d",
+										workload, numQueryPts, dimensions),
+								"query_s", queryTimes.stream()
+										.mapToDouble(d -> d).average()
+										.orElse(0.0));
 					}
-				} else {
+				}
+			} else {
+				for (double rho : rhoValues) {
 					double[] epsilonValues = Arrays
 							.stream(cmd.getArgValues(Cli.ARG_EPSILON))
 							.mapToDouble(Double::parseDouble).toArray();
@@ -218,10 +230,11 @@ public class EfficiencyTest {
 							double constructionTime = irisTest
 									.mithraConstructionTime(k, rho, epsilon,
 											phi, repeat);
-							constructionResult.add(
-									String.format("%s,%d,%.3f,%.3f,%.3f,%.3f",
-											datasetFileName, k, rho, epsilon,
-											phi, constructionTime));
+							String workload = String.format(
+									"%s k=%d rho=%.3f epsilon=%.3f phi=%.3f",
+									datasetFileName, k, rho, epsilon, phi);
+							report.put(workload, "construction_s",
+									constructionTime);
 
 							// Query test
 							for (int numQueryPts : numQueryPtsVals) {
@@ -234,12 +247,13 @@ public class EfficiencyTest {
 									queryTimes.add(irisTest.mithraQueryTime(
 											numQueryPts, dimensions));
 								}
-								queryTimeResult.add(String.format(
-										"%s,%d,%.3f,%.3f,%.3f,%d,%d,%.3f",
-										datasetFileName, k, rho, epsilon, phi,
-										numQueryPts, dimensions,
-										queryTimes.stream().mapToDouble(d -> d)
-												.average().orElse(0.0)));
+								report.put(
+										String.format("%s numQueryPts=%d dim=%d",
+												workload, numQueryPts,
+												dimensions),
+										"query_s", queryTimes.stream()
+												.mapToDouble(d -> d).average()
+												.orElse(0.0));
 							}
 						}
 					}
@@ -247,90 +261,26 @@ public class EfficiencyTest {
 			}
 		}
 
-		// Output result
+		// Output result, in the format of the performance suite so that runs
+		// can be compared with PerformanceSuite -c
+		System.out.println(
+				"[RESULT] SAVE_TO_FILE=" + cmd.hasOption(Cli.ARG_OUTPUT));
 		if (cmd.hasOption(Cli.ARG_OUTPUT)) {
-			System.out.println(
-					"[RESULT] SAVE_TO_FILE=" + cmd.hasOption(Cli.ARG_OUTPUT));
-
-			LocalDateTime datetimeObj = LocalDateTime.now();
-			DateTimeFormatter formatObj = DateTimeFormatter
-					.ofPattern("MM_dd_HH_mm_ss");
-			String dataTimeStr = datetimeObj.format(formatObj);
-
-			// Output config
-			String cmdConfigFileName = String.format(
-					"%s/efficiency_%s_%s.config.txt", resultDir,
-					datasetFileName.replaceAll("[^0-9a-zA-Z]", "_"),
-					dataTimeStr);
-
+			File resultFile = new File(String.format("%s/efficiency_%s.csv",
+					resultDir,
+					datasetFileName.replaceAll("[^0-9a-zA-Z]", "_")));
 			try {
-				FileWriter myWriter = new FileWriter(cmdConfigFileName);
-				myWriter.write(cmd.toString());
-				myWriter.close();
+				report.write(resultFile);
 				System.out.println(String.format(
-						"[RESULT] Successfully wrote config to the file %s.",
-						cmdConfigFileName));
+						"[RESULT] Successfully wrote results to the file %s.",
+						resultFile));
 			} catch (IOException e) {
 				System.out.println(String.format(
-						"[ERROR] Fail to write config to the file %s.",
-						cmdConfigFileName));
+						"[ERROR] Fail to write to the file %s.", resultFile));
 				e.printStackTrace();
 			}
-
-			// Output construction time result
-			String constructionResultFileName = String.format(
-					"%s/efficiency_%s_%s.construction.csv", resultDir,
-					datasetFileName.replaceAll("[^0-9a-zA-Z]", "_"),
-					dataTimeStr);
-
-			try {
-				FileWriter myWriter = new FileWriter(
-						constructionResultFileName);
-				for (String row : constructionResult) {
-					myWriter.write(row + "\n");
-				}
-				myWriter.close();
-				System.out.println(String.format(
-						"[RESULT] Successfully wrote construction time to the file %s.",
-						constructionResultFileName));
-			} catch (IOException e) {
-				System.out.println(
-						String.format("[ERROR] Fail to write to the file %s.",
-								constructionResultFileName));
-				e.printStackTrace();
-			}
-
-			// Output query time result
-			String queryResultFileName = String.format(
-					"%s/efficiency_%s_%s.query.csv", resultDir,
-					datasetFileName.replaceAll("[^0-9a-zA-Z]", "_"),
-					dataTimeStr);
-			try {
-				FileWriter myWriter = new FileWriter(queryResultFileName);
-				for (String row : queryTimeResult) {
-					myWriter.write(row + "\n");
-				}
-				myWriter.close();
-				System.out.println(String.format(
-						"[RESULT] Successfully wrote query time to the file %s.",
-						queryResultFileName));
-			} catch (IOException e) {
-				System.out.println(
-						String.format("[ERROR] Fail to write to the file %s.",
-								queryResultFileName));
-				e.printStackTrace();
-			}
-
 		} else {
-			System.out.println(
-					"[RESULT] SAVE_TO_FILE=" + cmd.hasOption(Cli.ARG_OUTPUT));
-			// Print final output
-			for (String row : constructionResult)
-				System.out.println(row);
-
-			for (String row : queryTimeResult)
-				System.out.println(row);
-
+			report.print(System.out);
 		}
 
 	}
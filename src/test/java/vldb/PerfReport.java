@@ -0,0 +1,207 @@
+package vldb;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measurements keyed by workload and metric, stored as a CSV file with the
+ * columns Workload,Metric,Value. The performance suite, the efficiency test
+ * and the accuracy test all write this format, so the results of any two
+ * runs can be compared with PerformanceSuite -c.
+ *
+ * Metric names end in their unit (_s, _ms, _us, _mb). Accuracy is the only
+ * metric where higher is better.
+ */
+public class PerfReport {
+	static final String HEADER = "Workload,Metric,Value";
+	static final String ACCURACY = "accuracy";
+	// accuracy may drop by this much (absolute) before it is a regression
+	static final double ACCURACY_TOLERANCE = 0.03;
+
+	// in the order the measurements were added
+	final Map<String, Map<String, Double>> values = new LinkedHashMap<String, Map<String, Double>>();
+
+	/**
+	 * Add or replace a measurement
+	 *
+	 * @param workload
+	 *            = name of the workload, without commas
+	 * @param metric
+	 *            = name of the metric, ending in its unit
+	 * @param value
+	 */
+	public void put(String workload, String metric, double value) {
+		if (workload.matches(".*[,\\r\\n].*")
+				|| metric.matches(".*[,\\r\\n].*")) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid workload %s or metric %s, they must not contain commas or line breaks",
+					workload, metric));
+		}
+		Map<String, Double> metrics = values.get(workload);
+		if (metrics == null) {
+			metrics = new LinkedHashMap<String, Double>();
+			values.put(workload, metrics);
+		}
+		metrics.put(metric, value);
+	}
+
+	/**
+	 * @return the measurement, null if there is none
+	 */
+	public Double get(String workload, String metric) {
+		Map<String, Double> metrics = values.get(workload);
+		return metrics == null ? null : metrics.get(metric);
+	}
+
+	public boolean isEmpty() {
+		return values.isEmpty();
+	}
+
+	/**
+	 * Read a report written by write
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file cannot be read or is not a report
+	 */
+	public static PerfReport read(File file) throws IOException {
+		PerfReport report = new PerfReport();
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			String line = in.readLine();
+			if (!HEADER.equals(line)) {
+				throw new IOException(String.format(
+						"%s is not a performance report, it does not start with %s",
+						file, HEADER));
+			}
+			for (int row = 2; (line = in.readLine()) != null; row++) {
+				if (line.isEmpty())
+					continue;
+				String[] fields = line.split(",");
+				if (fields.length != 3) {
+					throw new IOException(String.format(
+							"%s, row %d: expected 3 fields, found %d", file, row,
+							fields.length));
+				}
+				try {
+					report.put(fields[0], fields[1],
+							Double.parseDouble(fields[2]));
+				} catch (NumberFormatException e) {
+					throw new IOException(String.format(
+							"%s, row %d: invalid value %s", file, row,
+							fields[2]));
+				}
+			}
+		}
+		return report;
+	}
+
+	/**
+	 * Write the report, creating the parent directories of the file
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create directory " + dir);
+		try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+			print(out);
+		}
+	}
+
+	public void print(PrintStream out) {
+		PrintWriter writer = new PrintWriter(out);
+		print(writer);
+		writer.flush();
+	}
+
+	private void print(PrintWriter out) {
+		out.println(HEADER);
+		for (Map.Entry<String, Map<String, Double>> workload : values
+				.entrySet()) {
+			for (Map.Entry<String, Double> metric : workload.getValue()
+					.entrySet()) {
+				out.println(String.format("%s,%s,%s", workload.getKey(),
+						metric.getKey(), metric.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Compare with a baseline and print one line per measurement. A metric
+	 * regresses if it is more than threshold (relative) above the baseline,
+	 * and by more than the noise of its unit (see noise); accuracy regresses
+	 * if it drops by more than ACCURACY_TOLERANCE. Measurements that are
+	 * only in one of the reports are reported but do not fail.
+	 *
+	 * @param baseline
+	 * @param threshold
+	 *            = allowed relative slowdown, e.g. 0.25
+	 * @param out
+	 * @return the regressed measurements as "workload metric"
+	 */
+	public List<String> compare(PerfReport baseline, double threshold,
+			PrintStream out) {
+		List<String> regressions = new ArrayList<String>();
+		for (Map.Entry<String, Map<String, Double>> workload : values
+				.entrySet()) {
+			for (Map.Entry<String, Double> metric : workload.getValue()
+					.entrySet()) {
+				String name = workload.getKey() + " " + metric.getKey();
+				double value = metric.getValue();
+				Double base = baseline.get(workload.getKey(),
+						metric.getKey());
+				if (base == null) {
+					out.println(String.format("[NEW] %s = %.4g", name, value));
+					continue;
+				}
+				boolean regressed = ACCURACY.equals(metric.getKey())
+						? value < base - ACCURACY_TOLERANCE
+						: value > base * (1 + threshold)
+								&& value - base > noise(metric.getKey());
+				if (regressed)
+					regressions.add(name);
+				out.println(String.format("[%s] %s = %.4g, baseline %.4g (%+.1f%%)",
+						regressed ? "REGRESSION" : "OK", name, value, base,
+						base == 0 ? 0 : (value - base) / base * 100));
+			}
+		}
+		for (Map.Entry<String, Map<String, Double>> workload : baseline.values
+				.entrySet()) {
+			for (String metric : workload.getValue().keySet()) {
+				if (get(workload.getKey(), metric) == null) {
+					out.println(String.format("[MISSING] %s %s",
+							workload.getKey(), metric));
+				}
+			}
+		}
+		return regressions;
+	}
+
+	/**
+	 * Differences that are within the resolution of the measurements of a
+	 * metric, by its unit
+	 */
+	static double noise(String metric) {
+		if (metric.endsWith("_s"))
+			return 0.001;
+		if (metric.endsWith("_ms"))
+			return 1;
+		if (metric.endsWith("_us"))
+			return 1;
+		if (metric.endsWith("_mb"))
+			return 1;
+		return 0;
+	}
+}
@@ -0,0 +1,277 @@
+package vldb;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import smile.data.DataFrame;
+import umichdb.coverage2.BasicCoverageChecker;
+import umichdb.coverage2.CoverageChecker;
+import umichdb.coverage2.MithraCoverageChecker;
+import umichdb.coverage2.Utils;
+
+/**
+ * Runs a fixed set of workloads (data/iris.data and seeded synthetic data,
+ * each with the basic, the exact and the approximate checker) and measures
+ * the construction time, the p50 and p99 latency of single queries, the
+ * heap retained by the checker (when the builds retain enough of it to
+ * measure) and, for the Mithra checkers, the accuracy
+ * against the basic checker. The results are written as a PerfReport and
+ * compared with a stored baseline; the run fails (status 1) if any of them
+ * regressed by more than the threshold.
+ *
+ * Baselines depend on the machine, so refresh them with -u on the machine
+ * that runs the suite. Run it with mvn -Pperf verify, or directly:
+ *
+ * Usage: PerformanceSuite [-b baseline] [-o results] [-t threshold] [-u]
+ * [-c results]
+ */
+public class PerformanceSuite {
+	static final String DEFAULT_BASELINE = "src/test/resources/vldb/perf-baseline.csv";
+	static final String DEFAULT_RESULTS = "target/perf/results.csv";
+	static final double DEFAULT_THRESHOLD = 0.5;
+
+	static final int BUILD_REPEATS = 5;
+	static final int NUM_QUERIES = 20000;
+	static final int WARMUP_ROUNDS = 3;
+	static final int QUERY_ROUNDS = 5;
+	// heap retained by all the builds of a workload below which heap_mb is
+	// not reported, since System.gc does not measure it reliably
+	static final double HEAP_RESOLUTION_MB = 1;
+	static final int GC_ROUNDS = 8;
+
+	// the builds of the current workload, kept so that their heap is in use
+	static CoverageChecker[] retained;
+
+	/**
+	 * A dataset and a way to build a checker over it. Queries are seeded
+	 * uniform random points of the rescaled space, as in EfficiencyTest.
+	 */
+	static class Workload {
+		final String name;
+		final DataFrame data;
+		final int k;
+		final double rho;
+		final Function<DataFrame, CoverageChecker> build;
+
+		Workload(String name, DataFrame data, int k, double rho,
+				Function<DataFrame, CoverageChecker> build) {
+			this.name = name;
+			this.data = data;
+			this.k = k;
+			this.rho = rho;
+			this.build = build;
+		}
+	}
+
+	static List<Workload> workloads() throws IOException {
+		DataFrame iris = Utils.loadDataSetFromCSV("data/iris.data",
+				"data/iris.schema");
+		DataFrame iris2 = iris.select("sepalLength", "sepalWidth");
+		DataFrame iris4 = iris.select("sepalLength", "sepalWidth",
+				"petalLength", "petalWidth");
+		DataFrame uniform2 = uniform(2000, 2, 0);
+		DataFrame uniform5 = uniform(100000, 5, 1);
+
+		List<Workload> workloads = new ArrayList<Workload>();
+		workloads.add(new Workload("iris-2d-basic", iris2, 3, 0.1,
+				data -> new BasicCoverageChecker(data, 3, 0.1)));
+		workloads.add(new Workload("iris-2d-exact", iris2, 3, 0.1,
+				data -> new MithraCoverageChecker(data, 3, 0.1)));
+		workloads.add(new Workload("iris-4d-approximate", iris4, 3, 0.2,
+				data -> new MithraCoverageChecker(data, 3, 0.2, 0.05, 0.05)));
+		workloads.add(new Workload("uniform-2d-basic", uniform2, 5, 0.05,
+				data -> new BasicCoverageChecker(data, 5, 0.05)));
+		workloads.add(new Workload("uniform-2d-exact", uniform2, 5, 0.05,
+				data -> new MithraCoverageChecker(data, 5, 0.05)));
+		workloads.add(new Workload("uniform-5d-basic", uniform5, 10, 0.1,
+				data -> new BasicCoverageChecker(data, 10, 0.1)));
+		workloads.add(new Workload("uniform-5d-approximate", uniform5, 10,
+				0.1,
+				data -> new MithraCoverageChecker(data, 10, 0.1, 0.01, 0.01)));
+		return workloads;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Options options = new Options();
+		options.addOption("h", false, "show help");
+		options.addOption("b", true, "baseline file, default "
+				+ DEFAULT_BASELINE);
+		options.addOption("o", true, "results file, default "
+				+ DEFAULT_RESULTS);
+		options.addOption("t", true,
+				"allowed relative slowdown, default " + DEFAULT_THRESHOLD);
+		options.addOption("u", false,
+				"write the results to the baseline file instead of comparing");
+		options.addOption("c", true,
+				"compare this results file with the baseline without running the workloads");
+		CommandLine cmd;
+		try {
+			cmd = new DefaultParser().parse(options, args);
+		} catch (ParseException e) {
+			System.err.println("[ERROR] " + e.getMessage());
+			new HelpFormatter().printHelp("PerformanceSuite", options);
+			System.exit(1);
+			return;
+		}
+		if (cmd.hasOption("h")) {
+			new HelpFormatter().printHelp("PerformanceSuite", options);
+			return;
+		}
+		File baselineFile = new File(cmd.getOptionValue("b", DEFAULT_BASELINE));
+		double threshold = Double.parseDouble(
+				cmd.getOptionValue("t", String.valueOf(DEFAULT_THRESHOLD)));
+
+		PerfReport results;
+		if (cmd.hasOption("c")) {
+			results = PerfReport.read(new File(cmd.getOptionValue("c")));
+		} else {
+			results = new PerfReport();
+			for (Workload workload : workloads())
+				run(workload, results);
+			File resultsFile = new File(
+					cmd.getOptionValue("o", DEFAULT_RESULTS));
+			results.write(resultsFile);
+			System.out.println("[RESULT] Wrote results to " + resultsFile);
+		}
+
+		if (cmd.hasOption("u")) {
+			results.write(baselineFile);
+			System.out.println("[RESULT] Wrote baseline to " + baselineFile);
+			return;
+		}
+		if (!baselineFile.exists()) {
+			System.err.println(String.format(
+					"[WARNING] No baseline %s, run with -u to create it",
+					baselineFile));
+			return;
+		}
+		List<String> regressions = results
+				.compare(PerfReport.read(baselineFile), threshold, System.out);
+		if (!regressions.isEmpty()) {
+			System.out.println(String.format(
+					"[RESULT] %d regressions beyond %.0f%%: %s",
+					regressions.size(), threshold * 100, regressions));
+			System.exit(1);
+		}
+		System.out.println("[RESULT] No regressions");
+	}
+
+	static void run(Workload workload, PerfReport results) {
+		System.out.println("[INFO] Performance suite: " + workload.name);
+		int d = workload.data.ncols();
+
+		// The first build warms up, the median of the others is the
+		// construction time. All of them are kept until the heap is
+		// measured, and the retained heap is their average, unless it is too
+		// small to tell from the noise of the collector.
+		long heapBefore = usedHeap();
+		retained = new CoverageChecker[BUILD_REPEATS + 1];
+		CoverageChecker checker = workload.build.apply(workload.data);
+		retained[0] = checker;
+		double[] buildTimes = new double[BUILD_REPEATS];
+		for (int i = 0; i < BUILD_REPEATS; i++) {
+			long begin = System.nanoTime();
+			retained[i + 1] = workload.build.apply(workload.data);
+			buildTimes[i] = (System.nanoTime() - begin) / 1e6;
+		}
+		double heapMb = (usedHeap() - heapBefore) / 1048576.0;
+		retained = null;
+		results.put(workload.name, "build_ms", median(buildTimes));
+		if (heapMb >= HEAP_RESOLUTION_MB) {
+			results.put(workload.name, "heap_mb",
+					heapMb / (BUILD_REPEATS + 1));
+		} else {
+			System.out.println(String.format(
+					"[INFO] %d builds retain %.3f MB, below the resolution of %.0f MB; heap_mb not reported",
+					BUILD_REPEATS + 1, heapMb, HEAP_RESOLUTION_MB));
+		}
+
+		// Latency of single queries after warming up, the median over some
+		// rounds of the percentiles of each round
+		double[] queries = uniformPoints(NUM_QUERIES, d, 2);
+		double[] point = new double[d];
+		BitSet covered = new BitSet(NUM_QUERIES);
+		for (int round = 0; round < WARMUP_ROUNDS; round++) {
+			for (int i = 0; i < NUM_QUERIES; i++) {
+				System.arraycopy(queries, i * d, point, 0, d);
+				covered.set(i, checker.ifCovered(point));
+			}
+		}
+		long[] latencies = new long[NUM_QUERIES];
+		double[] p50 = new double[QUERY_ROUNDS];
+		double[] p99 = new double[QUERY_ROUNDS];
+		for (int round = 0; round < QUERY_ROUNDS; round++) {
+			for (int i = 0; i < NUM_QUERIES; i++) {
+				System.arraycopy(queries, i * d, point, 0, d);
+				long begin = System.nanoTime();
+				boolean answer = checker.ifCovered(point);
+				latencies[i] = System.nanoTime() - begin;
+				covered.set(i, answer);
+			}
+			Arrays.sort(latencies);
+			p50[round] = latencies[NUM_QUERIES / 2] / 1e3;
+			p99[round] = latencies[(int) (NUM_QUERIES * 0.99)] / 1e3;
+		}
+		results.put(workload.name, "query_p50_us", median(p50));
+		results.put(workload.name, "query_p99_us", median(p99));
+
+		// Accuracy against the basic checker, which is exact
+		if (!(checker instanceof BasicCoverageChecker)) {
+			BitSet expected = new BasicCoverageChecker(workload.data,
+					workload.k, workload.rho).ifCoveredBatch(queries, d);
+			expected.xor(covered);
+			results.put(workload.name, PerfReport.ACCURACY,
+					1 - expected.cardinality() / (double) NUM_QUERIES);
+		}
+	}
+
+	private static double median(double[] values) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	// heap in use after a full collection, as far as System.gc gets it. Some
+	// garbage of the previous workload survives the first few collections,
+	// so this is the least use over several.
+	private static long usedHeap() {
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < GC_ROUNDS; i++) {
+			System.gc();
+			used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+		}
+		return used;
+	}
+
+	// n rows uniform in [0, 1)^d; unlike Utils.genRandDataset it is seeded
+	static DataFrame uniform(int n, int d, long seed) {
+		double[] values = uniformPoints(n, d, seed);
+		double[][] rows = new double[n][];
+		for (int i = 0; i < n; i++)
+			rows[i] = Arrays.copyOfRange(values, i * d, (i + 1) * d);
+		return DataFrame.of(rows);
+	}
+
+	static double[] uniformPoints(int n, int d, long seed) {
+		Random random = new Random(seed);
+		double[] values = new double[n * d];
+		for (int i = 0; i < values.length; i++)
+			values[i] = random.nextDouble();
+		return values;
+	}
+}